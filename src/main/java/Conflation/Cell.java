@@ -2,7 +2,6 @@ package Conflation;
 
 import Importer.InvalidArgumentException;
 import OSM.OSMNode;
-import OSM.Point;
 import OSM.Region;
 import OSM.SphericalMercator;
 import org.jetbrains.annotations.NotNull;
@@ -16,11 +15,24 @@ import java.util.List;
  */
 class Cell implements WaySegmentsObserver {
     public final static List<Cell> allCells = new ArrayList<>(128);
-    public final static double cellSizeInMeters = 500.0;
-    private static double cellSize;
+    public final static double defaultCellSizeInMeters = 500.0, minCellSizeInMeters = 100.0, maxCellSizeInMeters = 5000.0;
+    private final static double targetWaysPerCell = 64.0;
+    private final static int maxCellCount = 1 << 20;
+    private static double cellSize, cellSizeInMeters = defaultCellSizeInMeters;
     private static double searchBuffer = 0.0;
 
-    protected static void initCellsForBounds(final Region bounds, final RouteConflator.LineComparisonOptions wayMatchingOptions) {
+    //the cells are stored row-major in a dense grid, so the cells for a region can be looked up directly
+    private static Cell[] grid = new Cell[0];
+    private static double gridOriginX, gridOriginY;
+    private static int columnCount = 0, rowCount = 0;
+
+    /**
+     * Builds the cell grid for the given bounds, sizing the cells so each contains roughly targetWaysPerCell ways
+     * @param bounds the region to cover
+     * @param wayCount the (approximate) number of ways that will be added to the cells
+     * @param wayMatchingOptions the options, used to determine the cells' search buffer
+     */
+    protected static void initCellsForBounds(final Region bounds, final int wayCount, final RouteConflator.LineComparisonOptions wayMatchingOptions) {
         //wipe any existing cells (i.e. from a previous run)
         for(final Cell cell : allCells) {
             cell.clear();
@@ -28,29 +40,71 @@ class Cell implements WaySegmentsObserver {
         allCells.clear();
 
         //and prepare the region, including a buffer zone equal to the greatest of the various search/bounding box dimensions
-        cellSize = SphericalMercator.metersToCoordDelta(cellSizeInMeters, bounds.getCentroid().y);
-        searchBuffer = -SphericalMercator.metersToCoordDelta(Math.max(wayMatchingOptions.segmentSearchBoxSize, Math.max(StopArea.duplicateStopPlatformBoundingBoxSize, StopArea.waySearchAreaBoundingBoxSize)), bounds.getCentroid().y);
+        final double searchBufferInMeters = Math.max(wayMatchingOptions.segmentSearchBoxSize, Math.max(StopArea.duplicateStopPlatformBoundingBoxSize, StopArea.waySearchAreaBoundingBoxSize));
+        searchBuffer = -SphericalMercator.metersToCoordDelta(searchBufferInMeters, bounds.getCentroidY());
+        final Region baseCellRegion = bounds.regionInset(searchBuffer, searchBuffer);
+
+        //size the cells based on the density of the ways in the region
+        final double regionWidthInMeters = SphericalMercator.coordDeltaToMeters(baseCellRegion.extentX - baseCellRegion.originX, bounds.getCentroidY());
+        final double regionHeightInMeters = SphericalMercator.coordDeltaToMeters(baseCellRegion.extentY - baseCellRegion.originY, bounds.getCentroidY());
+        cellSizeInMeters = defaultCellSizeInMeters;
+        if(wayCount > 0) {
+            cellSizeInMeters = Math.sqrt(regionWidthInMeters * regionHeightInMeters * targetWaysPerCell / wayCount);
+        }
+        cellSizeInMeters = Math.min(Math.max(cellSizeInMeters, Math.max(minCellSizeInMeters, searchBufferInMeters)), maxCellSizeInMeters);
+        cellSizeInMeters = Math.max(cellSizeInMeters, Math.sqrt(regionWidthInMeters * regionHeightInMeters / maxCellCount)); //don't generate an unreasonable number of cells
+        cellSize = SphericalMercator.metersToCoordDelta(cellSizeInMeters, bounds.getCentroidY());
 
         //generate the cells needed to fill the entire bounds (plus the searchBuffer)
-        final Region baseCellRegion = bounds.regionInset(searchBuffer, searchBuffer);
-        for(double y = baseCellRegion.origin.y; y <= baseCellRegion.extent.y; y += Cell.cellSize) {
-            for(double x = baseCellRegion.origin.x; x <= baseCellRegion.extent.x; x += Cell.cellSize) {
-                createCellForPoint(new Point(x, y));
+        gridOriginX = baseCellRegion.originX;
+        gridOriginY = baseCellRegion.originY;
+        columnCount = (int) Math.floor((baseCellRegion.extentX - gridOriginX) / cellSize) + 1;
+        rowCount = (int) Math.floor((baseCellRegion.extentY - gridOriginY) / cellSize) + 1;
+        grid = new Cell[columnCount * rowCount];
+        for(int row = 0; row < rowCount; row++) {
+            for(int column = 0; column < columnCount; column++) {
+                final Cell cell = new Cell(gridOriginX + column * cellSize, gridOriginY + row * cellSize);
+                grid[row * columnCount + column] = cell;
+                allCells.add(cell);
+            }
+        }
+    }
+    /**
+     * Finds the cells whose bounding box intersects the given region, using the grid rather than checking every cell
+     * @param region the region to check
+     * @param useExpandedBoundingBox whether to check the cells' expandedBoundingBox, rather than their boundingBox
+     * @param cells the list to add the intersecting cells to (cleared first), in the same order as allCells
+     */
+    protected static void findCellsIntersecting(final @NotNull Region region, final boolean useExpandedBoundingBox, final @NotNull List<Cell> cells) {
+        cells.clear();
+        if(grid.length == 0) {
+            return;
+        }
+
+        //get the range of cells the region may overlap (with 1 cell of slack, to include cells sharing an edge with the region)
+        final double margin = useExpandedBoundingBox ? -0.5 * searchBuffer : 0.0;
+        final int minColumn = Math.max(0, (int) Math.floor((region.originX - margin - gridOriginX) / cellSize) - 1), maxColumn = Math.min(columnCount - 1, (int) Math.floor((region.extentX + margin - gridOriginX) / cellSize) + 1);
+        final int minRow = Math.max(0, (int) Math.floor((region.originY - margin - gridOriginY) / cellSize) - 1), maxRow = Math.min(rowCount - 1, (int) Math.floor((region.extentY + margin - gridOriginY) / cellSize) + 1);
+        for(int row = minRow; row <= maxRow; row++) {
+            for(int column = minColumn; column <= maxColumn; column++) {
+                final Cell cell = grid[row * columnCount + column];
+                if(Region.intersects(useExpandedBoundingBox ? cell.expandedBoundingBox : cell.boundingBox, region)) {
+                    cells.add(cell);
+                }
             }
         }
     }
-    private static Cell createCellForPoint(final Point point) {
-        Cell cell = new Cell(point);
-        allCells.add(cell);
-        return cell;
+    protected static double getCellSizeInMeters() {
+        return cellSizeInMeters;
     }
 
     public final @NotNull Region boundingBox, expandedBoundingBox;
     public final @NotNull List<OSMWaySegments> containedLines = new ArrayList<>(1024); //contains OSM ways only
 
-    private Cell(final Point origin) {
-        boundingBox = new Region(origin, new Point(origin.x + cellSize, origin.y + cellSize));
-        expandedBoundingBox = boundingBox.regionInset(searchBuffer, searchBuffer);
+    private Cell(final double originX, final double originY) {
+        boundingBox = new Region(originX, originY, cellSize, cellSize);
+        expandedBoundingBox = new Region(boundingBox);
+        expandedBoundingBox.inset(searchBuffer, searchBuffer);
     }
     protected void addWay(@NotNull OSMWaySegments entity) {
         if(!containedLines.contains(entity)) {
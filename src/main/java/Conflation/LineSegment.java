@@ -1,27 +1,25 @@
 package Conflation;
 
+import OSM.IdHash;
 import OSM.OSMNode;
 import OSM.Point;
 import OSM.Region;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
-import java.util.zip.CRC32;
 
 /**
  * Created by nick on 11/9/15.
  */
 public abstract class LineSegment {
     private final static DecimalFormat DEBUG_OUTPUT_FORMATTER = new DecimalFormat("#.####");
-    private final static String ID_HASH_FORMAT = "%.03f,%.03f:%.03f,%.03f";
+    private final static long ID_HASH_SEED = 0x4C53L; //"LS"
     public final Point originPoint, midPoint, destinationPoint;
     public final OSMNode originNode, destinationNode;
 
     public abstract WaySegments getParent();
     public abstract void setParent(WaySegments newParent);
-    private final static CRC32 idGenerator = new CRC32();
 
     /**
      * The index of the originNode in the parent Way (if originNode is null, should be the index of the most recent node in the way)
@@ -39,13 +37,10 @@ public abstract class LineSegment {
      * collisions may result.  Best practice is to validate the GTFS and OSM data to ensure ways aren't overlapping.
      * @param origin Origin point of the LineSegment
      * @param destination Origin point of the LineSegment
-     * @return CRC32 hash of a string generated form origin/destination
+     * @return 64-bit hash of the origin/destination coordinates
      */
     private static long generateIdForPoints(@NotNull Point origin, @NotNull Point destination) {
-        idGenerator.reset();
-        byte[] idData = String.format(ID_HASH_FORMAT, origin.y, origin.x, destination.y, destination.x).getBytes(StandardCharsets.US_ASCII);
-        idGenerator.update(idData, 0, idData.length);
-        return idGenerator.getValue();
+        return IdHash.hash(ID_HASH_SEED, IdHash.coordinateBits(origin.y), IdHash.coordinateBits(origin.x), IdHash.coordinateBits(destination.y), IdHash.coordinateBits(destination.x));
     }
     protected LineSegment(@NotNull Point origin, @NotNull Point destination, @Nullable OSMNode originNode, @Nullable OSMNode destinationNode, final int segmentIndex, final int nodeIndex) {
         originPoint = origin;
@@ -115,18 +110,41 @@ public abstract class LineSegment {
      */
     @NotNull
     public Point closestPointToPoint(@NotNull Point point) {
-        final double apX = point.x - originPoint.x;
-        final double apY = point.y - originPoint.y;
+        return closestPointToPoint(point.x, point.y);
+    }
+    /**
+     * Finds the closest point on this segment to the given coordinate
+     * @return the closest point on this segment
+     */
+    @NotNull
+    public Point closestPointToPoint(final double x, final double y) {
+        final double t = closestPointFraction(x, y);
+        return new Point(originPoint.x + vectorX * t, originPoint.y + vectorY * t);
+    }
+    /**
+     * Gets the distance from the given coordinate to the closest point on this segment, without allocating the point
+     * @return the distance, in meters
+     */
+    public double distanceToPoint(final double x, final double y) {
+        final double t = closestPointFraction(x, y);
+        return Point.distance(x, y, originPoint.x + vectorX * t, originPoint.y + vectorY * t);
+    }
+    /**
+     * @return the position of the closest point on this segment to the given coordinate, from 0 (origin) to 1 (destination)
+     */
+    private double closestPointFraction(final double x, final double y) {
+        final double apX = x - originPoint.x;
+        final double apY = y - originPoint.y;
 
         final double ab2 = vectorX * vectorX + vectorY * vectorY;
         final double ap_ab = apX * vectorX + apY * vectorY;
-        double t = ap_ab / ab2;
+        final double t = ap_ab / ab2;
 
         if (t < 0.0) {
-            t = 0.0;
+            return 0.0;
         } else if (t > 1.0) {
-            t = 1.0;
+            return 1.0;
         }
-        return new Point(originPoint.x + vectorX * t, originPoint.y + vectorY * t);
+        return t;
     }
 }
@@ -18,8 +18,8 @@ public class OSMWaySegments extends WaySegments {
         //set up the various bounding boxes
         Region wayRegion = way.getBoundingBox();
         assert wayRegion != null;
-        Point wayCentroid = wayRegion.getCentroid();
-        final double platformDistanceBuffer = -SphericalMercator.metersToCoordDelta(StopArea.waySearchAreaBoundingBoxSize, wayCentroid.y), segmentSearchBuffer = -SphericalMercator.metersToCoordDelta(wayMatchingOptions.segmentSearchBoxSize, wayCentroid.y);
+        final double wayCentroidY = wayRegion.getCentroidY();
+        final double platformDistanceBuffer = -SphericalMercator.metersToCoordDelta(StopArea.waySearchAreaBoundingBoxSize, wayCentroidY), segmentSearchBuffer = -SphericalMercator.metersToCoordDelta(wayMatchingOptions.segmentSearchBoxSize, wayCentroidY);
         boundingBoxForStopMatching = wayRegion.regionInset(platformDistanceBuffer, platformDistanceBuffer);
         boundingBoxForSegmentMatching = wayRegion.regionInset(segmentSearchBuffer, segmentSearchBuffer);
     }
@@ -29,12 +29,16 @@ public class OSMWaySegments extends WaySegments {
         //set up the various bounding boxes
         Region wayRegion = way.getBoundingBox();
         assert wayRegion != null;
-        Point wayCentroid = wayRegion.getCentroid();
-        final double platformDistanceBuffer = -SphericalMercator.metersToCoordDelta(StopArea.waySearchAreaBoundingBoxSize, wayCentroid.y), segmentSearchBuffer = -SphericalMercator.metersToCoordDelta(wayMatchingOptions.segmentSearchBoxSize, wayCentroid.y);
+        final double wayCentroidY = wayRegion.getCentroidY();
+        final double platformDistanceBuffer = -SphericalMercator.metersToCoordDelta(StopArea.waySearchAreaBoundingBoxSize, wayCentroidY), segmentSearchBuffer = -SphericalMercator.metersToCoordDelta(wayMatchingOptions.segmentSearchBoxSize, wayCentroidY);
         boundingBoxForStopMatching = wayRegion.regionInset(platformDistanceBuffer, platformDistanceBuffer);
         boundingBoxForSegmentMatching = wayRegion.regionInset(segmentSearchBuffer, segmentSearchBuffer);
     }
     @Override
+    public long estimatedBytes() {
+        return super.estimatedBytes() + 2 * MemoryFootprint.REGION_BYTES; //the stop/segment matching bounding boxes
+    }
+    @Override
     protected LineSegment createLineSegment(@NotNull Point miniOrigin, @NotNull Point miniDestination, @Nullable OSMNode miniOriginNode, @Nullable OSMNode miniDestinationNode, int segmentIndex, int nodeIndex) {
         return new OSMLineSegment(this, miniOrigin, miniDestination, miniOriginNode, miniDestinationNode, segmentIndex, nodeIndex);
     }
@@ -241,11 +241,11 @@ public class Route {
         for(final Cell cell : Cell.allCells) {
             final Region bbox = cell.boundingBox;
             List<OSMNode> cellNodes = new ArrayList<>(5);
-            final OSMNode oNode = segmentSpace.createNode(bbox.origin.x, bbox.origin.y, null);
+            final OSMNode oNode = segmentSpace.createNode(bbox.originX, bbox.originY, null);
             cellNodes.add(oNode);
-            cellNodes.add(segmentSpace.createNode(bbox.extent.x, bbox.origin.y, null));
-            cellNodes.add(segmentSpace.createNode(bbox.extent.x, bbox.extent.y, null));
-            cellNodes.add(segmentSpace.createNode(bbox.origin.x, bbox.extent.y, null));
+            cellNodes.add(segmentSpace.createNode(bbox.extentX, bbox.originY, null));
+            cellNodes.add(segmentSpace.createNode(bbox.extentX, bbox.extentY, null));
+            cellNodes.add(segmentSpace.createNode(bbox.originX, bbox.extentY, null));
             cellNodes.add(oNode);
             final OSMWay cellWay = segmentSpace.createWay(null, cellNodes);
             cellWay.setTag("landuse", "construction");
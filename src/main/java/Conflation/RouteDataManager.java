@@ -16,13 +16,22 @@ import java.util.*;
  * Created by nick on 11/10/16.
  */
 public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObserver {
-    public static boolean debugEnabled = false;
+    public static boolean debugEnabled = false, pbfOutputEnabled = false;
 
     protected HashMap<Long, OSMWaySegments> candidateLines = null;
+    private SegmentRTree<OSMLineSegment> osmSegmentIndex = null;
+
+    /**
+     * @return the file extension to use for cached/debugging output files
+     */
+    public static String osmFileExtension() {
+        return pbfOutputEnabled ? ".osm" + PBF_FILE_EXTENSION : ".osm";
+    }
 
     public RouteDataManager(int capacity) {
         super(capacity);
         name = "Working space";
+        enableColumnarNodeStorage(); //the downloaded regions hold the bulk of the run's nodes
     }
 
     public boolean downloadRegionsForImportDataset(final List<RouteConflator> routeConflators, final RouteConflator.LineComparisonOptions wayMatchingOptions, final boolean cachingEnabled) throws InvalidArgumentException, Exceptions.UnknownOverpassError {
@@ -44,7 +53,7 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
                     if (routePathsBoundingBox == null) {
                         routePathsBoundingBox = new Region(route.routeLine.way.getBoundingBox());
                     } else {
-                        routePathsBoundingBox = Region.union(routePathsBoundingBox, route.routeLine.way.getBoundingBox());
+                        routePathsBoundingBox.combinedBoxWithRegion(route.routeLine.way.getBoundingBox());
                     }
                 }
             }
@@ -53,7 +62,7 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
         assert routePathsBoundingBox != null;
 
         //and get the download regions for them
-        final double boundingBoxSize = SphericalMercator.metersToCoordDelta(wayMatchingOptions.segmentSearchBoxSize, routePathsBoundingBox.getCentroid().y);
+        final double boundingBoxSize = SphericalMercator.metersToCoordDelta(wayMatchingOptions.segmentSearchBoxSize, routePathsBoundingBox.getCentroidY());
         final List<Region> downloadRegions = generateCombinedDownloadRegions(routePaths, boundingBoxSize);
 
         //fetch all possible useful ways that intersect the route's combined bounding box
@@ -70,11 +79,11 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
                 SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH:mm:ss");
                 converter.getEntitySpace().name = String.format("download_%s_%d", dateFormat.format(now), downloadIdx++);
                 try {
-                    converter.getEntitySpace().outputXml(Config.sharedInstance.cacheDirectory + "/" + converter.getEntitySpace().name + ".osm");
+                    converter.getEntitySpace().outputToFile(Config.sharedInstance.cacheDirectory + "/" + converter.getEntitySpace().name + osmFileExtension());
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
-                mergeWithSpace(converter.getEntitySpace(), OSMEntity.TagMergeStrategy.keepTags, null);
+                mergeWithSpace(converter.getEntitySpace(), OSMEntity.TagMergeStrategy.keepTags, null, true);
             }
         }
 
@@ -86,18 +95,18 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
         };
         final String relationQuery = "(" + String.join(";", relationQueryComponents) + ";rel(br););";
         relationConverter.fetchFromOverpass(relationQuery, cachingEnabled);
-        mergeWithSpace(relationConverter.getEntitySpace(), OSMEntity.TagMergeStrategy.keepTags, null);
+        mergeWithSpace(relationConverter.getEntitySpace(), OSMEntity.TagMergeStrategy.keepTags, null, true);
 
         System.out.format("INFO: Begin processing with entity space: %s\n", this);
 
         if (debugEnabled) {
             for (final Region r : downloadRegions) {
                 List<OSMNode> rNodes = new ArrayList<>(5);
-                rNodes.add(createNode(r.origin.x, r.origin.y, null));
-                rNodes.add(createNode(r.extent.x, r.origin.y, null));
-                rNodes.add(createNode(r.extent.x, r.extent.y, null));
-                rNodes.add(createNode(r.origin.x, r.extent.y, null));
-                rNodes.add(createNode(r.origin.x, r.origin.y, null));
+                rNodes.add(createNode(r.originX, r.originY, null));
+                rNodes.add(createNode(r.extentX, r.originY, null));
+                rNodes.add(createNode(r.extentX, r.extentY, null));
+                rNodes.add(createNode(r.originX, r.extentY, null));
+                rNodes.add(createNode(r.originX, r.originY, null));
                 final OSMWay regionWay = createWay(null, rNodes);
                 regionWay.setTag("landuse", "construction");
                 regionWay.setTag(RouteConflator.GTFS_IGNORE, "yes");
@@ -123,12 +132,17 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
             routeConflator.conflateExistingRouteRelations(existingRoutes, existingSubRoutes);
         }
 
-        //create the Cell index for all the ways, for faster lookup below
-        Cell.initCellsForBounds(routePathsBoundingBox, wayMatchingOptions);
+        //create the Cell index for all the ways, which is only used for the debug output (segment matching uses getOSMSegmentIndex())
+        if(debugEnabled) {
+            Cell.initCellsForBounds(routePathsBoundingBox, allWays.size(), wayMatchingOptions);
+            System.out.format("DEBUG: created %d cells of %.0fm\n", Cell.allCells.size(), Cell.getCellSizeInMeters());
+        }
 
         //create OSMWaySegments objects for all downloaded ways
         candidateLines = new HashMap<>(allWays.size());
+        osmSegmentIndex = null;
         final Date t0 = new Date();
+        final List<Cell> wayCells = debugEnabled ? new ArrayList<Cell>(16) : null;
         for (final OSMWay way : allWays.values()) {
             //only include completely-downloaded ways, with all their nodes present and complete
             if (way.getCompletionStatus() != OSMEntity.CompletionStatus.membersComplete) {
@@ -140,8 +154,11 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
             candidateLines.put(way.osm_id, line);
             line.addObserver(this);
 
-            for (final Cell cell : Cell.allCells) {
-                if (Region.intersects(cell.boundingBox, way.getBoundingBox())) {
+            if(wayCells != null) {
+                final Region wayBoundingBox = way.getBoundingBox();
+                assert wayBoundingBox != null;
+                Cell.findCellsIntersecting(wayBoundingBox, false, wayCells);
+                for (final Cell cell : wayCells) {
                     cell.addWay(line);
                 }
             }
@@ -166,6 +183,7 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
         //combine significantly-overlapping regions
         final double minAreaOverlap = 0.8;
         final List<Region> downloadRegions = new ArrayList<>(combinedRegions.size()), processedRegions = new ArrayList<>(combinedRegions.size());
+        final Region intersectionRegion = new Region(0.0, 0.0, 0.0, 0.0); //scratch region, reused for each pair
         for(final Region region1 : combinedRegions) {
             if(processedRegions.contains(region1)) { //skip if this region was de-duplicated in a previous pass
                 continue;
@@ -187,8 +205,8 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
                 }
 
                 //check if the regions significantly overlap
-                final Region intersectionRegion = Region.intersection(region1, region2);
-                if(intersectionRegion != null) {
+                intersectionRegion.setRegion(region1);
+                if(intersectionRegion.intersect(region2)) {
                     final double intersectionArea = intersectionRegion.area();
                     if (intersectionArea / region1Area >= minAreaOverlap && intersectionArea / region2.area() >= minAreaOverlap) {
                         //if so, add the union of the two regions
@@ -214,7 +232,7 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
         final List<Region> regions = new ArrayList<>((int) Math.ceil(way.getBoundingBox().area() / maxRectArea));
         final OSMNode firstNodeInWay = way.getFirstNode(), lastNodeInWay = way.getLastNode();
         OSMNode lastNode = null;
-        Region curRegion = null;
+        final Region curRegion = new Region(0.0, 0.0, 0.0, 0.0), testRegion = new Region(0.0, 0.0, 0.0, 0.0);
         boolean virginRegion = true;
         for(final OSMNode node : way.getNodes()) {
             if(node == firstNodeInWay) { //don't until we get 2+ nodes
@@ -222,28 +240,28 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
                 continue;
             }
 
+            assert lastNode != null;
             if(virginRegion) { //init the region
-                assert lastNode != null;
-                final Point[] points = {lastNode.getCentroid(), node.getCentroid()};
-                curRegion = new Region(points);
+                curRegion.set(lastNode.getX(), lastNode.getY(), 0.0, 0.0);
+                curRegion.includePoint(node.getX(), node.getY());
             }
 
-            //create a copy of the region to test its properties
-            Region testRegion = new Region(curRegion);
+            //reuse the scratch region to test the region's properties
+            testRegion.setRegion(curRegion);
             if(!virginRegion) {
-                testRegion.includePoint(node.getCentroid());
+                testRegion.includePoint(node.getX(), node.getY());
             }
-            testRegion = testRegion.regionInset(-boundingBoxSize, -boundingBoxSize);
+            testRegion.inset(-boundingBoxSize, -boundingBoxSize);
 
             //check if the test region's area is within the max value
             if(node == lastNodeInWay || testRegion.area() > maxRectArea) { //if not
-                regions.add(testRegion); //add to the regions list
+                regions.add(new Region(testRegion)); //add a copy to the regions list
 
-                //and create a new region with the last and current nodes
-                final Point[] points = {lastNode.getCentroid(), node.getCentroid()};
-                curRegion = new Region(points);
+                //and reset the region to the last and current nodes
+                curRegion.set(lastNode.getX(), lastNode.getY(), 0.0, 0.0);
+                curRegion.includePoint(node.getX(), node.getY());
             } else { //otherwise, just include the current point
-                curRegion.includePoint(node.getCentroid());
+                curRegion.includePoint(node.getX(), node.getY());
             }
 
             virginRegion = false;
@@ -267,13 +285,13 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
         final Point[] includedStops = new Point[allStops.size()];
         int s = 0;
         for(final StopArea stop : allStops) {
-            includedStops[s++] = stop.getPlatform().getCentroid();
+            includedStops[s++] = stop.getPlatformPosition();
         }
-        Region stopDownloadRegion = new Region(includedStops);
+        final Region stopDownloadRegion = new Region(includedStops);
 
         //expand the total area little further, to ensure the start/end of the route is included (problem with King County data)
-        final double stopSearchBuffer = -SphericalMercator.metersToCoordDelta(100.0/*StopArea.duplicateStopPlatformBoundingBoxSize*/, stopDownloadRegion.getCentroid().y);
-        stopDownloadRegion = stopDownloadRegion.regionInset(stopSearchBuffer, stopSearchBuffer);
+        final double stopSearchBuffer = -SphericalMercator.metersToCoordDelta(100.0/*StopArea.duplicateStopPlatformBoundingBoxSize*/, stopDownloadRegion.getCentroidY());
+        stopDownloadRegion.inset(stopSearchBuffer, stopSearchBuffer);
 
         final Map<String, List<String>> platformTags = RouteConflator.platformTagsForRouteType(routeType);
         assert platformTags != null;
@@ -322,7 +340,7 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
 
         if(debugEnabled) {
             try {
-                existingStopsSpace.outputXml(String.format("%s/stopdownload.osm", Config.sharedInstance.cacheDirectory));
+                existingStopsSpace.outputToFile(String.format("%s/stopdownload%s", Config.sharedInstance.cacheDirectory, osmFileExtension()));
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -368,7 +386,7 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
 
                     //flag as a conflict if no gtfs:stop_id or ref tag
                     if(!existingEntity.hasTag(RouteConflator.GTFS_STOP_ID) && !existingEntity.hasTag(OSMEntity.KEY_REF) && (entityType == null || OSMEntity.TAG_PLATFORM.equals(entityType))) { //if a platform, mark as a conflict
-                        final double stopDistance = Point.distance(stop.getPlatform().getCentroid(), existingEntity.getCentroid());
+                        final double stopDistance = Point.distance(stop.getPlatformPosition(), existingEntity.getCentroid());
                         if (stopDistance < StopArea.maxDistanceBetweenDuplicateStops) {
                             //System.out.format("%s within distance of %s: dist %.01f!\n", stop, existingEntity, stopDistance);
                             stop.getPlatform().setTag(StopArea.KEY_GTFS_CONFLICT, "id #" + existingEntity.osm_id);
@@ -523,6 +541,44 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
     public HashMap<Long, OSMWaySegments> getCandidateLines() {
         return candidateLines;
     }
+    /**
+     * Returns the R-tree of all the candidate lines' segments, which is kept up to date as the lines change (see the
+     * WaySegmentsObserver methods below), and rebuilt once enough segments have changed that queries would slow down
+     * @return the segment index
+     */
+    @NotNull
+    protected SegmentRTree<OSMLineSegment> getOSMSegmentIndex() {
+        if(osmSegmentIndex == null || osmSegmentIndex.needsRepacking()) {
+            final List<OSMLineSegment> osmSegments = new ArrayList<>(candidateLines != null ? candidateLines.size() * 16 : 0);
+            if(candidateLines != null) {
+                for(final OSMWaySegments line : candidateLines.values()) {
+                    for(final LineSegment segment : line.segments) {
+                        osmSegments.add((OSMLineSegment) segment);
+                    }
+                }
+            }
+            osmSegmentIndex = new SegmentRTree<>(osmSegments);
+        }
+        return osmSegmentIndex;
+    }
+    @Override
+    public MemoryFootprint getMemoryFootprint() {
+        final MemoryFootprint footprint = super.getMemoryFootprint();
+        if(candidateLines != null) {
+            long segmentCount = 0, segmentBytes = 0;
+            for(final OSMWaySegments line : candidateLines.values()) {
+                segmentCount += line.segments.size();
+                segmentBytes += line.estimatedBytes();
+            }
+            footprint.addToComponent("way segments", segmentCount, segmentBytes);
+            //HashMap entries and their boxed keys, plus the table
+            footprint.addToComponent("candidate line index", candidateLines.size(), candidateLines.size() * (MemoryFootprint.objectBytes(3, 4) + MemoryFootprint.objectBytes(0, 8)) + MemoryFootprint.arrayBytes(candidateLines.size() * 2, 4));
+        }
+        if(osmSegmentIndex != null) {
+            footprint.addToComponent("segment R-tree", osmSegmentIndex.size(), osmSegmentIndex.estimatedBytes());
+        }
+        return footprint;
+    }
 
     @Override
     public void waySegmentsWasSplit(@NotNull final WaySegments originalWaySegments, @NotNull OSMNode[] splitNodes, @NotNull final WaySegments[] splitWaySegments) throws InvalidArgumentException {
@@ -531,13 +587,24 @@ public class RouteDataManager extends OSMEntitySpace implements WaySegmentsObser
                 candidateLines.put(ws.way.osm_id, (OSMWaySegments) ws);
             }
         }
+        //no need to update the segment index: the split lines reuse the original line's segments
     }
     @Override
     public void waySegmentsWasDeleted(@NotNull final WaySegments waySegments) {
         candidateLines.remove(waySegments.way.osm_id);
+        if(osmSegmentIndex != null) {
+            for(final LineSegment segment : waySegments.segments) {
+                osmSegmentIndex.remove((OSMLineSegment) segment);
+            }
+        }
     }
     @Override
     public void waySegmentsAddedSegment(@NotNull final WaySegments waySegments, @NotNull final LineSegment oldSegment, @NotNull final LineSegment[] newSegments) {
-
+        if(osmSegmentIndex != null) {
+            osmSegmentIndex.remove((OSMLineSegment) oldSegment);
+            for(final LineSegment segment : newSegments) {
+                osmSegmentIndex.insert((OSMLineSegment) segment);
+            }
+        }
     }
 }
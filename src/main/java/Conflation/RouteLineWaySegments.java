@@ -4,7 +4,6 @@ import Importer.InvalidArgumentException;
 import OSM.OSMNode;
 import OSM.OSMWay;
 import OSM.Point;
-import OSM.Region;
 import org.jetbrains.annotations.NotNull;
 
 import java.lang.ref.WeakReference;
@@ -113,43 +112,26 @@ public class RouteLineWaySegments extends WaySegments implements WaySegmentsObse
         RouteLineSegment routeLineSegment;
         int totalIterations = 0;
         final DebugMatchCounting matchCounting = new DebugMatchCounting();
+        final SegmentRTree<OSMLineSegment> osmSegmentIndex = routeConflator.getWorkingEntitySpace().getOSMSegmentIndex();
+        final List<OSMLineSegment> candidateSegments = new ArrayList<>(64);
+        final Map<WaySegments, Boolean> validCandidateLines = new HashMap<>(1024);
         for (final LineSegment lineSegment : segments) {
             routeLineSegment = (RouteLineSegment) lineSegment;
 
-            //get the cells which the routeLineSegment overlaps with...
-            final List<Cell> segmentCells = new ArrayList<>(2);
-            for(final Cell cell : Cell.allCells) {
-                if (Region.intersects(routeLineSegment.searchAreaForMatchingOtherSegments, cell.expandedBoundingBox)) {
-                    if (!segmentCells.contains(cell)) {
-                        segmentCells.add(cell);
-                    }
+            //get the OSM segments whose bounding box intersects the routeLineSegment's search area...
+            osmSegmentIndex.findIntersecting(routeLineSegment.searchAreaForMatchingOtherSegments, candidateSegments);
+
+            //and run the detailed checks on those belonging to valid ways
+            for (final OSMLineSegment candidateSegment : candidateSegments) {
+                totalIterations++;
+                final WaySegments candidateLine = candidateSegment.getParent();
+                Boolean isValidLine = validCandidateLines.get(candidateLine);
+                if(isValidLine == null) {
+                    isValidLine = isValidCandidateLine(candidateLine, routeConflator);
+                    validCandidateLines.put(candidateLine, isValidLine);
                 }
-            }
-
-            //and check the ways contained in those cells for overlap with the segment
-            for (final Cell candidateCell : segmentCells) {
-                for(final OSMWaySegments candidateLine : candidateCell.containedLines) {
-                    totalIterations++;
-
-                    //check the tags of the way, to ensure only valid ways are considered for the current route's type
-                    boolean isValidWay = false;
-                    for (final Map.Entry<String, List<String>> requiredTag : routeConflator.allowedRouteTags.entrySet()) {
-                        if (requiredTag.getValue().contains(candidateLine.way.getTag(requiredTag.getKey()))) {
-                            isValidWay = true;
-                            break;
-                        }
-                    }
-
-                    //don't match against any lines that have been marked as "ignore", such as other gtfs shape lines
-                    if (!isValidWay || candidateLine.way.hasTag(RouteConflator.GTFS_IGNORE)) {
-                        continue;
-                    }
-
-                    //check for candidate lines whose bounding box intersects this segment
-                    if (Region.intersects(routeLineSegment.searchAreaForMatchingOtherSegments, candidateLine.boundingBoxForSegmentMatching)) {
-                        //and run the detailed per-segment checks with the line
-                        matchSegmentsOnLine(routeLineSegment, candidateLine, matchCounting);
-                    }
+                if(isValidLine) {
+                    matchSegment(routeLineSegment, candidateSegment, matchCounting);
                 }
             }
         }
@@ -172,32 +154,39 @@ public class RouteLineWaySegments extends WaySegments implements WaySegmentsObse
         System.out.println("Matched lines in " + (new Date().getTime() - timeStartLineComparison) + "ms");
     }
     /**
-     * Matches routeLineSegment against the osmLineSegments in candidateLine
+     * Checks whether the given OSM line can be used by the route, based on its tags
+     * @param candidateLine the line to check
+     * @param routeConflator the route's conflator
+     * @return true if the line's way has one of the route type's allowed tags, and isn't marked as ignored
+     */
+    private static boolean isValidCandidateLine(final WaySegments candidateLine, final RouteConflator routeConflator) {
+        //don't match against any lines that have been marked as "ignore", such as other gtfs shape lines
+        if (candidateLine.way.hasTag(RouteConflator.GTFS_IGNORE)) {
+            return false;
+        }
+
+        //check the tags of the way, to ensure only valid ways are considered for the current route's type
+        for (final Map.Entry<String, List<String>> requiredTag : routeConflator.allowedRouteTags.entrySet()) {
+            if (requiredTag.getValue().contains(candidateLine.way.getTag(requiredTag.getKey()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Matches routeLineSegment against the given osmLineSegment
      * @param routeLineSegment
-     * @param candidateLine
+     * @param osmLineSegment
      * @param matchCounting
      */
-    private void matchSegmentsOnLine(final RouteLineSegment routeLineSegment, final OSMWaySegments candidateLine, final DebugMatchCounting matchCounting) {
-        OSMLineSegment osmLineSegment;
-        SegmentMatch currentMatch;
-        //now check the given OSM way's segments against this segment
-        for (final LineSegment candidateSegment : candidateLine.segments) {
-            osmLineSegment = (OSMLineSegment) candidateSegment;
-
-            //run a quick hash check to see if the given RouteLineSegment-OSMLineSegment match has already been checked
-            /*if(routeLineSegment.checkSegmentMatchPresent(SegmentMatch.idForParameters(routeLineSegment, osmLineSegment))) {
-                //System.out.println("DUPE NO GO");
-                continue;
-            }*/
-
-            currentMatch = SegmentMatch.checkCandidateForMatch(wayMatchingOptions, routeLineSegment, osmLineSegment);
-
-            //if there was a reasonable match with the OSMLineSegment, add it to the various match indexes
-            if(currentMatch != null && routeLineSegment.addMatch(currentMatch)) {
-                addMatchToDependentIndexes(currentMatch);
-
-                matchCounting.updateCounts(currentMatch.type);
-            }
+    private void matchSegment(final RouteLineSegment routeLineSegment, final OSMLineSegment osmLineSegment, final DebugMatchCounting matchCounting) {
+        final SegmentMatch currentMatch = SegmentMatch.checkCandidateForMatch(wayMatchingOptions, routeLineSegment, osmLineSegment);
+
+        //if there was a reasonable match with the OSMLineSegment, add it to the various match indexes
+        if(currentMatch != null && routeLineSegment.addMatch(currentMatch)) {
+            addMatchToDependentIndexes(currentMatch);
+
+            matchCounting.updateCounts(currentMatch.type);
         }
     }
 
@@ -1,19 +1,17 @@
 package Conflation;
 
 import NewPathFinding.PathSegment;
+import OSM.IdHash;
 import OSM.OSMEntity;
 import OSM.OSMWay;
 import OSM.Point;
 import OSM.Region;
 
-import java.nio.charset.StandardCharsets;
-import java.util.zip.CRC32;
-
 /**
  * Created by nick on 11/9/15.
  */
 public class SegmentMatch {
-    private final static CRC32 idGenerator = new CRC32();
+    private final static long ID_HASH_SEED = 0x534DL; //"SM"
     private final static double DOT_PRODUCT_FOR_PARALLEL_LINE = 0.999; //segments with a dot product > than this are considered "parallel" for some calculations
     public final static short matchTypeNone = 0, matchTypeBoundingBox = 1, matchTypeDotProduct = 2, matchTypeDistance = 4, matchTypeTravelDirection = 8;
     public final static short matchMaskAll = matchTypeBoundingBox | matchTypeDistance | matchTypeDotProduct | matchTypeTravelDirection;
@@ -30,10 +28,7 @@ public class SegmentMatch {
     public final PathSegment.TravelDirection travelDirection;
 
     public static long idForParameters(final RouteLineSegment routeLineSegment, final OSMLineSegment osmLineSegment) {
-        idGenerator.reset();
-        byte[] idBase = String.format("SM:%d:%d", routeLineSegment.id, osmLineSegment.id).getBytes(StandardCharsets.US_ASCII);
-        idGenerator.update(idBase, 0, idBase.length);
-        return idGenerator.getValue();
+        return IdHash.hash(ID_HASH_SEED, routeLineSegment.id, osmLineSegment.id);
     }
     public SegmentMatch(final RouteLineSegment routeLineSegment, final OSMLineSegment osmLineSegment, final double orthDistance, final double midDistance, final double dotProduct, final RouteConflator.LineComparisonOptions options) {
         id = idForParameters(routeLineSegment, osmLineSegment);
@@ -0,0 +1,332 @@
+package Conflation;
+
+import OSM.MemoryFootprint;
+import OSM.Region;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * R-tree over LineSegments' bounding boxes, bulk-loaded with Sort-Tile-Recursive packing, for window queries.  The
+ * packed nodes are never restructured: removed segments are masked out, and inserted ones are kept in a small unpacked
+ * list that's scanned on each query, so the tree should be rebuilt once needsRepacking() (see
+ * RouteDataManager.getOSMSegmentIndex()).
+ * Nodes are stored in flat arrays, leaves first and the root last; each node's children are a contiguous run of the
+ * level below (or of entryOrder, for leaves).
+ */
+class SegmentRTree<T extends LineSegment> {
+    private final static int NODE_CAPACITY = 16, INSERTION_SORT_THRESHOLD = 12, MINIMUM_REPACK_CHANGES = 256, REPACK_CHANGE_FRACTION = 64;
+
+    private final List<T> segments;
+    private final boolean[] removedSegments; //indexed the same as segments
+    private final List<T> insertedSegments = new ArrayList<>(16);
+    private int removedCount = 0;
+    private final int[] entryOrder; //the segments' indexes in packed order
+    private final double[] nodeBounds; //minX, minY, maxX, maxY for each node
+    private final int[] nodeFirstChild, nodeChildCount;
+    private final int leafCount, rootIndex, levelCount;
+
+    /**
+     * Builds the tree for the given segments
+     * @param segments the segments to index (the list is copied)
+     */
+    SegmentRTree(final @NotNull List<T> segments) {
+        this.segments = new ArrayList<>(segments);
+        final int segmentCount = this.segments.size();
+        removedSegments = new boolean[segmentCount];
+        entryOrder = new int[segmentCount];
+        if(segmentCount == 0) {
+            nodeBounds = new double[0];
+            nodeFirstChild = nodeChildCount = new int[0];
+            leafCount = levelCount = 0;
+            rootIndex = -1;
+            return;
+        }
+
+        //pack the segments into the leaves
+        final double[] entryBounds = new double[segmentCount * 4];
+        for(int s = 0; s < segmentCount; s++) {
+            final Region boundingBox = this.segments.get(s).boundingBox;
+            entryBounds[s * 4] = boundingBox.originX;
+            entryBounds[s * 4 + 1] = boundingBox.originY;
+            entryBounds[s * 4 + 2] = boundingBox.extentX;
+            entryBounds[s * 4 + 3] = boundingBox.extentY;
+            entryOrder[s] = s;
+        }
+        sortTiles(entryOrder, entryBounds);
+        final List<double[]> levelBounds = new ArrayList<>(8);
+        final List<int[]> levelFirstChild = new ArrayList<>(8), levelChildCount = new ArrayList<>(8);
+        packLevel(entryOrder, entryBounds, levelBounds, levelFirstChild, levelChildCount);
+
+        //then pack each level's nodes into their parents, until there's a single root node
+        int nodeCount = levelFirstChild.get(0).length;
+        int totalNodeCount = nodeCount;
+        while (nodeCount > 1) {
+            final int level = levelFirstChild.size() - 1;
+            final int[] nodeOrder = new int[nodeCount];
+            for(int n = 0; n < nodeCount; n++) {
+                nodeOrder[n] = n;
+            }
+            sortTiles(nodeOrder, levelBounds.get(level));
+
+            //reorder this level's nodes into the packed order, so each parent's children are contiguous
+            final double[] bounds = levelBounds.get(level), sortedBounds = new double[bounds.length];
+            final int[] firstChild = levelFirstChild.get(level), childCount = levelChildCount.get(level);
+            final int[] sortedFirstChild = new int[nodeCount], sortedChildCount = new int[nodeCount];
+            for(int n = 0; n < nodeCount; n++) {
+                System.arraycopy(bounds, nodeOrder[n] * 4, sortedBounds, n * 4, 4);
+                sortedFirstChild[n] = firstChild[nodeOrder[n]];
+                sortedChildCount[n] = childCount[nodeOrder[n]];
+                nodeOrder[n] = n;
+            }
+            levelBounds.set(level, sortedBounds);
+            levelFirstChild.set(level, sortedFirstChild);
+            levelChildCount.set(level, sortedChildCount);
+
+            packLevel(nodeOrder, sortedBounds, levelBounds, levelFirstChild, levelChildCount);
+            nodeCount = levelFirstChild.get(level + 1).length;
+            totalNodeCount += nodeCount;
+        }
+
+        //and flatten the levels into the node arrays, offsetting the internal nodes' child indexes
+        nodeBounds = new double[totalNodeCount * 4];
+        nodeFirstChild = new int[totalNodeCount];
+        nodeChildCount = new int[totalNodeCount];
+        int offset = 0, previousLevelOffset = 0;
+        for(int level = 0; level < levelFirstChild.size(); level++) {
+            final int[] firstChild = levelFirstChild.get(level);
+            System.arraycopy(levelBounds.get(level), 0, nodeBounds, offset * 4, firstChild.length * 4);
+            System.arraycopy(levelChildCount.get(level), 0, nodeChildCount, offset, firstChild.length);
+            for(int n = 0; n < firstChild.length; n++) {
+                nodeFirstChild[offset + n] = level == 0 ? firstChild[n] : previousLevelOffset + firstChild[n];
+            }
+            previousLevelOffset = offset;
+            offset += firstChild.length;
+        }
+        leafCount = levelFirstChild.get(0).length;
+        levelCount = levelFirstChild.size();
+        rootIndex = totalNodeCount - 1;
+    }
+
+    /**
+     * Sorts the given items (indexes into bounds) into Sort-Tile-Recursive order: into vertical slices by their center x,
+     * then by center y within each slice, so consecutive runs of NODE_CAPACITY items form compact nodes
+     */
+    private static void sortTiles(final int[] items, final double[] bounds) {
+        final int nodeCount = (items.length + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        final int sliceSize = (int) Math.ceil(Math.sqrt(nodeCount)) * NODE_CAPACITY;
+        final double[] centerX = new double[bounds.length / 4], centerY = new double[bounds.length / 4];
+        for(int i = 0; i < centerX.length; i++) {
+            centerX[i] = bounds[i * 4] + bounds[i * 4 + 2];
+            centerY[i] = bounds[i * 4 + 1] + bounds[i * 4 + 3];
+        }
+        sortByKey(items, 0, items.length - 1, centerX);
+        for(int sliceStart = 0; sliceStart < items.length; sliceStart += sliceSize) {
+            sortByKey(items, sliceStart, Math.min(sliceStart + sliceSize, items.length) - 1, centerY);
+        }
+    }
+    /**
+     * Creates the nodes for the next level up, each containing a consecutive run of the given (sorted) items
+     */
+    private static void packLevel(final int[] items, final double[] bounds, final List<double[]> levelBounds, final List<int[]> levelFirstChild, final List<int[]> levelChildCount) {
+        final int nodeCount = (items.length + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        final double[] parentBounds = new double[nodeCount * 4];
+        final int[] firstChild = new int[nodeCount], childCount = new int[nodeCount];
+        for(int n = 0; n < nodeCount; n++) {
+            firstChild[n] = n * NODE_CAPACITY;
+            childCount[n] = Math.min(NODE_CAPACITY, items.length - firstChild[n]);
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for(int c = firstChild[n]; c < firstChild[n] + childCount[n]; c++) {
+                final int item = items[c] * 4;
+                minX = Math.min(minX, bounds[item]);
+                minY = Math.min(minY, bounds[item + 1]);
+                maxX = Math.max(maxX, bounds[item + 2]);
+                maxY = Math.max(maxY, bounds[item + 3]);
+            }
+            parentBounds[n * 4] = minX;
+            parentBounds[n * 4 + 1] = minY;
+            parentBounds[n * 4 + 2] = maxX;
+            parentBounds[n * 4 + 3] = maxY;
+        }
+        levelBounds.add(parentBounds);
+        levelFirstChild.add(firstChild);
+        levelChildCount.add(childCount);
+    }
+    /**
+     * Quicksorts items[low..high] by their keys, without boxing
+     */
+    private static void sortByKey(final int[] items, int low, int high, final double[] keys) {
+        while (high - low > INSERTION_SORT_THRESHOLD) {
+            //median-of-three pivot
+            final int mid = (low + high) >>> 1;
+            if(keys[items[mid]] < keys[items[low]]) {
+                swap(items, mid, low);
+            }
+            if(keys[items[high]] < keys[items[low]]) {
+                swap(items, high, low);
+            }
+            if(keys[items[high]] < keys[items[mid]]) {
+                swap(items, high, mid);
+            }
+            final double pivot = keys[items[mid]];
+            int i = low, j = high;
+            while (i <= j) {
+                while (keys[items[i]] < pivot) {
+                    i++;
+                }
+                while (keys[items[j]] > pivot) {
+                    j--;
+                }
+                if(i <= j) {
+                    swap(items, i++, j--);
+                }
+            }
+            //recurse into the smaller partition, and loop on the larger one
+            if(j - low < high - i) {
+                sortByKey(items, low, j, keys);
+                low = i;
+            } else {
+                sortByKey(items, i, high, keys);
+                high = j;
+            }
+        }
+        for(int i = low + 1; i <= high; i++) {
+            final int item = items[i];
+            int j = i - 1;
+            while (j >= low && keys[items[j]] > keys[item]) {
+                items[j + 1] = items[j];
+                j--;
+            }
+            items[j + 1] = item;
+        }
+    }
+    private static void swap(final int[] items, final int index1, final int index2) {
+        final int item = items[index1];
+        items[index1] = items[index2];
+        items[index2] = item;
+    }
+
+    public int size() {
+        return segments.size() - removedCount + insertedSegments.size();
+    }
+    /**
+     * Adds the given segment to the tree.  It's kept outside the packed nodes until the tree is rebuilt.
+     */
+    public void insert(final @NotNull T segment) {
+        insertedSegments.add(segment);
+    }
+    /**
+     * Removes the given segment (matched by identity) from the tree
+     * @return true if the segment was found
+     */
+    public boolean remove(final @NotNull T segment) {
+        for(int i = insertedSegments.size() - 1; i >= 0; i--) {
+            if(insertedSegments.get(i) == segment) {
+                insertedSegments.remove(i);
+                return true;
+            }
+        }
+        if(rootIndex < 0) {
+            return false;
+        }
+
+        //only the nodes containing the segment's bounding box can hold it
+        final int[] stack = new int[levelCount * (NODE_CAPACITY - 1) + 1];
+        int stackSize = 0;
+        stack[stackSize++] = rootIndex;
+        while (stackSize > 0) {
+            final int node = stack[--stackSize];
+            if(!boundsIntersect(nodeBounds, node, segment.boundingBox)) {
+                continue;
+            }
+            final int firstChild = nodeFirstChild[node], lastChild = firstChild + nodeChildCount[node];
+            if(node < leafCount) {
+                for(int c = firstChild; c < lastChild; c++) {
+                    if(segments.get(entryOrder[c]) == segment && !removedSegments[entryOrder[c]]) {
+                        removedSegments[entryOrder[c]] = true;
+                        removedCount++;
+                        return true;
+                    }
+                }
+            } else {
+                for(int c = lastChild - 1; c >= firstChild; c--) {
+                    stack[stackSize++] = c;
+                }
+            }
+        }
+        return false;
+    }
+    /**
+     * @return whether enough segments have been inserted or removed since the tree was built that it should be rebuilt
+     */
+    public boolean needsRepacking() {
+        return insertedSegments.size() + removedCount > Math.max(MINIMUM_REPACK_CHANGES, segments.size() / REPACK_CHANGE_FRACTION);
+    }
+
+    /**
+     * Finds the segments whose bounding box intersects the given region (inclusive, as with Region.intersects())
+     * @param region the region to check
+     * @param results the list to add the intersecting segments to (cleared first): the packed segments in the order they
+     *                were passed to the constructor, then any inserted ones in the order they were inserted
+     */
+    public void findIntersecting(final @NotNull Region region, final @NotNull List<T> results) {
+        results.clear();
+        if(rootIndex < 0) {
+            addInsertedIntersecting(region, results);
+            return;
+        }
+
+        int[] matches = new int[16];
+        int matchCount = 0;
+        final int[] stack = new int[levelCount * (NODE_CAPACITY - 1) + 1];
+        int stackSize = 0;
+        stack[stackSize++] = rootIndex;
+        while (stackSize > 0) {
+            final int node = stack[--stackSize];
+            if(!boundsIntersect(nodeBounds, node, region)) {
+                continue;
+            }
+            final int firstChild = nodeFirstChild[node], lastChild = firstChild + nodeChildCount[node];
+            if(node < leafCount) {
+                for(int c = firstChild; c < lastChild; c++) {
+                    if(!removedSegments[entryOrder[c]] && Region.intersects(segments.get(entryOrder[c]).boundingBox, region)) {
+                        if(matchCount == matches.length) {
+                            matches = Arrays.copyOf(matches, matchCount * 2);
+                        }
+                        matches[matchCount++] = entryOrder[c];
+                    }
+                }
+            } else {
+                for(int c = lastChild - 1; c >= firstChild; c--) {
+                    stack[stackSize++] = c;
+                }
+            }
+        }
+
+        //return the matches in their original order, so the results don't depend on the tree's layout
+        Arrays.sort(matches, 0, matchCount);
+        for(int m = 0; m < matchCount; m++) {
+            results.add(segments.get(matches[m]));
+        }
+        addInsertedIntersecting(region, results);
+    }
+    private void addInsertedIntersecting(final Region region, final List<T> results) {
+        for(final T segment : insertedSegments) {
+            if(Region.intersects(segment.boundingBox, region)) {
+                results.add(segment);
+            }
+        }
+    }
+    private static boolean boundsIntersect(final double[] bounds, final int node, final Region region) {
+        return !(bounds[node * 4 + 2] < region.originX || bounds[node * 4] > region.extentX || bounds[node * 4 + 3] < region.originY || bounds[node * 4 + 1] > region.extentY);
+    }
+
+    /**
+     * @return the estimated size of the tree's own structures (the segments themselves aren't counted)
+     */
+    public long estimatedBytes() {
+        return MemoryFootprint.arrayListBytes(segments.size()) + MemoryFootprint.arrayBytes(removedSegments.length, 1) + MemoryFootprint.arrayListBytes(insertedSegments.size()) + MemoryFootprint.arrayBytes(entryOrder.length, 4) + MemoryFootprint.arrayBytes(nodeBounds.length, 8) + 2 * MemoryFootprint.arrayBytes(nodeFirstChild.length, 4);
+    }
+}
@@ -27,6 +27,7 @@ public class StopArea implements WaySegmentsObserver {
     public final static double stopNodeTolerance = 3.0, maxDistanceFromPlatformToWay = waySearchAreaBoundingBoxSize / 2.0, maxDistanceBetweenDuplicateStops = duplicateStopPlatformBoundingBoxSize / 2.0;
     public final static String KEY_GTFS_STOP_ID = "gtfs:stop_id", KEY_GTFS_CONFLICT = "gtfs:conflict";
     private OSMEntity platform; //can be a node or way
+    private Point platformPosition = null; //reused while a node platform stays put (see getPlatformPosition())
 
     /**
      * The stop_position node(s) associated with the platform.  NOTE: 99% of platforms only have a single stop_position,
@@ -85,7 +86,8 @@ public class StopArea implements WaySegmentsObserver {
         private SegmentProximityMatch addStopSegmentMatch(final SegmentMatch match) {
             SegmentProximityMatch proximityMatch = proximityMatches.get(match.matchingSegment.id);
             if(proximityMatch == null) {
-                final double distance = Point.distance(match.matchingSegment.closestPointToPoint(platform.getCentroid()), platform.getCentroid());
+                final Point platformPosition = getPlatformPosition();
+                final double distance = match.matchingSegment.distanceToPoint(platformPosition.x, platformPosition.y);
                 proximityMatch = new SegmentProximityMatch(match, distance);
                 proximityMatches.put(match.matchingSegment.id, proximityMatch);
             }
@@ -129,7 +131,7 @@ public class StopArea implements WaySegmentsObserver {
             distanceScore /= proximityMatchCount;
 
             //determine the closest segment on the line to this stop
-            closestSegmentToStop = (OSMLineSegment) osmLine.closestSegmentToPoint(platform.getCentroid(), maxDistanceFromPlatformToWay);
+            closestSegmentToStop = (OSMLineSegment) osmLine.closestSegmentToPoint(getPlatformPosition(), maxDistanceFromPlatformToWay);
         }
         protected double getScore() {
             return nameScore + dpScore + distanceScore;
@@ -169,7 +171,7 @@ public class StopArea implements WaySegmentsObserver {
             this.totalScore = nameScore + dpScore + distanceScore + travelDirectionScore;
         }
         public OSMLineSegment getClosestSegmentToStopPlatform() {
-            return (OSMLineSegment) osmLine.closestSegmentToPoint(StopArea.this.platform.getCentroid(), maxDistanceFromPlatformToWay);
+            return (OSMLineSegment) osmLine.closestSegmentToPoint(getPlatformPosition(), maxDistanceFromPlatformToWay);
         }
         @Override
         public String toString() {
@@ -265,9 +267,27 @@ public class StopArea implements WaySegmentsObserver {
     public OSMEntity getPlatform() {
         return platform;
     }
+    /**
+     * Gets the platform's position (its centroid, for way platforms), without allocating a new Point on each call
+     */
+    @NotNull
+    Point getPlatformPosition() {
+        if(platform instanceof OSMNode) {
+            final OSMNode platformNode = (OSMNode) platform;
+            if(platformPosition == null || platformPosition.x != platformNode.getX() || platformPosition.y != platformNode.getY()) {
+                platformPosition = new Point(platformNode.getX(), platformNode.getY());
+            }
+            return platformPosition;
+        }
+        final Point centroid = platform.getCentroid(); //ways cache their own centroid
+        assert centroid != null;
+        return centroid;
+    }
     protected void setPlatform(OSMEntity platform) {
         this.platform = platform;
-        final double waySearchBuffer = -SphericalMercator.metersToCoordDelta(waySearchAreaBoundingBoxSize, platform.getCentroid().y), stopSearchBuffer = -SphericalMercator.metersToCoordDelta(duplicateStopPlatformBoundingBoxSize, platform.getCentroid().y);
+        platformPosition = null;
+        final double platformY = getPlatformPosition().y;
+        final double waySearchBuffer = -SphericalMercator.metersToCoordDelta(waySearchAreaBoundingBoxSize, platformY), stopSearchBuffer = -SphericalMercator.metersToCoordDelta(duplicateStopPlatformBoundingBoxSize, platformY);
         nearbyWaySearchRegion = platform.getBoundingBox().regionInset(waySearchBuffer, waySearchBuffer);
         nearbyStopSearchRegion = platform.getBoundingBox().regionInset(stopSearchBuffer, stopSearchBuffer);
     }
@@ -28,19 +28,20 @@ public class StopConflator {
         }
 
         //run a comparison based on proximity to the nearest OSM line for each subroute
+        final List<LineSegment> nearbyRouteLineSegments = new ArrayList<>(64);
         for(final Route route : routeConflator.getExportRoutes()) {
+            final SegmentRTree<LineSegment> routeLineSegmentIndex = new SegmentRTree<>(route.routeLine.segments);
             for(final StopArea routeStop : route.stops) {
                 //skip stops that already have a stop position assigned (the stop's way(s) are associated with the stop position)
                 if(routeStop.getStopPosition(routeConflator.routeType) != null) {
                     continue;
                 }
 
-                //check the routeLine's SegmentMatches for the best matching way for this platform
-                final Region osmSegmentSearchRegion = routeStop.getNearbyWaySearchRegion();
-                RouteLineSegment routeLineSegment;
-                for(final LineSegment lineSegment : route.routeLine.segments) {
-                    routeLineSegment = (RouteLineSegment) lineSegment;
-                    if(routeLineSegment.bestMatchOverall != null && Region.intersects(lineSegment.boundingBox, osmSegmentSearchRegion)) {
+                //check the nearby routeLine segments' SegmentMatches for the best matching way for this platform
+                routeLineSegmentIndex.findIntersecting(routeStop.getNearbyWaySearchRegion(), nearbyRouteLineSegments);
+                for(final LineSegment lineSegment : nearbyRouteLineSegments) {
+                    final RouteLineSegment routeLineSegment = (RouteLineSegment) lineSegment;
+                    if(routeLineSegment.bestMatchOverall != null) {
                         routeStop.addProximityMatch(routeLineSegment.bestMatchOverall);
                     }
                 }
@@ -134,7 +135,7 @@ public class StopConflator {
 
                 continue;
             }
-            final Point nearestPointOnSegment = bestSegment.closestPointToPoint(stopArea.getPlatform().getCentroid());
+            final Point nearestPointOnSegment = bestSegment.closestPointToPoint(stopArea.getPlatformPosition());
 
             //Create (or update an existing node) to serve as the stop position node for the platform
             OSMNode nearestNodeOnWay = bestSegment.getParent().way.nearestNodeAtPoint(nearestPointOnSegment, StopArea.stopNodeTolerance);
@@ -6,10 +6,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.*;
 
 /**
  * Container for an OSM way and its calculated line segments
@@ -54,25 +51,26 @@ public abstract class WaySegments {
         //generate a list of line segments out of this line
         segments = new ArrayList<>((int) Math.ceil(way.length() / maxSegmentLength));
         OSMNode originNode = way.getFirstNode();
+        Point originPoint = new Point(originNode.getX(), originNode.getY());
         int nodeIndex = 0, segmentIndex = 0;
         for(final OSMNode destinationNode: way.getNodes()) {
             if (destinationNode == originNode) { //skip the first iteration
                 continue;
             }
 
-            //first get the distance between the 2 nodes
-            final Point destinationPoint = destinationNode.getCentroid(), originPoint = originNode.getCentroid();
+            //first get the distance between the 2 nodes (each node's Point is built once, and reused as the next segment's origin)
+            final Point destinationPoint = new Point(destinationNode.getX(), destinationNode.getY());
             final double vectorX = destinationPoint.x - originPoint.x, vectorY = destinationPoint.y - originPoint.y;
-            final double segmentLength = Point.distance(originNode.getCentroid(),destinationNode.getCentroid());
+            final double segmentLength = Point.distance(originPoint.x, originPoint.y, destinationPoint.x, destinationPoint.y);
 
             //if less than the length threshold, add as a segment
             if (segmentLength < maxSegmentLength) {
-                final LineSegment segment = createLineSegment(originNode.getCentroid(), destinationNode.getCentroid(), originNode, destinationNode, segmentIndex++, nodeIndex);
+                final LineSegment segment = createLineSegment(originPoint, destinationPoint, originNode, destinationNode, segmentIndex++, nodeIndex);
                 segments.add(segment);
             } else { //otherwise, split into a number of segments, each equal to or shorter than the maximum segment length
                 final int segmentsToAdd = (int) Math.ceil(segmentLength / maxSegmentLength);
                 OSMNode miniOriginNode = originNode;
-                Point miniOrigin = originNode.getCentroid(), miniDestination;
+                Point miniOrigin = originPoint, miniDestination;
                 double destinationLat, destinationLon;
 
                 //add the first segment (with the origin node) and subsequent segments (which have no existing nodes)
@@ -88,11 +86,12 @@ public abstract class WaySegments {
                 }
 
                 //add the last segment, with its last node as the original destination node
-                miniDestination = destinationNode.getCentroid();
+                miniDestination = destinationPoint;
                 segments.add(createLineSegment(miniOrigin, miniDestination, miniOriginNode, destinationNode, segmentIndex++, nodeIndex));
             }
             //System.out.println("END MAINSEGMENT #" + mainSegmentIndex + ": " + originNode.osm_id + "-" + destinationNode.osm_id);
             originNode = destinationNode;
+            originPoint = destinationPoint;
             nodeIndex++;
         }
     }
@@ -120,7 +119,7 @@ public abstract class WaySegments {
      * @return If an existing node is within the tolerance distance, that node, otherwise the input node
      */
     public OSMNode insertNode(final OSMNode node, LineSegment onSegment) {
-        final Point nodePoint = node.getCentroid();
+        final Point nodePoint = new Point(node.getX(), node.getY());
 
         //create a new segment starting from the node, and ending at onSegment's destination Point
         final LineSegment insertedSegment = createLineSegment(nodePoint, onSegment.destinationPoint, node, onSegment.destinationNode, onSegment.segmentIndex + 1, onSegment.nodeIndex + 1);
@@ -188,7 +187,7 @@ public abstract class WaySegments {
         final LineSegment lastSegment = segments.get(segments.size() - 1);
 
         //the new segment starts from the last segment's destinationPoint
-        final LineSegment newSegment = createLineSegment(lastSegment.destinationPoint, node.getCentroid(), lastSegment.destinationNode, node, lastSegment.segmentIndex + 1, lastSegment.nodeIndex + 1);
+        final LineSegment newSegment = createLineSegment(lastSegment.destinationPoint, new Point(node.getX(), node.getY()), lastSegment.destinationNode, node, lastSegment.segmentIndex + 1, lastSegment.nodeIndex + 1);
         segments.add(newSegment);
         way.appendNode(node);
     }
@@ -236,10 +235,8 @@ public abstract class WaySegments {
     public final LineSegment closestSegmentToPoint(@NotNull Point point, final double maxSearchDistance) {
         double minDistance = maxSearchDistance, curDistance;
         LineSegment closestSegment = null;
-        Point closestPointOnSegment;
         for(final LineSegment segment : segments) {
-            closestPointOnSegment = segment.closestPointToPoint(point);
-            curDistance = Point.distance(point, closestPointOnSegment);
+            curDistance = segment.distanceToPoint(point.x, point.y);
             if(curDistance < minDistance) {
                 minDistance = curDistance;
                 closestSegment = segment;
@@ -251,7 +248,53 @@ public abstract class WaySegments {
     public WaySegments[] split(@NotNull OSMNode[] splitNodes, @NotNull OSMEntitySpace entitySpace) throws InvalidArgumentException {
         //run the split on the underlying way
         final OSMWay[] splitWays = entitySpace.splitWay(way, splitNodes);
+        return didSplitWay(splitNodes, splitWays);
+    }
+    /**
+     * Splits multiple WaySegments at once: the underlying ways are all split in one pass (see OSMEntitySpace.splitWays()),
+     * then each WaySegments updates its segments and notifies its observers once, with all its split nodes.  Closed ways
+     * with only 1 split node in total are left unsplit.
+     * @param splitRequests the WaySegments to split, and the node(s) to split each at
+     * @param entitySpace the space containing the ways
+     * @return the resulting WaySegments for each of the split WaySegments
+     * @throws InvalidArgumentException if any split node isn't a member of its way
+     */
+    @NotNull
+    public static Map<WaySegments, WaySegments[]> splitAll(@NotNull Map<? extends WaySegments, ? extends Collection<OSMNode>> splitRequests, @NotNull OSMEntitySpace entitySpace) throws InvalidArgumentException {
+        //combine the requests by way, in case any ways are shared between WaySegments
+        final Map<OSMWay, Set<OSMNode>> waySplitRequests = new LinkedHashMap<>(splitRequests.size());
+        for(final Map.Entry<? extends WaySegments, ? extends Collection<OSMNode>> splitRequest : splitRequests.entrySet()) {
+            Set<OSMNode> waySplitNodes = waySplitRequests.get(splitRequest.getKey().way);
+            if(waySplitNodes == null) {
+                waySplitNodes = new LinkedHashSet<>(splitRequest.getValue().size());
+                waySplitRequests.put(splitRequest.getKey().way, waySplitNodes);
+            }
+            waySplitNodes.addAll(splitRequest.getValue());
+        }
 
+        //a closed way can't be split at a single node, so leave it as is (checked on the combined nodes, in case multiple requests add up to 2+ nodes)
+        for(final Map.Entry<OSMWay, Set<OSMNode>> waySplitRequest : waySplitRequests.entrySet()) {
+            if(waySplitRequest.getValue().size() == 1 && waySplitRequest.getKey().isClosed()) {
+                System.out.format("NOTICE: Skipping split of closed way with only 1 node: %s\n", waySplitRequest.getKey());
+                waySplitRequest.getValue().clear();
+            }
+        }
+
+        //run the splits on the underlying ways, then update the WaySegments
+        final Map<OSMWay, OSMWay[]> splitWays = entitySpace.splitWays(waySplitRequests);
+        final Map<WaySegments, WaySegments[]> splitWaySegments = new LinkedHashMap<>(splitRequests.size());
+        for(final WaySegments waySegments : splitRequests.keySet()) {
+            final Set<OSMNode> waySplitNodes = waySplitRequests.get(waySegments.way);
+            splitWaySegments.put(waySegments, waySegments.didSplitWay(waySplitNodes.toArray(new OSMNode[waySplitNodes.size()]), splitWays.get(waySegments.way)));
+        }
+        return splitWaySegments;
+    }
+    /**
+     * Updates this WaySegments' segments after its way was split, creating WaySegments for the other split ways, and
+     * notifies the observers
+     */
+    @NotNull
+    private WaySegments[] didSplitWay(@NotNull OSMNode[] splitNodes, @NotNull OSMWay[] splitWays) throws InvalidArgumentException {
         //System.out.println(splitWays.length + " split ways:");
         if(splitWays.length == 1 && splitWays[0] == way) { //i.e. the split wasn't run, just return an array containing this WaySegments
             return new WaySegments[]{this};
@@ -348,6 +391,18 @@ public abstract class WaySegments {
             }
         }
     }
+    /**
+     * @return the estimated heap used by this object and its line segments (see MemoryFootprint)
+     */
+    public long estimatedBytes() {
+        //each segment owns its midpoint and bounding box, plus one end point (the other is shared with the next segment)
+        final long segmentBytes = MemoryFootprint.objectBytes(7, 80) + 2 * MemoryFootprint.POINT_BYTES + MemoryFootprint.REGION_BYTES;
+        long bytes = MemoryFootprint.objectBytes(5, 0) + MemoryFootprint.arrayListBytes(segments.size()) + segments.size() * segmentBytes;
+        if(observers != null) {
+            bytes += MemoryFootprint.arrayListBytes(observers.size()) + observers.size() * MemoryFootprint.objectBytes(4, 0);
+        }
+        return bytes;
+    }
     public String toString() {
         return String.format("WaySegments @%d: way #%d (%s): [%d->%d], %d segments", hashCode(), way.osm_id, way.getTag(OSMEntity.KEY_NAME), way.getFirstNode() != null ? way.getFirstNode().osm_id : 0, way.getLastNode() != null ? way.getLastNode().osm_id : 0, segments.size());
     }
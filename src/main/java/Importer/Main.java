@@ -5,6 +5,7 @@ import NewPathFinding.PathTree;
 import OSM.OSMEntity;
 import OSM.OSMEntitySpace;
 import OSM.OSMRelation;
+import OSM.OSMWay;
 import Overpass.Exceptions;
 import Overpass.OverpassConverter;
 import org.xml.sax.SAXException;
@@ -13,9 +14,10 @@ import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
 import java.nio.file.FileSystemException;
 import java.util.*;
+import java.util.function.Predicate;
 
 public class Main {
-    private static boolean debugEnabled = false;
+    private static boolean debugEnabled = false, pbfOutputEnabled = false, memoryReportEnabled = false;
     private final static String ANSI_RESET, ANSI_GREEN, ANSI_YELLOW, ANSI_RED, ANSI_BLUE;
 
     static {
@@ -49,6 +51,21 @@ public class Main {
         }
         return helpBuffer.toString();
     }
+    /**
+     * Prints the JVM's heap usage and the estimated footprint of the given spaces, if memory reporting is enabled
+     * @param phase the pipeline phase just completed
+     */
+    private static void reportMemoryUsage(final String phase, final OSMEntitySpace... entitySpaces) {
+        if(!memoryReportEnabled) {
+            return;
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        final double bytesPerMegabyte = 1024.0 * 1024.0;
+        System.out.format("%sINFO: Memory after %s: %.1f MB heap used (%.1f MB max)%s\n", ANSI_BLUE, phase, (runtime.totalMemory() - runtime.freeMemory()) / bytesPerMegabyte, runtime.maxMemory() / bytesPerMegabyte, ANSI_RESET);
+        for(final OSMEntitySpace entitySpace : entitySpaces) {
+            System.out.print(entitySpace.getMemoryFootprint());
+        }
+    }
     public static void main(String[] args) {
         //check command line args
         String importFileName = Config.DEFAULT_GTFS_FILE;
@@ -97,6 +114,23 @@ public class Main {
                 case "--debug":
                     debugEnabled = true;
                     break;
+                case "-p":
+                case "--pbf":
+                    pbfOutputEnabled = true;
+                    break;
+                case "-m":
+                case "--memory":
+                    memoryReportEnabled = true;
+                    break;
+                case "-i":
+                case "--idoffset":
+                    final long idOffset = Long.parseLong(argIterator.next());
+                    if(idOffset < 0) {
+                        System.err.format("%sFATAL: The id offset must be 0 or greater%s\n", ANSI_RED, ANSI_RESET);
+                        System.exit(1);
+                    }
+                    OSMEntitySpace.newEntityIdOffset = idOffset;
+                    break;
             }
         }
 
@@ -128,6 +162,7 @@ public class Main {
 
         //propagate the debug value as needed
         RouteDataManager.debugEnabled = debugEnabled;
+        RouteDataManager.pbfOutputEnabled = pbfOutputEnabled;
         RouteConflator.debugEnabled = debugEnabled;
         StopConflator.debugEnabled = debugEnabled;
         StopArea.debugEnabled = debugEnabled;
@@ -137,7 +172,28 @@ public class Main {
 
         try {
             OSMEntitySpace allGTFSRoutesSpace = new OSMEntitySpace(262144), workingImportSpace = new OSMEntitySpace(65536);
-            allGTFSRoutesSpace.loadFromXML(importFileName);
+
+            //only the routes without their own GTFS route .osm file (see below) need data from the main import file
+            final Set<String> routesToExtract = new HashSet<>(selectedRoutes.size());
+            for(final String selectedGTFSRouteId : selectedRoutes) {
+                if(!new File(RouteConflator.gtfsFileNameForRoute(selectedGTFSRouteId)).exists()) {
+                    routesToExtract.add(selectedGTFSRouteId);
+                }
+            }
+            if(outputStopsToTaskingManager || importFileName.endsWith(OSMEntitySpace.PBF_FILE_EXTENSION)) { //these need the full import dataset
+                if(importFileName.endsWith(OSMEntitySpace.PBF_FILE_EXTENSION)) {
+                    allGTFSRoutesSpace.loadFromPBF(importFileName);
+                } else {
+                    allGTFSRoutesSpace.loadFromXMLWithSnapshot(importFileName);
+                }
+            } else if(routesToExtract.size() > 0) { //otherwise just load the needed route_master relations and their members
+                allGTFSRoutesSpace.loadRelationsFromXML(importFileName, new Predicate<OSMRelation>() {
+                    @Override
+                    public boolean test(final OSMRelation relation) {
+                        return OSMEntity.TAG_ROUTE_MASTER.equals(relation.getTag(OSMEntity.KEY_TYPE)) && routesToExtract.contains(relation.getTag(RouteConflator.GTFS_ROUTE_ID));
+                    }
+                });
+            }
 
             /*check if there is a separate GTFS route .osm file for the routes, and if so merge their data into the main import space.
               Allows the user to make fixes or adjustments to the GTFS data to improve matching.
@@ -170,8 +226,11 @@ public class Main {
                 }
             }
 
+            reportMemoryUsage("loading import data", allGTFSRoutesSpace, workingImportSpace);
+
             //create the working entity space for all data
             final RouteDataManager routeDataManager = new RouteDataManager(65536);
+            routeDataManager.getIdAllocator().reserveIdsFrom(workingImportSpace.getIdAllocator().getLastId()); //the import entities are copied in as they're needed, so keep clear of their ids from the start
 
             //output all the stops in a format that works with the OSM Task Manager
             if(outputStopsToTaskingManager) {
@@ -226,13 +285,14 @@ public class Main {
                 stopConflator.outputStopsForRoutes(RouteConflator.allConflators.get(0).routeType, stopPlatformSpace);
                 stopPlatformSpace.setCanUpload(true);
                 final String stopsFileName = String.format("%s/routestops_%s.osm", Config.sharedInstance.outputDirectory, String.join("_", routeIds));
-                stopPlatformSpace.outputXml(stopsFileName);
+                stopPlatformSpace.outputXml(stopsFileName, null, true); //sorted by id, so reruns can be diffed
                 System.out.format("%sINFO: outputted stops data to %s%s\n", ANSI_GREEN, stopsFileName, ANSI_RESET);
                 System.exit(0);
             } else { //otherwise, fetch all ways from OSM that are within the routes' bounding boxes
                 routeDataManager.downloadRegionsForImportDataset(RouteConflator.allConflators, matchingOptions, overpassCachingEnabled);
-                routeDataManager.outputXml(String.format("%s/routedownload_%s.osm", Config.sharedInstance.outputDirectory, String.join("_", routeIds)));
+                routeDataManager.outputToFile(String.format("%s/routedownload_%s%s", Config.sharedInstance.outputDirectory, String.join("_", routeIds), RouteDataManager.osmFileExtension()));
                 routeDataManager.conflateStopsWithOSM(RouteConflator.allConflators, false); //don't cache stop data, to avoid stale data if previously run with processStopsOnly option
+                reportMemoryUsage("downloading OSM data", routeDataManager);
             }
 
             //now run the conflation algorithms on each route_master, adding the conflated path data to an output space
@@ -245,9 +305,10 @@ public class Main {
                     successfullyMatchedRouteMasters++;
                 }
             }
+            reportMemoryUsage("conflating routes", routeDataManager);
 
             //if all routes fully matched, add the completed route relation to the output file for review and upload
-            String workingImportSpaceFileName = String.format("%s/workingspace_%s.osm", Config.sharedInstance.outputDirectory, String.join("_", routeIds));
+            String workingImportSpaceFileName = String.format("%s/workingspace_%s%s", Config.sharedInstance.outputDirectory, String.join("_", routeIds), RouteDataManager.osmFileExtension());
             if(successfullyMatchedRouteMasters == RouteConflator.allConflators.size()) {
                 for (final RouteConflator routeConflator : RouteConflator.allConflators) {
                     relationSpace.addEntity(routeConflator.getExportRouteMaster(), OSMEntity.TagMergeStrategy.keepTags, null, true, 0);
@@ -263,9 +324,9 @@ public class Main {
                     }
                 }
 
-                //now add any entities that were created or modified during the matching process
-                for (final OSMEntity entity : routeDataManager.allEntities.values()) {
-                    if (entity.getAction() != OSMEntity.ChangeAction.none) {
+                //now add any entities that were created or modified during the matching process (deletions are handled below)
+                for (final OSMEntity entity : routeDataManager.changeJournal.getChangedEntities()) {
+                    if (entity.getAction() == OSMEntity.ChangeAction.modify) {
                         relationSpace.addEntity(entity, OSMEntity.TagMergeStrategy.keepTags, null, false, 0);
                     }
                 }
@@ -278,14 +339,22 @@ public class Main {
                 //and finally output to a .osm file
                 relationSpace.setCanUpload(true);
                 final String uploadFileName = String.format("%s/relations_%s.osm", Config.sharedInstance.outputDirectory, String.join("_", routeIds));
-                relationSpace.outputXml(uploadFileName);
+                relationSpace.outputXml(uploadFileName, null, true); //sorted by id, so reruns can be diffed
                 System.out.format("%sINFO: SUCCESS! Outputted uploadable OSM file to %s%s\n", ANSI_GREEN, uploadFileName, ANSI_RESET);
+
+                //plus an osmChange file with just the changes, for direct upload
+                final String changeFileName = String.format("%s/relations_%s.osc", Config.sharedInstance.outputDirectory, String.join("_", routeIds));
+                relationSpace.outputOsmChange(changeFileName);
+                System.out.format("INFO: Outputted osmChange file to %s: %s\n", changeFileName, relationSpace.changeJournal.summarize());
             } else {
                 System.out.format("%sWARNING: Unable to import one or more routes: see the %s file for more details%s\n", ANSI_YELLOW, workingImportSpaceFileName, ANSI_RESET);
             }
 
             //also output the full working space to a .osm file
-            routeDataManager.outputXml(workingImportSpaceFileName);
+            routeDataManager.outputToFile(workingImportSpaceFileName);
+            if(debugEnabled) {
+                System.out.format("INFO: %s\n", OSMWay.geometryCacheStatistics());
+            }
         } catch (IOException | ParserConfigurationException | SAXException | InvalidArgumentException | Exceptions.UnknownOverpassError e) {
             e.printStackTrace();
         }
@@ -72,14 +72,14 @@ public class OSMTaskManagerExporter {
         }
 
         //get the bounding box of all the data (plus a little buffer to ensure everything's contained
-        final double coordFactor = SphericalMercator.metersToCoordDelta(1.0, exportEntitySpace.getBoundingBox().getCentroid().y);
+        final double coordFactor = SphericalMercator.metersToCoordDelta(1.0, exportEntitySpace.getBoundingBox().getCentroidY());
         final double boundingBoxBuffer = -10.0 * coordFactor;
         final Region boundingBox = exportEntitySpace.getBoundingBox().regionInset(boundingBoxBuffer, boundingBoxBuffer);
 
         //run a rough calculation of the number of boxes needed
         final double boxSizeInCoords = DividedBox.BOX_SIZE * coordFactor;
-        final int horizontalBoxCount = (int) Math.ceil((boundingBox.origin.x - boundingBox.origin.x) / boxSizeInCoords);
-        final int verticalBoxCount = (int) Math.ceil((boundingBox.origin.y - boundingBox.origin.y) / boxSizeInCoords);
+        final int horizontalBoxCount = (int) Math.ceil((boundingBox.originX - boundingBox.originX) / boxSizeInCoords);
+        final int verticalBoxCount = (int) Math.ceil((boundingBox.originY - boundingBox.originY) / boxSizeInCoords);
         final List<DividedBox> subBoxes = new ArrayList<>(horizontalBoxCount * verticalBoxCount);
 
         //divide the bounding box into multiple smaller boxes
@@ -175,8 +175,8 @@ public class OSMTaskManagerExporter {
     }
     private static void createSubBoxesInRegion(final Region region, final double boxWidth, final double boxHeight, final List<StopArea> filteredEntities, final List<DividedBox> boxList) {
         final double boxWidthTolerance = boxWidth * 0.01, boxHeightTolerance = boxHeight * 0.01;
-        for(double lon = region.origin.x; region.extent.x - lon > boxWidthTolerance; lon += boxWidth) {
-            for(double lat = region.origin.y; region.extent.y - lat > boxHeightTolerance; lat += boxHeight) {
+        for(double lon = region.originX; region.extentX - lon > boxWidthTolerance; lon += boxWidth) {
+            for(double lat = region.originY; region.extentY - lat > boxHeightTolerance; lat += boxHeight) {
                 final Region boxRegion = new Region(lon, lat, boxWidth, boxHeight);
 
                 //create a sub-box if the boxRegion contains at least one of the desired node types
@@ -4,13 +4,9 @@ import Conflation.LineSegment;
 import Conflation.OSMWaySegments;
 import Conflation.RouteConflator;
 import Conflation.RouteLineSegment;
-import Importer.InvalidArgumentException;
 import OSM.*;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
@@ -174,10 +170,12 @@ public class Path {
         return String.format("Path[%d->%s] outcome %s: %s", firstPathSegment.getOriginNode().osm_id, lastNodeId, outcome.toString(), String.join("->", streets));
     }
     /**
-     * Checks the PathSegments' originating/ending nodes and splits any ways that extend past them
-     * Only needs to be called on the "best" path
+     * Checks the PathSegments' originating/ending nodes and determines which ways need to be split where they extend
+     * past them.  The splits are added to splitRequests rather than run immediately, so all the route's splits can be
+     * run in one batch.  Only needs to be called on the "best" path
+     * @param splitRequests the lines to split, and the nodes to split each at
      */
-    public void splitWaysAtIntersections(final OSMEntitySpace entitySpace, final List<OSMNode> newSplitNodes) throws InvalidArgumentException {
+    public void splitWaysAtIntersections(final Map<OSMWaySegments, Set<OSMNode>> splitRequests, final List<OSMNode> newSplitNodes) {
         //check if the line is the same as the previous path's line
         //debugEnabled = true;
         if(debugEnabled) {
@@ -212,7 +210,7 @@ public class Path {
 
                 //now run the split on the currentLine if needed
                 if (newSplitNodes.size() > 0) {
-                    runSplit(entitySpace, currentLine, newSplitNodes);
+                    addSplitRequest(splitRequests, currentLine, newSplitNodes);
                 }
 
                 //and assign currentLine to the current PathSegment's line
@@ -243,7 +241,7 @@ public class Path {
             if (debugEnabled) {
                 System.out.format("DEBUG:\tSPLIT CLEANUP PS at %d: %s\n", lastPathSegment.getOriginNode().osm_id, lastPathSegment);
             }
-            runSplit(entitySpace, lastPathSegment.getLine(), newSplitNodes);
+            addSplitRequest(splitRequests, lastPathSegment.getLine(), newSplitNodes);
         }
 
         //DEBUG TEST: run a bunch of splits on the pathSegments' ways and validate the result
@@ -282,15 +280,17 @@ public class Path {
             validatePath();
         }//*/
     }
-    private static void runSplit(final OSMEntitySpace entitySpace, final OSMWaySegments line, final List<OSMNode> newSplitNodes) throws InvalidArgumentException {
+    private static void addSplitRequest(final Map<OSMWaySegments, Set<OSMNode>> splitRequests, final OSMWaySegments line, final List<OSMNode> newSplitNodes) {
         if(debugEnabled) {
             final List<String> nl = new ArrayList<>(4);
             for (final OSMNode node : newSplitNodes) {
                 nl.add(Long.toString(node.osm_id));
             }
-            System.out.format("RUN SPLIT ON %d WITH NODES [%s]\n", line.way.osm_id, String.join(",", nl));
+            System.out.format("ADD SPLIT ON %d WITH NODES [%s]\n", line.way.osm_id, String.join(",", nl));
         }
 
+        Set<OSMNode> lineSplitNodes = splitRequests.get(line);
+
         //handle closed way-specific cases
         if(line.way.isClosed()) {
             //ways tagged junction=roundabout are not split, according to convention
@@ -300,14 +300,20 @@ public class Path {
             }
 
             //special case: handle highway/driveway loops with stops on them, i.e. where vehicle enters and leaves way via the same node.
+            //If an earlier path has already requested a split on the way, it will no longer be closed by the time this
+            //node is split, so the node is kept (as it would be if the splits were run one path at a time)
             //TODO: check may be obsolete
-            if(newSplitNodes.size() == 1) {
+            if(newSplitNodes.size() == 1 && lineSplitNodes == null) {
                 System.out.format("NOTICE: Skipping split of closed way with only 1 node: %s\n", line.way);
                 newSplitNodes.clear();
                 return;
             }
         }
-        line.split(newSplitNodes.toArray(new OSMNode[newSplitNodes.size()]), entitySpace);
+        if(lineSplitNodes == null) {
+            lineSplitNodes = new LinkedHashSet<>(newSplitNodes.size());
+            splitRequests.put(line, lineSplitNodes);
+        }
+        lineSplitNodes.addAll(newSplitNodes);
         newSplitNodes.clear();
     }
     /*public String scoreSummary() {
@@ -343,7 +349,7 @@ public class Path {
         OSMNode matchOriginNode = pathBeginNode, matchLastNode;
         for (final PathSegment pathSegment : pathSegments) {
             final OSMRelation pathRelation = entitySpace.createRelation(null, null);
-            pathRelation.setTag("name", String.format("PathSegment %d:%d | %s", pathIndex, segmentIndex++, pathSegment.getId()));
+            pathRelation.setTag("name", String.format("PathSegment %d:%d | %d", pathIndex, segmentIndex++, pathSegment.getId()));
             pathRelation.setTag("way_id", Long.toString(pathSegment.getLine().way.osm_id));
             pathRelation.setTag("way_name", pathSegment.getLine().way.getTag(OSMEntity.KEY_NAME));
 
@@ -448,7 +454,9 @@ public class Path {
         final List<PathSegment> divergingPathSegments = new ArrayList<>(junctionNode.getContainingWayCount() - 1);
 
         final HashMap<Long, OSMWaySegments> candidateLines = routeConflator.getWorkingEntitySpace().getCandidateLines();
-        for(final OSMWay containingWay : junctionNode.getContainingWays().values()) {
+        final short containingWayCount = junctionNode.getContainingWayCount();
+        for(int w = 0; w < containingWayCount; w++) {
+            final OSMWay containingWay = junctionNode.getContainingWay(w);
             final OSMWaySegments line = candidateLines.get(containingWay.osm_id);
             if(line == null) {
                 System.out.println("ERROR: no WaySegments found for " + containingWay);
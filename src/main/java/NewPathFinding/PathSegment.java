@@ -2,6 +2,7 @@ package NewPathFinding;
 
 import Conflation.*;
 import Importer.InvalidArgumentException;
+import OSM.IdHash;
 import OSM.OSMEntity;
 import OSM.OSMNode;
 import OSM.Point;
@@ -19,6 +20,7 @@ import java.util.ListIterator;
 public class PathSegment implements WaySegmentsObserver {
     private final static double SCORE_FOR_ALIGNMENT = 100.0, SCORE_FACTOR_FOR_TRAVEL_DIRECTION = 100.0;
     private final static long debugWayId = 428243920L;
+    private final static long ID_HASH_SEED = 0x5053L; //"PS"
 
     /**
      * Whether this PathSegment is traveling with (0->N) or against(N->0) its line's segments' node direction
@@ -35,11 +37,11 @@ public class PathSegment implements WaySegmentsObserver {
 
     private OSMWaySegments line;
 
-    public String getId() {
+    public long getId() {
         return id;
     }
 
-    private String id;
+    private long id;
     public final TravelDirection travelDirection;
     protected double traveledSegmentLength = 0.0, alignedSegmentLength = 0.0, alignedPathScore = 0.0, alignedPathDistance = 0.0; //the length of segments this path aligns with
     protected int traveledSegmentCount = 0, alignedSegmentCount = 0;
@@ -47,12 +49,12 @@ public class PathSegment implements WaySegmentsObserver {
 
     private ProcessingStatus processingStatus = ProcessingStatus.inprocess;
 
-    public static String idForParameters(final OSMWaySegments line, final OSMNode fromNode, final OSMNode toNode) {
-        return String.format("PS%d:%d->%d", line.way.osm_id, fromNode.osm_id, toNode != null ? toNode.osm_id : 0);
+    public static long idForParameters(final OSMWaySegments line, final OSMNode fromNode, final OSMNode toNode) {
+        return IdHash.hash(ID_HASH_SEED, line.way.osm_id, fromNode.osm_id, toNode != null ? toNode.osm_id : 0);
     }
     protected static PathSegment createNewPathSegment(final OSMWaySegments line, final OSMNode fromNode, final TravelDirection travelDirection) {
         /*final PathSegment newPathSegment = new PathSegment(line, fromNode, parentPathTree);
-        final String newPSID = idForParameters(line, fromNode.junctionNode, null);
+        final long newPSID = idForParameters(line, fromNode.junctionNode, null);
         PathSegment existingPathSegment = allPathSegments.get(newPathSegment.id);
         if(existingPathSegment == null) {
             newPathSegment.determineScore();
@@ -81,10 +83,10 @@ public class PathSegment implements WaySegmentsObserver {
         /*check that this PathSegment's origin Junction is within the RouteLineSegment's search area.  If not,
           we've just got ahead of ourselves - bail for now
          */
-        if(!targetSegment.searchAreaForMatchingOtherSegments.containsPoint(originNode.getCentroid())) {
+        if(!targetSegment.searchAreaForMatchingOtherSegments.containsPoint(originNode.getX(), originNode.getY())) {
             processingStatus = ProcessingStatus.pendingActivation;
             if(debug && line.way.osm_id == debugWayId) {
-                System.out.format("\t\tSTILL WAITING FOR ACTIVATION ON RL#%d/%d: %.01f: %s\n",targetSegment.segmentIndex, targetSegment.nodeIndex, Point.distance(originNode.getCentroid(), targetSegment.midPoint), targetSegment.searchAreaForMatchingOtherSegments);
+                System.out.format("\t\tSTILL WAITING FOR ACTIVATION ON RL#%d/%d: %.01f: %s\n",targetSegment.segmentIndex, targetSegment.nodeIndex, Point.distance(originNode.getX(), originNode.getY(), targetSegment.midPoint.x, targetSegment.midPoint.y), targetSegment.searchAreaForMatchingOtherSegments);
             }
             return false;
         }
@@ -1,23 +1,21 @@
 package NewPathFinding;
 
 import Conflation.*;
-import Importer.InvalidArgumentException;
+import OSM.IdHash;
 import OSM.OSMEntity;
 import OSM.OSMEntitySpace;
 import OSM.OSMNode;
 import OSM.Point;
 
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.zip.CRC32;
 
 /**
  * Tracks all the possible paths between the starting and ending waypoints
  * Created by nick on 10/12/16.
  */
 public class PathTree {
-    private final static CRC32 idGenerator = new CRC32();
+    private final static long ID_HASH_SEED = 0x5054L; //"PT"
     private final static Comparator<Path> pathScoreComparator = new Comparator<Path>() {
         @Override
         public int compare(final Path o1, final Path o2) {
@@ -29,7 +27,7 @@ public class PathTree {
     public final static short matchMaskAll = matchStatusFromStop | matchStatusToStop | matchStatusFromRouteLineNode | getMatchStatusToRouteLineNode;
     public final static int MAX_PATHS_TO_CONSIDER = 320;
     private final static short NUMBER_OF_FUTURE_SEGMENTS = 5;
-    private final static long debugPathTreeId = 2996122432L;//1153577939L;
+    private final static long debugPathTreeId = 0L; //set to a PathTree id (as printed in the debug output) to debug its path finding
     public static boolean debugEnabled = false;
 
     public final long id;
@@ -51,10 +49,7 @@ public class PathTree {
     public Path bestPath = null;
 
     public static long idForParameters(final int index, final StopArea fromStop, final StopArea toStop) {
-        idGenerator.reset();
-        byte[] idBytes = String.format("PT:%d:%d:%d", index, fromStop != null ? fromStop.getPlatform().osm_id : 0, toStop != null ? toStop.getPlatform().osm_id : 0).getBytes(StandardCharsets.US_ASCII);
-        idGenerator.update(idBytes, 0, idBytes.length);
-        return idGenerator.getValue();
+        return IdHash.hash(ID_HASH_SEED, index, fromStop != null ? fromStop.getPlatform().osm_id : 0, toStop != null ? toStop.getPlatform().osm_id : 0);
     }
     public PathTree(final Route route, final StopArea originStop, final Point originRouteLinePoint, final PathTree previousPath, final int pathTreeIndex, final RoutePathFinder parentPathFinder) {
         this.route = route;
@@ -109,12 +104,6 @@ public class PathTree {
             }
         }
 
-        final long[] debugRlSegIdsRaw = {2183985599L, 1707782496L, 1936162033L, 1917356142L, 133202163L, 1161896790L, 1789482644L, 1336691900L, 2162494158L};
-        final List<Long> debugRlSegIds = new ArrayList<>(debugRlSegIdsRaw.length);
-        for(final long rlId : debugRlSegIdsRaw) {
-            debugRlSegIds.add(rlId);
-        }
-
         //now iterate the RouteLine's segments, advancing candidatePaths toward the current segment
         int futureSegmentIndex = NUMBER_OF_FUTURE_SEGMENTS;
         final int segmentCount = routeLineSegments.size();
@@ -124,7 +113,7 @@ public class PathTree {
             curRouteLineSegment = rlIterator.next();
 
             //now advance the active paths
-            debug = id == debugPathTreeId;// || debugRlSegIds.contains(curRouteLineSegment.id);
+            debug = id == debugPathTreeId;
             if(debug) {
                 System.out.format("\n\n*******PROCESS RL SEGMENT[%.01f,%.01f] %s\n", curRouteLineSegment.vectorX, curRouteLineSegment.vectorY, curRouteLineSegment);
             }
@@ -253,7 +242,10 @@ public class PathTree {
         matchStatus |= getMatchStatusToRouteLineNode;
         this.toRouteLinePoint = end;
     }
-    public void splitWaysAtIntersections(final OSMEntitySpace entitySpace, final RoutePathFinder parentPathFinder) throws InvalidArgumentException {
+    /**
+     * Adds the splits needed to the best path's ways to splitRequests
+     */
+    public void splitWaysAtIntersections(final Map<OSMWaySegments, Set<OSMNode>> splitRequests) {
         if(bestPath == null || bestPath.outcome != Path.PathOutcome.waypointReached) {
             return;
         }
@@ -261,7 +253,7 @@ public class PathTree {
         final List<OSMNode> newSplitNodes = new ArrayList<>(2);
 
         //check if the best path needs any intermediate splits
-        bestPath.splitWaysAtIntersections(entitySpace, newSplitNodes);
+        bestPath.splitWaysAtIntersections(splitRequests, newSplitNodes);
     }
     @Override
     public String toString() {
@@ -6,9 +6,7 @@ import Importer.InvalidArgumentException;
 import OSM.*;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
 
 /**
  * Contains all the stop-to-stop paths for a route
@@ -94,11 +92,10 @@ public class RoutePathFinder {
         }
 
         //for the first/last stops, automatically set to the first/last segment on the routeLine (prevents issues if provided GTFS route line doesn't extend all the way to first/last stops)
-        final Point stopPoint = stopPosition.getCentroid();
+        final double stopX = stopPosition.getX(), stopY = stopPosition.getY();
         RouteLineSegment closestSegment = null;
         //scan the routeLine, finding the closest segment to the stop platform
         double minDistance = StopArea.maxDistanceFromPlatformToWay, curDistance;
-        Point closestPointOnSegment;
         boolean inSearchZone = searchBeginPoint == null, reachedStopZone = false;
         for(final LineSegment segment : route.routeLine.segments) {
             //start checking from the last-found point; prevents issues when routeLine passes a stop multiple times
@@ -107,8 +104,7 @@ public class RoutePathFinder {
             }
 
             if(inSearchZone) {
-                closestPointOnSegment = segment.closestPointToPoint(stopPoint);
-                curDistance = Point.distance(stopPoint, closestPointOnSegment);
+                curDistance = segment.distanceToPoint(stopX, stopY);
 
                 //start tracking the closest segment once we're within the search area of the stop's platform
                 if (curDistance < minDistance) {
@@ -139,7 +135,7 @@ public class RoutePathFinder {
 
 
         //get the closest point on the closest segment, and use it to split the it at that point
-        final Point closestPointOnRouteLine = closestSegment.closestPointToPoint(stopPoint);
+        final Point closestPointOnRouteLine = closestSegment.closestPointToPoint(stopX, stopY);
         final Point closestPointToPlatform;
         final double nodeTolerance = closestSegment.length / 5.0;
         //System.out.format("DEBUG: Closest point to stop %s on routeline is %s (segment %s)", curStop.getPlatform().getTag(OSMEntity.KEY_REF), closestPointOnRouteLine, closestSegment);
@@ -215,19 +211,23 @@ public class RoutePathFinder {
         }*/
     }
     public void splitWaysAtIntersections(final OSMEntitySpace entitySpace) {
-        //split ways as needed
+        //gather the splits needed by all the paths, so each way is only split (and its observers notified) once
+        final Map<OSMWaySegments, Set<OSMNode>> splitRequests = new LinkedHashMap<>(routePathTrees.size());
         for (final PathTree pathTree : routePathTrees) {
             if(pathTree.bestPath != null) {
-                try {
-                    pathTree.splitWaysAtIntersections(entitySpace, this);
-                } catch (InvalidArgumentException e) {
-                    e.printStackTrace();
-                    System.exit(1);
-                }
+                pathTree.splitWaysAtIntersections(splitRequests);
             } else {
                 System.out.println(this + " has no bestPath, skipping splits");
             }
         }
+
+        //and split the ways as needed
+        try {
+            WaySegments.splitAll(splitRequests, entitySpace);
+        } catch (InvalidArgumentException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
     }
     public void addWaysToRouteRelation() {
         //and add the correct ways to the route relation
@@ -0,0 +1,170 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Compact tag storage for entities: the tags are kept as (key id, value id) pairs from a TagDictionary (normally that of
+ * the entity's space) in a single int array, sorted by key id.  Iteration order is by key id, not by key.
+ */
+final class CompactTags extends AbstractMap<String, String> {
+    private final static int[] EMPTY = new int[0];
+
+    final @NotNull TagDictionary dictionary;
+    private int[] pairs;
+    private int size = 0;
+    private Set<Map.Entry<String, String>> entrySet = null;
+
+    CompactTags(final @NotNull TagDictionary dictionary, final int capacity) {
+        this.dictionary = dictionary;
+        pairs = capacity > 0 ? new int[capacity * 2] : EMPTY;
+    }
+    CompactTags(final @NotNull CompactTags tagsToCopy) {
+        dictionary = tagsToCopy.dictionary;
+        pairs = Arrays.copyOf(tagsToCopy.pairs, tagsToCopy.size * 2);
+        size = tagsToCopy.size;
+    }
+    /**
+     * Copies the given tags into the given dictionary
+     */
+    CompactTags(final @NotNull CompactTags tagsToCopy, final @NotNull TagDictionary dictionary) {
+        this.dictionary = dictionary;
+        if(tagsToCopy.dictionary == dictionary) {
+            pairs = Arrays.copyOf(tagsToCopy.pairs, tagsToCopy.size * 2);
+            size = tagsToCopy.size;
+            return;
+        }
+        pairs = new int[tagsToCopy.size * 2];
+        for(int t = 0; t < tagsToCopy.size; t++) {
+            put(tagsToCopy.dictionary.get(tagsToCopy.pairs[t * 2]), tagsToCopy.dictionary.get(tagsToCopy.pairs[t * 2 + 1]));
+        }
+    }
+
+    /**
+     * @return the index of the pair with the given key id, or (-(insertion point) - 1) if not present
+     */
+    private int indexOf(final int keyId) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1, midKeyId = pairs[mid * 2];
+            if(midKeyId < keyId) {
+                low = mid + 1;
+            } else if(midKeyId > keyId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+    private int indexOf(final Object key) {
+        if(!(key instanceof String)) {
+            return -1;
+        }
+        final int keyId = dictionary.idOf((String) key);
+        return keyId >= 0 ? indexOf(keyId) : -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+    long estimatedBytes() {
+        return MemoryFootprint.objectBytes(3, 4) + MemoryFootprint.arrayBytes(pairs.length, 4);
+    }
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    @Override
+    public boolean containsKey(final Object key) {
+        return indexOf(key) >= 0;
+    }
+    @Override
+    public String get(final Object key) {
+        final int index = indexOf(key);
+        return index >= 0 ? dictionary.get(pairs[index * 2 + 1]) : null;
+    }
+    @Override
+    public String put(final @NotNull String key, final @NotNull String value) {
+        final int keyId = dictionary.intern(key), valueId = dictionary.intern(value);
+        final int index = indexOf(keyId);
+        if(index >= 0) {
+            final int oldValueId = pairs[index * 2 + 1];
+            pairs[index * 2 + 1] = valueId;
+            return dictionary.get(oldValueId);
+        }
+
+        final int insertionIndex = -(index + 1);
+        if(size * 2 == pairs.length) {
+            pairs = Arrays.copyOf(pairs, Math.max(pairs.length * 2, 8));
+        }
+        System.arraycopy(pairs, insertionIndex * 2, pairs, insertionIndex * 2 + 2, (size - insertionIndex) * 2);
+        pairs[insertionIndex * 2] = keyId;
+        pairs[insertionIndex * 2 + 1] = valueId;
+        size++;
+        return null;
+    }
+    @Override
+    public String remove(final Object key) {
+        final int index = indexOf(key);
+        if(index < 0) {
+            return null;
+        }
+        final String oldValue = dictionary.get(pairs[index * 2 + 1]);
+        System.arraycopy(pairs, index * 2 + 2, pairs, index * 2, (size - index - 1) * 2);
+        size--;
+        return oldValue;
+    }
+    @Override
+    public void clear() {
+        size = 0;
+    }
+
+    @NotNull
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if(entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int index = 0;
+                        private boolean canRemove = false;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < size;
+                        }
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if(index >= size) {
+                                throw new NoSuchElementException();
+                            }
+                            final Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<>(dictionary.get(pairs[index * 2]), dictionary.get(pairs[index * 2 + 1]));
+                            index++;
+                            canRemove = true;
+                            return entry;
+                        }
+                        @Override
+                        public void remove() {
+                            if(!canRemove) {
+                                throw new IllegalStateException();
+                            }
+                            index--;
+                            System.arraycopy(pairs, index * 2 + 2, pairs, index * 2, (size - index - 1) * 2);
+                            size--;
+                            canRemove = false;
+                        }
+                    };
+                }
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+}
@@ -0,0 +1,96 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact list of the entities (ways or relations) that contain a given entity, kept sorted by id, with at most
+ * one entity per id.  Entries are plain references, so containers must be removed via didRemoveFromEntity() when
+ * they drop the entity (as the entity space's delete/replace operations do).  Iterating by index doesn't allocate.
+ */
+final class ContainingEntities<T extends OSMEntity> {
+    private OSMEntity[] entities;
+    private int size = 0;
+
+    ContainingEntities(final int initialCapacity) {
+        entities = new OSMEntity[initialCapacity];
+    }
+    ContainingEntities(final @NotNull ContainingEntities<T> entitiesToCopy) {
+        entities = Arrays.copyOf(entitiesToCopy.entities, Math.max(entitiesToCopy.size, 1));
+        size = entitiesToCopy.size;
+    }
+
+    int size() {
+        return size;
+    }
+    long estimatedBytes() {
+        return MemoryFootprint.objectBytes(1, 4) + MemoryFootprint.arrayBytes(entities.length, 4);
+    }
+    @SuppressWarnings("unchecked")
+    @NotNull
+    T get(final int index) {
+        return (T) entities[index];
+    }
+    /**
+     * @return the index of the entity with the given id, or (-(insertion point) - 1) if not present
+     */
+    private int indexOf(final long id) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long midId = entities[mid].osm_id;
+            if(midId < id) {
+                low = mid + 1;
+            } else if(midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+    /**
+     * Adds the given entity, unless an entity with the same id is already present
+     * @return true if added
+     */
+    boolean add(final @NotNull T entity) {
+        final int index = indexOf(entity.osm_id);
+        if(index >= 0) {
+            return false;
+        }
+        final int insertionIndex = -(index + 1);
+        if(size == entities.length) {
+            entities = Arrays.copyOf(entities, Math.max(size * 2, 2));
+        }
+        System.arraycopy(entities, insertionIndex, entities, insertionIndex + 1, size - insertionIndex);
+        entities[insertionIndex] = entity;
+        size++;
+        return true;
+    }
+    /**
+     * Removes the entity with the given id, if present
+     * @return true if removed
+     */
+    boolean remove(final long id) {
+        final int index = indexOf(id);
+        if(index < 0) {
+            return false;
+        }
+        System.arraycopy(entities, index + 1, entities, index, size - index - 1);
+        entities[--size] = null;
+        return true;
+    }
+    /**
+     * @return a new map of the entities, keyed by id
+     */
+    @NotNull
+    HashMap<Long, T> toMap() {
+        final HashMap<Long, T> map = new HashMap<>(Math.max(2 * size, 4));
+        for(int i = 0; i < size; i++) {
+            map.put(entities[i].osm_id, get(i));
+        }
+        return map;
+    }
+}
@@ -1,129 +1,108 @@
 package OSM;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
- * Derived from code at http://stackoverflow.com/a/2739768/166920
+ * Orders relations so that relations with other relations as members are always placed after those members.  The
+ * membership graph is built as int-indexed arrays (each relation's member relations stored contiguously, CSR-style)
+ * and ordered with an iterative version of Tarjan's strongly-connected components algorithm, so sorting runs in
+ * linear time without allocating per edge.  Relations that are (directly or indirectly) members of each other can't be
+ * strictly ordered, so each such cycle is grouped together instead of failing the sort.
  */
-import java.util.*;
-
 public class Graph {
-
-    static class Node{
-        public final long osm_id;
-        public final HashSet<Edge> inEdges;
-        public final HashSet<Edge> outEdges;
-        public Node(long osm_id) {
-            this.osm_id = osm_id;
-            inEdges = new HashSet<>();
-            outEdges = new HashSet<>();
-        }
-        public Node addEdge(Node node){
-            Edge e = new Edge(this, node);
-            outEdges.add(e);
-            node.inEdges.add(e);
-            return this;
-        }
-        @Override
-        public String toString() {
-            return Long.toString(osm_id);
-        }
-    }
-
-    static class Edge{
-        public final Node from;
-        public final Node to;
-        public Edge(Node from, Node to) {
-            this.from = from;
-            this.to = to;
-        }
-        @Override
-        public boolean equals(Object obj) {
-            Edge e = (Edge)obj;
-            return e.from == from && e.to == to;
-        }
-    }
+    private final static int INITIAL_CAPACITY_MEMBERS = 64;
 
     /**
      * Sorts the given relations so that relations with other relations as members are always placed
-     * after those contained members.  Important for generating valid OSM XML files.
-     * @param allRelations
-     * @return
+     * after those contained members.  Important for generating valid OSM XML files.  The output is deterministic:
+     * relations are visited in id order, and relations in a membership cycle are placed together in id order.
+     * @param allRelations the relations to sort: any member relations not included are ignored
+     * @return the sorted relations
      */
-    protected static ArrayList<OSMRelation> sortRelationsTopologically(final HashMap<Long, OSMRelation> allRelations) {
-        final HashMap<Long, Node> relationNodes = new HashMap<>(allRelations.size());
-        for(final OSMRelation relation : allRelations.values()) {
-            Node node = relationNodes.get(relation.osm_id);
-            if(node == null) {
-                node = new Node(relation.osm_id);
-                relationNodes.put(relation.osm_id, node);
-            }
-            for(final OSMRelation.OSMRelationMember member : relation.getMembers()) {
+    protected static ArrayList<OSMRelation> sortRelationsTopologically(final LongEntityMap<OSMRelation> allRelations) {
+        //index the relations in id order
+        final int relationCount = allRelations.size();
+        final OSMRelation[] relations = allRelations.values().toArray(new OSMRelation[relationCount]);
+        Arrays.sort(relations, OSMEntitySpace.entityIdComparator);
+        final LongEntityMap<Integer> relationIndexes = new LongEntityMap<>(relationCount);
+        for(int r = 0; r < relationCount; r++) {
+            relationIndexes.put(relations[r].osm_id, r);
+        }
+
+        //build the membership edges: the member relations of relation r are memberIndexes[memberStart[r]...memberStart[r + 1] - 1]
+        final int[] memberStart = new int[relationCount + 1];
+        int[] memberIndexes = new int[INITIAL_CAPACITY_MEMBERS];
+        int edgeCount = 0;
+        for(int r = 0; r < relationCount; r++) {
+            memberStart[r] = edgeCount;
+            for(final OSMRelation.OSMRelationMember member : relations[r].members) {
                 if(member.member instanceof OSMRelation) {
-                    Node memberNode = relationNodes.get(member.member.osm_id);
-                    if(memberNode == null) {
-                        memberNode = new Node(member.member.osm_id);
-                        relationNodes.put(member.member.osm_id, memberNode);
+                    final Integer memberIndex = relationIndexes.get(member.member.osm_id);
+                    if(memberIndex != null) {
+                        if(edgeCount == memberIndexes.length) {
+                            memberIndexes = Arrays.copyOf(memberIndexes, 2 * edgeCount);
+                        }
+                        memberIndexes[edgeCount++] = memberIndex;
                     }
-                    node.addEdge(memberNode);
                 }
             }
         }
+        memberStart[relationCount] = edgeCount;
 
-        //L <- Empty list that will contain the sorted elements
-        ArrayList<Node> L = new ArrayList<>(relationNodes.size());
-
-        //S <- Set of all nodes with no incoming edges
-        HashSet<Node> S = new HashSet<>();
-        for(Node n : relationNodes.values()){
-            if(n.inEdges.size() == 0){
-                S.add(n);
+        //Tarjan's algorithm emits each strongly-connected component after all the components it refers to, i.e. members first
+        final int[] visitIndex = new int[relationCount], lowLink = new int[relationCount], nextEdge = new int[relationCount];
+        final int[] componentStack = new int[relationCount], callStack = new int[relationCount];
+        final boolean[] onComponentStack = new boolean[relationCount];
+        Arrays.fill(visitIndex, -1);
+        final ArrayList<OSMRelation> sortedRelations = new ArrayList<>(relationCount);
+        int nextVisitIndex = 0, componentStackSize = 0;
+        for(int root = 0; root < relationCount; root++) {
+            if(visitIndex[root] >= 0) {
+                continue;
             }
-        }
-
-        //while S is non-empty do
-        while(!S.isEmpty()){
-            //remove a node n from S
-            Node n = S.iterator().next();
-            S.remove(n);
 
-            //insert n into L
-            L.add(n);
-
-            //for each node m with an edge e from n to m do
-            for(Iterator<Graph.Edge> it = n.outEdges.iterator();it.hasNext();){
-                //remove edge e from the graph
-                Graph.Edge e = it.next();
-                Node m = e.to;
-                it.remove();//Remove edge from n
-                m.inEdges.remove(e);//Remove edge from m
+            int depth = 0;
+            callStack[0] = root;
+            visitIndex[root] = lowLink[root] = nextVisitIndex++;
+            nextEdge[root] = memberStart[root];
+            componentStack[componentStackSize++] = root;
+            onComponentStack[root] = true;
+            while (depth >= 0) {
+                final int r = callStack[depth];
+                if(nextEdge[r] < memberStart[r + 1]) {
+                    final int m = memberIndexes[nextEdge[r]++];
+                    if(visitIndex[m] < 0) { //descend into the member relation
+                        visitIndex[m] = lowLink[m] = nextVisitIndex++;
+                        nextEdge[m] = memberStart[m];
+                        componentStack[componentStackSize++] = m;
+                        onComponentStack[m] = true;
+                        callStack[++depth] = m;
+                    } else if(onComponentStack[m]) {
+                        lowLink[r] = Math.min(lowLink[r], visitIndex[m]);
+                    }
+                    continue;
+                }
 
-                //if m has no other incoming edges then insert m into S
-                if(m.inEdges.isEmpty()){
-                    S.add(m);
+                //all members processed: if r is the root of a component, output the component's relations in id order
+                if(lowLink[r] == visitIndex[r]) {
+                    int componentStart = componentStackSize - 1;
+                    while (componentStack[componentStart] != r) {
+                        componentStart--;
+                    }
+                    Arrays.sort(componentStack, componentStart, componentStackSize);
+                    for(int c = componentStart; c < componentStackSize; c++) {
+                        onComponentStack[componentStack[c]] = false;
+                        sortedRelations.add(relations[componentStack[c]]);
+                    }
+                    componentStackSize = componentStart;
+                }
+                if(--depth >= 0) {
+                    final int container = callStack[depth];
+                    lowLink[container] = Math.min(lowLink[container], lowLink[r]);
                 }
             }
         }
-        //Check to see if all edges are removed
-        boolean cycle = false;
-        for(Node n : relationNodes.values()){
-            if(!n.inEdges.isEmpty()){
-                cycle = true;
-                break;
-            }
-        }
-
-        //Cycle present, topological sort not possible
-        if(cycle){
-            return null;
-        }
-
-        //otherwise, create an ArrayList of the sorted relations
-        final ArrayList<OSMRelation> sortedRelations = new ArrayList<>(relationNodes.size());
-        for(final Node node : L) {
-            sortedRelations.add(allRelations.get(node.osm_id));
-        }
-
-        //relations with the most
-        Collections.reverse(sortedRelations);
         return sortedRelations;
     }
 }
@@ -0,0 +1,45 @@
+package OSM;
+
+/**
+ * Fast, thread-safe 64-bit hashing of numeric values, for generating ids from coordinates and entity ids (e.g. for
+ * LineSegments and SegmentMatches) without formatting them into strings first.  Each value is run through the SplitMix64
+ * finalizer before being combined, so nearby coordinates and sequential ids are well-distributed.  Ids are only
+ * guaranteed stable within a run, and shouldn't be persisted.
+ */
+public final class IdHash {
+    private final static long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private IdHash() {}
+
+    /**
+     * SplitMix64's finalizer: a bijective mix of all of the value's bits
+     */
+    public static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+    private static long combine(final long hash, final long value) {
+        return Long.rotateLeft(hash ^ mix(value), 29) * GOLDEN_GAMMA;
+    }
+    /**
+     * @return the bits of the given coordinate, with -0.0 normalized to 0.0 so equal coordinates hash identically
+     */
+    public static long coordinateBits(final double coordinate) {
+        return Double.doubleToLongBits(coordinate + 0.0);
+    }
+
+    /**
+     * Hashes the given values
+     * @param seed a value identifying the kind of id being generated, so different kinds of ids built from the same values differ
+     */
+    public static long hash(final long seed, final long value1, final long value2) {
+        return mix(combine(combine(seed, value1), value2));
+    }
+    public static long hash(final long seed, final long value1, final long value2, final long value3) {
+        return mix(combine(combine(combine(seed, value1), value2), value3));
+    }
+    public static long hash(final long seed, final long value1, final long value2, final long value3, final long value4) {
+        return mix(combine(combine(combine(combine(seed, value1), value2), value3), value4));
+    }
+}
@@ -0,0 +1,241 @@
+package OSM;
+
+import java.util.*;
+
+/**
+ * Open-addressing hash map keyed by primitive long ids, used to index the entities in an OSMEntitySpace.
+ * Avoids the Long boxing and per-entry objects of HashMap<Long, V>; null values are not permitted.
+ * NOTE: not thread-safe, and (like HashMap) may not be modified while being iterated
+ */
+public class LongEntityMap<V> {
+    private final static int MINIMUM_CAPACITY = 16;
+    private final static float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private V[] values;
+    private int size = 0, mask, resizeThreshold, modCount = 0;
+    private Collection<V> valuesView = null;
+
+    /**
+     * Primitive iterator over the keys in the map
+     */
+    public interface LongIterator {
+        boolean hasNext();
+        long next();
+    }
+
+    public LongEntityMap(final int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+    private static int tableSizeFor(final int expectedSize) {
+        final long required = (long) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR);
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < required && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+    @SuppressWarnings("unchecked")
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        values = (V[]) new Object[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+    /**
+     * 64-bit finalizer from MurmurHash3: OSM ids are sequential, so they need to be spread over the table
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+    private int indexOf(final long key) {
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if(keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Pre-sizes the table to hold the given number of entries without rehashing; used before bulk inserts
+     * @param expectedSize the total number of entries the map is expected to hold
+     */
+    public void ensureCapacity(final int expectedSize) {
+        final int capacity = tableSizeFor(expectedSize);
+        if(capacity > keys.length) {
+            rehash(capacity);
+        }
+    }
+    private void rehash(final int newCapacity) {
+        final long[] oldKeys = keys;
+        final V[] oldValues = values;
+        allocate(newCapacity);
+        for(int i = 0; i < oldValues.length; i++) {
+            if(oldValues[i] != null) {
+                int index = hash(oldKeys[i]) & mask;
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+    long estimatedBytes() {
+        return MemoryFootprint.objectBytes(3, 16) + MemoryFootprint.arrayBytes(keys.length, 8) + MemoryFootprint.arrayBytes(values.length, 4);
+    }
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    public V get(final long key) {
+        final int index = indexOf(key);
+        return index >= 0 ? values[index] : null;
+    }
+    public boolean containsKey(final long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Adds the given value to the map
+     * @param key the id of the entity
+     * @param value the entity (may not be null)
+     * @return the previous value for the key, if any
+     */
+    public V put(final long key, final V value) {
+        if(value == null) {
+            throw new NullPointerException("LongEntityMap doesn't accept null values");
+        }
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if(keys[index] == key) {
+                final V previous = values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        modCount++;
+        if(++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+    public V remove(final long key) {
+        int index = indexOf(key);
+        if(index < 0) {
+            return null;
+        }
+        final V previous = values[index];
+        size--;
+        modCount++;
+
+        //backward-shift deletion: move any following entries in the probe chain into the vacated slot
+        int next = (index + 1) & mask;
+        while (values[next] != null) {
+            final int home = hash(keys[next]) & mask;
+            if(((next - home) & mask) >= ((next - index) & mask)) {
+                keys[index] = keys[next];
+                values[index] = values[next];
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[index] = null;
+        return previous;
+    }
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * @return an iterator over the keys in this map, without boxing
+     */
+    public LongIterator keyIterator() {
+        return new LongIterator() {
+            private final int expectedModCount = modCount;
+            private int index = advance(0);
+
+            @Override
+            public boolean hasNext() {
+                return index < values.length;
+            }
+            @Override
+            public long next() {
+                if(modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if(index >= values.length) {
+                    throw new NoSuchElementException();
+                }
+                final long key = keys[index];
+                index = advance(index + 1);
+                return key;
+            }
+        };
+    }
+    private int advance(int index) {
+        while (index < values.length && values[index] == null) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @return a live, read-only view of the values in this map
+     */
+    public Collection<V> values() {
+        if(valuesView == null) {
+            valuesView = new AbstractCollection<V>() {
+                @Override
+                public Iterator<V> iterator() {
+                    return new Iterator<V>() {
+                        private final int expectedModCount = modCount;
+                        private int index = advance(0);
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < values.length;
+                        }
+                        @Override
+                        public V next() {
+                            if(modCount != expectedModCount) {
+                                throw new ConcurrentModificationException();
+                            }
+                            if(index >= values.length) {
+                                throw new NoSuchElementException();
+                            }
+                            final V value = values[index];
+                            index = advance(index + 1);
+                            return value;
+                        }
+                    };
+                }
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return valuesView;
+    }
+    @Override
+    public String toString() {
+        return String.format("LongEntityMap (%d entries, capacity %d)", size, keys.length);
+    }
+}
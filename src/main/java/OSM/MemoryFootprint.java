@@ -0,0 +1,178 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimated heap usage of an entity space, broken down by component (entity objects, tags, node lists, indexes etc),
+ * along with the entity counts by type and completion status and the largest ways and relations.  Sizes are estimated
+ * from the structures' field and array layouts, assuming a 64-bit JVM with compressed references (12 byte object
+ * headers, 4 byte references, 8 byte alignment), so they're approximate: tag strings are counted once, in the space's
+ * tag dictionary, and objects shared between spaces aren't counted.  Subclasses of OSMEntitySpace add their own components (see
+ * OSMEntitySpace.getMemoryFootprint()).
+ */
+public class MemoryFootprint {
+    public final static String COMPONENT_NODES = "node objects", COMPONENT_WAYS = "way objects", COMPONENT_RELATIONS = "relation objects", COMPONENT_COORDINATES = "node coordinates", COMPONENT_WAY_NODES = "way node lists", COMPONENT_RELATION_MEMBERS = "relation member lists", COMPONENT_TAGS = "tags", COMPONENT_TAG_DICTIONARY = "tag dictionary", COMPONENT_CONTAINING_ENTITIES = "containing way/relation lists", COMPONENT_GEOMETRY_CACHE = "cached geometry", COMPONENT_INDEXES = "space indexes";
+    private final static int OBJECT_HEADER_BYTES = 12, ARRAY_HEADER_BYTES = 16, REFERENCE_BYTES = 4, ALIGNMENT = 8;
+    public final static long POINT_BYTES = objectBytes(0, 16), REGION_BYTES = objectBytes(0, 32);
+    private final static int LARGEST_ENTITY_COUNT = 5;
+    private final static double BYTES_PER_MEGABYTE = 1024.0 * 1024.0;
+
+    /**
+     * A single component of the footprint, e.g. all the spaces' tags
+     */
+    public static class Component {
+        public final @NotNull String name;
+        public long count = 0, estimatedBytes = 0;
+
+        private Component(final @NotNull String name) {
+            this.name = name;
+        }
+    }
+
+    public final @NotNull String spaceName;
+    /**
+     * Entity counts, indexed by [OSMEntity.OSMType ordinal][OSMEntity.CompletionStatus ordinal]
+     */
+    public final int[][] entityCounts = new int[OSMEntity.OSMType.values().length][OSMEntity.CompletionStatus.values().length];
+    private final Map<String, Component> components = new LinkedHashMap<>(16);
+    private final OSMWay[] largestWays = new OSMWay[LARGEST_ENTITY_COUNT];
+    private final OSMRelation[] largestRelations = new OSMRelation[LARGEST_ENTITY_COUNT];
+
+    MemoryFootprint(final @NotNull String spaceName) {
+        this.spaceName = spaceName;
+    }
+
+    /**
+     * @return the estimated size of an object with the given fields
+     */
+    public static long objectBytes(final int referenceFields, final int primitiveBytes) {
+        return align(OBJECT_HEADER_BYTES + referenceFields * REFERENCE_BYTES + primitiveBytes);
+    }
+    /**
+     * @return the estimated size of an array with the given length and element size
+     */
+    public static long arrayBytes(final int length, final int elementBytes) {
+        return align(ARRAY_HEADER_BYTES + (long) length * elementBytes);
+    }
+    /**
+     * @return the estimated size of an ArrayList with the given size (its spare capacity isn't visible, so isn't counted)
+     */
+    public static long arrayListBytes(final int size) {
+        return objectBytes(1, 8) + arrayBytes(size, REFERENCE_BYTES);
+    }
+    private static long align(final long bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Adds the given count and size to the named component
+     * @param name the component's name
+     * @param count the number of objects (or other units) being added
+     * @param estimatedBytes their estimated size
+     */
+    public void addToComponent(final @NotNull String name, final long count, final long estimatedBytes) {
+        Component component = components.get(name);
+        if(component == null) {
+            component = new Component(name);
+            components.put(name, component);
+        }
+        component.count += count;
+        component.estimatedBytes += estimatedBytes;
+    }
+    /**
+     * Counts the given entity, and records it if it's one of the largest ways/relations
+     */
+    void countEntity(final @NotNull OSMEntity entity) {
+        entityCounts[entity.getType().ordinal()][entity.complete.ordinal()]++;
+        if(entity instanceof OSMWay) {
+            considerLargest(largestWays, (OSMWay) entity, ((OSMWay) entity).getNodes().size());
+        } else if(entity instanceof OSMRelation) {
+            considerLargest(largestRelations, (OSMRelation) entity, ((OSMRelation) entity).members.size());
+        }
+    }
+    private static <T extends OSMEntity> void considerLargest(final @NotNull T[] largest, final @NotNull T entity, final int size) {
+        int position = largest.length;
+        while (position > 0 && (largest[position - 1] == null || sizeOf(largest[position - 1]) < size)) {
+            position--;
+        }
+        if(position < largest.length) {
+            System.arraycopy(largest, position, largest, position + 1, largest.length - position - 1);
+            largest[position] = entity;
+        }
+    }
+    private static int sizeOf(final @NotNull OSMEntity entity) {
+        return entity instanceof OSMWay ? ((OSMWay) entity).getNodes().size() : ((OSMRelation) entity).members.size();
+    }
+
+    @NotNull
+    public List<Component> getComponents() {
+        return new ArrayList<>(components.values());
+    }
+    public long getTotalEstimatedBytes() {
+        long total = 0;
+        for(final Component component : components.values()) {
+            total += component.estimatedBytes;
+        }
+        return total;
+    }
+    public int getEntityCount(final @NotNull OSMEntity.OSMType type) {
+        int count = 0;
+        for(final int statusCount : entityCounts[type.ordinal()]) {
+            count += statusCount;
+        }
+        return count;
+    }
+    /**
+     * @return the ways with the most nodes, largest first
+     */
+    @NotNull
+    public List<OSMWay> getLargestWays() {
+        return nonNull(largestWays);
+    }
+    /**
+     * @return the relations with the most members, largest first
+     */
+    @NotNull
+    public List<OSMRelation> getLargestRelations() {
+        return nonNull(largestRelations);
+    }
+    private static <T> List<T> nonNull(final T[] entities) {
+        final List<T> list = new ArrayList<>(entities.length);
+        for(final T entity : entities) {
+            if(entity != null) {
+                list.add(entity);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder report = new StringBuilder(1024);
+        report.append(String.format("Memory footprint of %s: ~%.1f MB estimated\n", spaceName, getTotalEstimatedBytes() / BYTES_PER_MEGABYTE));
+        for(final OSMEntity.OSMType type : OSMEntity.OSMType.values()) {
+            report.append(String.format("  %ss: %d (", type, getEntityCount(type)));
+            for(final OSMEntity.CompletionStatus status : OSMEntity.CompletionStatus.values()) {
+                report.append(status.ordinal() > 0 ? ", " : "").append(status).append(' ').append(entityCounts[type.ordinal()][status.ordinal()]);
+            }
+            report.append(")\n");
+        }
+        for(final Component component : components.values()) {
+            report.append(String.format("  %-30s %10d %10.1f MB\n", component.name, component.count, component.estimatedBytes / BYTES_PER_MEGABYTE));
+        }
+        report.append("  largest ways:");
+        for(final OSMWay way : getLargestWays()) {
+            report.append(String.format(" %d (%d nodes)", way.osm_id, way.getNodes().size()));
+        }
+        report.append("\n  largest relations:");
+        for(final OSMRelation relation : getLargestRelations()) {
+            report.append(String.format(" %d (%d members)", relation.osm_id, relation.members.size()));
+        }
+        return report.append('\n').toString();
+    }
+}
@@ -0,0 +1,80 @@
+package OSM;
+
+import java.util.Arrays;
+
+/**
+ * Columnar storage for node coordinates: parallel x/y arrays indexed by a dense per-space node ordinal.
+ * Nodes attached to a store read and write their coordinate here instead of holding their own Point object,
+ * so geometry loops over a downloaded region run over contiguous memory.
+ * Unset coordinates (i.e. incomplete nodes) are stored as NaN.  The slots of nodes removed from the space are
+ * released, and reused for the next nodes added.
+ */
+class NodeCoordinateStore {
+    private final static int MINIMUM_CAPACITY = 1024;
+
+    private double[] x, y;
+    private int count = 0;
+    private int[] freeOrdinals = new int[16];
+    private int freeCount = 0;
+
+    NodeCoordinateStore(final int capacity) {
+        final int initialCapacity = Math.max(capacity, MINIMUM_CAPACITY);
+        x = new double[initialCapacity];
+        y = new double[initialCapacity];
+    }
+
+    /**
+     * Reserves a slot for a new node
+     * @return the ordinal of the new slot
+     */
+    int allocate() {
+        if(freeCount > 0) {
+            return freeOrdinals[--freeCount]; //already cleared by release()
+        }
+        if(count == x.length) {
+            final int newCapacity = x.length + (x.length >> 1);
+            x = Arrays.copyOf(x, newCapacity);
+            y = Arrays.copyOf(y, newCapacity);
+        }
+        x[count] = y[count] = Double.NaN;
+        return count++;
+    }
+    /**
+     * Releases the given slot for reuse: its node must no longer read or write it
+     */
+    void release(final int ordinal) {
+        x[ordinal] = y[ordinal] = Double.NaN;
+        if(freeCount == freeOrdinals.length) {
+            freeOrdinals = Arrays.copyOf(freeOrdinals, freeCount * 2);
+        }
+        freeOrdinals[freeCount++] = ordinal;
+    }
+    boolean hasCoordinate(final int ordinal) {
+        return !Double.isNaN(x[ordinal]);
+    }
+    double getX(final int ordinal) {
+        return x[ordinal];
+    }
+    double getY(final int ordinal) {
+        return y[ordinal];
+    }
+    long estimatedBytes() {
+        return MemoryFootprint.objectBytes(3, 8) + 2 * MemoryFootprint.arrayBytes(x.length, 8) + MemoryFootprint.arrayBytes(freeOrdinals.length, 4);
+    }
+    void set(final int ordinal, final double newX, final double newY) {
+        x[ordinal] = newX;
+        y[ordinal] = newY;
+    }
+    /**
+     * @return the number of slots in use
+     */
+    int size() {
+        return count - freeCount;
+    }
+    /**
+     * @return the approximate number of bytes used by the coordinate arrays
+     */
+    long capacityInBytes() {
+        return 16L * x.length;
+    }
+}
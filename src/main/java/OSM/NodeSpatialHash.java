@@ -0,0 +1,100 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Uniform grid over a set of nodes, used to find the nodes within a given distance of each other without comparing
+ * every pair.  The cells are sized (in mercator units) so that any two nodes within the tolerance are in the same or
+ * adjacent cells at the highest latitude present; each cell's nodes are chained through an int array, so building
+ * the grid only allocates one entry per occupied cell.  Nodes without a coordinate are ignored.
+ */
+final class NodeSpatialHash {
+    /**
+     * Receives each pair of nodes found within the tolerance of each other
+     */
+    interface PairHandler {
+        /**
+         * @param index1 the index of the first node in the list given to the hash
+         * @param index2 the index of the second node (always greater than index1)
+         */
+        void nodesAreWithinTolerance(int index1, int index2);
+    }
+
+    private final @NotNull List<OSMNode> nodes;
+    private final double tolerance, cellSize;
+    private final @NotNull LongEntityMap<Integer> cellHeads;
+    private final @NotNull int[] nextInCell;
+
+    /**
+     * @param nodes the nodes to index
+     * @param tolerance the maximum distance between matching nodes, in meters
+     */
+    NodeSpatialHash(final @NotNull List<OSMNode> nodes, final double tolerance) {
+        this.nodes = nodes;
+        this.tolerance = tolerance;
+
+        //a given distance in meters covers the most mercator units at the highest latitude, so size the cells for that
+        double maxAbsY = 0.0;
+        for(final OSMNode node : nodes) {
+            if(node.hasCoordinate()) {
+                maxAbsY = Math.max(maxAbsY, Math.abs(node.getY()));
+            }
+        }
+        cellSize = Math.max(SphericalMercator.metersToCoordDelta(tolerance, maxAbsY), Double.MIN_NORMAL);
+
+        final int nodeCount = nodes.size();
+        cellHeads = new LongEntityMap<>(nodeCount);
+        nextInCell = new int[nodeCount];
+        for(int n = nodeCount - 1; n >= 0; n--) { //insert in reverse, so each cell's chain is in index order
+            final OSMNode node = nodes.get(n);
+            if(!node.hasCoordinate()) {
+                continue;
+            }
+            final long cellKey = cellKey(cellIndex(node.getX()), cellIndex(node.getY()));
+            final Integer head = cellHeads.get(cellKey);
+            nextInCell[n] = head != null ? head : -1;
+            cellHeads.put(cellKey, n);
+        }
+    }
+    private long cellIndex(final double coordinate) {
+        return (long) Math.floor(coordinate / cellSize);
+    }
+    private static long cellKey(final long column, final long row) {
+        return (row << 32) ^ (column & 0xffffffffL);
+    }
+
+    /**
+     * Calls the handler for each pair of distinct nodes within the tolerance of each other, ordered by the first
+     * node's index (the second nodes are in index order within each cell, but not across cells)
+     */
+    void forEachPair(final @NotNull PairHandler handler) {
+        final int nodeCount = nodes.size();
+        for(int n = 0; n < nodeCount; n++) {
+            final OSMNode node = nodes.get(n);
+            if(!node.hasCoordinate()) {
+                continue;
+            }
+            final double x = node.getX(), y = node.getY();
+            final long column = cellIndex(x), row = cellIndex(y);
+            for(long r = row - 1; r <= row + 1; r++) {
+                for(long c = column - 1; c <= column + 1; c++) {
+                    final Integer head = cellHeads.get(cellKey(c, r));
+                    if(head == null) {
+                        continue;
+                    }
+                    for(int other = head; other >= 0; other = nextInCell[other]) {
+                        if(other <= n) {
+                            continue;
+                        }
+                        final OSMNode otherNode = nodes.get(other);
+                        if(otherNode != node && Point.distance(x, y, otherNode.getX(), otherNode.getY()) <= tolerance) {
+                            handler.nodesAreWithinTolerance(n, other);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Compact binary snapshot of an entity space loaded from an OSM XML file, saved next to the file and reused while
+ * the file is unchanged (see SourceFileSignature).
+ * Layout: a header identifying the source file, a table of all the strings used (tag keys/values, users, roles, as
+ * length-prefixed UTF-8), then the nodes, ways and relations.  Ids and timestamps are encoded as zigzag varints (ids
+ * delta-encoded), and node coordinates are stored as delta-encoded fixed-point degrees (1e-7, the usual precision of
+ * OSM data), falling back to the raw projected coordinates for any node whose coordinate doesn't survive the fixed-point
+ * round trip, so a snapshot loads to exactly the same space as the XML it was created from.
+ */
+class OSMBinarySnapshot {
+    private final static int MAGIC = 0x4f534d53, FORMAT_VERSION = 3, BUFFER_SIZE = 65536;
+    private final static double COORDINATE_SCALE = 1e7;
+    private final static int FLAG_VISIBLE = 1, FLAG_HAS_COORDINATE = 2, FLAG_HAS_TIMESTAMP = 4, FLAG_RAW_COORDINATE = 8;
+    private final static String SNAPSHOT_EXTENSION = ".snapshot";
+
+    static File snapshotFileFor(final @NotNull File sourceFile) {
+        return new File(sourceFile.getPath() + SNAPSHOT_EXTENSION);
+    }
+
+    /**
+     * Loads the snapshot of the given source file into the space, if the snapshot exists and is up to date
+     * @param entitySpace the space to add the entities to
+     * @param sourceFile the OSM XML file the snapshot was created from
+     * @return true if the snapshot was loaded, false if it's missing, outdated or unreadable (the space is untouched)
+     */
+    static boolean read(final @NotNull OSMEntitySpace entitySpace, final @NotNull File sourceFile) {
+        final File snapshotFile = snapshotFileFor(sourceFile);
+        if(!snapshotFile.isFile() || !sourceFile.isFile()) {
+            return false;
+        }
+        final List<OSMEntity> entities;
+        final List<Object> references;
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), BUFFER_SIZE))) {
+            if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !SourceFileSignature.read(in).matches(sourceFile)) {
+                return false;
+            }
+
+            final String[] strings = new String[readUnsignedVarInt(in)];
+            byte[] stringBytes = new byte[256];
+            for(int s = 0; s < strings.length; s++) {
+                final int length = readUnsignedVarInt(in);
+                if(length > stringBytes.length) {
+                    stringBytes = new byte[Math.max(length, 2 * stringBytes.length)];
+                }
+                in.readFully(stringBytes, 0, length);
+                strings[s] = new String(stringBytes, 0, length, StandardCharsets.UTF_8);
+            }
+
+            //read everything before touching the space, so a truncated/corrupt snapshot leaves it untouched
+            final int nodeCount = readUnsignedVarInt(in);
+            entities = new ArrayList<>(nodeCount + 1024);
+            references = new ArrayList<>(nodeCount + 1024);
+            long id = 0, lat = 0, lon = 0;
+            for(int n = 0; n < nodeCount; n++) {
+                final OSMNode node = new OSMNode(id += readVarLong(in));
+                node.setComplete(OSMEntity.CompletionStatus.self);
+                final int flags = readMetadata(in, node, strings);
+                if((flags & FLAG_RAW_COORDINATE) != 0) {
+                    node.setCoordinate(in.readDouble(), in.readDouble());
+                } else if((flags & FLAG_HAS_COORDINATE) != 0) {
+                    lat += readVarLong(in);
+                    lon += readVarLong(in);
+                    node.setCoordinate(SphericalMercator.transformLonToX(lon / COORDINATE_SCALE), SphericalMercator.transformLatToY(lat / COORDINATE_SCALE));
+                }
+                readTags(in, node, strings, entitySpace.tagDictionary);
+                entities.add(node);
+                references.add(null);
+            }
+
+            final int wayCount = readUnsignedVarInt(in);
+            id = 0;
+            for(int w = 0; w < wayCount; w++) {
+                final OSMWay way = new OSMWay(id += readVarLong(in));
+                way.setComplete(OSMEntity.CompletionStatus.memberList);
+                readMetadata(in, way, strings);
+                readTags(in, way, strings, entitySpace.tagDictionary);
+                final long[] nodeIds = new long[readUnsignedVarInt(in)];
+                long nodeId = 0;
+                for(int n = 0; n < nodeIds.length; n++) {
+                    nodeIds[n] = nodeId += readVarLong(in);
+                }
+                entities.add(way);
+                references.add(nodeIds);
+            }
+
+            final int relationCount = readUnsignedVarInt(in);
+            final OSMEntity.OSMType[] types = OSMEntity.OSMType.values();
+            id = 0;
+            for(int r = 0; r < relationCount; r++) {
+                final OSMRelation relation = new OSMRelation(id += readVarLong(in));
+                relation.setComplete(OSMEntity.CompletionStatus.memberList);
+                readMetadata(in, relation, strings);
+                readTags(in, relation, strings, entitySpace.tagDictionary);
+                final int memberCount = readUnsignedVarInt(in);
+                final Object[] members = new Object[memberCount * 3];
+                for(int m = 0; m < memberCount; m++) {
+                    members[3 * m] = types[in.readByte()].name();
+                    members[3 * m + 1] = readVarLong(in);
+                    members[3 * m + 2] = strings[readUnsignedVarInt(in)];
+                }
+                entities.add(relation);
+                references.add(members);
+            }
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+
+        //relations may be members of relations that come later in the snapshot, so add all entities before the members
+        final OSMXMLLoader loader = new OSMXMLLoader(entitySpace);
+        final int entityCount = entities.size();
+        for(int e = 0; e < entityCount; e++) {
+            final OSMEntity entity = entities.get(e);
+            switch (entity.getType()) {
+                case node:
+                    loader.insertNode((OSMNode) entity);
+                    break;
+                case way:
+                    final OSMWay way = loader.insertWay((OSMWay) entity);
+                    for(final long nodeId : (long[]) references.get(e)) {
+                        loader.appendWayNode(way, nodeId);
+                    }
+                    break;
+                case relation:
+                    entities.set(e, loader.insertRelation((OSMRelation) entity));
+                    break;
+            }
+        }
+        for(int e = 0; e < entityCount; e++) {
+            final OSMEntity entity = entities.get(e);
+            if(entity instanceof OSMRelation) {
+                final Object[] members = (Object[]) references.get(e);
+                for(int m = 0; m < members.length; m += 3) {
+                    loader.addRelationMember((OSMRelation) entity, (String) members[m], (Long) members[m + 1], (String) members[m + 2]);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a snapshot of the given space, which must contain only the contents of the source file
+     * @param entitySpace the space, as loaded from sourceFile
+     * @param sourceFile the OSM XML file the space was loaded from
+     * @throws IOException
+     */
+    static void write(final @NotNull OSMEntitySpace entitySpace, final @NotNull File sourceFile) throws IOException {
+        final List<OSMNode> nodes = sortedById(entitySpace.allNodes.values());
+        final List<OSMWay> ways = sortedById(entitySpace.allWays.values());
+        final List<OSMRelation> relations = sortedById(entitySpace.allRelations.values());
+
+        //build the string table
+        final Map<String, Integer> stringIndexes = new HashMap<>(65536);
+        final List<String> strings = new ArrayList<>(65536);
+        for(final List<? extends OSMEntity> entities : Arrays.asList(nodes, ways, relations)) {
+            for(final OSMEntity entity : entities) {
+                indexString(entity.user, stringIndexes, strings);
+                final Map<String, String> tags = entity.getTags();
+                if(tags != null) {
+                    for(final Map.Entry<String, String> tag : tags.entrySet()) {
+                        indexString(tag.getKey(), stringIndexes, strings);
+                        indexString(tag.getValue(), stringIndexes, strings);
+                    }
+                }
+            }
+        }
+        for(final OSMRelation relation : relations) {
+            for(final OSMRelation.OSMRelationMember member : relation.members) {
+                indexString(member.role, stringIndexes, strings);
+            }
+        }
+
+        //write to a temporary file first, so an interrupted write never leaves a partial snapshot in place
+        final File snapshotFile = snapshotFileFor(sourceFile), tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            SourceFileSignature.forFile(sourceFile).write(out);
+
+            writeUnsignedVarInt(out, strings.size());
+            for(final String str : strings) { //NOTE: not writeUTF(), which is limited to 64KB strings
+                final byte[] stringBytes = str.getBytes(StandardCharsets.UTF_8);
+                writeUnsignedVarInt(out, stringBytes.length);
+                out.write(stringBytes);
+            }
+
+            writeUnsignedVarInt(out, nodes.size());
+            long previousId = 0, previousLat = 0, previousLon = 0;
+            for(final OSMNode node : nodes) {
+                writeVarLong(out, node.osm_id - previousId);
+                previousId = node.osm_id;
+                if(!node.hasCoordinate()) {
+                    writeMetadata(out, node, 0, stringIndexes);
+                    writeTags(out, node, stringIndexes);
+                    continue;
+                }
+
+                //use the compact fixed-point encoding unless it would alter the coordinate (e.g. if the source had more than 7 decimal places)
+                final long lat = Math.round(SphericalMercator.transformYToLat(node.getY()) * COORDINATE_SCALE), lon = Math.round(SphericalMercator.transformXToLon(node.getX()) * COORDINATE_SCALE);
+                if(SphericalMercator.transformLatToY(lat / COORDINATE_SCALE) != node.getY() || SphericalMercator.transformLonToX(lon / COORDINATE_SCALE) != node.getX()) {
+                    writeMetadata(out, node, FLAG_RAW_COORDINATE, stringIndexes);
+                    out.writeDouble(node.getX());
+                    out.writeDouble(node.getY());
+                } else {
+                    writeMetadata(out, node, FLAG_HAS_COORDINATE, stringIndexes);
+                    writeVarLong(out, lat - previousLat);
+                    writeVarLong(out, lon - previousLon);
+                    previousLat = lat;
+                    previousLon = lon;
+                }
+                writeTags(out, node, stringIndexes);
+            }
+
+            writeUnsignedVarInt(out, ways.size());
+            previousId = 0;
+            for(final OSMWay way : ways) {
+                writeVarLong(out, way.osm_id - previousId);
+                previousId = way.osm_id;
+                writeMetadata(out, way, 0, stringIndexes);
+                writeTags(out, way, stringIndexes);
+                final List<OSMNode> wayNodes = way.getNodes();
+                writeUnsignedVarInt(out, wayNodes.size());
+                long previousNodeId = 0;
+                for(final OSMNode node : wayNodes) {
+                    writeVarLong(out, node.osm_id - previousNodeId);
+                    previousNodeId = node.osm_id;
+                }
+            }
+
+            writeUnsignedVarInt(out, relations.size());
+            previousId = 0;
+            for(final OSMRelation relation : relations) {
+                writeVarLong(out, relation.osm_id - previousId);
+                previousId = relation.osm_id;
+                writeMetadata(out, relation, 0, stringIndexes);
+                writeTags(out, relation, stringIndexes);
+                writeUnsignedVarInt(out, relation.members.size());
+                for(final OSMRelation.OSMRelationMember member : relation.members) {
+                    out.writeByte(member.member.getType().ordinal());
+                    writeVarLong(out, member.member.osm_id);
+                    writeUnsignedVarInt(out, stringIndexes.get(member.role));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            tempFile.delete();
+            throw e;
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static <T extends OSMEntity> List<T> sortedById(final Collection<T> entities) {
+        final List<T> sortedEntities = new ArrayList<>(entities);
+        sortedEntities.sort(new Comparator<T>() {
+            @Override
+            public int compare(T o1, T o2) {
+                return Long.compare(o1.osm_id, o2.osm_id);
+            }
+        });
+        return sortedEntities;
+    }
+    private static void indexString(final String str, final Map<String, Integer> stringIndexes, final List<String> strings) {
+        if(str != null && !stringIndexes.containsKey(str)) {
+            stringIndexes.put(str, strings.size());
+            strings.add(str);
+        }
+    }
+
+    private static void writeMetadata(final DataOutputStream out, final OSMEntity entity, final int flags, final Map<String, Integer> stringIndexes) throws IOException {
+        final boolean hasTimestamp = entity.timestamp != OSMTimestamp.NONE;
+        out.writeByte(flags | (entity.visible ? FLAG_VISIBLE : 0) | (hasTimestamp ? FLAG_HAS_TIMESTAMP : 0));
+        writeVarLong(out, entity.version);
+        writeVarLong(out, entity.changeset);
+        writeVarLong(out, entity.uid);
+        writeUnsignedVarInt(out, entity.user != null ? stringIndexes.get(entity.user) + 1 : 0);
+        if(hasTimestamp) {
+            writeVarLong(out, entity.timestamp);
+        }
+    }
+    private static int readMetadata(final DataInputStream in, final OSMEntity entity, final String[] strings) throws IOException {
+        final int flags = in.readByte();
+        entity.visible = (flags & FLAG_VISIBLE) != 0;
+        entity.version = (int) readVarLong(in);
+        entity.changeset = (int) readVarLong(in);
+        entity.uid = (int) readVarLong(in);
+        final int userIndex = readUnsignedVarInt(in);
+        entity.user = userIndex > 0 ? strings[userIndex - 1] : null;
+        entity.timestamp = (flags & FLAG_HAS_TIMESTAMP) != 0 ? readVarLong(in) : OSMTimestamp.NONE;
+        return flags;
+    }
+    private static void writeTags(final DataOutputStream out, final OSMEntity entity, final Map<String, Integer> stringIndexes) throws IOException {
+        final Map<String, String> tags = entity.getTags();
+        if(tags == null) {
+            writeUnsignedVarInt(out, 0);
+            return;
+        }
+        writeUnsignedVarInt(out, tags.size());
+        for(final Map.Entry<String, String> tag : tags.entrySet()) {
+            writeUnsignedVarInt(out, stringIndexes.get(tag.getKey()));
+            writeUnsignedVarInt(out, stringIndexes.get(tag.getValue()));
+        }
+    }
+    private static void readTags(final DataInputStream in, final OSMEntity entity, final String[] strings, final TagDictionary tagDictionary) throws IOException {
+        final int tagCount = readUnsignedVarInt(in);
+        for(int t = 0; t < tagCount; t++) {
+            final String key = strings[readUnsignedVarInt(in)];
+            entity.setTag(tagDictionary, key, strings[readUnsignedVarInt(in)]);
+        }
+    }
+
+    static void writeUnsignedVarInt(final DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    static int readUnsignedVarInt(final DataInputStream in) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            final byte b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in snapshot");
+    }
+    /**
+     * Writes a signed value as a zigzag-encoded varint, so small negative deltas stay small
+     */
+    static void writeVarLong(final DataOutputStream out, final long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7f) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+    static long readVarLong(final DataInputStream in) throws IOException {
+        long zigzag = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.readByte();
+            zigzag |= (long) (b & 0x7f) << shift;
+            if(b >= 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed varint in snapshot");
+    }
+}
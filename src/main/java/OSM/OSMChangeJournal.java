@@ -0,0 +1,323 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incrementally-maintained record of a space's created, modified and deleted entities, so the changes can be listed
+ * (or written out as an osmChange file) without scanning the whole space.  Entities report their action changes as
+ * they happen (see OSMEntity.setAction()), and the space reports entities entering and leaving its indexes, so the
+ * change counts and bounding box are kept up to date as well.  Entries are also checked against the space when read,
+ * so any that have gone stale are dropped lazily (and the summary recomputed from the remaining entries).
+ */
+public class OSMChangeJournal {
+    private final static int INITIAL_CAPACITY = 256;
+
+    /**
+     * Counts of the journaled changes by type and kind, plus the combined bounding box of the changed entities
+     */
+    public static class Summary {
+        /**
+         * Counts indexed by OSMEntity.OSMType ordinal
+         */
+        public final int[] created = new int[OSMEntity.OSMType.values().length], modified = new int[OSMEntity.OSMType.values().length], deleted = new int[OSMEntity.OSMType.values().length];
+        /**
+         * Covers all the changed entities: since it's only extended as entities change, it may be larger than needed
+         * if changed nodes have since been moved
+         */
+        public @Nullable Region boundingBox = null;
+
+        public Summary() {
+        }
+        private Summary(final @NotNull Summary summaryToCopy) {
+            System.arraycopy(summaryToCopy.created, 0, created, 0, created.length);
+            System.arraycopy(summaryToCopy.modified, 0, modified, 0, modified.length);
+            System.arraycopy(summaryToCopy.deleted, 0, deleted, 0, deleted.length);
+            boundingBox = summaryToCopy.boundingBox != null ? new Region(summaryToCopy.boundingBox) : null;
+        }
+        private void reset() {
+            Arrays.fill(created, 0);
+            Arrays.fill(modified, 0);
+            Arrays.fill(deleted, 0);
+            boundingBox = null;
+        }
+        public int getTotal() {
+            int total = 0;
+            for(int t = 0; t < created.length; t++) {
+                total += created[t] + modified[t] + deleted[t];
+            }
+            return total;
+        }
+        @Override
+        public String toString() {
+            return String.format("%d changes (nodes %d/%d/%d, ways %d/%d/%d, relations %d/%d/%d created/modified/deleted)", getTotal(), created[0], modified[0], deleted[0], created[1], modified[1], deleted[1], created[2], modified[2], deleted[2]);
+        }
+    }
+
+    private final @NotNull OSMEntitySpace entitySpace;
+    private final LongEntityMap<OSMNode> changedNodes = new LongEntityMap<>(INITIAL_CAPACITY);
+    private final LongEntityMap<OSMWay> changedWays = new LongEntityMap<>(INITIAL_CAPACITY);
+    private final LongEntityMap<OSMRelation> changedRelations = new LongEntityMap<>(INITIAL_CAPACITY);
+    private final @NotNull Summary summary = new Summary();
+    private boolean summaryIsCurrent = true, boundingBoxIsCurrent = true;
+
+    OSMChangeJournal(final @NotNull OSMEntitySpace space) {
+        entitySpace = space;
+    }
+    @NotNull
+    OSMEntitySpace getEntitySpace() {
+        return entitySpace;
+    }
+
+    /**
+     * Called when the given entity's action changes
+     * @param previousAction the entity's action before the change
+     */
+    void entityActionDidChange(final @NotNull OSMEntity entity, final @NotNull OSMEntity.ChangeAction previousAction) {
+        fileEntity(entity, previousAction, false);
+    }
+    /**
+     * Called when the given entity is added to the space's indexes, replacing any other instance with its id
+     */
+    void entityWasAdded(final @NotNull OSMEntity entity) {
+        fileEntity(entity, entity.action, true);
+    }
+    /**
+     * Called when the given entity is removed from the space's indexes
+     */
+    void entityWasRemoved(final @NotNull OSMEntity entity) {
+        if(entity.action == OSMEntity.ChangeAction.delete) { //deletions stay journaled after the entity leaves the index
+            return;
+        }
+        switch (entity.getType()) {
+            case node:
+                removeEntity(changedNodes, (OSMNode) entity);
+                break;
+            case way:
+                removeEntity(changedWays, (OSMWay) entity);
+                break;
+            case relation:
+                removeEntity(changedRelations, (OSMRelation) entity);
+                break;
+        }
+    }
+    private void fileEntity(final @NotNull OSMEntity entity, final @NotNull OSMEntity.ChangeAction previousAction, final boolean isSpaceEntity) {
+        switch (entity.getType()) {
+            case node:
+                fileEntity(changedNodes, (OSMNode) entity, previousAction, isSpaceEntity);
+                break;
+            case way:
+                fileEntity(changedWays, (OSMWay) entity, previousAction, isSpaceEntity);
+                break;
+            case relation:
+                fileEntity(changedRelations, (OSMRelation) entity, previousAction, isSpaceEntity);
+                break;
+        }
+    }
+    private <T extends OSMEntity> void fileEntity(final @NotNull LongEntityMap<T> changedEntities, final @NotNull T entity, final @NotNull OSMEntity.ChangeAction previousAction, final boolean isSpaceEntity) {
+        final T journaledEntity = changedEntities.get(entity.osm_id);
+        if(journaledEntity == entity) {
+            countEntity(entity, previousAction, -1);
+        } else if(journaledEntity != null && (isSpaceEntity || entity.action != OSMEntity.ChangeAction.none)) {
+            //another instance with this id is journaled, and it's been superseded by this one
+            countEntity(journaledEntity, journaledEntity.action, -1);
+            removeEntry(changedEntities, entity.osm_id);
+        }
+
+        if(entity.action != OSMEntity.ChangeAction.none) {
+            if(journaledEntity != entity) {
+                entitySpace.willChangeIndex(changedEntities, entity.osm_id);
+                changedEntities.put(entity.osm_id, entity);
+            }
+            countEntity(entity, entity.action, 1);
+            extendBoundingBox(entity);
+        } else if(journaledEntity == entity) {
+            removeEntry(changedEntities, entity.osm_id);
+        }
+    }
+    private <T extends OSMEntity> void removeEntity(final @NotNull LongEntityMap<T> changedEntities, final @NotNull T entity) {
+        if(changedEntities.get(entity.osm_id) == entity) {
+            countEntity(entity, entity.action, -1);
+            removeEntry(changedEntities, entity.osm_id);
+        }
+    }
+    private <T extends OSMEntity> void removeEntry(final @NotNull LongEntityMap<T> changedEntities, final long id) {
+        entitySpace.willChangeIndex(changedEntities, id);
+        changedEntities.remove(id);
+        boundingBoxIsCurrent = false; //the bounding box can't be shrunk incrementally
+    }
+    private void countEntity(final @NotNull OSMEntity entity, final @NotNull OSMEntity.ChangeAction action, final int delta) {
+        final int typeIndex = entity.getType().ordinal();
+        switch (action) {
+            case none:
+                break;
+            case delete:
+                summary.deleted[typeIndex] += delta;
+                break;
+            default:
+                if(isCreated(entity)) {
+                    summary.created[typeIndex] += delta;
+                } else {
+                    summary.modified[typeIndex] += delta;
+                }
+                break;
+        }
+    }
+    /**
+     * Extends the summary's bounding box to include the given entity, e.g. a node added to a changed way
+     */
+    void extendBoundingBox(final @NotNull OSMEntity entity) {
+        //nodes and ways are included point by point, to avoid computing (and caching) a bounding box for each entity
+        if(entity instanceof OSMNode) {
+            extendBoundingBox((OSMNode) entity);
+            return;
+        } else if(entity instanceof OSMWay) {
+            for(final OSMNode node : ((OSMWay) entity).getNodes()) {
+                extendBoundingBox(node);
+            }
+            return;
+        }
+
+        final Region entityBoundingBox = entity.getBoundingBox();
+        if(entityBoundingBox != null) {
+            if(summary.boundingBox != null) {
+                summary.boundingBox.combinedBoxWithRegion(entityBoundingBox);
+            } else {
+                summary.boundingBox = new Region(entityBoundingBox); //copy, since entities' bounding boxes are cached
+            }
+        }
+    }
+    private void extendBoundingBox(final @NotNull OSMNode node) {
+        if(!node.hasCoordinate()) {
+            return;
+        }
+        if(summary.boundingBox != null) {
+            summary.boundingBox.includePoint(node.getX(), node.getY());
+        } else {
+            summary.boundingBox = new Region(node.getX(), node.getY(), 0.0, 0.0);
+        }
+    }
+    /**
+     * Flags the summary for recomputation, e.g. after a fork has rolled back the journal's entries
+     */
+    void invalidateSummary() {
+        summaryIsCurrent = false;
+    }
+    void clear() {
+        changedNodes.clear();
+        changedWays.clear();
+        changedRelations.clear();
+        summary.reset();
+        summaryIsCurrent = boundingBoxIsCurrent = true;
+    }
+
+    /**
+     * Checks whether the given journal entry still reflects a change in the space: modified entities must still be
+     * in the space's index, and deleted ones mustn't have been replaced by another instance
+     */
+    private static <T extends OSMEntity> boolean isCurrent(final @NotNull T entity, final @NotNull LongEntityMap<T> spaceEntities) {
+        switch (entity.action) {
+            case modify:
+                return spaceEntities.get(entity.osm_id) == entity;
+            case delete:
+                final T spaceEntity = spaceEntities.get(entity.osm_id);
+                return spaceEntity == null || spaceEntity == entity;
+            default:
+                return false;
+        }
+    }
+    /**
+     * Gets the current entries from the given journal map (sorted by id), dropping any stale ones
+     */
+    @NotNull
+    private <T extends OSMEntity> List<T> currentEntries(final @NotNull LongEntityMap<T> changedEntities, final @NotNull LongEntityMap<T> spaceEntities) {
+        final List<T> entities = new ArrayList<>(changedEntities.size()), staleEntities = new ArrayList<>();
+        for(final T entity : changedEntities.values()) {
+            if(isCurrent(entity, spaceEntities)) {
+                entities.add(entity);
+            } else {
+                staleEntities.add(entity);
+            }
+        }
+        for(final T staleEntity : staleEntities) {
+            removeEntry(changedEntities, staleEntity.osm_id);
+            summaryIsCurrent = false; //stale entries weren't uncounted when they went stale
+        }
+        entities.sort(OSMEntitySpace.entityIdComparator);
+        return entities;
+    }
+    @NotNull
+    public List<OSMNode> getChangedNodes() {
+        return currentEntries(changedNodes, entitySpace.allNodes);
+    }
+    @NotNull
+    public List<OSMWay> getChangedWays() {
+        return currentEntries(changedWays, entitySpace.allWays);
+    }
+    @NotNull
+    public List<OSMRelation> getChangedRelations() {
+        return currentEntries(changedRelations, entitySpace.allRelations);
+    }
+    /**
+     * Gets all the created, modified and deleted entities in the space
+     * @return the entities: nodes first, then ways, then relations, each in id order
+     */
+    @NotNull
+    public List<OSMEntity> getChangedEntities() {
+        final List<OSMNode> nodes = getChangedNodes();
+        final List<OSMWay> ways = getChangedWays();
+        final List<OSMRelation> relations = getChangedRelations();
+        final List<OSMEntity> entities = new ArrayList<>(nodes.size() + ways.size() + relations.size());
+        entities.addAll(nodes);
+        entities.addAll(ways);
+        entities.addAll(relations);
+        return entities;
+    }
+
+    /**
+     * Whether the given changed entity is newly-created, i.e. not yet on the OSM server
+     */
+    static boolean isCreated(final @NotNull OSMEntity entity) {
+        return entity.osm_id < 0;
+    }
+    /**
+     * @return counts of the current changes, and their bounding box
+     */
+    @NotNull
+    public Summary summarize() {
+        if(!summaryIsCurrent || !boundingBoxIsCurrent) {
+            rebuildSummary();
+        }
+        return new Summary(summary);
+    }
+    /**
+     * Whether every entity in the space is a pending change (e.g. a space of newly-created entities), in which case
+     * the summary's bounding box covers the whole space
+     */
+    boolean coversEntireSpace() {
+        if(!summaryIsCurrent) {
+            rebuildSummary();
+        }
+        int pendingCount = 0;
+        for(int t = 0; t < summary.created.length; t++) {
+            pendingCount += summary.created[t] + summary.modified[t];
+        }
+        return pendingCount == entitySpace.allNodes.size() + entitySpace.allWays.size() + entitySpace.allRelations.size();
+    }
+    /**
+     * Recomputes the summary from the journal's current entries, after entries have been removed or rolled back
+     */
+    private void rebuildSummary() {
+        final List<OSMEntity> changedEntities = getChangedEntities(); //NOTE: done first, since dropping stale entries invalidates the summary
+        summary.reset();
+        for(final OSMEntity entity : changedEntities) {
+            countEntity(entity, entity.action, 1);
+            extendBoundingBox(entity);
+        }
+        summaryIsCurrent = boundingBoxIsCurrent = true;
+    }
+}
@@ -4,11 +4,7 @@ import Importer.InvalidArgumentException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.lang.ref.WeakReference;
-import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -23,10 +19,6 @@ public abstract class OSMEntity {
     public final static String KEY_AREA = "area", KEY_HIGHWAY = "highway", KEY_RAILWAY = "railway", KEY_SUBWAY = "subway", KEY_MONORAIL = "monorail", KEY_PUBLIC_TRANSPORT = "public_transport", KEY_PUBLIC_TRANSPORT_VERSION = "public_transport:version", KEY_BUS = "bus", KEY_BUSWAY = "busway", KEY_TRAIN = "train", KEY_FERRY = "ferry", KEY_TRAM = "tram", KEY_AERIALWAY = "aerialway", KEY_FUNICULAR = "funicular", KEY_JUNCTION = "junction";
     public final static String TAG_LEGACY_BUS_STOP = "bus_stop", TAG_PLATFORM = "platform", TAG_STOP_POSITION = "stop_position", TAG_LEGACY_FERRY_TERMINAL = "ferry_terminal", TAG_ROUNDABOUT = "roundabout";
 
-    protected final static String
-            BASE_XML_TAG_FORMAT_TAG = "  <tag k=\"%s\" v=\"%s\"/>\n",
-            ACTION_ATTRIBUTE_FORMAT = " action=\"%s\"";
-
     public enum OSMType {
         node, way, relation
     }
@@ -47,24 +39,83 @@ public abstract class OSMEntity {
 
     public final long osm_id;
 
+    //field layout of the base entity object, for MemoryFootprint: reference fields, and bytes of primitive fields
+    final static int REFERENCE_FIELDS = 7, PRIMITIVE_FIELD_BYTES = 33;
+
     //Metadata (not required)
     public int uid = -1, version = -1, changeset = -1;
     public boolean visible = true;
-    public @Nullable String user = null, timestamp = null;
+    public @Nullable String user = null;
+    public long timestamp = OSMTimestamp.NONE; //seconds since the epoch (see OSMTimestamp)
     protected @NotNull ChangeAction action = ChangeAction.none;
 
 
     protected @Nullable Region boundingBox;
     protected @NotNull CompletionStatus complete = CompletionStatus.incomplete;
 
-    protected @Nullable HashMap<String,String> tags;
+    protected @Nullable CompactTags tags;
 
-    private @Nullable HashMap<Long, WeakReference<OSMRelation>> containingRelations = null;
+    private @Nullable ContainingEntities<OSMRelation> containingRelations = null;
+
+    /**
+     * The generation of the last fork this entity's state was saved in (or that it was added to its space in): only
+     * the first change within a fork pays for saving the original state.
+     */
+    int forkGeneration = 0;
+
+    /**
+     * The change journal of the space this entity belongs to, if any: notified whenever the entity's action changes
+     */
+    @Nullable OSMChangeJournal journal = null;
+
+    /**
+     * Snapshot of an entity's mutable state, used to revert the changes made within a fork
+     */
+    static class SavedState {
+        private final @Nullable CompactTags tags;
+        private final @Nullable ContainingEntities<OSMRelation> containingRelations;
+        private final @NotNull ChangeAction action;
+        private final @NotNull CompletionStatus complete;
+        private final int uid, version, changeset;
+        private final boolean visible;
+        private final @Nullable String user;
+        private final long timestamp;
+
+        SavedState(final @NotNull OSMEntity entity) {
+            tags = entity.tags != null ? new CompactTags(entity.tags) : null;
+            containingRelations = entity.containingRelations != null ? new ContainingEntities<>(entity.containingRelations) : null;
+            action = entity.action;
+            complete = entity.complete;
+            uid = entity.uid;
+            version = entity.version;
+            changeset = entity.changeset;
+            visible = entity.visible;
+            user = entity.user;
+            timestamp = entity.timestamp;
+        }
+    }
 
     public abstract @NotNull OSMType getType();
     public abstract @Nullable Region getBoundingBox();
     public abstract @Nullable Point getCentroid();
-    public abstract @NotNull String toOSMXML();
+
+    /**
+     * Formats this entity as an OSM XML element
+     * @return the XML for this entity
+     */
+    @NotNull
+    public String toOSMXML() {
+        return OSMXMLWriter.toXMLString(this);
+    }
+    /**
+     * Adds the debugging tags that are included in the XML output when debugEnabled is set
+     */
+    protected void addDebugTags() {
+        setTag("rcount", Short.toString(getContainingRelationCount()));
+        if(osm_id < 0) {
+            setTag("origid", Long.toString(osm_id));
+        }
+    }
 
     /**
      * Notifies this entity it's been added to the given way's node list
@@ -92,6 +143,58 @@ public abstract class OSMEntity {
         return false;
     }
 
+    /**
+     * Must be called before any change to this entity's state, so an active fork can save the original state
+     */
+    protected final void willModify() {
+        if(journal != null) {
+            final OSMEntitySpaceFork activeFork = journal.getEntitySpace().getActiveFork();
+            if(activeFork != null && forkGeneration != activeFork.generation) {
+                forkGeneration = activeFork.generation;
+                activeFork.entityWillChange(this);
+            }
+        }
+    }
+    /**
+     * Counts this entity in the given footprint, adding the estimated size of its tags, containing relations and
+     * cached bounding box (subclasses add the entity object itself, plus their own structures)
+     */
+    void addToMemoryFootprint(final @NotNull MemoryFootprint footprint) {
+        footprint.countEntity(this);
+        if(tags != null) {
+            footprint.addToComponent(MemoryFootprint.COMPONENT_TAGS, tags.size(), tags.estimatedBytes());
+        }
+        if(containingRelations != null) {
+            footprint.addToComponent(MemoryFootprint.COMPONENT_CONTAINING_ENTITIES, containingRelations.size(), containingRelations.estimatedBytes());
+        }
+        if(boundingBox != null) {
+            footprint.addToComponent(MemoryFootprint.COMPONENT_GEOMETRY_CACHE, 1, MemoryFootprint.REGION_BYTES);
+        }
+    }
+    /**
+     * @return a snapshot of this entity's current state
+     */
+    @NotNull
+    SavedState saveState() {
+        return new SavedState(this);
+    }
+    /**
+     * Reverts this entity to the given snapshot, which must have been created by saveState()
+     */
+    void restoreState(final @NotNull SavedState state) {
+        tags = state.tags;
+        containingRelations = state.containingRelations;
+        action = state.action;
+        complete = state.complete;
+        uid = state.uid;
+        version = state.version;
+        changeset = state.changeset;
+        visible = state.visible;
+        user = state.user;
+        timestamp = state.timestamp;
+        boundingBox = null;
+    }
+
     public OSMEntity(final long id) {
         osm_id = id;
     }
@@ -111,7 +214,7 @@ public abstract class OSMEntity {
         action = entityToCopy.action;
         boundingBox = entityToCopy.boundingBox != null ? new Region(entityToCopy.boundingBox) : null;
         if(entityToCopy.tags != null) {
-            tags = new HashMap<>(entityToCopy.tags);
+            tags = new CompactTags(entityToCopy.tags);
         }
 
         copyMetadata(entityToCopy, this);
@@ -121,19 +224,20 @@ public abstract class OSMEntity {
             System.out.println("BAD UPGRADE " + osm_id + "/" + completeEntity.osm_id);
             return;
         }
+        willModify();
         complete = completeEntity.complete;
-        action = completeEntity.action;
+        setAction(completeEntity.action);
         boundingBox = completeEntity.boundingBox != null ? new Region(completeEntity.boundingBox) : null;
         if(completeEntity.tags != null) {
-            tags = new HashMap<>(completeEntity.tags);
+            tags = new CompactTags(completeEntity.tags, journal != null ? journal.getEntitySpace().tagDictionary : completeEntity.tags.dictionary);
         }
 
         copyMetadata(completeEntity, this);
 
         //and notify any containing relations that this member is now complete
         if(containingRelations != null) {
-            for (final OSMRelation containingRelation : getContainingRelations().values()) {
-                containingRelation.memberWasMadeComplete(this);
+            for (int r = 0; r < containingRelations.size(); r++) {
+                containingRelations.get(r).memberWasMadeComplete(this);
             }
         }
     }
@@ -141,13 +245,15 @@ public abstract class OSMEntity {
      * Wipes all the local tag and metadata from this entity, resetting its modification status in the process
      */
     protected void downgradeToIncompleteEntity() {
+        willModify();
         complete = CompletionStatus.incomplete;
         boundingBox = null;
         tags = null;
 
         uid = version = changeset = -1;
-        user = timestamp = null;
-        action = ChangeAction.none;
+        user = null;
+        timestamp = OSMTimestamp.NONE;
+        setAction(ChangeAction.none);
     }
 
     /**
@@ -163,6 +269,7 @@ public abstract class OSMEntity {
         }
     }
     protected static void copyMetadata(final @NotNull OSMEntity from, final @NotNull OSMEntity to) {
+        to.willModify();
         to.uid = from.uid;
         to.version = from.version;
         to.changeset = from.changeset;
@@ -179,13 +286,13 @@ public abstract class OSMEntity {
         if(complete == CompletionStatus.incomplete) { //can't set a tag on an incomplete entity
             return;
         }
-        if(tags == null) {
-            tags = new HashMap<>();
-        }
-
-        if(tags.containsKey(name)) {
+        if(tags != null && tags.containsKey(name)) {
             throw new InvalidArgumentException("Tag \"" + name + "\" already set!");
         }
+        willModify(); //NOTE: before creating the tags, so a fork saves the original (null) tags
+        if(tags == null) {
+            tags = new CompactTags(tagDictionaryForNewTags(), 4);
+        }
         tags.put(name, value.trim());
         markAsModified();
     }
@@ -199,13 +306,14 @@ public abstract class OSMEntity {
         if(complete == CompletionStatus.incomplete) { //can't set a tag on an incomplete entity
             return false;
         }
-        if(tags == null) {
-            tags = new HashMap<>();
-        }
         boolean didModify = false;
         if(value != null) {
-            final String oldValue = tags.get(name), newValue = value.trim();
+            final String oldValue = tags != null ? tags.get(name) : null, newValue = value.trim();
             if(oldValue == null || !oldValue.equals(newValue)) { //update the tag if it's different
+                willModify(); //NOTE: before creating the tags, so a fork saves the original (null) tags
+                if(tags == null) {
+                    tags = new CompactTags(tagDictionaryForNewTags(), 4);
+                }
                 tags.put(name, newValue);
                 markAsModified();
                 didModify = true;
@@ -215,6 +323,32 @@ public abstract class OSMEntity {
         }
         return didModify;
     }
+    /**
+     * Sets a tag on an entity that hasn't been added to a space yet, using the given (space's) tag dictionary if it has
+     * no tags yet, so the loaders' entities don't need their tags translated when they're added to the space
+     */
+    void setTag(final @NotNull TagDictionary dictionary, final @NotNull String name, final @NotNull String value) {
+        if(tags == null && complete != CompletionStatus.incomplete) {
+            tags = new CompactTags(dictionary, 4);
+        }
+        setTag(name, value);
+    }
+    /**
+     * Moves this entity's tags into the given dictionary, if they're not already in it (used when adding the entity
+     * to a space, so the space's entities don't keep any other space's dictionary alive)
+     */
+    void useTagDictionary(final @NotNull TagDictionary dictionary) {
+        if(tags != null && tags.dictionary != dictionary) {
+            tags = new CompactTags(tags, dictionary);
+        }
+    }
+    /**
+     * @return the dictionary to store this entity's first tags in: its space's, or a private one if it's not in a space
+     */
+    @NotNull
+    private TagDictionary tagDictionaryForNewTags() {
+        return journal != null ? journal.getEntitySpace().tagDictionary : new TagDictionary(4);
+    }
     /**
      * Sets the multiple tags on this entity, replacing the previous value (if present)
      * @param tags The key/values pairs of the tags to assign
@@ -246,6 +380,10 @@ public abstract class OSMEntity {
         if(tags == null) {
             return false;
         }
+        if(!tags.containsKey(name)) {
+            return false;
+        }
+        willModify();
         final String removedTag = tags.remove(name);
         if(removedTag != null) {
             markAsModified();
@@ -268,7 +406,7 @@ public abstract class OSMEntity {
             return null;
         }
         if(tags == null) {
-            tags = new HashMap<>(otherEntity.tags.size());
+            tags = new CompactTags(tagDictionaryForNewTags(), otherEntity.tags.size());
         }
 
         HashMap<String, String> conflictingTags = null;
@@ -277,6 +415,7 @@ public abstract class OSMEntity {
                 break;
             case replaceTags:
                 if(tags.size() > 0) {
+                    willModify();
                     tags.clear();
                     if(otherEntity.tags.size() == 0) { //handle case where other entity has no tags
                         markAsModified();
@@ -313,10 +452,32 @@ public abstract class OSMEntity {
         return conflictingTags != null && conflictingTags.size() > 0 ? conflictingTags : null;
     }
     public void markAsModified() {
-        action = ChangeAction.modify;
+        setAction(ChangeAction.modify);
     }
     public void markAsDeleted() {
-        action = ChangeAction.delete;
+        setAction(ChangeAction.delete);
+    }
+    /**
+     * Sets this entity's change action, notifying the space's change journal
+     */
+    void setAction(final @NotNull ChangeAction newAction) {
+        if(action != newAction) {
+            willModify();
+            final ChangeAction previousAction = action;
+            action = newAction;
+            if(journal != null) {
+                journal.entityActionDidChange(this, previousAction);
+            }
+        }
+    }
+    /**
+     * Called when this entity's geometry grows to include the given entity (its own new coordinate, or an added way
+     * node or relation member), so the change journal's bounding box covers it
+     */
+    void geometryDidInclude(final @NotNull OSMEntity entity) {
+        if(journal != null && action != ChangeAction.none) {
+            journal.extendBoundingBox(entity);
+        }
     }
     @NotNull
     public ChangeAction getAction() {
@@ -336,7 +497,7 @@ public abstract class OSMEntity {
     }
     /**
      * Gets the full list of tags for this entity
-     * @return HashMap of tags
+     * @return Map of tags (read-only use only: changes bypass the modification tracking)
      */
     @Nullable
     public final Map<String, String> getTags() {
@@ -348,92 +509,47 @@ public abstract class OSMEntity {
 
     protected void addContainingRelation(final @NotNull OSMRelation relation) {
         if(containingRelations == null) { //lazy-init the containing relations
-            containingRelations = new HashMap<>(4);
-        }
-        final WeakReference<OSMRelation> existingRelationRef = containingRelations.get(relation.osm_id);
-        if(existingRelationRef == null || existingRelationRef.get() == null) {
-            containingRelations.put(relation.osm_id, new WeakReference<>(relation));
+            containingRelations = new ContainingEntities<>(2);
         }
+        willModify();
+        containingRelations.add(relation);
     }
     protected void removeContainingRelation(final OSMRelation relation) {
         if(containingRelations != null) {
+            willModify();
             containingRelations.remove(relation.osm_id);
         }
     }
+    /**
+     * Gets the relations containing this entity
+     * @return a new map of the relations, keyed by id (use getContainingRelation() to iterate without allocating)
+     */
     @NotNull
     public HashMap<Long, OSMRelation> getContainingRelations() {
         if(containingRelations == null) {
             return new HashMap<>();
         }
-
-        final HashMap<Long, OSMRelation> activeRelations = new HashMap<>(containingRelations.size());
-        final Iterator<WeakReference<OSMRelation>> relationIterator = containingRelations.values().iterator();
-        WeakReference<OSMRelation> curRelationRef;
-        OSMRelation containingRelation;
-        while(relationIterator.hasNext()) {
-            curRelationRef = relationIterator.next();
-            containingRelation = curRelationRef.get();
-            if(containingRelation != null) {
-                activeRelations.put(containingRelation.osm_id, containingRelation);
-            } else { //remove any expired relations on the fly
-                relationIterator.remove();
-            }
-        }
-        return activeRelations;
+        return containingRelations.toMap();
     }
     public short getContainingRelationCount() {
-        short containingRelationCount = 0;
-        if(containingRelations != null) {
-            for (final WeakReference<OSMRelation> containingWay : containingRelations.values()) {
-                if (containingWay.get() != null) {
-                    containingRelationCount++;
-                }
-            }
-        }
-        return containingRelationCount;
+        return containingRelations != null ? (short) containingRelations.size() : 0;
+    }
+    /**
+     * Gets the containing relation at the given index, in id order
+     * @param index the index, from 0 to getContainingRelationCount() - 1
+     */
+    @NotNull
+    public OSMRelation getContainingRelation(final int index) {
+        assert containingRelations != null;
+        return containingRelations.get(index);
     }
     public CompletionStatus getCompletionStatus() {
         return complete;
     }
     public void setComplete(CompletionStatus complete) {
         if(this.complete == CompletionStatus.incomplete && complete != CompletionStatus.incomplete) { //can't set a node back to incomplete
+            willModify();
             this.complete = complete;
         }
     }
-    @NotNull
-    public static String escapeForXML(final @Nullable String str){
-        if(str == null) {
-            return "";
-        }
-        final StringBuilder result = new StringBuilder(str.length());
-        final StringCharacterIterator iterator = new StringCharacterIterator(str);
-        char character = iterator.current();
-        while (character != CharacterIterator.DONE ){
-            if (character == '<') {
-                result.append("&lt;");
-            }
-            else if (character == '>') {
-                result.append("&gt;");
-            }
-            else if (character == '\"') {
-                result.append("&quot;");
-            }
-            else if (character == '\'') {
-                result.append("&#039;");
-            }
-            else if (character == '&') {
-                result.append("&amp;");
-            }
-            else {
-                //the char is not a special one
-                //add it to the result as is
-                result.append(character);
-            }
-            character = iterator.next();
-        }
-        return result.toString();
-    }
-    protected static String actionTagAttribute(final @NotNull ChangeAction action) {
-        return action != ChangeAction.none ? String.format(ACTION_ATTRIBUTE_FORMAT, action.name()) : "";
-    }
 }
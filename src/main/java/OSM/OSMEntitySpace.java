@@ -1,37 +1,33 @@
 package OSM;
 
 import Importer.InvalidArgumentException;
-import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
 import java.util.*;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 /**
  * Container for OSM entities
  * Created by nick on 11/4/15.
  */
 public class OSMEntitySpace {
-    private final static String
-            XML_DOCUMENT_OPEN = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\" upload=\"%s\" generator=\"KCMetroImporter\">\n",
-            XML_BOUNDING_BOX = " <bounds minlat=\"%.07f\" minlon=\"%.07f\" maxlat=\"%.07f\" maxlon=\"%.07f\"/>\n",
-            XML_DOCUMENT_CLOSE = "</osm>\n";
-
     private final static boolean debugEnabled = false;
+    private final static int READ_BUFFER_SIZE = 65536;
+    private final static long PARALLEL_LOAD_MINIMUM_FILE_SIZE = 16L * 1024 * 1024;
+    private final static int PARALLEL_MERGE_MINIMUM_ENTITY_COUNT = 65536;
+    public final static String PBF_FILE_EXTENSION = ".pbf";
 
-    /**
-     * Id sequence for new OSM entities
-     */
-    private static long osmIdSequence = 0;
-
+    final static Comparator<OSMEntity> entityIdComparator = new Comparator<OSMEntity>() {
+        @Override
+        public int compare(OSMEntity o1, OSMEntity o2) {
+            return Long.compare(o1.osm_id, o2.osm_id);
+        }
+    };
     private final static Comparator<NodeIndexer> nodeIndexComparator = new Comparator<NodeIndexer>() {
         @Override
         public int compare(NodeIndexer o1, NodeIndexer o2) {
@@ -47,23 +43,60 @@ public class OSMEntitySpace {
         }
     }
 
-    public final HashMap<Long, OSMEntity> allEntities;
-    public final HashMap<Long, OSMEntity> deletedEntities;
-    public final HashMap<Long, OSMNode> allNodes;
-    public final HashMap<Long, OSMWay> allWays;
-    public final HashMap<Long, OSMRelation> allRelations;
+    public final LongEntityMap<OSMEntity> allEntities;
+    public final LongEntityMap<OSMEntity> deletedEntities;
+    public final LongEntityMap<OSMNode> allNodes;
+    public final LongEntityMap<OSMWay> allWays;
+    public final LongEntityMap<OSMRelation> allRelations;
+    public final OSMChangeJournal changeJournal = new OSMChangeJournal(this);
     public String name;
     public final HashMap<Long, OSMEntity> debugEntities = new HashMap<>(8);
 
     public ArrayList<Long> debugEntityIds = new ArrayList<>();
 
+    /**
+     * The keys and values of this space's entities' tags (see CompactTags)
+     */
+    TagDictionary tagDictionary = new TagDictionary(TagDictionary.DEFAULT_CAPACITY);
+
+    /**
+     * Columnar coordinate storage for this space's nodes, if enabled
+     */
+    private NodeCoordinateStore nodeCoordinateStore = null;
+
+    /**
+     * The fork tracking this space's changes, if any
+     */
+    private OSMEntitySpaceFork activeFork = null;
+
     public void setCanUpload(boolean canUpload) {
         this.canUpload = canUpload;
     }
     private boolean canUpload = false;
 
-    private static void setIdSequence(long sequence) {
-        osmIdSequence = sequence;
+    /**
+     * Ids for the entities created in new spaces start below -newEntityIdOffset, e.g. to keep them clear of the new
+     * entities in a previous run's output
+     */
+    public static long newEntityIdOffset = 0;
+
+    /**
+     * Source of ids for entities created in this space.  It's kept below the (negative) ids of any entities loaded or
+     * copied into this space, and below the ids already handed out by the spaces they're copied from, since entities
+     * are routinely moved between spaces.
+     */
+    private OSMIdAllocator idAllocator = new OSMIdAllocator(-newEntityIdOffset, Long.MIN_VALUE);
+
+    /**
+     * Sets the source of ids for entities created in this space, e.g. a range reserved with
+     * OSMIdAllocator.allocateRange() so this space can create entities in parallel with other spaces
+     * @param allocator the allocator to use
+     */
+    public void setIdAllocator(final OSMIdAllocator allocator) {
+        idAllocator = allocator;
+    }
+    public OSMIdAllocator getIdAllocator() {
+        return idAllocator;
     }
 
     /**
@@ -74,11 +107,11 @@ public class OSMEntitySpace {
         initDebug();
         final int nodeCapacity = (int) (0.8 * capacity), wayCapacity = (int) (0.1 * capacity), relationCapacity = (int) (0.1 * capacity);
 
-        allEntities = new HashMap<>(capacity);
-        allNodes = new HashMap<>(nodeCapacity);
-        allWays = new HashMap<>(wayCapacity);
-        allRelations = new HashMap<>(relationCapacity);
-        deletedEntities = new HashMap<>(capacity / 10);
+        allEntities = new LongEntityMap<>(capacity);
+        allNodes = new LongEntityMap<>(nodeCapacity);
+        allWays = new LongEntityMap<>(wayCapacity);
+        allRelations = new LongEntityMap<>(relationCapacity);
+        deletedEntities = new LongEntityMap<>(capacity / 10);
 
         name = String.valueOf(Math.round(1000 * Math.random()));
     }
@@ -87,13 +120,30 @@ public class OSMEntitySpace {
         name = spaceToDuplicate.name;
 
         final int capacity = spaceToDuplicate.allEntities.size() + additionalCapacity;
-        allEntities = new HashMap<>(capacity);
-        allNodes = new HashMap<>(capacity);
-        allWays = new HashMap<>(capacity);
-        allRelations = new HashMap<>(capacity);
-        deletedEntities = new HashMap<>(capacity / 10);
+        allEntities = new LongEntityMap<>(capacity);
+        allNodes = new LongEntityMap<>(spaceToDuplicate.allNodes.size() + additionalCapacity);
+        allWays = new LongEntityMap<>(spaceToDuplicate.allWays.size() + additionalCapacity / 10);
+        allRelations = new LongEntityMap<>(spaceToDuplicate.allRelations.size() + additionalCapacity / 10);
+        deletedEntities = new LongEntityMap<>(capacity / 10);
         mergeWithSpace(spaceToDuplicate, OSMEntity.TagMergeStrategy.keepTags, null);
     }
+    /**
+     * Switches this space's nodes to columnar coordinate storage (parallel x/y arrays indexed by node ordinal),
+     * which cuts the per-node Point objects and keeps geometry loops on contiguous memory.  Nodes added to
+     * the space afterwards are stored the same way.
+     */
+    public void enableColumnarNodeStorage() {
+        if(nodeCoordinateStore != null) {
+            return;
+        }
+        nodeCoordinateStore = new NodeCoordinateStore(allNodes.size() * 2);
+        for(final OSMNode node : allNodes.values()) {
+            node.attachToCoordinateStore(nodeCoordinateStore);
+        }
+    }
+    public boolean isColumnarNodeStorageEnabled() {
+        return nodeCoordinateStore != null;
+    }
     private void initDebug() {
         if(debugEnabled) {
             debugEntityIds.add(94043L);
@@ -110,7 +160,7 @@ public class OSMEntitySpace {
      * @return the new node
      */
     public OSMNode createNode(final double x, final double y, final Map<String, String> withTags) {
-        final OSMNode newNode = new OSMNode(--osmIdSequence);
+        final OSMNode newNode = new OSMNode(idAllocator.nextId());
         newNode.setCoordinate(x, y);
         newNode.setComplete(OSMEntity.CompletionStatus.self);
         newNode.markAsModified();
@@ -168,7 +218,7 @@ public class OSMEntitySpace {
      * @return the new way
      */
     public OSMWay createWay(final Map<String, String> withTags, final List<OSMNode> withNodes) {
-        final OSMWay newWay = new OSMWay(--osmIdSequence);
+        final OSMWay newWay = new OSMWay(idAllocator.nextId());
         newWay.setComplete(OSMEntity.CompletionStatus.memberList);
         newWay.markAsModified();
 
@@ -263,7 +313,7 @@ public class OSMEntitySpace {
      * @return the new relation
      */
     public OSMRelation createRelation(final Map<String, String> withTags, final List<OSMRelation.OSMRelationMember> withMembers) {
-        final OSMRelation newRelation = new OSMRelation(--osmIdSequence);
+        final OSMRelation newRelation = new OSMRelation(idAllocator.nextId());
         newRelation.setComplete(OSMEntity.CompletionStatus.memberList);
         newRelation.markAsModified();
 
@@ -319,27 +369,65 @@ public class OSMEntitySpace {
         addRelationToSpaceList(newRelation);
         return newRelation;
     }
-    private void addNodeToSpaceList(final OSMNode newNode) {
+    void addNodeToSpaceList(final OSMNode newNode) {
+        if(nodeCoordinateStore != null) {
+            newNode.attachToCoordinateStore(nodeCoordinateStore);
+        }
+        willChangeIndex(allNodes, newNode.osm_id);
         allNodes.put(newNode.osm_id, newNode);
+        willChangeIndex(allEntities, newNode.osm_id);
         allEntities.put(newNode.osm_id, newNode);
+        adoptEntity(newNode);
+        newNode.useTagDictionary(tagDictionary);
+        reserveExistingId(newNode.osm_id);
+        changeJournal.entityWasAdded(newNode);
 
         if(debugEnabled && debugEntityIds.contains(newNode.osm_id)) {
             System.out.println(name + " CREATE " + newNode.complete.toString() + " NODE " + newNode);
             debugEntities.put(newNode.osm_id, newNode);
         }
     }
-    private void addWayToSpaceList(final OSMWay newWay) {
+    /**
+     * Attaches the given entity (just added to the indexes) to this space's change journal
+     */
+    private void adoptEntity(final OSMEntity entity) {
+        if(activeFork != null && entity.journal != changeJournal) { //entities new to the space have no original state for the fork to save
+            entity.forkGeneration = activeFork.generation;
+        }
+        entity.journal = changeJournal;
+    }
+    /**
+     * Ensures this space doesn't hand out the given id, if it's a new entity's
+     */
+    private void reserveExistingId(final long id) {
+        if(id < 0) {
+            idAllocator.reserveIdsFrom(id);
+        }
+    }
+    void addWayToSpaceList(final OSMWay newWay) {
+        willChangeIndex(allWays, newWay.osm_id);
         allWays.put(newWay.osm_id, newWay);
+        willChangeIndex(allEntities, newWay.osm_id);
         allEntities.put(newWay.osm_id, newWay);
+        adoptEntity(newWay);
+        newWay.useTagDictionary(tagDictionary);
+        reserveExistingId(newWay.osm_id);
+        changeJournal.entityWasAdded(newWay);
 
         if(debugEnabled && debugEntityIds.contains(newWay.osm_id)) {
             System.out.println(name + " CREATE " + newWay.complete.toString() + " WAY " + newWay);
             debugEntities.put(newWay.osm_id, newWay);
         }
     }
-    private void addRelationToSpaceList(final OSMRelation newRelation) {
+    void addRelationToSpaceList(final OSMRelation newRelation) {
+        willChangeIndex(allRelations, newRelation.osm_id);
         allRelations.put(newRelation.osm_id, newRelation);
+        willChangeIndex(allEntities, newRelation.osm_id);
         allEntities.put(newRelation.osm_id, newRelation);
+        adoptEntity(newRelation);
+        newRelation.useTagDictionary(tagDictionary);
+        reserveExistingId(newRelation.osm_id);
+        changeJournal.entityWasAdded(newRelation);
 
         if(debugEnabled && debugEntityIds.contains(newRelation.osm_id)) {
             System.out.println(name + " CREATE " + newRelation.complete.toString() + " RELATION " + newRelation);
@@ -406,6 +494,10 @@ public class OSMEntitySpace {
      * @return this entitySpace's copy of the entity
      */
     public OSMEntity addEntity(final OSMEntity entity, final OSMEntity.TagMergeStrategy mergeStrategy, final List<OSMEntity> conflictingEntities, boolean addChildEntities, int addContainingEntitiesToDepth) {
+        //don't hand out any ids the entity's space has already used, since more of its entities may be copied here later
+        if(entity.journal != null && entity.journal.getEntitySpace() != this) {
+            idAllocator.reserveIdsFrom(entity.journal.getEntitySpace().idAllocator.getLastId());
+        }
         final OSMEntity.ChangeAction originalEntityChangeAction = entity.action;
         final OSMEntity addedEntity;
         if(entity instanceof OSMNode) {
@@ -430,7 +522,7 @@ public class OSMEntitySpace {
         }
 
         //the entity may have been marked as modified when updating tags on the new local copy: restore here
-        addedEntity.action = originalEntityChangeAction;
+        addedEntity.setAction(originalEntityChangeAction);
         return addedEntity;
     }
 
@@ -488,8 +580,19 @@ public class OSMEntitySpace {
      * @return TRUE if deleted, FALSE if not
      */
     public boolean deleteEntity(final OSMEntity entityToDelete) {
-        //get a handle on the local copy of the entity
-        OSMEntity localEntityToDelete = allEntities.get(entityToDelete.osm_id);
+        //get a handle on the local copy of the entity (from the typed index, since ids are only unique within a type)
+        OSMEntity localEntityToDelete;
+        switch (entityToDelete.getType()) {
+            case node:
+                localEntityToDelete = allNodes.get(entityToDelete.osm_id);
+                break;
+            case way:
+                localEntityToDelete = allWays.get(entityToDelete.osm_id);
+                break;
+            default:
+                localEntityToDelete = allRelations.get(entityToDelete.osm_id);
+                break;
+        }
 
         //if the local entity to delete doesn't exist in this space, we need to add it before beginning the deletion process
         if(localEntityToDelete == null) {
@@ -499,19 +602,28 @@ public class OSMEntitySpace {
         //remove all references from the main data arrays
         switch (localEntityToDelete.getType()) {
             case node:
+                willChangeIndex(allNodes, localEntityToDelete.osm_id);
                 allNodes.remove(localEntityToDelete.osm_id);
+                ((OSMNode) localEntityToDelete).detachFromCoordinateStore(); //deleted nodes keep their coordinate, but free their slot
                 break;
             case way:
+                willChangeIndex(allWays, localEntityToDelete.osm_id);
                 allWays.remove(localEntityToDelete.osm_id);
                 break;
             case relation:
+                willChangeIndex(allRelations, localEntityToDelete.osm_id);
                 allRelations.remove(localEntityToDelete.osm_id);
                 break;
         }
-        allEntities.remove(localEntityToDelete.osm_id);
+        if(allEntities.get(localEntityToDelete.osm_id) == localEntityToDelete) {
+            willChangeIndex(allEntities, localEntityToDelete.osm_id);
+            allEntities.remove(localEntityToDelete.osm_id);
+        }
+        changeJournal.entityWasRemoved(localEntityToDelete);
 
         //and mark the entity as deleted if it's already on the OSM server
         if(localEntityToDelete.didDelete(this)) {
+            willChangeIndex(deletedEntities, localEntityToDelete.osm_id);
             deletedEntities.put(localEntityToDelete.osm_id, localEntityToDelete);
         }
         return true;
@@ -601,7 +713,7 @@ public class OSMEntitySpace {
      *
      * @param entity1
      * @param entity2
-     * @return The entity whose metadata should be preserved, or null if neither has metadata (or a corrupted timestamp)
+     * @return The entity whose metadata should be preserved, or null if neither has metadata (or a timestamp)
      */
     private static OSMEntity determinePreservedEntity(final OSMEntity entity1, final OSMEntity entity2) {
         //first check if the entities are versioned (i.e. exist in the OSM database)
@@ -609,16 +721,9 @@ public class OSMEntitySpace {
 
         //if both entities have metadata, use the older entity's metadata
         if(entity1Versioned && entity2Versioned) {
-            final SimpleDateFormat parserSDF = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-            try {
-                final Date entity1Date = parserSDF.parse(entity1.timestamp);
-                final Date entity2Date = parserSDF.parse(entity2.timestamp);
-                if(entity1Date.getTime() > entity2Date.getTime()) {
-                    return entity2;
-                } else {
-                    return entity1;
-                }
-            } catch (ParseException ignored) {}
+            if(entity1.timestamp != OSMTimestamp.NONE && entity2.timestamp != OSMTimestamp.NONE) {
+                return entity1.timestamp > entity2.timestamp ? entity2 : entity1;
+            }
         } else if(entity1Versioned) {
             return entity1;
         } else if(entity2Versioned){
@@ -626,6 +731,174 @@ public class OSMEntitySpace {
         }
         return null;
     }
+    /**
+     * Finds groups of nodes in this space that are within the given distance of each other, using a spatial hash
+     * rather than comparing every pair.  Each group is anchored on the node mergeDuplicateNodes() will keep, and only
+     * contains the nodes within the tolerance of it, so chains of nearby nodes (A near B, B near C) aren't collapsed
+     * into one node if A and C are further apart than the tolerance.
+     * @param tolerance the distance (in meters) within which nodes are considered duplicates
+     * @return the groups of duplicate nodes (each starting with the node to keep, then the others in id order)
+     */
+    public List<OSMNode[]> findDuplicateNodes(final double tolerance) {
+        final List<OSMNode> nodes = new ArrayList<>(allNodes.size());
+        for(final OSMNode node : allNodes.values()) {
+            if(node.complete != OSMEntity.CompletionStatus.incomplete && node.hasCoordinate()) {
+                nodes.add(node);
+            }
+        }
+        nodes.sort(entityIdComparator);
+
+        //union the nearby node pairs, each set pointing to its lowest index
+        final int[] groupParents = new int[nodes.size()];
+        for(int n = 0; n < groupParents.length; n++) {
+            groupParents[n] = n;
+        }
+        new NodeSpatialHash(nodes, tolerance).forEachPair(new NodeSpatialHash.PairHandler() {
+            @Override
+            public void nodesAreWithinTolerance(final int index1, final int index2) {
+                final int root1 = findGroupRoot(groupParents, index1), root2 = findGroupRoot(groupParents, index2);
+                if(root1 < root2) {
+                    groupParents[root2] = root1;
+                } else if(root2 < root1) {
+                    groupParents[root1] = root2;
+                }
+            }
+        });
+
+        //and collect the groups with more than one node
+        final int[] groupSizes = new int[groupParents.length];
+        for(int n = 0; n < groupParents.length; n++) {
+            groupSizes[findGroupRoot(groupParents, n)]++;
+        }
+        final Map<Integer, List<OSMNode>> groups = new LinkedHashMap<>();
+        for(int n = 0; n < groupParents.length; n++) {
+            final int root = findGroupRoot(groupParents, n);
+            if(groupSizes[root] > 1) {
+                List<OSMNode> group = groups.get(root);
+                if(group == null) {
+                    group = new ArrayList<>(groupSizes[root]);
+                    groups.put(root, group);
+                }
+                group.add(nodes.get(n));
+            }
+        }
+        //the nearby pairs are chained together above, so split each chain into groups within the tolerance of the kept node
+        final List<OSMNode[]> duplicateNodes = new ArrayList<>(groups.size());
+        for(final List<OSMNode> chainedNodes : groups.values()) {
+            while (chainedNodes.size() > 1) {
+                final OSMNode keptNode = selectPreservedNode(chainedNodes);
+                final List<OSMNode> group = new ArrayList<>(chainedNodes.size());
+                group.add(keptNode);
+                final ListIterator<OSMNode> chainIterator = chainedNodes.listIterator();
+                while (chainIterator.hasNext()) {
+                    final OSMNode node = chainIterator.next();
+                    if(node == keptNode) {
+                        chainIterator.remove();
+                    } else if(Point.distance(keptNode.getX(), keptNode.getY(), node.getX(), node.getY()) <= tolerance) {
+                        group.add(node);
+                        chainIterator.remove();
+                    }
+                }
+                if(group.size() > 1) {
+                    duplicateNodes.add(group.toArray(new OSMNode[group.size()]));
+                }
+            }
+        }
+        return duplicateNodes;
+    }
+    /**
+     * @return the node whose metadata should be preserved when merging the given nodes (see determinePreservedEntity())
+     */
+    private static OSMNode selectPreservedNode(final List<OSMNode> nodes) {
+        OSMNode preservedNode = nodes.get(0);
+        for(int n = 1; n < nodes.size(); n++) {
+            if(determinePreservedEntity(preservedNode, nodes.get(n)) == nodes.get(n)) {
+                preservedNode = nodes.get(n);
+            }
+        }
+        return preservedNode;
+    }
+    private static int findGroupRoot(final int[] groupParents, int index) {
+        while (groupParents[index] != index) {
+            groupParents[index] = groupParents[groupParents[index]]; //path halving
+            index = groupParents[index];
+        }
+        return index;
+    }
+    /**
+     * Finds and merges all the nodes in this space within the given distance of each other
+     * @param tolerance the distance (in meters) within which nodes are considered duplicates
+     * @return the number of nodes merged into (and removed in favor of) another node
+     * @see #findDuplicateNodes(double)
+     */
+    public int mergeDuplicateNodes(final double tolerance) {
+        return mergeDuplicateNodes(findDuplicateNodes(tolerance));
+    }
+    /**
+     * Merges each group of nodes into a single node.  The node with the best metadata (see mergeEntities()) is kept,
+     * with the other nodes' tags copied into it; each affected way's node list and each affected relation's member
+     * list is then remapped once, no matter how many of its nodes were merged, and the other nodes are deleted.
+     * Consecutive occurrences of the same node in a way (i.e. where two duplicates were adjacent) are collapsed, and any
+     * ways left with fewer than 2 nodes are deleted.
+     * @param duplicateNodeGroups the groups of nodes to merge, e.g. from findDuplicateNodes()
+     * @return the number of nodes merged into (and removed in favor of) another node
+     */
+    public int mergeDuplicateNodes(final List<OSMNode[]> duplicateNodeGroups) {
+        //pick the node to keep for each group, and map the others to it
+        final IdentityHashMap<OSMEntity, OSMNode> replacementNodes = new IdentityHashMap<>();
+        for(final OSMNode[] group : duplicateNodeGroups) {
+            final OSMNode targetNode = selectPreservedNode(Arrays.asList(group));
+            for(final OSMNode node : group) {
+                if(node != targetNode) {
+                    targetNode.copyTagsFrom(node, OSMEntity.TagMergeStrategy.copyTags);
+                    replacementNodes.put(node, targetNode);
+                }
+            }
+        }
+        if(replacementNodes.isEmpty()) {
+            return 0;
+        }
+
+        //collect the affected ways and relations, so each is only updated once
+        final Set<OSMWay> containingWays = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Set<OSMRelation> containingRelations = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(final OSMEntity node : replacementNodes.keySet()) {
+            final OSMNode duplicateNode = (OSMNode) node;
+            for(int w = 0; w < duplicateNode.getContainingWayCount(); w++) {
+                containingWays.add(duplicateNode.getContainingWay(w));
+            }
+            for(int r = 0; r < duplicateNode.getContainingRelationCount(); r++) {
+                containingRelations.add(duplicateNode.getContainingRelation(r));
+            }
+        }
+
+        for(final OSMWay way : containingWays) {
+            final List<OSMNode> wayNodes = way.getNodes(), remappedNodes = new ArrayList<>(wayNodes.size());
+            for(final OSMNode wayNode : wayNodes) {
+                final OSMNode replacementNode = replacementNodes.get(wayNode), remappedNode = replacementNode != null ? replacementNode : wayNode;
+                if(remappedNodes.isEmpty() || remappedNodes.get(remappedNodes.size() - 1) != remappedNode) {
+                    remappedNodes.add(remappedNode);
+                }
+            }
+            way.setNodes(remappedNodes);
+        }
+        for(final OSMRelation relation : containingRelations) {
+            relation.replaceEntityMemberships(replacementNodes);
+        }
+
+        //ways whose nodes were all merged together no longer have any geometry
+        for(final OSMWay way : containingWays) {
+            if(way.getNodes().size() < 2) {
+                deleteEntity(way);
+            }
+        }
+
+        //the duplicates are no longer referenced, so they can be removed from the space
+        for(final OSMEntity duplicateNode : replacementNodes.keySet()) {
+            deleteEntity(duplicateNode);
+        }
+        return replacementNodes.size();
+    }
 
     /**
      * Split the given way at the given node, returning the new way(s)
@@ -635,12 +908,60 @@ public class OSMEntitySpace {
      * @throws InvalidArgumentException
      */
     public OSMWay[] splitWay(final OSMWay originalWay, final OSMNode[] splitNodes) throws InvalidArgumentException {
-        //basic checks
+        return splitWayAtNodes(originalWay, resolveSplitNodes(originalWay, Arrays.asList(splitNodes)));
+    }
+    /**
+     * Splits multiple ways at once, each at its own set of nodes.  The split nodes' positions are resolved in a single
+     * pass over each way's node list, and each way (and its containing relations) is updated once, no matter how many
+     * split nodes it has.
+     * @param splitRequests the ways to split, and the node(s) to split each at
+     * @return the split ways for each way, in the same order as splitRequests
+     * @throws InvalidArgumentException if any split node isn't a member of its way (in which case no ways are split)
+     */
+    public Map<OSMWay, OSMWay[]> splitWays(final Map<OSMWay, ? extends Collection<OSMNode>> splitRequests) throws InvalidArgumentException {
+        //resolve all the split positions first, so invalid requests are caught before any ways are modified
+        final List<List<NodeIndexer>> resolvedSplitNodes = new ArrayList<>(splitRequests.size());
+        for(final Map.Entry<OSMWay, ? extends Collection<OSMNode>> splitRequest : splitRequests.entrySet()) {
+            resolvedSplitNodes.add(resolveSplitNodes(splitRequest.getKey(), splitRequest.getValue()));
+        }
+
+        final Map<OSMWay, OSMWay[]> splitWays = new LinkedHashMap<>(splitRequests.size());
+        int requestIndex = 0;
+        for(final OSMWay originalWay : splitRequests.keySet()) {
+            splitWays.put(originalWay, splitWayAtNodes(originalWay, resolvedSplitNodes.get(requestIndex++)));
+        }
+        return splitWays;
+    }
+    /**
+     * Looks up the positions of the given (distinct) split nodes in the way, with a single pass over its nodes
+     * @return the split nodes and their indexes, excluding the first/last nodes of unclosed ways
+     * @throws InvalidArgumentException if any of the nodes isn't a member of the way
+     */
+    private static List<NodeIndexer> resolveSplitNodes(final OSMWay originalWay, final Collection<OSMNode> splitNodes) throws InvalidArgumentException {
+        final IdentityHashMap<OSMNode, Integer> splitNodeIndexes = new IdentityHashMap<>(splitNodes.size());
+        for (final OSMNode splitNode : splitNodes) {
+            splitNodeIndexes.put(splitNode, -1);
+        }
+
+        //record the first index of each split node
         final List<OSMNode> curNodes = originalWay.getNodes();
+        int unresolvedCount = splitNodeIndexes.size();
+        for (int nodeIndex = 0; nodeIndex < curNodes.size() && unresolvedCount > 0; nodeIndex++) {
+            final OSMNode node = curNodes.get(nodeIndex);
+            final Integer splitNodeIndex = splitNodeIndexes.get(node);
+            if (splitNodeIndex != null && splitNodeIndex < 0) {
+                splitNodeIndexes.put(node, nodeIndex);
+                unresolvedCount--;
+            }
+        }
+
         final boolean originalWayIsClosed = originalWay.isClosed();
-        final List<NodeIndexer> actualSplitNodes = new ArrayList<>(splitNodes.length);
+        final List<NodeIndexer> actualSplitNodes = new ArrayList<>(splitNodeIndexes.size());
         for (final OSMNode splitNode : splitNodes) {
-            final int nodeIndex = curNodes.indexOf(splitNode);
+            final Integer nodeIndex = splitNodeIndexes.remove(splitNode);
+            if (nodeIndex == null) { //duplicate split node
+                continue;
+            }
             if (nodeIndex < 0) {
                 throw new InvalidArgumentException("splitNode " + splitNode.osm_id + " is not a member of the originalWay \"" + originalWay.getTag("name") + "\" (" + originalWay.osm_id + ")");
             }
@@ -650,6 +971,11 @@ public class OSMEntitySpace {
             }
             actualSplitNodes.add(new NodeIndexer(splitNode, nodeIndex));
         }
+        return actualSplitNodes;
+    }
+    private OSMWay[] splitWayAtNodes(final OSMWay originalWay, final List<NodeIndexer> actualSplitNodes) throws InvalidArgumentException {
+        final List<OSMNode> curNodes = originalWay.getNodes();
+        final boolean originalWayIsClosed = originalWay.isClosed();
         if (actualSplitNodes.size() == 0) {
             return new OSMWay[]{originalWay};
         }
@@ -753,129 +1079,152 @@ public class OSMEntitySpace {
         return allSplitWays;
     }
     /**
-     * Parses an OSM XML file into entity objects, and adds them to this space
+     * Parses an OSM XML file into entity objects, and adds them to this space.  If this space is empty, the
+     * entities are inserted directly, without the merge/conflict handling used by addEntity().  Large files
+     * are parsed in parallel on all available processors.
      * @param fileName
      * @throws IOException
      * @throws ParserConfigurationException
-     * @throws SAXException
+     * @throws SAXException if the file isn't valid XML
      */
     public void loadFromXML(final String fileName) throws IOException, ParserConfigurationException, SAXException {
-        final SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
-        long minimumEntityId = 0;
+        final File file = new File(fileName);
+        final int threadCount = file.length() >= PARALLEL_LOAD_MINIMUM_FILE_SIZE && OSMParallelXMLLoader.canLoad(file) ? Runtime.getRuntime().availableProcessors() : 1;
+        loadFromXML(fileName, threadCount);
+    }
+    /**
+     * Parses an OSM XML file into entity objects, and adds them to this space, using the given number of threads
+     * for the parsing.  The resulting space is the same regardless of the thread count.
+     * @param fileName
+     * @param threadCount the number of parser threads: if 1, or if the file is over 2GB, the file is streamed on the calling thread
+     * @throws IOException
+     * @throws ParserConfigurationException
+     * @throws SAXException if the file isn't valid XML
+     */
+    public void loadFromXML(final String fileName, final int threadCount) throws IOException, ParserConfigurationException, SAXException {
         name = fileName;
 
-        parser.parse(new File(fileName), new DefaultHandler() {
-            private final static String tagNode = "node", tagWay = "way", tagRelation = "relation", tagTag = "tag", tagWayNode = "nd", tagRelationMember = "member";
-            private final static String keyId = "id", keyRef = "ref", keyRole = "role", keyType = "type";
-            private final Stack<OSMEntity> entityStack = new Stack<>();
-
-            private void processBaseValues(OSMEntity entity, Attributes attributes) {
-                final String visible = attributes.getValue("visible");
-                if (visible != null) {
-                    entity.visible = Boolean.parseBoolean(visible);
-                }
-
-                //add version metadata, if present
-                final String version = attributes.getValue("version");
-                if(version != null) {
-                    entity.uid = Integer.parseInt(attributes.getValue("uid"));
-                    entity.user = attributes.getValue("user");
-                    entity.changeset = Integer.parseInt(attributes.getValue("changeset"));
-                    entity.version = Integer.parseInt(attributes.getValue("version"));
-                    entity.timestamp = attributes.getValue("timestamp");
-                }
-            }
-            @Override
-            public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-                //System.out.println("Start " + uri + ":" + localName + ":" + qName + ", attr: " + attributes.toString());
-                switch (qName) {
-                    case tagNode: //nodes are simply added to the entity array
-                        final OSMNode curNode = new OSMNode(Long.parseLong(attributes.getValue(keyId)));
-                        curNode.setComplete(OSMEntity.CompletionStatus.self);
-                        curNode.setCoordinate(SphericalMercator.latLonToMercator(Double.parseDouble(attributes.getValue("lat")), Double.parseDouble(attributes.getValue("lon"))));
-                        processBaseValues(curNode, attributes);
-
-                        final OSMNode addedNode = (OSMNode) addEntity(curNode, OSMEntity.TagMergeStrategy.keepTags, null, true, 0);
-                        entityStack.push(addedNode);
-                        break;
-                    case tagWay:
-                        final OSMWay curWay = new OSMWay(Long.parseLong(attributes.getValue(keyId)));
-                        curWay.setComplete(OSMEntity.CompletionStatus.memberList);
-                        processBaseValues(curWay, attributes);
-
-                        final OSMWay addedWay = (OSMWay) addEntity(curWay, OSMEntity.TagMergeStrategy.keepTags, null, true, 0);
-                        entityStack.push(addedWay);
-                        break;
-                    case tagRelation:
-                        final OSMRelation curRelation = new OSMRelation(Long.parseLong(attributes.getValue(keyId)));
-                        curRelation.setComplete(OSMEntity.CompletionStatus.memberList);
-                        processBaseValues(curRelation, attributes);
-                        final OSMRelation addedRelation = (OSMRelation) addEntity(curRelation, OSMEntity.TagMergeStrategy.keepTags, null, true, 0);
-                        entityStack.push(addedRelation);
-                        break;
-                    case tagTag: //tag for a node/way/relation
-                        final OSMEntity curEntity = entityStack.peek();
-                        curEntity.setTag(attributes.getValue("k"), attributes.getValue("v"));
-                        break;
-                    case tagWayNode: //node as a member of a way
-                        long nodeId = Long.parseLong(attributes.getValue(keyRef));
-                        final OSMNode wayNode = allNodes.get(nodeId);
-                        final OSMWay curWayToAdd = (OSMWay) entityStack.peek();
-                        curWayToAdd.setComplete(OSMEntity.CompletionStatus.memberList);
-                        curWayToAdd.appendNode(wayNode);
-                        break;
-                    case tagRelationMember:
-                        final OSMRelation relationToAdd = (OSMRelation) entityStack.peek();
-                        relationToAdd.setComplete(OSMEntity.CompletionStatus.memberList);
-                        final long memberId = Long.parseLong(attributes.getValue(keyRef));
-                        final OSMEntity memberEntity;
-                        switch (attributes.getValue(keyType)) {
-                            case tagNode:
-                                memberEntity = allNodes.get(memberId);
-                                break;
-                            case tagWay:
-                                memberEntity = allWays.get(memberId);
-                                break;
-                            case tagRelation:
-                                memberEntity = allRelations.get(memberId);
-                                break;
-                            default:
-                                memberEntity = null;
-                                break;
-                        }
-                        if(memberEntity != null) {
-                            relationToAdd.addMember(memberEntity, attributes.getValue(keyRole));
-                        }
-                        break;
+        try {
+            final File file = new File(fileName);
+            if(threadCount > 1 && OSMParallelXMLLoader.canLoad(file)) {
+                new OSMParallelXMLLoader(this, threadCount).load(file);
+            } else {
+                try (final InputStream inputStream = new BufferedInputStream(new FileInputStream(fileName), READ_BUFFER_SIZE)) {
+                    new OSMXMLLoader(this).load(inputStream);
                 }
             }
-            @Override
-            public void endElement(String uri, String localName, String qName) throws SAXException {
-                switch (qName) {
-                    case tagNode: //nodes are simply added to the entity array
-                    case tagWay:
-                    case tagRelation:
-                        entityStack.pop();
-                        break;
-                    case tagTag: //tag for a node/way/relation
-                    case tagWayNode: //node as a member of a way
-                    case tagRelationMember:
-                        //type == node/way/relation
-                        break;
+        } catch (XMLStreamException e) {
+            throw new SAXException(e);
+        }
+        updateIdSequenceAfterLoad();
+    }
+    /**
+     * Loads an OSM XML file using its binary snapshot (saved alongside it) if the file hasn't changed since the
+     * snapshot was made.  Otherwise the XML is parsed, and if this space was empty a new snapshot is saved for next time.
+     * @param fileName
+     * @throws IOException
+     * @throws ParserConfigurationException
+     * @throws SAXException if the file isn't valid XML
+     */
+    public void loadFromXMLWithSnapshot(final String fileName) throws IOException, ParserConfigurationException, SAXException {
+        final File sourceFile = new File(fileName);
+        if(OSMBinarySnapshot.read(this, sourceFile)) {
+            name = fileName;
+            updateIdSequenceAfterLoad();
+            return;
+        }
 
-                }
+        final boolean canSnapshot = allEntities.isEmpty();
+        loadFromXML(fileName);
+        if(canSnapshot) {
+            try {
+                OSMBinarySnapshot.write(this, sourceFile);
+            } catch (IOException e) { //the snapshot is just a cache: carry on if the directory isn't writable etc.
+                System.out.println("WARNING: couldn't save a snapshot of " + fileName + ": " + e.getMessage());
             }
-            /*@Override
-            public void characters(char[] ch, int start, int length) throws SAXException {
-            }*/
-        });
-
-        for(long id : allEntities.keySet()) {
-            minimumEntityId = Math.min(minimumEntityId, id);
         }
-        setIdSequence(minimumEntityId);
+    }
+    /**
+     * Loads just the relations matching the given filter from an OSM XML file, along with all their members (recursively),
+     * using a byte-offset index of the file's entities (built on first use, and saved alongside the file).
+     * @param fileName
+     * @param relationFilter selects the relations to load: only the relation's id, metadata and tags are set when it's called
+     * @return the matching relations
+     * @throws IOException
+     * @throws SAXException if the file isn't valid XML
+     */
+    public List<OSMRelation> loadRelationsFromXML(final String fileName, final Predicate<OSMRelation> relationFilter) throws IOException, SAXException {
+        name = fileName;
+        final List<OSMRelation> relations;
+        try {
+            relations = OSMXMLIndex.forFile(new File(fileName)).loadRelations(this, relationFilter);
+        } catch (XMLStreamException e) {
+            throw new SAXException(e);
+        }
+        updateIdSequenceAfterLoad();
+        return relations;
+    }
+    /**
+     * Parses an OSM PBF file into entity objects, and adds them to this space
+     * @param fileName
+     * @throws IOException if the file can't be read or isn't a supported PBF file
+     */
+    public void loadFromPBF(final String fileName) throws IOException {
+        name = fileName;
+        try (final InputStream inputStream = new BufferedInputStream(new FileInputStream(fileName), READ_BUFFER_SIZE)) {
+            new OSMPBFReader(this).load(inputStream);
+        }
+        updateIdSequenceAfterLoad();
+    }
+    /**
+     * Loads the given OSM file, as PBF if its name ends in .pbf, otherwise as XML
+     * @param fileName
+     * @throws IOException
+     * @throws ParserConfigurationException
+     * @throws SAXException if the file isn't valid XML
+     */
+    public void loadFromFile(final String fileName) throws IOException, ParserConfigurationException, SAXException {
+        if(fileName.endsWith(PBF_FILE_EXTENSION)) {
+            loadFromPBF(fileName);
+        } else {
+            loadFromXML(fileName);
+        }
+    }
+    private void updateIdSequenceAfterLoad() {
+        long minimumEntityId = 0;
+        final LongEntityMap.LongIterator idIterator = allEntities.keyIterator();
+        while (idIterator.hasNext()) {
+            minimumEntityId = Math.min(minimumEntityId, idIterator.next());
+        }
+        //only ever lowers the sequence, so ids already handed out to other spaces aren't reused
+        idAllocator.reserveIdsFrom(minimumEntityId);
     }
 
+    /**
+     * Estimates the heap used by this space's entities and indexes, broken down by component.  Walks every entity, so
+     * is meant for diagnostics rather than frequent calls.
+     * @return the footprint report
+     */
+    public MemoryFootprint getMemoryFootprint() {
+        final MemoryFootprint footprint = new MemoryFootprint(name);
+        for(final OSMNode node : allNodes.values()) {
+            node.addToMemoryFootprint(footprint);
+        }
+        for(final OSMWay way : allWays.values()) {
+            way.addToMemoryFootprint(footprint);
+        }
+        for(final OSMRelation relation : allRelations.values()) {
+            relation.addToMemoryFootprint(footprint);
+        }
+        if(nodeCoordinateStore != null) {
+            footprint.addToComponent(MemoryFootprint.COMPONENT_COORDINATES, nodeCoordinateStore.size(), nodeCoordinateStore.estimatedBytes());
+        }
+        for(final LongEntityMap<?> index : Arrays.asList(allEntities, allNodes, allWays, allRelations, deletedEntities)) {
+            footprint.addToComponent(MemoryFootprint.COMPONENT_INDEXES, index.size(), index.estimatedBytes());
+        }
+        footprint.addToComponent(MemoryFootprint.COMPONENT_TAG_DICTIONARY, tagDictionary.size(), tagDictionary.estimatedBytes());
+        return footprint;
+    }
     /**
      * Returns the combined bounding box for the entire entity space
      * @return
@@ -890,7 +1239,7 @@ public class OSMEntitySpace {
             if(fileBoundingBox != null) {
                 fileBoundingBox.combinedBoxWithRegion(entityBoundingBox);
             } else {
-                fileBoundingBox = entityBoundingBox;
+                fileBoundingBox = new Region(entityBoundingBox); //copy, since entities' bounding boxes are cached
             }
         }
         return fileBoundingBox;
@@ -898,60 +1247,201 @@ public class OSMEntitySpace {
     public void outputXml(final String fileName) throws IOException {
         outputXml(fileName, null);
     }
+    public void outputXml(final String fileName, final Region fileBoundingBox) throws IOException {
+        outputXml(fileName, fileBoundingBox, false);
+    }
     /**
      * Outputs the current entity space to an OSM XML file
      * @param fileName
+     * @param fileBoundingBox the bounds to write to the file: if null, the space's bounding box is used
+     * @param sortById if true, the nodes and ways are written in ascending id order, so the output is reproducible
      * @throws IOException
      */
-    public void outputXml(final String fileName, Region fileBoundingBox) throws IOException {
-        //produce an empty XMl file if no entities
-        if(allEntities.size() == 0) {
-            final FileWriter writer = new FileWriter(fileName);
-            writer.write(String.format(XML_DOCUMENT_OPEN, Boolean.toString(canUpload)));
-            writer.write(XML_DOCUMENT_CLOSE);
-            writer.close();
-            return;
-        }
+    public void outputXml(final String fileName, Region fileBoundingBox, final boolean sortById) throws IOException {
+        try (final OSMXMLWriter writer = new OSMXMLWriter(fileName)) {
+            writer.writeDocumentOpen(canUpload);
+
+            //produce an empty XMl file if no entities
+            if(allEntities.size() == 0) {
+                writer.writeDocumentClose();
+                return;
+            }
 
-        //create a sorted list of the relations first, to ensure that relations referring to other relations are placed after them
-        final ArrayList<OSMRelation> sortedRelations = Graph.sortRelationsTopologically(allRelations);
+            //create a sorted list of the relations first, to ensure that relations referring to other relations are placed after them
+            final ArrayList<OSMRelation> sortedRelations = Graph.sortRelationsTopologically(allRelations);
 
-        //generate the bounding box for the file, if not provided
-        if(fileBoundingBox == null) {
-            fileBoundingBox = getBoundingBox();
-        }
+            //generate the bounding box for the file, if not provided: if every entity is a pending change, the journal already has it
+            if(fileBoundingBox == null) {
+                fileBoundingBox = changeJournal.coversEntireSpace() ? changeJournal.summarize().boundingBox : getBoundingBox();
+            }
+            if(fileBoundingBox != null) {
+                writer.writeBounds(fileBoundingBox);
+            }
+
+            for(final OSMNode node: inOutputOrder(allNodes.values(), sortById)) {
+                if(node.complete != OSMEntity.CompletionStatus.incomplete) {
+                    writer.writeNode(node);
+                }
+            }
+            for(final OSMWay way: inOutputOrder(allWays.values(), sortById)) {
+                if(way.complete.compareTo(OSMEntity.CompletionStatus.memberList) >= 0) {
+                    writer.writeWay(way);
+                }
+            }
 
-        final FileWriter writer = new FileWriter(fileName);
-        writer.write(String.format(XML_DOCUMENT_OPEN, Boolean.toString(canUpload)));
-        if(fileBoundingBox != null) {
-            final LatLonRegion latLonBoundingBox = SphericalMercator.mercatorToLatLon(fileBoundingBox);
-            writer.write(String.format(XML_BOUNDING_BOX, latLonBoundingBox.origin.latitude, latLonBoundingBox.origin.longitude, latLonBoundingBox.extent.latitude, latLonBoundingBox.extent.longitude));
+            for(final OSMRelation relation: sortedRelations) {
+                if(relation.complete.compareTo(OSMEntity.CompletionStatus.memberList) >= 0) {
+                    writer.writeRelation(relation);
+                }
+            }
+            for(final OSMEntity entity: inOutputOrder(deletedEntities.values(), sortById)) {
+                writer.writeEntity(entity);
+            }
+            writer.writeDocumentClose();
+        }
+    }
+    /**
+     * Outputs this space's changes (per its change journal) as an osmChange (.osc) file: only the created, modified
+     * and deleted entities are written, so the time taken depends on the number of changes, not the space's size.
+     * @param fileName
+     * @throws IOException
+     */
+    public void outputOsmChange(final String fileName) throws IOException {
+        final List<OSMNode> createdNodes = new ArrayList<>(), modifiedNodes = new ArrayList<>(), deletedNodes = new ArrayList<>();
+        final List<OSMWay> createdWays = new ArrayList<>(), modifiedWays = new ArrayList<>(), deletedWays = new ArrayList<>();
+        final List<OSMRelation> createdRelations = new ArrayList<>(), modifiedRelations = new ArrayList<>(), deletedRelations = new ArrayList<>();
+        for(final OSMNode node : changeJournal.getChangedNodes()) {
+            if(node.action == OSMEntity.ChangeAction.delete) {
+                deletedNodes.add(node);
+            } else if(node.complete != OSMEntity.CompletionStatus.incomplete) {
+                (OSMChangeJournal.isCreated(node) ? createdNodes : modifiedNodes).add(node);
+            }
+        }
+        for(final OSMWay way : changeJournal.getChangedWays()) {
+            if(way.action == OSMEntity.ChangeAction.delete) {
+                deletedWays.add(way);
+            } else if(way.complete.compareTo(OSMEntity.CompletionStatus.memberList) >= 0) {
+                (OSMChangeJournal.isCreated(way) ? createdWays : modifiedWays).add(way);
+            }
+        }
+        for(final OSMRelation relation : changeJournal.getChangedRelations()) {
+            if(relation.action == OSMEntity.ChangeAction.delete) {
+                deletedRelations.add(relation);
+            } else if(relation.complete.compareTo(OSMEntity.CompletionStatus.memberList) >= 0) {
+                (OSMChangeJournal.isCreated(relation) ? createdRelations : modifiedRelations).add(relation);
+            }
         }
 
+        try (final OSMXMLWriter writer = new OSMXMLWriter(fileName)) {
+            writer.writeOsmChangeDocumentOpen();
+
+            //created/modified entities are written members-first, deleted ones containers-first
+            writeChangeBlock(writer, "create", createdNodes, createdWays, sortRelationsByMembership(createdRelations), false);
+            writeChangeBlock(writer, "modify", modifiedNodes, modifiedWays, sortRelationsByMembership(modifiedRelations), false);
+            writeChangeBlock(writer, "delete", deletedNodes, deletedWays, sortRelationsByMembership(deletedRelations), true);
+            writer.writeOsmChangeDocumentClose();
+        }
+    }
+    private static void writeChangeBlock(final OSMXMLWriter writer, final String blockName, final List<OSMNode> nodes, final List<OSMWay> ways, final List<OSMRelation> relations, final boolean containersFirst) throws IOException {
+        if(nodes.isEmpty() && ways.isEmpty() && relations.isEmpty()) {
+            return;
+        }
+        writer.writeChangeBlockOpen(blockName);
+        if(containersFirst) {
+            for(int r = relations.size() - 1; r >= 0; r--) {
+                writer.writeRelation(relations.get(r));
+            }
+            for(final OSMWay way : ways) {
+                writer.writeWay(way);
+            }
+            for(final OSMNode node : nodes) {
+                writer.writeNode(node);
+            }
+        } else {
+            for(final OSMNode node : nodes) {
+                writer.writeNode(node);
+            }
+            for(final OSMWay way : ways) {
+                writer.writeWay(way);
+            }
+            for(final OSMRelation relation : relations) {
+                writer.writeRelation(relation);
+            }
+        }
+        writer.writeChangeBlockClose(blockName);
+    }
+    /**
+     * Sorts the given relations so any relations that are members of other relations in the list come first
+     * @return the sorted relations
+     */
+    private static List<OSMRelation> sortRelationsByMembership(final List<OSMRelation> relations) {
+        if(relations.size() < 2) {
+            return relations;
+        }
+        final LongEntityMap<OSMRelation> relationMap = new LongEntityMap<>(relations.size());
+        for(final OSMRelation relation : relations) {
+            relationMap.put(relation.osm_id, relation);
+        }
+        return Graph.sortRelationsTopologically(relationMap);
+    }
+    /**
+     * Outputs the current entity space to an OSM PBF file.  Since PBF has no "action" attribute, deleted entities
+     * aren't included, so the output isn't suitable for uploading.
+     * @param fileName
+     * @throws IOException
+     */
+    public void outputPBF(final String fileName) throws IOException {
+        final List<OSMNode> nodes = new ArrayList<>(allNodes.size());
         for(final OSMNode node: allNodes.values()) {
             if(node.complete != OSMEntity.CompletionStatus.incomplete) {
-                writer.write(node.toOSMXML());
+                nodes.add(node);
             }
         }
+        final List<OSMWay> ways = new ArrayList<>(allWays.size());
         for(final OSMWay way: allWays.values()) {
             if(way.complete.compareTo(OSMEntity.CompletionStatus.memberList) >= 0) {
-                writer.write(way.toOSMXML());
+                ways.add(way);
             }
         }
 
-        //NOTE: sortedRelations will be null if the Graph is unable to order them (i.e. cyclical relation)
-        final Collection<OSMRelation> relationList = sortedRelations != null ? sortedRelations : allRelations.values();
-        for(final OSMRelation relation: relationList) {
+        //relations referring to other relations need to be placed after them
+        final ArrayList<OSMRelation> sortedRelations = Graph.sortRelationsTopologically(allRelations);
+        final List<OSMRelation> relations = new ArrayList<>(allRelations.size());
+        for(final OSMRelation relation: sortedRelations) {
             if(relation.complete.compareTo(OSMEntity.CompletionStatus.memberList) >= 0) {
-                writer.write(relation.toOSMXML());
+                relations.add(relation);
             }
         }
-        for(final OSMEntity entity: deletedEntities.values()) {
-            writer.write(entity.toOSMXML());
-        }
-        writer.write(XML_DOCUMENT_CLOSE);
 
-        writer.close();
+        //PBF's delta encoding works best with the ids in order
+        nodes.sort(entityIdComparator);
+        ways.sort(entityIdComparator);
+        try (final OSMPBFWriter writer = new OSMPBFWriter(fileName)) {
+            writer.writeHeader(allEntities.size() > 0 ? getBoundingBox() : null);
+            writer.writeNodes(nodes);
+            writer.writeWays(ways);
+            writer.writeRelations(relations);
+        }
+    }
+    /**
+     * Outputs the current entity space to the given file, as PBF if its name ends in .pbf, otherwise as XML
+     * @param fileName
+     * @throws IOException
+     */
+    public void outputToFile(final String fileName) throws IOException {
+        if(fileName.endsWith(PBF_FILE_EXTENSION)) {
+            outputPBF(fileName);
+        } else {
+            outputXml(fileName);
+        }
+    }
+    private static <T extends OSMEntity> Collection<T> inOutputOrder(final Collection<T> entities, final boolean sortById) {
+        if(!sortById) {
+            return entities;
+        }
+        final List<T> sortedEntities = new ArrayList<>(entities);
+        sortedEntities.sort(entityIdComparator);
+        return sortedEntities;
     }
 
     /**
@@ -961,19 +1451,60 @@ public class OSMEntitySpace {
      * @param conflictingEntities any conflicting entities will be added to this list
      */
     public void mergeWithSpace(final OSMEntitySpace otherSpace, final OSMEntity.TagMergeStrategy mergeStrategy, final List<OSMEntity> conflictingEntities) {
+        mergeWithSpace(otherSpace, mergeStrategy, conflictingEntities, false);
+    }
+    /**
+     * Merge the given space's entities into this space
+     * @param otherSpace the space from which to copy the entities
+     * @param mergeStrategy determines how to handle entities which exist in both spaces
+     * @param conflictingEntities any conflicting entities will be added to this list
+     * @param moveEntities if TRUE, the entities that aren't already in this space are moved into it as-is, rather than
+     *                     copied, and only the entities present in both spaces go through the usual merge process.
+     *                     NOTE: otherSpace is emptied, and shouldn't be used afterwards
+     * @throws IllegalStateException if moving entities out of a space with an active fork
+     */
+    public void mergeWithSpace(final OSMEntitySpace otherSpace, final OSMEntity.TagMergeStrategy mergeStrategy, final List<OSMEntity> conflictingEntities, final boolean moveEntities) {
         if(debugEnabled) {
-            System.out.println("MERGE " + name + " WITH " + otherSpace.name);
+            System.out.println("MERGE " + name + " WITH " + otherSpace.name + (moveEntities ? " (MOVE)" : ""));
+        }
+        if(moveEntities && otherSpace.activeFork != null) {
+            throw new IllegalStateException("Can't move entities out of space " + otherSpace.name + " while it has an active fork");
+        }
+
+        //if this space's tag dictionary is unused, share the other space's, so the entities' tags don't need translating
+        if(tagDictionary.size() == 0) {
+            tagDictionary = otherSpace.tagDictionary;
         }
+        //and don't hand out any of the ids the other space has used
+        idAllocator.reserveIdsFrom(otherSpace.idAllocator.getLastId());
+
+        //pre-size the indexes so the merge doesn't trigger repeated rehashing
+        allEntities.ensureCapacity(allEntities.size() + otherSpace.allEntities.size());
+        allNodes.ensureCapacity(allNodes.size() + otherSpace.allNodes.size());
+        allWays.ensureCapacity(allWays.size() + otherSpace.allWays.size());
+        allRelations.ensureCapacity(allRelations.size() + otherSpace.allRelations.size());
 
         //merge in the entities
-        for(final OSMEntity otherSpaceEntity : otherSpace.allEntities.values()) {
-            addEntity(otherSpaceEntity, mergeStrategy, conflictingEntities, true, 0);
+        if(moveEntities) {
+            moveEntitiesFromSpace(otherSpace, mergeStrategy, conflictingEntities);
+        } else {
+            for(final OSMEntity otherSpaceEntity : otherSpace.allEntities.values()) {
+                addEntity(otherSpaceEntity, mergeStrategy, conflictingEntities, true, 0);
+            }
         }
 
         //and delete any entities that were marked as deleted in the other space
         for(final OSMEntity otherSpaceEntity : otherSpace.deletedEntities.values()) {
             deleteEntity(otherSpaceEntity); //TODO: need to warn/handle case when the local copy of our entity was modified prior to this merge
         }
+        if(moveEntities) {
+            otherSpace.allEntities.clear();
+            otherSpace.allNodes.clear();
+            otherSpace.allWays.clear();
+            otherSpace.allRelations.clear();
+            otherSpace.deletedEntities.clear();
+            otherSpace.changeJournal.clear();
+        }
 
         if(debugEnabled) {
             for (final Long id : debugEntityIds) {
@@ -1004,9 +1535,133 @@ public class OSMEntitySpace {
             }
         }*/
     }
+    /**
+     * Moves the other space's entities into this space: entities that aren't present here are transferred (and relinked
+     * to this space's instances of their nodes/members), and the id-overlapping ones are merged via addEntity()
+     */
+    private void moveEntitiesFromSpace(final OSMEntitySpace otherSpace, final OSMEntity.TagMergeStrategy mergeStrategy, final List<OSMEntity> conflictingEntities) {
+        final List<OSMNode> otherNodes = new ArrayList<>(otherSpace.allNodes.values());
+        final List<OSMWay> otherWays = new ArrayList<>(otherSpace.allWays.values());
+        final List<OSMRelation> otherRelations = new ArrayList<>(otherSpace.allRelations.values());
+
+        //find the entities that are present in both spaces, before anything's moved
+        final boolean[] nodeOverlaps = findOverlappingEntities(otherNodes, allNodes), wayOverlaps = findOverlappingEntities(otherWays, allWays), relationOverlaps = findOverlappingEntities(otherRelations, allRelations);
+
+        //the overlapping ways and relations are discarded after merging, so detach them from their members (which may be moved)
+        for(int w = 0; w < wayOverlaps.length; w++) {
+            if(wayOverlaps[w]) {
+                final OSMWay otherWay = otherWays.get(w);
+                for(final OSMNode node : otherWay.getNodes()) {
+                    node.didRemoveFromEntity(otherWay, false);
+                }
+            }
+        }
+        for(int r = 0; r < relationOverlaps.length; r++) {
+            if(relationOverlaps[r]) {
+                final OSMRelation otherRelation = otherRelations.get(r);
+                for(final OSMRelation.OSMRelationMember member : otherRelation.members) {
+                    member.member.didRemoveFromEntity(otherRelation, false);
+                }
+            }
+        }
+
+        //move or merge the nodes, then ways, then relations, so the moved entities can be relinked to this space's members
+        for(int n = 0; n < nodeOverlaps.length; n++) {
+            if(!nodeOverlaps[n]) {
+                addNodeToSpaceList(otherNodes.get(n));
+            }
+        }
+        for(int n = 0; n < nodeOverlaps.length; n++) {
+            if(nodeOverlaps[n]) {
+                addEntity(otherNodes.get(n), mergeStrategy, conflictingEntities, true, 0);
+            }
+        }
+        for(int w = 0; w < wayOverlaps.length; w++) {
+            if(!wayOverlaps[w]) {
+                final OSMWay otherWay = otherWays.get(w);
+                addWayToSpaceList(otherWay);
+                otherWay.relinkNodes(allNodes);
+            }
+        }
+        for(int w = 0; w < wayOverlaps.length; w++) {
+            if(wayOverlaps[w]) {
+                addEntity(otherWays.get(w), mergeStrategy, conflictingEntities, true, 0);
+            }
+        }
+        for(int r = 0; r < relationOverlaps.length; r++) { //relations can be members of each other, so move them all before relinking
+            if(!relationOverlaps[r]) {
+                addRelationToSpaceList(otherRelations.get(r));
+            }
+        }
+        for(int r = 0; r < relationOverlaps.length; r++) {
+            if(!relationOverlaps[r]) {
+                otherRelations.get(r).relinkMembers(this);
+            }
+        }
+        for(int r = 0; r < relationOverlaps.length; r++) {
+            if(relationOverlaps[r]) {
+                addEntity(otherRelations.get(r), mergeStrategy, conflictingEntities, true, 0);
+            }
+        }
+    }
+    /**
+     * Checks which of the given entities have the same id as an entity in the given index.  Run in parallel for large
+     * merges (the index isn't modified during the check).
+     * @return array of flags matching the order of entities
+     */
+    private static <T extends OSMEntity> boolean[] findOverlappingEntities(final List<T> entities, final LongEntityMap<T> localEntities) {
+        final boolean[] overlaps = new boolean[entities.size()];
+        IntStream indexes = IntStream.range(0, overlaps.length);
+        if(overlaps.length >= PARALLEL_MERGE_MINIMUM_ENTITY_COUNT) {
+            indexes = indexes.parallel();
+        }
+        indexes.forEach(new IntConsumer() {
+            @Override
+            public void accept(final int index) {
+                overlaps[index] = localEntities.containsKey(entities.get(index).osm_id);
+            }
+        });
+        return overlaps;
+    }
+    /**
+     * Starts a copy-on-write fork of this space: all subsequent changes to the space's entities and indexes are
+     * tracked until the fork is committed or discarded.  Only one fork may be active at a time.
+     * @return the new fork
+     * @throws IllegalStateException if this space already has an active fork
+     */
+    public OSMEntitySpaceFork fork() {
+        if(activeFork != null) {
+            throw new IllegalStateException("Space " + name + " already has an active fork");
+        }
+        activeFork = new OSMEntitySpaceFork(this);
+        return activeFork;
+    }
+    public OSMEntitySpaceFork getActiveFork() {
+        return activeFork;
+    }
+    void forkDidEnd(final OSMEntitySpaceFork fork) {
+        if(activeFork == fork) {
+            activeFork = null;
+        }
+    }
+    /**
+     * Notifies the active fork (if any) that the given index (or change journal) entry is about to change
+     */
+    <T extends OSMEntity> void willChangeIndex(final LongEntityMap<T> index, final long id) {
+        if(activeFork != null) {
+            activeFork.indexWillChange(index, id);
+        }
+    }
     public void markAllEntitiesWithAction(final OSMEntity.ChangeAction action) {
-        for(final OSMEntity entity : allEntities.values()) {
-            entity.action = action;
+        //NOTE: iterating by type, since allEntities only holds one entity per id
+        for(final OSMNode node : allNodes.values()) {
+            node.setAction(action);
+        }
+        for(final OSMWay way : allWays.values()) {
+            way.setAction(action);
+        }
+        for(final OSMRelation relation : allRelations.values()) {
+            relation.setAction(action);
         }
     }
     @Override
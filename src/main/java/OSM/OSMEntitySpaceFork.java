@@ -0,0 +1,126 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copy-on-write fork of an OSMEntitySpace: rather than copying the whole space up front, the original state of each
+ * entity is saved the first time it's changed, and the space's index changes are logged.  Starting and ending a fork
+ * doesn't touch the entities: each fork has a unique generation number, which entities compare with the one they
+ * were last saved in to detect their first change.  The changes can then be
+ * kept (commit()) or rolled back (discard()), so speculative edits only cost memory in proportion to what they touch.
+ * Only the entities and the entity indexes are tracked: any state kept by OSMEntitySpace subclasses isn't.
+ */
+public class OSMEntitySpaceFork {
+    private final static int INITIAL_CAPACITY_CHANGES = 1024;
+    private final static AtomicInteger lastGeneration = new AtomicInteger(0);
+
+    /**
+     * A single index entry change, with the entry's value before the change (null if it wasn't present)
+     */
+    private static class IndexChange<T extends OSMEntity> {
+        private final @NotNull LongEntityMap<T> index;
+        private final long id;
+        private final @Nullable T previousValue;
+
+        private IndexChange(final @NotNull LongEntityMap<T> index, final long id) {
+            this.index = index;
+            this.id = id;
+            previousValue = index.get(id);
+        }
+        private void undo() {
+            if(previousValue != null) {
+                index.put(id, previousValue);
+            } else {
+                index.remove(id);
+            }
+        }
+    }
+
+    private final @NotNull OSMEntitySpace entitySpace;
+    final int generation = lastGeneration.incrementAndGet();
+    private final @NotNull IdentityHashMap<OSMEntity, OSMEntity.SavedState> savedStates = new IdentityHashMap<>(INITIAL_CAPACITY_CHANGES);
+    private final @NotNull List<IndexChange<?>> indexChanges = new ArrayList<>(INITIAL_CAPACITY_CHANGES);
+    private boolean active = true;
+
+    OSMEntitySpaceFork(final @NotNull OSMEntitySpace space) {
+        entitySpace = space;
+    }
+
+    /**
+     * Called by an entity before its first change within this fork
+     */
+    void entityWillChange(final @NotNull OSMEntity entity) {
+        if(active && !savedStates.containsKey(entity)) {
+            savedStates.put(entity, entity.saveState());
+        }
+    }
+    /**
+     * Called by the entity space before it changes the given index entry
+     */
+    <T extends OSMEntity> void indexWillChange(final @NotNull LongEntityMap<T> index, final long id) {
+        if(active) {
+            indexChanges.add(new IndexChange<>(index, id));
+        }
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+    /**
+     * @return the number of pre-existing entities changed within this fork
+     */
+    public int getModifiedEntityCount() {
+        return savedStates.size();
+    }
+    /**
+     * @return the number of index additions/removals made within this fork
+     */
+    public int getIndexChangeCount() {
+        return indexChanges.size();
+    }
+
+    /**
+     * Keeps all the changes made within this fork, and stops tracking changes
+     */
+    public void commit() {
+        checkActive();
+        end();
+    }
+    /**
+     * Reverts the entity space to its state when the fork was created, and stops tracking changes.  Entities created
+     * within the fork are dropped from the space.
+     */
+    public void discard() {
+        checkActive();
+
+        //roll back the index changes, most recent first
+        for(int c = indexChanges.size() - 1; c >= 0; c--) {
+            indexChanges.get(c).undo();
+        }
+
+        //then restore the changed entities' original state (the change journal's entries were rolled back with the indexes)
+        for(final Map.Entry<OSMEntity, OSMEntity.SavedState> savedState : savedStates.entrySet()) {
+            savedState.getKey().restoreState(savedState.getValue());
+        }
+        entitySpace.changeJournal.invalidateSummary();
+        end();
+    }
+    private void checkActive() {
+        if(!active) {
+            throw new IllegalStateException("Fork has already been committed or discarded");
+        }
+    }
+    private void end() {
+        active = false;
+        savedStates.clear();
+        indexChanges.clear();
+        entitySpace.forkDidEnd(this);
+    }
+}
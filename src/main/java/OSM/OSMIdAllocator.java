@@ -0,0 +1,78 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe source of (negative) ids for newly-created entities.  Each entity space has its own (see
+ * OSMEntitySpace.getIdAllocator()).  Ids are handed out in descending order from an atomic counter, optionally bounded
+ * so that several allocators can hand out disjoint ranges: e.g. a worker thread or a separate batch process can be
+ * given its own block of ids with allocateRange(), so entities created in parallel can later be merged into one space
+ * without their ids colliding.
+ */
+public class OSMIdAllocator {
+    private final AtomicLong lastId;
+    private final long lowestId;
+
+    /**
+     * @param startId ids are allocated below this id (i.e. the first id allocated is startId - 1)
+     * @param lowestId the lowest id this allocator may hand out
+     */
+    public OSMIdAllocator(final long startId, final long lowestId) {
+        if(startId <= lowestId) {
+            throw new IllegalArgumentException("Id range is empty: " + startId + " to " + lowestId);
+        }
+        lastId = new AtomicLong(startId);
+        this.lowestId = lowestId;
+    }
+
+    /**
+     * @return a new, unique id
+     */
+    public long nextId() {
+        final long id = lastId.decrementAndGet();
+        if(id < lowestId) {
+            throw new IllegalStateException("Id range exhausted (lowest id " + lowestId + ")");
+        }
+        return id;
+    }
+    /**
+     * Reserves a block of ids from this allocator, for use by another allocator (e.g. one per worker)
+     * @param count the number of ids to reserve
+     * @return an allocator for the reserved ids, which will no longer be handed out by this allocator
+     */
+    @NotNull
+    public OSMIdAllocator allocateRange(final long count) {
+        if(count <= 0) {
+            throw new IllegalArgumentException("Id range must contain at least one id");
+        }
+        long startId;
+        do {
+            startId = lastId.get();
+            if(startId - count < lowestId || startId - count > startId) { //second check catches overflow
+                throw new IllegalStateException("Not enough ids left to allocate " + count + " ids (lowest id " + lowestId + ")");
+            }
+        } while (!lastId.compareAndSet(startId, startId - count));
+        return new OSMIdAllocator(startId, startId - count);
+    }
+    /**
+     * Ensures no id at or above the given id is handed out, e.g. after loading a file containing new entities
+     * @param existingId the lowest id already in use
+     */
+    public void reserveIdsFrom(final long existingId) {
+        long currentId;
+        do {
+            currentId = lastId.get();
+            if(currentId <= existingId) {
+                return;
+            }
+        } while (!lastId.compareAndSet(currentId, existingId));
+    }
+    /**
+     * @return the most recently allocated (or reserved) id
+     */
+    public long getLastId() {
+        return lastId.get();
+    }
+}
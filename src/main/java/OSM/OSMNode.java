@@ -3,23 +3,34 @@ package OSM;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.lang.ref.WeakReference;
 import java.util.HashMap;
-import java.util.Iterator;
 
 /**
  * Created by nick on 10/15/15.
  */
 public class OSMNode extends OSMEntity {
-    private final static String
-            BASE_XML_TAG_FORMAT_EMPTY = " <node id=\"%d\" lat=\"%.07f\" lon=\"%.07f\" visible=\"%s\"/>\n",
-            BASE_XML_TAG_FORMAT_EMPTY_METADATA = " <node id=\"%d\" lat=\"%.07f\" lon=\"%.07f\" visible=\"%s\" timestamp=\"%s\" version=\"%d\" changeset=\"%d\" uid=\"%d\" user=\"%s\"%s/>\n",
-            BASE_XML_TAG_FORMAT_OPEN = " <node id=\"%d\" lat=\"%.07f\" lon=\"%.07f\" visible=\"%s\">\n",
-            BASE_XML_TAG_FORMAT_OPEN_METADATA = " <node id=\"%d\" lat=\"%.07f\" lon=\"%.07f\" visible=\"%s\" timestamp=\"%s\" version=\"%d\" changeset=\"%d\" uid=\"%d\" user=\"%s\"%s>\n",
-            BASE_XML_TAG_FORMAT_CLOSE = " </node>\n";
     private final static OSMType type = OSMType.node;
     private Point coordinate;
-    private HashMap<Long, WeakReference<OSMWay>> containingWays = null;
+    private NodeCoordinateStore coordinateStore = null; //if set, the coordinate is kept in the store instead of the coordinate field
+    private int coordinateOrdinal = -1;
+    private ContainingEntities<OSMWay> containingWays = null;
+
+    /**
+     * Snapshot of a node's coordinate and containing ways, on top of the common entity state
+     */
+    private static class SavedNodeState extends SavedState {
+        private final boolean hasCoordinate;
+        private final double x, y;
+        private final @Nullable ContainingEntities<OSMWay> containingWays;
+
+        private SavedNodeState(final @NotNull OSMNode node) {
+            super(node);
+            hasCoordinate = node.hasCoordinate();
+            x = hasCoordinate ? node.getX() : Double.NaN;
+            y = hasCoordinate ? node.getY() : Double.NaN;
+            containingWays = node.containingWays != null ? new ContainingEntities<>(node.containingWays) : null;
+        }
+    }
 
     public OSMNode(final long id) {
         super(id);
@@ -32,66 +43,162 @@ public class OSMNode extends OSMEntity {
      */
     public OSMNode(final @NotNull OSMNode nodeToCopy, final @Nullable Long idOverride) {
         super(nodeToCopy, idOverride);
-        if(complete != CompletionStatus.incomplete) {
-            setCoordinate(nodeToCopy.coordinate);
+        if(complete != CompletionStatus.incomplete && nodeToCopy.hasCoordinate()) {
+            storeCoordinate(nodeToCopy.getX(), nodeToCopy.getY());
         }
     }
     @Override
     protected void upgradeCompletionStatus(@NotNull final OSMEntity completeEntity) {
         super.upgradeCompletionStatus(completeEntity);
-        setCoordinate(((OSMNode) completeEntity).coordinate);
+        final OSMNode completeNode = (OSMNode) completeEntity;
+        updateCoordinate(completeNode.getX(), completeNode.getY());
 
         //notify the containing ways that this node is now complete
         if(containingWays != null) {
-            for (final OSMWay way : getContainingWays().values()) {
-                way.nodeWasMadeComplete(this);
+            for (int w = 0; w < containingWays.size(); w++) {
+                containingWays.get(w).nodeWasMadeComplete(this);
             }
         }
     }
     public void setCoordinate(final double x, final double y) {
-        if(this.coordinate != null) { //mark as modified if changing (vs initial assignment)
+        if(hasCoordinate()) { //mark as modified if changing (vs initial assignment)
             markAsModified();
         }
-        coordinate = new Point(x, y);
+        storeCoordinate(x, y);
         boundingBox = null; //invalidate the bounding box
     }
     public void setCoordinate(final @NotNull Point coordinate) {
-        if(this.coordinate != null && Point.distance(this.coordinate, coordinate) > Double.MIN_VALUE) { //mark as modified if changing (vs initial assignment)
+        updateCoordinate(coordinate.x, coordinate.y);
+    }
+    private void updateCoordinate(final double x, final double y) {
+        if(hasCoordinate() && (getX() != x || getY() != y)) { //mark as modified if changing (vs initial assignment)
             markAsModified();
         }
-        this.coordinate = new Point(coordinate);
+        storeCoordinate(x, y);
         boundingBox = null; //invalidate the bounding box
     }
-    @NotNull
-    public HashMap<Long, OSMWay> getContainingWays() {
-        if(containingWays == null) {
-            return new HashMap<>();
+    private void storeCoordinate(final double x, final double y) {
+        willModify();
+        if(coordinateStore != null) {
+            coordinateStore.set(coordinateOrdinal, x, y);
+        } else {
+            coordinate = new Point(x, y);
         }
-        final HashMap<Long, OSMWay> activeWays = new HashMap<>(containingWays.size());
-        final Iterator<WeakReference<OSMWay>> wayIterator = containingWays.values().iterator();
-        WeakReference<OSMWay> curWayRef;
-        OSMWay containingWay;
-        while(wayIterator.hasNext()) {
-            curWayRef = wayIterator.next();
-            containingWay = curWayRef.get();
-            if(containingWay != null) {
-                activeWays.put(containingWay.osm_id, containingWay);
-            } else { //remove any expired containing ways on the fly
-                wayIterator.remove();
+        geometryDidInclude(this);
+
+        //and let the containing ways know their geometry has changed
+        if(containingWays != null) {
+            for (int w = 0; w < containingWays.size(); w++) {
+                containingWays.get(w).nodeCoordinateDidChange(this);
             }
         }
-        return activeWays;
     }
-    public short getContainingWayCount() {
-        short containingWayCount = 0;
+
+    @Override
+    void addToMemoryFootprint(final @NotNull MemoryFootprint footprint) {
+        super.addToMemoryFootprint(footprint);
+        footprint.addToComponent(MemoryFootprint.COMPONENT_NODES, 1, MemoryFootprint.objectBytes(REFERENCE_FIELDS + 3, PRIMITIVE_FIELD_BYTES + 4));
+        if(coordinate != null) { //columnar coordinates are counted by the space
+            footprint.addToComponent(MemoryFootprint.COMPONENT_COORDINATES, 1, MemoryFootprint.POINT_BYTES);
+        }
+        if(containingWays != null) {
+            footprint.addToComponent(MemoryFootprint.COMPONENT_CONTAINING_ENTITIES, containingWays.size(), containingWays.estimatedBytes());
+        }
+    }
+    @NotNull
+    @Override
+    SavedState saveState() {
+        return new SavedNodeState(this);
+    }
+    @Override
+    void restoreState(final @NotNull SavedState state) {
+        super.restoreState(state);
+        final SavedNodeState nodeState = (SavedNodeState) state;
+        containingWays = nodeState.containingWays;
+        if(coordinateStore != null) {
+            coordinateStore.set(coordinateOrdinal, nodeState.x, nodeState.y);
+        } else {
+            coordinate = nodeState.hasCoordinate ? new Point(nodeState.x, nodeState.y) : null;
+        }
+
+        //the restored containing ways may have cached geometry based on the changed coordinate
         if(containingWays != null) {
-            for (final WeakReference<OSMWay> containingWay : containingWays.values()) {
-                if (containingWay.get() != null) {
-                    containingWayCount++;
-                }
+            for (int w = 0; w < containingWays.size(); w++) {
+                containingWays.get(w).nodeCoordinateDidChange(this);
             }
         }
-        return containingWayCount;
+    }
+
+    /**
+     * Moves this node's coordinate into the given columnar store, which is used for all subsequent reads/writes
+     * @param store the owning space's coordinate store
+     */
+    void attachToCoordinateStore(final @NotNull NodeCoordinateStore store) {
+        if(coordinateStore == store) {
+            return;
+        }
+        final boolean hadCoordinate = hasCoordinate();
+        final double x = hadCoordinate ? getX() : Double.NaN, y = hadCoordinate ? getY() : Double.NaN;
+        if(coordinateStore != null) { //i.e. moved from another space
+            coordinateStore.release(coordinateOrdinal);
+        }
+        coordinateStore = store;
+        coordinateOrdinal = store.allocate();
+        if(hadCoordinate) {
+            store.set(coordinateOrdinal, x, y);
+        }
+        coordinate = null;
+    }
+    /**
+     * Moves this node's coordinate out of its columnar store (if any) into its own Point, releasing its slot in the
+     * store, e.g. when the node is removed from the store's space
+     */
+    void detachFromCoordinateStore() {
+        if(coordinateStore == null) {
+            return;
+        }
+        coordinate = coordinateStore.hasCoordinate(coordinateOrdinal) ? new Point(coordinateStore.getX(coordinateOrdinal), coordinateStore.getY(coordinateOrdinal)) : null;
+        coordinateStore.release(coordinateOrdinal);
+        coordinateStore = null;
+        coordinateOrdinal = -1;
+    }
+    public boolean hasCoordinate() {
+        return coordinateStore != null ? coordinateStore.hasCoordinate(coordinateOrdinal) : coordinate != null;
+    }
+    /**
+     * @return the x (mercator) coordinate of this node, without allocating a Point
+     */
+    public double getX() {
+        return coordinateStore != null ? coordinateStore.getX(coordinateOrdinal) : coordinate.x;
+    }
+    /**
+     * @return the y (mercator) coordinate of this node, without allocating a Point
+     */
+    public double getY() {
+        return coordinateStore != null ? coordinateStore.getY(coordinateOrdinal) : coordinate.y;
+    }
+    /**
+     * Gets the ways containing this node
+     * @return a new map of the ways, keyed by id (use getContainingWay() to iterate without allocating)
+     */
+    @NotNull
+    public HashMap<Long, OSMWay> getContainingWays() {
+        if(containingWays == null) {
+            return new HashMap<>();
+        }
+        return containingWays.toMap();
+    }
+    public short getContainingWayCount() {
+        return containingWays != null ? (short) containingWays.size() : 0;
+    }
+    /**
+     * Gets the containing way at the given index, in id order
+     * @param index the index, from 0 to getContainingWayCount() - 1
+     */
+    @NotNull
+    public OSMWay getContainingWay(final int index) {
+        assert containingWays != null;
+        return containingWays.get(index);
     }
 
     @NotNull
@@ -106,48 +213,22 @@ public class OSMNode extends OSMEntity {
             return null;
         }
         if(boundingBox == null) {
-            boundingBox = new Region(coordinate.x, coordinate.y, 0.0, 0.0);
+            boundingBox = new Region(getX(), getY(), 0.0, 0.0);
         }
         return boundingBox;
     }
 
     @Override
     public Point getCentroid() {
+        if(coordinateStore != null) {
+            return coordinateStore.hasCoordinate(coordinateOrdinal) ? new Point(coordinateStore.getX(coordinateOrdinal), coordinateStore.getY(coordinateOrdinal)) : null;
+        }
         return coordinate;
     }
-
-    @NotNull
     @Override
-    public String toOSMXML() {
-        if(debugEnabled) {
-            setTag("wcount", Short.toString(getContainingWayCount()));
-            setTag("rcount", Short.toString(getContainingRelationCount()));
-            if(osm_id < 0) {
-                setTag("origid", Long.toString(osm_id));
-            }
-        }
-        final LatLon latLonCoordinate = SphericalMercator.mercatorToLatLon(coordinate);
-        if(tags != null) {
-            final String openTag;
-            if(version > 0) {
-                openTag = String.format(BASE_XML_TAG_FORMAT_OPEN_METADATA, osm_id, latLonCoordinate.latitude, latLonCoordinate.longitude, String.valueOf(visible), timestamp, version, changeset, uid, escapeForXML(user), actionTagAttribute(action));
-            } else {
-                openTag = String.format(BASE_XML_TAG_FORMAT_OPEN, osm_id, latLonCoordinate.latitude, latLonCoordinate.longitude, String.valueOf(visible));
-            }
-            final StringBuilder xml = new StringBuilder(tags.size() * 64 + openTag.length() + BASE_XML_TAG_FORMAT_CLOSE.length());
-            xml.append(openTag);
-            for (HashMap.Entry<String, String> entry : tags.entrySet()) {
-                xml.append(String.format(BASE_XML_TAG_FORMAT_TAG, escapeForXML(entry.getKey()), escapeForXML(entry.getValue())));
-            }
-            xml.append(BASE_XML_TAG_FORMAT_CLOSE);
-            return xml.toString();
-        } else {
-            if(version > 0) {
-                return String.format(BASE_XML_TAG_FORMAT_EMPTY_METADATA, osm_id, latLonCoordinate.latitude, latLonCoordinate.longitude, String.valueOf(visible), timestamp, version, changeset, uid, escapeForXML(user), actionTagAttribute(action));
-            } else {
-                return String.format(BASE_XML_TAG_FORMAT_EMPTY, osm_id, latLonCoordinate.latitude, latLonCoordinate.longitude, String.valueOf(visible));
-            }
-        }
+    protected void addDebugTags() {
+        setTag("wcount", Short.toString(getContainingWayCount()));
+        super.addDebugTags();
     }
 
     @Override
@@ -155,12 +236,10 @@ public class OSMNode extends OSMEntity {
         if(entity instanceof OSMWay) {
             final OSMWay way = (OSMWay) entity;
             if(containingWays == null) { //lazy init the containing ways
-                containingWays = new HashMap<>(4);
-            }
-            final WeakReference<OSMWay> existingWayRef = containingWays.get(way.osm_id);
-            if(existingWayRef == null || existingWayRef.get() == null) {
-                containingWays.put(way.osm_id, new WeakReference<>(way));
+                containingWays = new ContainingEntities<>(2);
             }
+            willModify();
+            containingWays.add(way);
         } else if(entity instanceof OSMRelation) {
             addContainingRelation((OSMRelation) entity);
         }
@@ -171,6 +250,7 @@ public class OSMNode extends OSMEntity {
         if(entity instanceof OSMWay) { //remove the way from the containedWays list
             final OSMWay way = (OSMWay) entity;
             if(containingWays != null) {
+                willModify();
                 containingWays.remove(way.osm_id);
             }
         } else if(entity instanceof OSMRelation) {
@@ -196,7 +276,7 @@ public class OSMNode extends OSMEntity {
     @Override
     public String toString() {
         if(complete != CompletionStatus.incomplete) {
-            return String.format("node@%d (id %d): %.01f,%.01f (%s): [%s/%s]", hashCode(), osm_id, coordinate.x, coordinate.y, getTag(OSMEntity.KEY_NAME), complete, action);
+            return String.format("node@%d (id %d): %.01f,%.01f (%s): [%s/%s]", hashCode(), osm_id, getX(), getY(), getTag(OSMEntity.KEY_NAME), complete, action);
         } else {
             return String.format("node@%d (id %d): [%s]", hashCode(), osm_id, complete);
         }
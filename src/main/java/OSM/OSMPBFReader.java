@@ -0,0 +1,505 @@
+package OSM;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader for OSM PBF files (see https://wiki.openstreetmap.org/wiki/PBF_Format), used by OSMEntitySpace.loadFromPBF().
+ * Supports raw and zlib-compressed blobs, plain and dense nodes, ways and relations.  Entities are added to the
+ * space through the same paths as OSMXMLLoader, so a PBF loads to the same space as the equivalent XML.
+ */
+class OSMPBFReader {
+    private final static int MAX_BLOB_HEADER_SIZE = 64 * 1024, MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    private final static String BLOB_TYPE_HEADER = "OSMHeader", BLOB_TYPE_DATA = "OSMData";
+    private final static List<String> SUPPORTED_FEATURES = Arrays.asList("OsmSchema-V0.6", "DenseNodes");
+    private final static String[] MEMBER_TYPES = {OSMXMLLoader.tagNode, OSMXMLLoader.tagWay, OSMXMLLoader.tagRelation};
+
+    /**
+     * The coordinate/date encoding parameters and string table of the current block
+     */
+    private static class BlockContext {
+        public String[] strings = new String[0];
+        public long granularity = 100, latOffset = 0, lonOffset = 0, dateGranularity = 1000;
+    }
+
+    private final OSMXMLLoader loader;
+    private final TagDictionary tagDictionary;
+    private final Inflater inflater = new Inflater();
+
+    OSMPBFReader(final OSMEntitySpace entitySpace) {
+        loader = new OSMXMLLoader(entitySpace);
+        tagDictionary = entitySpace.tagDictionary;
+    }
+
+    void load(final InputStream inputStream) throws IOException {
+        final DataInputStream in = new DataInputStream(inputStream);
+        try {
+            while (true) {
+                final int headerSize;
+                try {
+                    headerSize = in.readInt();
+                } catch (EOFException e) { //end of file
+                    break;
+                }
+                if(headerSize < 0 || headerSize > MAX_BLOB_HEADER_SIZE) {
+                    throw new IOException("Invalid PBF blob header size " + headerSize);
+                }
+
+                //read the header to get the blob's type and size
+                final byte[] headerData = new byte[headerSize];
+                in.readFully(headerData);
+                final Protobuf.Reader header = new Protobuf.Reader(headerData);
+                String blobType = null;
+                int blobSize = -1;
+                while (header.hasMore()) {
+                    final int tag = header.readTag();
+                    switch (tag >>> 3) {
+                        case 1:
+                            blobType = header.readString();
+                            break;
+                        case 3:
+                            blobSize = (int) header.readVarint();
+                            break;
+                        default:
+                            header.skipField(tag);
+                            break;
+                    }
+                }
+                if(blobSize < 0 || blobSize > MAX_BLOB_SIZE) {
+                    throw new IOException("Invalid PBF blob size " + blobSize);
+                }
+
+                final byte[] blobData = new byte[blobSize];
+                in.readFully(blobData);
+                if(BLOB_TYPE_HEADER.equals(blobType)) {
+                    checkHeaderBlock(decodeBlob(blobData));
+                } else if(BLOB_TYPE_DATA.equals(blobType)) {
+                    readPrimitiveBlock(decodeBlob(blobData));
+                } //other blob types are skipped, per the spec
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+    private byte[] decodeBlob(final byte[] blobData) throws IOException {
+        final Protobuf.Reader blob = new Protobuf.Reader(blobData);
+        byte[] raw = null, compressed = null;
+        int rawSize = 0;
+        while (blob.hasMore()) {
+            final int tag = blob.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    raw = blob.readBytes();
+                    break;
+                case 2:
+                    rawSize = (int) blob.readVarint();
+                    break;
+                case 3:
+                    compressed = blob.readBytes();
+                    break;
+                default:
+                    blob.skipField(tag);
+                    break;
+            }
+        }
+        if(raw != null) {
+            return raw;
+        } else if(compressed == null) {
+            throw new IOException("Unsupported PBF blob compression");
+        } else if(rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+            throw new IOException("Invalid PBF blob raw size " + rawSize);
+        }
+
+        final byte[] data = new byte[rawSize];
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int inflated = 0;
+            while (inflated < rawSize && !inflater.finished()) {
+                final int bytesInflated = inflater.inflate(data, inflated, rawSize - inflated);
+                if(bytesInflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += bytesInflated;
+            }
+            if(inflated != rawSize) {
+                throw new IOException("Truncated PBF blob");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt PBF blob", e);
+        }
+        return data;
+    }
+    private static void checkHeaderBlock(final byte[] blockData) throws IOException {
+        final Protobuf.Reader block = new Protobuf.Reader(blockData);
+        while (block.hasMore()) {
+            final int tag = block.readTag();
+            if(tag >>> 3 == 4) { //required_features
+                final String feature = block.readString();
+                if(!SUPPORTED_FEATURES.contains(feature)) {
+                    throw new IOException("Unsupported PBF feature " + feature);
+                }
+            } else {
+                block.skipField(tag);
+            }
+        }
+    }
+
+    private void readPrimitiveBlock(final byte[] blockData) throws IOException {
+        final Protobuf.Reader block = new Protobuf.Reader(blockData);
+        final BlockContext context = new BlockContext();
+        final List<Protobuf.Reader> groups = new ArrayList<>(4);
+        while (block.hasMore()) {
+            final int tag = block.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    context.strings = readStringTable(block.readMessage());
+                    break;
+                case 2:
+                    groups.add(block.readMessage());
+                    break;
+                case 17:
+                    context.granularity = block.readVarint();
+                    break;
+                case 18:
+                    context.dateGranularity = block.readVarint();
+                    break;
+                case 19:
+                    context.latOffset = block.readVarint();
+                    break;
+                case 20:
+                    context.lonOffset = block.readVarint();
+                    break;
+                default:
+                    block.skipField(tag);
+                    break;
+            }
+        }
+
+        //process the groups after the whole block is read, since the string table may come after them
+        for(final Protobuf.Reader group : groups) {
+            while (group.hasMore()) {
+                final int tag = group.readTag();
+                switch (tag >>> 3) {
+                    case 1:
+                        readNode(group.readMessage(), context);
+                        break;
+                    case 2:
+                        readDenseNodes(group.readMessage(), context);
+                        break;
+                    case 3:
+                        readWay(group.readMessage(), context);
+                        break;
+                    case 4:
+                        readRelation(group.readMessage(), context);
+                        break;
+                    default:
+                        group.skipField(tag);
+                        break;
+                }
+            }
+        }
+    }
+    private static String[] readStringTable(final Protobuf.Reader stringTable) throws IOException {
+        final List<String> strings = new ArrayList<>(1024);
+        while (stringTable.hasMore()) {
+            final int tag = stringTable.readTag();
+            if(tag >>> 3 == 1) {
+                strings.add(stringTable.readString());
+            } else {
+                stringTable.skipField(tag);
+            }
+        }
+        return strings.toArray(new String[strings.size()]);
+    }
+
+    private void readNode(final Protobuf.Reader message, final BlockContext context) throws IOException {
+        long id = 0, lat = 0, lon = 0;
+        long[] keys = null, values = null;
+        Protobuf.Reader info = null;
+        while (message.hasMore()) {
+            final int tag = message.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    id = message.readSignedVarint();
+                    break;
+                case 2:
+                    keys = readPacked(message.readMessage(), false);
+                    break;
+                case 3:
+                    values = readPacked(message.readMessage(), false);
+                    break;
+                case 4:
+                    info = message.readMessage();
+                    break;
+                case 8:
+                    lat = message.readSignedVarint();
+                    break;
+                case 9:
+                    lon = message.readSignedVarint();
+                    break;
+                default:
+                    message.skipField(tag);
+                    break;
+            }
+        }
+        final OSMNode node = createNode(id, lat, lon, context);
+        if(info != null) {
+            readInfo(info, node, context);
+        }
+        setTags(node, keys, values, context);
+        loader.insertNode(node);
+    }
+    private void readDenseNodes(final Protobuf.Reader message, final BlockContext context) throws IOException {
+        long[] ids = new long[0], lats = null, lons = null, keysValues = null;
+        long[] versions = null, timestamps = null, changesets = null, uids = null, userIds = null, visibles = null;
+        while (message.hasMore()) {
+            final int tag = message.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    ids = readPacked(message.readMessage(), true);
+                    break;
+                case 5:
+                    final Protobuf.Reader denseInfo = message.readMessage();
+                    while (denseInfo.hasMore()) {
+                        final int infoTag = denseInfo.readTag();
+                        switch (infoTag >>> 3) {
+                            case 1:
+                                versions = readPacked(denseInfo.readMessage(), false);
+                                break;
+                            case 2:
+                                timestamps = readPacked(denseInfo.readMessage(), true);
+                                break;
+                            case 3:
+                                changesets = readPacked(denseInfo.readMessage(), true);
+                                break;
+                            case 4:
+                                uids = readPacked(denseInfo.readMessage(), true);
+                                break;
+                            case 5:
+                                userIds = readPacked(denseInfo.readMessage(), true);
+                                break;
+                            case 6:
+                                visibles = readPacked(denseInfo.readMessage(), false);
+                                break;
+                            default:
+                                denseInfo.skipField(infoTag);
+                                break;
+                        }
+                    }
+                    break;
+                case 8:
+                    lats = readPacked(message.readMessage(), true);
+                    break;
+                case 9:
+                    lons = readPacked(message.readMessage(), true);
+                    break;
+                case 10:
+                    keysValues = readPacked(message.readMessage(), false);
+                    break;
+                default:
+                    message.skipField(tag);
+                    break;
+            }
+        }
+        if(lats == null || lons == null || lats.length != ids.length || lons.length != ids.length) {
+            throw new IOException("Malformed PBF dense node group");
+        }
+
+        long id = 0, lat = 0, lon = 0, timestamp = 0, changeset = 0, uid = 0, userId = 0;
+        int keyValueIndex = 0;
+        for(int n = 0; n < ids.length; n++) {
+            final OSMNode node = createNode(id += ids[n], lat += lats[n], lon += lons[n], context);
+            if(versions != null && n < versions.length) {
+                timestamp += timestamps != null ? timestamps[n] : 0;
+                changeset += changesets != null ? changesets[n] : 0;
+                uid += uids != null ? uids[n] : 0;
+                userId += userIds != null ? userIds[n] : 0;
+                setMetadata(node, (int) versions[n], timestamp, changeset, (int) uid, (int) userId, visibles == null || visibles[n] != 0, context);
+            }
+            if(keysValues != null) {
+                while (keyValueIndex < keysValues.length && keysValues[keyValueIndex] != 0) {
+                    node.setTag(tagDictionary, context.strings[(int) keysValues[keyValueIndex]], context.strings[(int) keysValues[keyValueIndex + 1]]);
+                    keyValueIndex += 2;
+                }
+                keyValueIndex++; //skip the 0 delimiter
+            }
+            loader.insertNode(node);
+        }
+    }
+    private static OSMNode createNode(final long id, final long lat, final long lon, final BlockContext context) {
+        final OSMNode node = new OSMNode(id);
+        node.setComplete(OSMEntity.CompletionStatus.self);
+        node.setCoordinate(SphericalMercator.transformLonToX((context.lonOffset + context.granularity * lon) / 1e9), SphericalMercator.transformLatToY((context.latOffset + context.granularity * lat) / 1e9));
+        return node;
+    }
+    private void readWay(final Protobuf.Reader message, final BlockContext context) throws IOException {
+        long id = 0;
+        long[] keys = null, values = null, refs = null;
+        Protobuf.Reader info = null;
+        while (message.hasMore()) {
+            final int tag = message.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    id = message.readVarint();
+                    break;
+                case 2:
+                    keys = readPacked(message.readMessage(), false);
+                    break;
+                case 3:
+                    values = readPacked(message.readMessage(), false);
+                    break;
+                case 4:
+                    info = message.readMessage();
+                    break;
+                case 8:
+                    refs = readPacked(message.readMessage(), true);
+                    break;
+                default:
+                    message.skipField(tag);
+                    break;
+            }
+        }
+        final OSMWay parsedWay = new OSMWay(id);
+        parsedWay.setComplete(OSMEntity.CompletionStatus.memberList);
+        if(info != null) {
+            readInfo(info, parsedWay, context);
+        }
+        setTags(parsedWay, keys, values, context);
+
+        final OSMWay way = loader.insertWay(parsedWay);
+        if(refs != null) {
+            long nodeId = 0;
+            for(final long ref : refs) {
+                loader.appendWayNode(way, nodeId += ref);
+            }
+        }
+    }
+    private void readRelation(final Protobuf.Reader message, final BlockContext context) throws IOException {
+        long id = 0;
+        long[] keys = null, values = null, roles = null, memberIds = null, memberTypes = null;
+        Protobuf.Reader info = null;
+        while (message.hasMore()) {
+            final int tag = message.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    id = message.readVarint();
+                    break;
+                case 2:
+                    keys = readPacked(message.readMessage(), false);
+                    break;
+                case 3:
+                    values = readPacked(message.readMessage(), false);
+                    break;
+                case 4:
+                    info = message.readMessage();
+                    break;
+                case 8:
+                    roles = readPacked(message.readMessage(), false);
+                    break;
+                case 9:
+                    memberIds = readPacked(message.readMessage(), true);
+                    break;
+                case 10:
+                    memberTypes = readPacked(message.readMessage(), false);
+                    break;
+                default:
+                    message.skipField(tag);
+                    break;
+            }
+        }
+        final OSMRelation parsedRelation = new OSMRelation(id);
+        parsedRelation.setComplete(OSMEntity.CompletionStatus.memberList);
+        if(info != null) {
+            readInfo(info, parsedRelation, context);
+        }
+        setTags(parsedRelation, keys, values, context);
+
+        final OSMRelation relation = loader.insertRelation(parsedRelation);
+        if(memberIds != null) {
+            if(roles == null || memberTypes == null || roles.length != memberIds.length || memberTypes.length != memberIds.length) {
+                throw new IOException("Malformed PBF relation " + id);
+            }
+            long memberId = 0;
+            for(int m = 0; m < memberIds.length; m++) {
+                loader.addRelationMember(relation, MEMBER_TYPES[(int) memberTypes[m]], memberId += memberIds[m], context.strings[(int) roles[m]]);
+            }
+        }
+    }
+
+    private static void readInfo(final Protobuf.Reader info, final OSMEntity entity, final BlockContext context) throws IOException {
+        int version = -1, uid = -1, userId = 0;
+        long timestamp = 0, changeset = -1;
+        boolean visible = true;
+        while (info.hasMore()) {
+            final int tag = info.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    version = (int) info.readVarint();
+                    break;
+                case 2:
+                    timestamp = info.readVarint();
+                    break;
+                case 3:
+                    changeset = info.readVarint();
+                    break;
+                case 4:
+                    uid = (int) info.readVarint();
+                    break;
+                case 5:
+                    userId = (int) info.readVarint();
+                    break;
+                case 6:
+                    visible = info.readVarint() != 0;
+                    break;
+                default:
+                    info.skipField(tag);
+                    break;
+            }
+        }
+        setMetadata(entity, version, timestamp, changeset, uid, userId, visible, context);
+    }
+    /**
+     * Applies the PBF metadata to the entity: as with the XML, only entities with a version have metadata
+     */
+    private static void setMetadata(final OSMEntity entity, final int version, final long timestamp, final long changeset, final int uid, final int userId, final boolean visible, final BlockContext context) {
+        entity.visible = visible;
+        if(version <= 0) {
+            return;
+        }
+        entity.version = version;
+        entity.changeset = (int) changeset;
+        entity.uid = uid;
+        entity.user = userId > 0 && userId < context.strings.length ? context.strings[userId] : null;
+        entity.timestamp = timestamp > 0 ? timestamp * context.dateGranularity / 1000 : OSMTimestamp.NONE;
+    }
+    private void setTags(final OSMEntity entity, final long[] keys, final long[] values, final BlockContext context) throws IOException {
+        if(keys == null) {
+            return;
+        }
+        if(values == null || values.length != keys.length) {
+            throw new IOException("Malformed PBF tags for " + entity.getType() + " " + entity.osm_id);
+        }
+        for(int t = 0; t < keys.length; t++) {
+            entity.setTag(tagDictionary, context.strings[(int) keys[t]], context.strings[(int) values[t]]);
+        }
+    }
+    private static long[] readPacked(final Protobuf.Reader packed, final boolean signed) throws IOException {
+        long[] values = new long[64];
+        int count = 0;
+        while (packed.hasMore()) {
+            if(count == values.length) {
+                values = Arrays.copyOf(values, count << 1);
+            }
+            values[count++] = signed ? packed.readSignedVarint() : packed.readVarint();
+        }
+        return Arrays.copyOf(values, count);
+    }
+}
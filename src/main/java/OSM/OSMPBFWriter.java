@@ -0,0 +1,302 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writer for OSM PBF files (see https://wiki.openstreetmap.org/wiki/PBF_Format), used by OSMEntitySpace.outputPBF().
+ * Nodes are written as dense nodes, and all blocks are zlib-compressed.
+ * NOTE: PBF has no equivalent to the XML "action" attribute, so PBF output is for caching/debugging, not uploads
+ */
+class OSMPBFWriter implements Closeable {
+    private final static int ENTITIES_PER_BLOCK = 8000, BUFFER_SIZE = 65536;
+    private final static long COORDINATE_SCALE = 10_000_000L; //PBF's default granularity of 100 nanodegrees
+    private final static long DATE_GRANULARITY = 1000;
+    private final static String WRITING_PROGRAM = "KCMetroImporter";
+
+    private final DataOutputStream outputStream;
+    private final Deflater deflater = new Deflater();
+    private final Map<String, Integer> stringIndexes = new HashMap<>(4096);
+    private final Protobuf.Writer stringTable = new Protobuf.Writer(65536), group = new Protobuf.Writer(1024 * 1024), block = new Protobuf.Writer(1024 * 1024);
+    private final Protobuf.Writer message = new Protobuf.Writer(4096), field = new Protobuf.Writer(4096), info = new Protobuf.Writer(256);
+    private byte[] compressionBuffer = new byte[BUFFER_SIZE];
+
+    OSMPBFWriter(final @NotNull String fileName) throws IOException {
+        outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), BUFFER_SIZE));
+    }
+
+    /**
+     * Writes the file header, which must come first
+     * @param boundingBox the bounds of the file's data, if any
+     */
+    void writeHeader(final @Nullable Region boundingBox) throws IOException {
+        final Protobuf.Writer header = new Protobuf.Writer(256);
+        if(boundingBox != null) {
+            final Protobuf.Writer bbox = new Protobuf.Writer(64);
+            bbox.writeSignedVarintField(1, Math.round(SphericalMercator.transformXToLon(boundingBox.originX) * 1e9));
+            bbox.writeSignedVarintField(2, Math.round(SphericalMercator.transformXToLon(boundingBox.extentX) * 1e9));
+            bbox.writeSignedVarintField(3, Math.round(SphericalMercator.transformYToLat(boundingBox.extentY) * 1e9));
+            bbox.writeSignedVarintField(4, Math.round(SphericalMercator.transformYToLat(boundingBox.originY) * 1e9));
+            header.writeMessageField(1, bbox);
+        }
+        header.writeStringField(4, "OsmSchema-V0.6");
+        header.writeStringField(4, "DenseNodes");
+        header.writeStringField(16, WRITING_PROGRAM);
+        writeBlob("OSMHeader", header);
+    }
+
+    void writeNodes(final @NotNull List<OSMNode> nodes) throws IOException {
+        final int nodeCount = nodes.size();
+        for(int start = 0; start < nodeCount; start += ENTITIES_PER_BLOCK) {
+            final List<OSMNode> blockNodes = nodes.subList(start, Math.min(start + ENTITIES_PER_BLOCK, nodeCount));
+            beginBlock();
+
+            boolean hasMetadata = false;
+            message.reset();
+            field.reset();
+            long previous = 0;
+            for(final OSMNode node : blockNodes) {
+                field.writeSignedVarint(node.osm_id - previous);
+                previous = node.osm_id;
+                hasMetadata |= hasMetadata(node);
+            }
+            message.writeMessageField(1, field);
+
+            if(hasMetadata) {
+                writeDenseInfo(blockNodes);
+            }
+
+            final long[] lats = new long[blockNodes.size()], lons = new long[blockNodes.size()];
+            int n = 0;
+            for(final OSMNode node : blockNodes) {
+                lats[n] = Math.round(SphericalMercator.transformYToLat(node.getY()) * COORDINATE_SCALE);
+                lons[n++] = Math.round(SphericalMercator.transformXToLon(node.getX()) * COORDINATE_SCALE);
+            }
+            writePackedDeltas(8, lats);
+            writePackedDeltas(9, lons);
+
+            field.reset();
+            for(final OSMNode node : blockNodes) {
+                final Map<String, String> tags = node.getTags();
+                if(tags != null) {
+                    for(final Map.Entry<String, String> tag : tags.entrySet()) {
+                        field.writeVarint(stringIndex(tag.getKey()));
+                        field.writeVarint(stringIndex(tag.getValue()));
+                    }
+                }
+                field.writeVarint(0);
+            }
+            message.writeMessageField(10, field);
+
+            group.writeMessageField(2, message);
+            endBlock();
+        }
+    }
+    private void writeDenseInfo(final List<OSMNode> blockNodes) {
+        final Protobuf.Writer denseInfo = new Protobuf.Writer(blockNodes.size() * 16);
+        field.reset();
+        for(final OSMNode node : blockNodes) {
+            field.writeVarint(node.version);
+        }
+        denseInfo.writeMessageField(1, field);
+
+        final long[] values = new long[blockNodes.size()];
+        int n = 0;
+        for(final OSMNode node : blockNodes) {
+            values[n++] = timestampValue(node.timestamp);
+        }
+        writePackedDeltas(denseInfo, 2, values);
+        n = 0;
+        for(final OSMNode node : blockNodes) {
+            values[n++] = node.changeset;
+        }
+        writePackedDeltas(denseInfo, 3, values);
+        n = 0;
+        for(final OSMNode node : blockNodes) {
+            values[n++] = node.uid;
+        }
+        writePackedDeltas(denseInfo, 4, values);
+        n = 0;
+        for(final OSMNode node : blockNodes) {
+            values[n++] = node.user != null ? stringIndex(node.user) : 0;
+        }
+        writePackedDeltas(denseInfo, 5, values);
+
+        field.reset();
+        for(final OSMNode node : blockNodes) {
+            field.writeVarint(node.visible ? 1 : 0);
+        }
+        denseInfo.writeMessageField(6, field);
+        message.writeMessageField(5, denseInfo);
+    }
+
+    void writeWays(final @NotNull List<OSMWay> ways) throws IOException {
+        final int wayCount = ways.size();
+        for(int start = 0; start < wayCount; start += ENTITIES_PER_BLOCK) {
+            beginBlock();
+            for(final OSMWay way : ways.subList(start, Math.min(start + ENTITIES_PER_BLOCK, wayCount))) {
+                message.reset();
+                message.writeVarintField(1, way.osm_id);
+                writeTagsAndInfo(way);
+
+                field.reset();
+                long previous = 0;
+                for(final OSMNode node : way.getNodes()) {
+                    field.writeSignedVarint(node.osm_id - previous);
+                    previous = node.osm_id;
+                }
+                message.writeMessageField(8, field);
+                group.writeMessageField(3, message);
+            }
+            endBlock();
+        }
+    }
+    /**
+     * Writes the given relations, in the order given (which should have member relations before their parents)
+     */
+    void writeRelations(final @NotNull List<OSMRelation> relations) throws IOException {
+        final int relationCount = relations.size();
+        for(int start = 0; start < relationCount; start += ENTITIES_PER_BLOCK) {
+            beginBlock();
+            for(final OSMRelation relation : relations.subList(start, Math.min(start + ENTITIES_PER_BLOCK, relationCount))) {
+                message.reset();
+                message.writeVarintField(1, relation.osm_id);
+                writeTagsAndInfo(relation);
+
+                field.reset();
+                for(final OSMRelation.OSMRelationMember member : relation.members) {
+                    field.writeVarint(stringIndex(member.role));
+                }
+                message.writeMessageField(8, field);
+                field.reset();
+                long previous = 0;
+                for(final OSMRelation.OSMRelationMember member : relation.members) {
+                    field.writeSignedVarint(member.member.osm_id - previous);
+                    previous = member.member.osm_id;
+                }
+                message.writeMessageField(9, field);
+                field.reset();
+                for(final OSMRelation.OSMRelationMember member : relation.members) {
+                    field.writeVarint(member.member.getType().ordinal()); //OSMType's order matches PBF's MemberType
+                }
+                message.writeMessageField(10, field);
+                group.writeMessageField(4, message);
+            }
+            endBlock();
+        }
+    }
+    private void writeTagsAndInfo(final OSMEntity entity) {
+        final Map<String, String> tags = entity.getTags();
+        if(tags != null && !tags.isEmpty()) {
+            field.reset();
+            for(final String key : tags.keySet()) {
+                field.writeVarint(stringIndex(key));
+            }
+            message.writeMessageField(2, field);
+            field.reset();
+            for(final String value : tags.values()) {
+                field.writeVarint(stringIndex(value));
+            }
+            message.writeMessageField(3, field);
+        }
+        if(hasMetadata(entity) || !entity.visible) {
+            info.reset();
+            if(hasMetadata(entity)) {
+                info.writeVarintField(1, entity.version);
+                info.writeVarintField(2, timestampValue(entity.timestamp));
+                info.writeVarintField(3, entity.changeset);
+                info.writeVarintField(4, entity.uid);
+                if(entity.user != null) {
+                    info.writeVarintField(5, stringIndex(entity.user));
+                }
+            }
+            info.writeVarintField(6, entity.visible ? 1 : 0);
+            message.writeMessageField(4, info);
+        }
+    }
+    private static boolean hasMetadata(final OSMEntity entity) {
+        return entity.version > 0;
+    }
+    /**
+     * Converts the entity's timestamp to PBF date units, or 0 if not set
+     */
+    private static long timestampValue(final long timestamp) {
+        return timestamp != OSMTimestamp.NONE ? timestamp * 1000 / DATE_GRANULARITY : 0;
+    }
+    private void writePackedDeltas(final int fieldNumber, final long[] values) {
+        writePackedDeltas(message, fieldNumber, values);
+    }
+    private void writePackedDeltas(final Protobuf.Writer target, final int fieldNumber, final long[] values) {
+        field.reset();
+        long previous = 0;
+        for(final long value : values) {
+            field.writeSignedVarint(value - previous);
+            previous = value;
+        }
+        target.writeMessageField(fieldNumber, field);
+    }
+
+    private int stringIndex(final @NotNull String str) {
+        Integer index = stringIndexes.get(str);
+        if(index == null) {
+            index = stringIndexes.size() + 1;
+            stringIndexes.put(str, index);
+            stringTable.writeStringField(1, str);
+        }
+        return index;
+    }
+    private void beginBlock() {
+        stringIndexes.clear();
+        stringTable.reset();
+        group.reset();
+        stringTable.writeStringField(1, ""); //index 0 is reserved (it's the delimiter in dense node tags), so isn't in stringIndexes
+    }
+    private void endBlock() throws IOException {
+        block.reset();
+        block.writeMessageField(1, stringTable);
+        block.writeMessageField(2, group);
+        writeBlob("OSMData", block);
+    }
+    private void writeBlob(final String type, final Protobuf.Writer blockData) throws IOException {
+        final byte[] rawData = blockData.toByteArray();
+        deflater.reset();
+        deflater.setInput(rawData);
+        deflater.finish();
+        int compressedSize = 0;
+        while (!deflater.finished()) {
+            if(compressedSize == compressionBuffer.length) {
+                compressionBuffer = Arrays.copyOf(compressionBuffer, compressionBuffer.length << 1);
+            }
+            compressedSize += deflater.deflate(compressionBuffer, compressedSize, compressionBuffer.length - compressedSize);
+        }
+
+        final Protobuf.Writer blob = new Protobuf.Writer(compressedSize + 16);
+        blob.writeVarintField(2, rawData.length);
+        blob.writeBytesField(3, compressionBuffer, compressedSize);
+
+        final Protobuf.Writer blobHeader = new Protobuf.Writer(32);
+        blobHeader.writeBytesField(1, type.getBytes(StandardCharsets.US_ASCII), type.length());
+        blobHeader.writeVarintField(3, blob.size());
+
+        outputStream.writeInt(blobHeader.size());
+        blobHeader.writeTo(outputStream);
+        blob.writeTo(outputStream);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            outputStream.close();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package OSM;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Multi-threaded loader for large OSM XML files.  The file is split into chunks at top-level element boundaries
+ * (<node>, <way>, <relation>), each chunk is parsed on a worker thread into its own buffer of space-less entities,
+ * and the buffers are then merged into the space on the calling thread in file order, so the result is
+ * identical to a single-threaded OSMXMLLoader run.
+ */
+class OSMParallelXMLLoader {
+    private final static int MINIMUM_CHUNK_SIZE = 1024 * 1024, CHUNKS_PER_THREAD = 4;
+    /**
+     * The whole file is read into a single array with int offsets, so larger files must use the streaming OSMXMLLoader
+     */
+    final static long MAXIMUM_FILE_SIZE = Integer.MAX_VALUE - 8;
+    private final static byte[] DOCUMENT_CLOSE = "</osm>".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] COMMENT_OPEN = "<!--".getBytes(StandardCharsets.US_ASCII), COMMENT_CLOSE = "-->".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] CDATA_OPEN = "<![CDATA[".getBytes(StandardCharsets.US_ASCII), CDATA_CLOSE = "]]>".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] PROCESSING_INSTRUCTION_CLOSE = "?>".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[][] ENTITY_ELEMENT_NAMES = {"node".getBytes(StandardCharsets.US_ASCII), "way".getBytes(StandardCharsets.US_ASCII), "relation".getBytes(StandardCharsets.US_ASCII)}; //in OSMType order
+
+    private final OSMEntitySpace entitySpace;
+    private final int threadCount;
+
+    OSMParallelXMLLoader(final OSMEntitySpace entitySpace, final int threadCount) {
+        this.entitySpace = entitySpace;
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * @return whether the file is small enough to be loaded by this class
+     */
+    static boolean canLoad(final File file) {
+        return file.length() <= MAXIMUM_FILE_SIZE;
+    }
+    void load(final File file) throws IOException, XMLStreamException {
+        final byte[] data = Files.readAllBytes(file.toPath());
+        final int[] boundaries = computeChunkBoundaries(data);
+
+        //parse the chunks on the worker pool
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, boundaries.length - 1));
+        final List<Future<OSMXMLLoader.ParsedEntities>> parsedChunks = new ArrayList<>(boundaries.length - 1);
+        try {
+            for (int c = 0; c < boundaries.length - 1; c++) {
+                final int chunkStart = boundaries[c], chunkEnd = boundaries[c + 1];
+                parsedChunks.add(executor.submit(new Callable<OSMXMLLoader.ParsedEntities>() {
+                    @Override
+                    public OSMXMLLoader.ParsedEntities call() throws XMLStreamException {
+                        return OSMXMLLoader.parseEntities(data, chunkStart, chunkEnd - chunkStart, entitySpace.tagDictionary);
+                    }
+                }));
+            }
+
+            //and merge them into the space, in file order
+            final OSMXMLLoader loader = new OSMXMLLoader(entitySpace);
+            for (final Future<OSMXMLLoader.ParsedEntities> parsedChunk : parsedChunks) {
+                loader.insertParsedEntities(parsedChunk.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + file, e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof XMLStreamException) {
+                throw (XMLStreamException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Splits the file's data into roughly equal chunks, each beginning at a top-level entity element
+     * @param data the file contents
+     * @return the chunk offsets, including the start of the first and end of the last chunk
+     */
+    private int[] computeChunkBoundaries(final byte[] data) {
+        final int dataStart = findEntityStart(data, 0, 0, data.length);
+        int dataEnd = lastIndexOf(data, DOCUMENT_CLOSE);
+        if(dataEnd < dataStart) {
+            dataEnd = data.length;
+        }
+
+        final int chunkCount = Math.max(1, Math.min(threadCount * CHUNKS_PER_THREAD, (dataEnd - dataStart) / MINIMUM_CHUNK_SIZE));
+        final int[] boundaries = new int[chunkCount + 1];
+        int boundaryCount = 0;
+        boundaries[boundaryCount++] = dataStart;
+        for(int c = 1; c < chunkCount; c++) {
+            final int target = dataStart + (int) ((long) (dataEnd - dataStart) * c / chunkCount);
+            //scan on from the previous boundary, so any comments/CDATA before the target are stepped over rather than split
+            final int boundary = findEntityStart(data, boundaries[boundaryCount - 1] + 1, target, dataEnd);
+            if(boundary < dataEnd) {
+                boundaries[boundaryCount++] = boundary;
+            }
+        }
+        boundaries[boundaryCount++] = dataEnd;
+        return Arrays.copyOf(boundaries, boundaryCount);
+    }
+
+    /**
+     * Finds the next "<node", "<way" or "<relation" element start at or after minimumOffset.  Comments, CDATA sections and
+     * processing instructions are skipped, so the scan must begin outside of them (i.e. at a known element start or
+     * the beginning of the file).  Outside of those, raw '<' characters can only appear as markup in well-formed XML,
+     * and the OSM entity elements don't nest, so any match is a top-level entity.
+     * @param from the offset to begin scanning at
+     * @param minimumOffset the first offset a match may be returned at
+     * @return the offset of the element's '<', or limit if none found
+     */
+    static int findEntityStart(final byte[] data, final int from, final int minimumOffset, final int limit) {
+        int i = from;
+        while(i < limit) {
+            if(data[i] != '<') {
+                i++;
+            } else if(i + COMMENT_OPEN.length <= limit && regionMatches(data, i, COMMENT_OPEN)) {
+                i = skipPast(data, i + COMMENT_OPEN.length, COMMENT_CLOSE, limit);
+            } else if(i + CDATA_OPEN.length <= limit && regionMatches(data, i, CDATA_OPEN)) {
+                i = skipPast(data, i + CDATA_OPEN.length, CDATA_CLOSE, limit);
+            } else if(i + 1 < limit && data[i + 1] == '?') {
+                i = skipPast(data, i + 2, PROCESSING_INSTRUCTION_CLOSE, limit);
+            } else if(i >= minimumOffset && entityTypeAt(data, i, limit) != null) {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return limit;
+    }
+    /**
+     * @return the offset just past the next occurrence of the given pattern, or limit if none found
+     */
+    private static int skipPast(final byte[] data, final int from, final byte[] pattern, final int limit) {
+        for(int i = from; i + pattern.length <= limit; i++) {
+            if(regionMatches(data, i, pattern)) {
+                return i + pattern.length;
+            }
+        }
+        return limit;
+    }
+    /**
+     * @return the type of the entity element starting at the given '<', or null if it's not an entity element
+     */
+    static OSMEntity.OSMType entityTypeAt(final byte[] data, final int offset, final int limit) {
+        for(int t = 0; t < ENTITY_ELEMENT_NAMES.length; t++) {
+            final int nameEnd = offset + 1 + ENTITY_ELEMENT_NAMES[t].length;
+            if(nameEnd < limit && regionMatches(data, offset + 1, ENTITY_ELEMENT_NAMES[t]) && isNameTerminator(data[nameEnd])) {
+                return OSMEntity.OSMType.values()[t];
+            }
+        }
+        return null;
+    }
+    static boolean regionMatches(final byte[] data, final int offset, final byte[] pattern) {
+        for(int p = 0; p < pattern.length; p++) {
+            if(data[offset + p] != pattern[p]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    private static boolean isNameTerminator(final byte b) {
+        return b == ' ' || b == '>' || b == '/' || b == '\t' || b == '\n' || b == '\r';
+    }
+    private static int lastIndexOf(final byte[] data, final byte[] pattern) {
+        for(int i = data.length - pattern.length; i >= 0; i--) {
+            if(regionMatches(data, i, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
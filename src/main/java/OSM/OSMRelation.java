@@ -10,13 +10,6 @@ import java.util.*;
  * Created by nick on 10/15/15.
  */
 public class OSMRelation extends OSMEntity {
-    private final static String
-            BASE_XML_TAG_FORMAT_EMPTY = " <relation id=\"%d\" visible=\"%s\"/>\n",
-            BASE_XML_TAG_FORMAT_EMPTY_METADATA = " <relation id=\"%d\" visible=\"%s\" timestamp=\"%s\" version=\"%d\" changeset=\"%d\" uid=\"%d\" user=\"%s\"%s/>\n",
-            BASE_XML_TAG_FORMAT_OPEN = " <relation id=\"%s\" visible=\"%s\">\n",
-            BASE_XML_TAG_FORMAT_OPEN_METADATA = " <relation id=\"%s\" visible=\"%s\" timestamp=\"%s\" version=\"%d\" changeset=\"%d\" uid=\"%d\" user=\"%s\"%s>\n",
-            BASE_XML_TAG_FORMAT_CLOSE = " </relation>\n",
-            BASE_XML_TAG_FORMAT_MEMBER = "  <member type=\"%s\" ref=\"%d\" role=\"%s\"/>\n";
     private final static OSMType type = OSMType.relation;
 
     @NotNull
@@ -37,6 +30,18 @@ public class OSMRelation extends OSMEntity {
         }
     }
 
+    /**
+     * Snapshot of a relation's member list, on top of the common entity state
+     */
+    private static class SavedRelationState extends SavedState {
+        private final @NotNull OSMRelationMember[] members;
+
+        private SavedRelationState(final @NotNull OSMRelation relation) {
+            super(relation);
+            members = relation.members.toArray(new OSMRelationMember[relation.members.size()]);
+        }
+    }
+
     public OSMRelation(final long id) {
         super(id);
     }
@@ -78,6 +83,7 @@ public class OSMRelation extends OSMEntity {
         super.downgradeToIncompleteEntity();
 
         //flush the members
+        willModify();
         final ListIterator<OSMRelationMember> memberListIterator = members.listIterator();
         while (memberListIterator.hasNext()) {
             final OSMRelationMember member = memberListIterator.next();
@@ -113,7 +119,7 @@ public class OSMRelation extends OSMEntity {
             if(curBoundingBox == null) {
                 continue;
             } else if(combinedBoundingBox == null) {
-                combinedBoundingBox = new Region(curBoundingBox.origin, curBoundingBox.extent);
+                combinedBoundingBox = new Region(curBoundingBox);
                 continue;
             }
             combinedBoundingBox.combinedBoxWithRegion(curBoundingBox);
@@ -128,52 +134,7 @@ public class OSMRelation extends OSMEntity {
         if(boundingBox == null) {
             return null;
         } else {
-            return new Point(0.5 * (boundingBox.origin.x + boundingBox.extent.x), 0.5 * (boundingBox.origin.y + boundingBox.extent.y));
-        }
-    }
-
-    @NotNull
-    @Override
-    public String toOSMXML() {
-        if(debugEnabled) {
-            setTag("rcount", Short.toString(getContainingRelationCount()));
-            if(osm_id < 0) {
-                setTag("origid", Long.toString(osm_id));
-            }
-        }
-
-        final int tagCount = tags != null ? tags.size() : 0, memberCount = members.size();
-
-        if(tagCount + memberCount > 0) {
-            final String openTag;
-            if(version > 0) {
-                openTag = String.format(BASE_XML_TAG_FORMAT_OPEN_METADATA, osm_id, String.valueOf(visible), timestamp, version, changeset, uid, escapeForXML(user), actionTagAttribute(action));
-            } else {
-                openTag = String.format(BASE_XML_TAG_FORMAT_OPEN, osm_id, String.valueOf(visible));
-            }
-
-            final StringBuilder xml = new StringBuilder(tagCount * 64 + memberCount * 24 + openTag.length() + BASE_XML_TAG_FORMAT_CLOSE.length());
-            xml.append(openTag);
-
-            //output members
-            for (final OSMRelationMember member : members) {
-                xml.append(String.format(BASE_XML_TAG_FORMAT_MEMBER, member.member.getType(), member.member.osm_id, escapeForXML(member.role)));
-            }
-
-            //and tags (if any)
-            if(tagCount > 0) {
-                for (final HashMap.Entry<String, String> entry : tags.entrySet()) {
-                    xml.append(String.format(BASE_XML_TAG_FORMAT_TAG, escapeForXML(entry.getKey()), escapeForXML(entry.getValue())));
-                }
-            }
-            xml.append(BASE_XML_TAG_FORMAT_CLOSE);
-            return xml.toString();
-        } else {
-            if(version > 0) {
-                return String.format(BASE_XML_TAG_FORMAT_EMPTY_METADATA, osm_id, String .valueOf(visible), timestamp, version, changeset, uid, escapeForXML(user), actionTagAttribute(action));
-            } else {
-                return String.format(BASE_XML_TAG_FORMAT_EMPTY, osm_id, String .valueOf(visible));
-            }
+            return new Point(0.5 * (boundingBox.originX + boundingBox.extentX), 0.5 * (boundingBox.originY + boundingBox.extentY));
         }
     }
 
@@ -196,6 +157,7 @@ public class OSMRelation extends OSMEntity {
 
     @Override
     public boolean didDelete(@NotNull OSMEntitySpace fromSpace) {
+        willModify();
         if(members.size() > 0) {
             markAsModified();
         }
@@ -279,6 +241,7 @@ public class OSMRelation extends OSMEntity {
         }
 
         for(final OSMRelationMember relationMemberToRemove : relationMembersToRemove) {
+            willModify();
             if(members.remove(relationMemberToRemove)) {
                 markAsModified();
                 relationMemberToRemove.member.didRemoveFromEntity(this, false);
@@ -338,17 +301,37 @@ public class OSMRelation extends OSMEntity {
         return status;
     }
     private boolean addMemberInternal(final @NotNull OSMEntity member, final @NotNull String role, final int index, final boolean markAsModified) {
+        willModify();
         members.add(index, new OSMRelationMember(member, role));
         member.didAddToEntity(this);
+        geometryDidInclude(member);
         if(markAsModified) {
             markAsModified();
         }
         return true;
     }
     private void updateCompletionStatus() {
+        willModify();
         boolean allMembersComplete = complete.compareTo(CompletionStatus.memberList) >= 0 && getCompletedMemberCounts()[2] == members.size();
         complete = allMembersComplete ? CompletionStatus.membersComplete : CompletionStatus.memberList;
     }
+    @Override
+    void addToMemoryFootprint(final @NotNull MemoryFootprint footprint) {
+        super.addToMemoryFootprint(footprint);
+        footprint.addToComponent(MemoryFootprint.COMPONENT_RELATIONS, 1, MemoryFootprint.objectBytes(REFERENCE_FIELDS + 1, PRIMITIVE_FIELD_BYTES));
+        footprint.addToComponent(MemoryFootprint.COMPONENT_RELATION_MEMBERS, members.size(), MemoryFootprint.arrayListBytes(members.size()) + members.size() * MemoryFootprint.objectBytes(2, 0));
+    }
+    @NotNull
+    @Override
+    SavedState saveState() {
+        return new SavedRelationState(this);
+    }
+    @Override
+    void restoreState(final @NotNull SavedState state) {
+        super.restoreState(state);
+        members.clear();
+        Collections.addAll(members, ((SavedRelationState) state).members);
+    }
     /**
      * Replaces all memberships of the old entity with the new entity
      * @param oldEntity the entity to replace
@@ -360,11 +343,13 @@ public class OSMRelation extends OSMEntity {
         while(memberListIterator.hasNext()) {
             final OSMRelationMember oldMember = memberListIterator.next();
             if (oldMember.member == oldEntity) {
+                willModify();
                 final OSMRelationMember newMember = new OSMRelationMember(newEntity, oldMember.role);
                 memberListIterator.set(newMember);
 
                 oldMember.member.didRemoveFromEntity(this, false);
                 newMember.member.didAddToEntity(this);
+                geometryDidInclude(newMember.member);
 
                 boundingBox = null; //invalidate the bounding box
                 markAsModified();
@@ -375,6 +360,72 @@ public class OSMRelation extends OSMEntity {
         }
         return replaceCount;
     }
+    /**
+     * Replaces the memberships of all the given entities in a single pass over the member list
+     * @param replacements the entities to replace, mapped to their replacements (should be identity-based)
+     * @return the number of memberships replaced
+     */
+    int replaceEntityMemberships(final @NotNull Map<OSMEntity, ? extends OSMEntity> replacements) {
+        final ListIterator<OSMRelationMember> memberListIterator = members.listIterator();
+        int replaceCount = 0;
+        while(memberListIterator.hasNext()) {
+            final OSMRelationMember oldMember = memberListIterator.next();
+            final OSMEntity newEntity = replacements.get(oldMember.member);
+            if(newEntity != null && newEntity != oldMember.member) {
+                if(replaceCount++ == 0) {
+                    willModify();
+                }
+                final OSMRelationMember newMember = new OSMRelationMember(newEntity, oldMember.role);
+                memberListIterator.set(newMember);
+
+                oldMember.member.didRemoveFromEntity(this, false);
+                newMember.member.didAddToEntity(this);
+                geometryDidInclude(newMember.member);
+            }
+        }
+        if(replaceCount > 0) {
+            boundingBox = null; //invalidate the bounding box
+            markAsModified();
+            updateCompletionStatus();
+        }
+        return replaceCount;
+    }
+    /**
+     * Replaces any of this relation's members with the given space's instance of the member (if different), without
+     * marking the relation as modified.  Used when moving the relation into another space.
+     * @param entitySpace the space the relation was moved into
+     */
+    void relinkMembers(final @NotNull OSMEntitySpace entitySpace) {
+        boolean relinked = false;
+        final ListIterator<OSMRelationMember> memberListIterator = members.listIterator();
+        while (memberListIterator.hasNext()) {
+            final OSMRelationMember member = memberListIterator.next();
+            final OSMEntity spaceMember;
+            switch (member.member.getType()) {
+                case node:
+                    spaceMember = entitySpace.allNodes.get(member.member.osm_id);
+                    break;
+                case way:
+                    spaceMember = entitySpace.allWays.get(member.member.osm_id);
+                    break;
+                default:
+                    spaceMember = entitySpace.allRelations.get(member.member.osm_id);
+                    break;
+            }
+            if(spaceMember != null && spaceMember != member.member) {
+                willModify();
+                memberListIterator.set(new OSMRelationMember(spaceMember, member.role));
+                spaceMember.didAddToEntity(this);
+                relinked = true;
+            }
+        }
+        if(relinked) {
+            boundingBox = null; //invalidate the bounding box
+            if(complete != CompletionStatus.incomplete) {
+                updateCompletionStatus();
+            }
+        }
+    }
     public List<OSMRelationMember> getMembers() {
         return members;
     }
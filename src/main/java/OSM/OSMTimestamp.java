@@ -0,0 +1,132 @@
+package OSM;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Conversion between OSM's ISO 8601 timestamps ("2017-04-04T12:34:56Z") and the epoch seconds stored on entities.
+ * Timestamps are parsed once when loaded and only formatted when written out, so comparing entities' ages is just a
+ * numeric comparison.  The canonical OSM format is parsed by hand, since it's by far the most common; anything else
+ * falls back to java.time.
+ */
+public final class OSMTimestamp {
+    /**
+     * Value of OSMEntity.timestamp when the entity has no (or an unparseable) timestamp
+     */
+    public final static long NONE = Long.MIN_VALUE;
+    private final static int CANONICAL_LENGTH = 20;
+    private final static long SECONDS_PER_DAY = 86400L;
+
+    private OSMTimestamp() {}
+
+    /**
+     * @param timestamp an ISO 8601 timestamp
+     * @return the timestamp in seconds since the epoch, or NONE if null or not parseable
+     */
+    public static long parse(final @Nullable String timestamp) {
+        if(timestamp == null) {
+            return NONE;
+        }
+        if(timestamp.length() == CANONICAL_LENGTH && timestamp.charAt(4) == '-' && timestamp.charAt(7) == '-' && timestamp.charAt(10) == 'T' && timestamp.charAt(13) == ':' && timestamp.charAt(16) == ':' && timestamp.charAt(19) == 'Z') {
+            final int year = digits(timestamp, 0, 4), month = digits(timestamp, 5, 2), day = digits(timestamp, 8, 2);
+            final int hour = digits(timestamp, 11, 2), minute = digits(timestamp, 14, 2), second = digits(timestamp, 17, 2);
+            if(year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month) && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+                return daysFromCivil(year, month, day) * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second;
+            }
+        }
+        try {
+            return OffsetDateTime.parse(timestamp).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return NONE;
+        }
+    }
+    /**
+     * @param timestamp seconds since the epoch
+     * @return the timestamp in OSM's format, or null if NONE
+     */
+    @Nullable
+    public static String format(final long timestamp) {
+        if(timestamp == NONE) {
+            return null;
+        }
+        final long days = Math.floorDiv(timestamp, SECONDS_PER_DAY);
+        final int secondOfDay = (int) Math.floorMod(timestamp, SECONDS_PER_DAY);
+
+        //civil date from days since the epoch (see daysFromCivil())
+        final long shiftedDays = days + 719468;
+        final long era = Math.floorDiv(shiftedDays, 146097);
+        final int dayOfEra = (int) (shiftedDays - era * 146097);
+        final int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        final int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1, month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if(year < 0 || year > 9999) {
+            return Instant.ofEpochSecond(timestamp).toString();
+        }
+
+        final char[] chars = new char[CANONICAL_LENGTH];
+        putDigits(chars, 0, (int) year, 4);
+        chars[4] = '-';
+        putDigits(chars, 5, month, 2);
+        chars[7] = '-';
+        putDigits(chars, 8, day, 2);
+        chars[10] = 'T';
+        putDigits(chars, 11, secondOfDay / 3600, 2);
+        chars[13] = ':';
+        putDigits(chars, 14, secondOfDay / 60 % 60, 2);
+        chars[16] = ':';
+        putDigits(chars, 17, secondOfDay % 60, 2);
+        chars[19] = 'Z';
+        return new String(chars);
+    }
+
+    /**
+     * Parses the given fixed-width run of decimal digits
+     * @return the value, or -1 if any character isn't a digit
+     */
+    private static int digits(final String str, final int offset, final int count) {
+        int value = 0;
+        for(int i = offset; i < offset + count; i++) {
+            final int digit = str.charAt(i) - '0';
+            if(digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = 10 * value + digit;
+        }
+        return value;
+    }
+    private static void putDigits(final char[] chars, final int offset, int value, final int count) {
+        for(int i = offset + count - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+    private static int daysInMonth(final int year, final int month) {
+        switch (month) {
+            case 2:
+                return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+    /**
+     * Days since the epoch for the given proleptic Gregorian date (Howard Hinnant's days_from_civil algorithm)
+     */
+    private static long daysFromCivil(final int year, final int month, final int day) {
+        final int shiftedYear = month <= 2 ? year - 1 : year;
+        final int era = Math.floorDiv(shiftedYear, 400);
+        final int yearOfEra = shiftedYear - era * 400;
+        final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
@@ -9,19 +9,29 @@ import java.util.*;
  * Created by nick on 10/15/15.
  */
 public class OSMWay extends OSMEntity {
-    private final static String
-            BASE_XML_TAG_FORMAT_EMPTY = " <way id=\"%d\" visible=\"%s\"/>\n",
-            BASE_XML_TAG_FORMAT_EMPTY_METADATA = " <way id=\"%d\" visible=\"%s\" timestamp=\"%s\" version=\"%d\" changeset=\"%d\" uid=\"%d\" user=\"%s\"%s/>\n",
-            BASE_XML_TAG_FORMAT_OPEN = " <way id=\"%d\" visible=\"%s\">\n",
-            BASE_XML_TAG_FORMAT_OPEN_METADATA = " <way id=\"%d\" visible=\"%s\" timestamp=\"%s\" version=\"%d\" changeset=\"%d\" uid=\"%d\" user=\"%s\"%s>\n",
-            BASE_XML_TAG_FORMAT_CLOSE = " </way>\n",
-            BASE_XML_TAG_FORMAT_MEMBER_NODE = "  <nd ref=\"%d\"/>\n";
     private final static OSMType type = OSMType.way;
     private final static int INITIAL_CAPACITY_NODE = 32;
 
     private @NotNull final List<OSMNode> nodes;
     private @Nullable OSMNode firstNode = null, lastNode = null;
 
+    //cached geometry (along with the bounding box), cleared whenever the node list or a node's coordinate changes
+    private double cachedLength = Double.NaN;
+    private @Nullable Point cachedCentroid = null;
+    private static long geometryCacheHits = 0, geometryCacheMisses = 0;
+
+    /**
+     * Snapshot of a way's node list, on top of the common entity state
+     */
+    private static class SavedWayState extends SavedState {
+        private final @NotNull OSMNode[] nodes;
+
+        private SavedWayState(final @NotNull OSMWay way) {
+            super(way);
+            nodes = way.nodes.toArray(new OSMNode[way.nodes.size()]);
+        }
+    }
+
     public OSMWay(final long id) {
         super(id);
         nodes = new ArrayList<>(INITIAL_CAPACITY_NODE);
@@ -46,6 +56,7 @@ public class OSMWay extends OSMEntity {
         flushNodes();
     }
     private void flushNodes() {
+        willModify();
         final ListIterator<OSMNode> nodeListIterator = nodes.listIterator();
         while(nodeListIterator.hasNext()) {
             final OSMNode node = nodeListIterator.next();
@@ -54,7 +65,7 @@ public class OSMWay extends OSMEntity {
         }
         firstNode = lastNode = null;
 
-        boundingBox = null; //invalidate the bounding box
+        invalidateGeometry();
     }
 
     /**
@@ -64,6 +75,7 @@ public class OSMWay extends OSMEntity {
     public void setNodes(final @NotNull List<OSMNode> nodesToCopy) {
         //add the nodes if complete
         if(complete != CompletionStatus.incomplete) {
+            willModify();
             final List<OSMNode> oldNodes = new ArrayList<>(nodes);
             nodes.clear();
             nodes.addAll(nodesToCopy);
@@ -72,6 +84,7 @@ public class OSMWay extends OSMEntity {
             for(final OSMNode newNode : nodesToCopy) {
                 if(!oldNodes.contains(newNode)) {
                     newNode.didAddToEntity(this);
+                    geometryDidInclude(newNode);
                 }
             }
             for(final OSMNode oldNode : oldNodes) {
@@ -81,7 +94,7 @@ public class OSMWay extends OSMEntity {
             }
 
             updateFirstAndLastNodes();
-            boundingBox = null; //invalidate the bounding box
+            invalidateGeometry();
             markAsModified();
             updateCompletionStatus();
         }
@@ -100,10 +113,12 @@ public class OSMWay extends OSMEntity {
      * @throws IndexOutOfBoundsException if index isn't in bounds
      */
     public void insertNode(final @NotNull OSMNode node, final int index) {
+        willModify();
         nodes.add(index, node);
         node.didAddToEntity(this);
+        geometryDidInclude(node);
         updateFirstAndLastNodes();
-        boundingBox = null; //invalidate the bounding box
+        invalidateGeometry();
 
         markAsModified();
         updateCompletionStatus();
@@ -113,10 +128,12 @@ public class OSMWay extends OSMEntity {
      * @param node the node to append
      */
     public void appendNode(final @NotNull OSMNode node) {
+        willModify();
         nodes.add(node);
         node.didAddToEntity(this);
+        geometryDidInclude(node);
         updateFirstAndLastNodes();
-        boundingBox = null; //invalidate the bounding box
+        invalidateGeometry();
         markAsModified();
         updateCompletionStatus();
     }
@@ -152,6 +169,31 @@ public class OSMWay extends OSMEntity {
         return replaced;
     }
 
+    /**
+     * Replaces any of this way's nodes with the given space's instance of the node (if different), without marking
+     * the way as modified.  Used when moving the way into another space.
+     * @param spaceNodes the nodes of the space the way was moved into
+     */
+    void relinkNodes(final @NotNull LongEntityMap<OSMNode> spaceNodes) {
+        boolean relinked = false;
+        final ListIterator<OSMNode> nodeListIterator = nodes.listIterator();
+        while (nodeListIterator.hasNext()) {
+            final OSMNode node = nodeListIterator.next(), spaceNode = spaceNodes.get(node.osm_id);
+            if(spaceNode != null && spaceNode != node) {
+                willModify();
+                nodeListIterator.set(spaceNode);
+                spaceNode.didAddToEntity(this);
+                relinked = true;
+            }
+        }
+        if(relinked) {
+            updateFirstAndLastNodes();
+            invalidateGeometry();
+            if(complete != CompletionStatus.incomplete) {
+                updateCompletionStatus();
+            }
+        }
+    }
     /**
      *
      * @param nodeIndex the index of the node to remove
@@ -160,17 +202,19 @@ public class OSMWay extends OSMEntity {
      */
     private boolean replaceNodeAtIndex(final int nodeIndex, final @Nullable OSMNode newNode) {
         if(nodeIndex >= 0) {
+            willModify();
             final OSMNode oldNode = nodes.get(nodeIndex);
             if(newNode != null) {
                 nodes.set(nodeIndex, newNode);
                 newNode.didAddToEntity(this);
+                geometryDidInclude(newNode);
             } else {
                 nodes.remove(nodeIndex);
             }
             oldNode.didRemoveFromEntity(this, false);
             updateFirstAndLastNodes();
 
-            boundingBox = null; //invalidate the bounding box
+            invalidateGeometry();
             markAsModified();
             updateCompletionStatus();
             return true;
@@ -199,9 +243,11 @@ public class OSMWay extends OSMEntity {
         return lastNode;
     }
     protected void nodeWasMadeComplete(final @NotNull OSMNode node) {
+        invalidateGeometry(); //the bounding box only includes complete nodes
         updateCompletionStatus();
     }
     private void updateCompletionStatus() {
+        willModify();
         complete = areAllNodesComplete() ? CompletionStatus.membersComplete : CompletionStatus.memberList;
     }
     /**
@@ -215,8 +261,13 @@ public class OSMWay extends OSMEntity {
         double closestNodeDistance = tolerance, curDistance;
         OSMNode closestNode = null;
 
+        //skip nodes that are clearly out of range before computing their distance (with some slack for the latitude scaling)
+        final double toleranceInCoords = 1.01 * SphericalMercator.metersToCoordDelta(tolerance, point.y);
         for(final OSMNode existingNode : nodes) {
-            curDistance = Point.distance(point, existingNode.getCentroid());
+            if(Math.abs(existingNode.getX() - point.x) > toleranceInCoords || Math.abs(existingNode.getY() - point.y) > toleranceInCoords) {
+                continue;
+            }
+            curDistance = Point.distance(point.x, point.y, existingNode.getX(), existingNode.getY());
             if(curDistance <= closestNodeDistance) {
                 closestNodeDistance = curDistance;
                 closestNode = existingNode;
@@ -226,6 +277,7 @@ public class OSMWay extends OSMEntity {
     }
 
     public void reverseNodes() {
+        willModify();
         final OSMNode lastLastNode = lastNode;
         Collections.reverse(nodes);
         firstNode = lastNode;
@@ -260,15 +312,69 @@ public class OSMWay extends OSMEntity {
      * @return the length
      */
     public double length() {
+        if(!Double.isNaN(cachedLength)) {
+            geometryCacheHits++;
+            return cachedLength;
+        }
+        geometryCacheMisses++;
+
         OSMNode lastNode = null;
-        double length = 0.0;
+        double totalLength = 0.0;
         for(final OSMNode curNode : nodes) {
             if(lastNode != null) {
-                length += Point.distance(lastNode.getCentroid(), curNode.getCentroid());
+                totalLength += Point.distance(lastNode.getX(), lastNode.getY(), curNode.getX(), curNode.getY());
             }
             lastNode = curNode;
         }
-        return length;
+        return cachedLength = totalLength;
+    }
+    @Override
+    void addToMemoryFootprint(final @NotNull MemoryFootprint footprint) {
+        super.addToMemoryFootprint(footprint);
+        footprint.addToComponent(MemoryFootprint.COMPONENT_WAYS, 1, MemoryFootprint.objectBytes(REFERENCE_FIELDS + 4, PRIMITIVE_FIELD_BYTES + 8));
+        footprint.addToComponent(MemoryFootprint.COMPONENT_WAY_NODES, nodes.size(), MemoryFootprint.arrayListBytes(nodes.size()));
+        if(cachedCentroid != null) {
+            footprint.addToComponent(MemoryFootprint.COMPONENT_GEOMETRY_CACHE, 1, MemoryFootprint.POINT_BYTES);
+        }
+    }
+    @NotNull
+    @Override
+    SavedState saveState() {
+        return new SavedWayState(this);
+    }
+    @Override
+    void restoreState(final @NotNull SavedState state) {
+        super.restoreState(state);
+        nodes.clear();
+        Collections.addAll(nodes, ((SavedWayState) state).nodes);
+        firstNode = lastNode = null;
+        updateFirstAndLastNodes();
+        invalidateGeometry();
+    }
+    /**
+     * Clears the cached geometry (bounding box, length and centroid), which is recomputed on next use
+     */
+    private void invalidateGeometry() {
+        boundingBox = null;
+        cachedLength = Double.NaN;
+        cachedCentroid = null;
+    }
+    /**
+     * Called by the way's nodes when their coordinate changes
+     */
+    protected void nodeCoordinateDidChange(final @NotNull OSMNode node) {
+        invalidateGeometry();
+    }
+    /**
+     * @return summary of the way geometry cache's hit/miss counts, for profiling
+     */
+    @NotNull
+    public static String geometryCacheStatistics() {
+        final long total = geometryCacheHits + geometryCacheMisses;
+        return String.format("Way geometry cache: %d hits, %d misses (%.01f%% hit rate)", geometryCacheHits, geometryCacheMisses, total > 0 ? 100.0 * geometryCacheHits / total : 0.0);
+    }
+    public static void resetGeometryCacheStatistics() {
+        geometryCacheHits = geometryCacheMisses = 0;
     }
 
     @NotNull
@@ -285,80 +391,51 @@ public class OSMWay extends OSMEntity {
         }
 
         if(boundingBox != null) {
+            geometryCacheHits++;
             return boundingBox;
         }
+        geometryCacheMisses++;
 
-        Region boundingBox = null;
+        //scan the node coordinates directly, rather than combining each node's bounding box Region
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, x, y;
+        boolean hasCompleteNode = false;
         for(final OSMNode node: nodes) {
-            if(node.complete != CompletionStatus.incomplete) {
-                if(boundingBox != null) {
-                    boundingBox.combinedBoxWithRegion(node.getBoundingBox());
-                } else {
-                    Region nodeBoundingBox = node.getBoundingBox();
-                    if(nodeBoundingBox != null) {
-                        boundingBox = new Region(nodeBoundingBox);
-                    }
-                }
+            if(node.complete != CompletionStatus.incomplete && node.hasCoordinate()) {
+                x = node.getX();
+                y = node.getY();
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+                hasCompleteNode = true;
             }
         }
-        return boundingBox;
+        if(!hasCompleteNode) {
+            return null;
+        }
+        return boundingBox = new Region(minX, minY, maxX - minX, maxY - minY);
     }
 
     @Override
     public Point getCentroid() {
         final int vertexCount = isClosed() ? nodes.size() - 1 : nodes.size(); //don't include the last node in closed ways
-        final Point[] vertices = new Point[vertexCount];
-        int i = 0;
-        for(final OSMNode node: nodes) {
-            vertices[i++] = node.getCentroid();
-            if(i == vertexCount) {
-                break;
-            }
+        if(vertexCount < 2) {
+            return null;
         }
-        return Region.computeCentroid2(vertices);
-    }
-
-    @NotNull
-    @Override
-    public String toOSMXML() {
-        if(debugEnabled) {
-            setTag("rcount", Short.toString(getContainingRelationCount()));
-            if(osm_id < 0) {
-                setTag("origid", Long.toString(osm_id));
-            }
+        if(cachedCentroid != null) {
+            geometryCacheHits++;
+            return cachedCentroid;
         }
-
-        int tagCount = tags != null ? tags.size() : 0, nodeCount = nodes.size();
-        if(tagCount + nodeCount > 0) {
-            final String openTag;
-            if(version > 0) {
-                openTag = String.format(BASE_XML_TAG_FORMAT_OPEN_METADATA, osm_id, String.valueOf(visible), timestamp, version, changeset, uid, escapeForXML(user), actionTagAttribute(action));
-            } else {
-                openTag = String.format(BASE_XML_TAG_FORMAT_OPEN, osm_id, String.valueOf(visible));
-            }
-            final StringBuilder xml = new StringBuilder(tagCount * 64 + nodeCount * 24 + openTag.length() + BASE_XML_TAG_FORMAT_CLOSE.length());
-            xml.append(openTag);
-
-            //add the way's nodes
-            for (OSMNode node : nodes) {
-                xml.append(String.format(BASE_XML_TAG_FORMAT_MEMBER_NODE, node.osm_id));
-            }
-
-            //and the way's tags
-            if(tagCount > 0) {
-                for (HashMap.Entry<String, String> entry : tags.entrySet()) {
-                    xml.append(String.format(BASE_XML_TAG_FORMAT_TAG, escapeForXML(entry.getKey()), escapeForXML(entry.getValue())));
-                }
-            }
-            xml.append(BASE_XML_TAG_FORMAT_CLOSE);
-            return xml.toString();
-        } else {
-            if(version > 0) {
-                return String.format(BASE_XML_TAG_FORMAT_EMPTY_METADATA, osm_id, String.valueOf(visible), timestamp, version, changeset, uid, escapeForXML(user), actionTagAttribute(action));
-            } else {
-                return String.format(BASE_XML_TAG_FORMAT_EMPTY, osm_id, String.valueOf(visible));
-            }
+        geometryCacheMisses++;
+
+        //average the vertices' coordinates (same as Region.computeCentroid2(), without building a Point array)
+        double cX = 0.0, cY = 0.0;
+        for(int i = 0; i < vertexCount; i++) {
+            final OSMNode node = nodes.get(i);
+            cX += node.getX();
+            cY += node.getY();
         }
+        return cachedCentroid = new Point(cX / vertexCount, cY / vertexCount);
     }
 
     @Override
@@ -387,7 +464,7 @@ public class OSMWay extends OSMEntity {
 
             //also delete any nodes that are untagged, and aren't a member of any other ways or relations
             if((containedNode.getTags() == null || containedNode.getTags().isEmpty()) &&
-                    containedNode.getContainingWays().isEmpty() && containedNode.getContainingRelations().isEmpty()) {
+                    containedNode.getContainingWayCount() == 0 && containedNode.getContainingRelationCount() == 0) {
                 fromSpace.deleteEntity(containedNode);
             }
         }
@@ -408,28 +485,35 @@ public class OSMWay extends OSMEntity {
     /**
      * Check for nodes that occupy the same position on this way
      * @param tolerance The distance (in meters) to use to identify nodes as being in the same location
-     * @return Array of duplicate node pairs
+     * @return Array of duplicate node pairs, ordered by the nodes' positions on the way
      */
     @Nullable
     public OSMNode[][] identifyDuplicateNodesByPosition(final double tolerance) {
         if(nodes.size() < 2) {
             return null;
         }
-        ListIterator<OSMNode> outsideIterator = nodes.listIterator(), insideIterator;
-        OSMNode outsideNode, insideNode;
-        final List<OSMNode[]> duplicateNodes = new ArrayList<>(nodes.size());
-        while (outsideIterator.hasNext()) {
-            outsideNode = outsideIterator.next();
-            insideIterator = nodes.listIterator(outsideIterator.nextIndex());
-            while (insideIterator.hasNext()) {
-                insideNode = insideIterator.next();
-                if(insideNode != outsideNode && Point.distance(outsideNode.getCentroid(), insideNode.getCentroid()) <= tolerance) {
-                    final OSMNode[] nodePair = {outsideNode, insideNode};
-                    duplicateNodes.add(nodePair);
-                }
+
+        //find the nearby node index pairs with a spatial hash, then order them by position on the way
+        final List<int[]> duplicateIndexes = new ArrayList<>();
+        new NodeSpatialHash(nodes, tolerance).forEachPair(new NodeSpatialHash.PairHandler() {
+            @Override
+            public void nodesAreWithinTolerance(final int index1, final int index2) {
+                duplicateIndexes.add(new int[]{index1, index2});
             }
+        });
+        duplicateIndexes.sort(new Comparator<int[]>() {
+            @Override
+            public int compare(final int[] o1, final int[] o2) {
+                return o1[0] != o2[0] ? Integer.compare(o1[0], o2[0]) : Integer.compare(o1[1], o2[1]);
+            }
+        });
+
+        final OSMNode[][] duplicateNodes = new OSMNode[duplicateIndexes.size()][];
+        int d = 0;
+        for(final int[] indexPair : duplicateIndexes) {
+            duplicateNodes[d++] = new OSMNode[]{nodes.get(indexPair[0]), nodes.get(indexPair[1])};
         }
-        return duplicateNodes.toArray(new OSMNode[duplicateNodes.size()][]);
+        return duplicateNodes;
     }
     @Override
     public String toString() {
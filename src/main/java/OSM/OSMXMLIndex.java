@@ -0,0 +1,382 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Byte-offset index of the top-level entity elements in an OSM XML file, saved next to the file and reused while it's
+ * unchanged (see SourceFileSignature).  Used to load selected relations and their members without parsing the
+ * rest of the file.  Each entity's element is taken to run up to the start of the next entity element.
+ */
+class OSMXMLIndex {
+    private final static int MAGIC = 0x4f534d49, FORMAT_VERSION = 1;
+    private final static int SCAN_BUFFER_SIZE = 4 * 1024 * 1024, SCAN_LOOKAHEAD = 64 * 1024;
+    private final static String INDEX_EXTENSION = ".index";
+    private final static byte[] DOCUMENT_CLOSE = "</osm".getBytes(StandardCharsets.US_ASCII), ID_ATTRIBUTE = " id=\"".getBytes(StandardCharsets.US_ASCII);
+    private final static OSMEntity.OSMType[] TYPES = OSMEntity.OSMType.values();
+
+    private final File sourceFile;
+    private final SourceFileSignature signature;
+    private final int entryCount;
+    private final byte[] types; //entry data, in file order
+    private final long[] ids, offsets;
+    private final long dataEnd;
+    private final long[][] sortedIds = new long[TYPES.length][]; //per type: the ids in ascending order, and their entry numbers
+    private final int[][] sortedEntries = new int[TYPES.length][];
+
+    private OSMXMLIndex(final File sourceFile, final SourceFileSignature signature, final int entryCount, final byte[] types, final long[] ids, final long[] offsets, final long dataEnd) {
+        this.sourceFile = sourceFile;
+        this.signature = signature;
+        this.entryCount = entryCount;
+        this.types = types;
+        this.ids = ids;
+        this.offsets = offsets;
+        this.dataEnd = dataEnd;
+
+        for(final OSMEntity.OSMType type : TYPES) {
+            int typeCount = 0;
+            for(int e = 0; e < entryCount; e++) {
+                if(types[e] == type.ordinal()) {
+                    typeCount++;
+                }
+            }
+            final long[] typeIds = new long[typeCount];
+            final int[] typeEntries = new int[typeCount];
+            int t = 0;
+            boolean sorted = true;
+            for(int e = 0; e < entryCount; e++) {
+                if(types[e] == type.ordinal()) {
+                    typeIds[t] = ids[e];
+                    typeEntries[t] = e;
+                    sorted &= t == 0 || typeIds[t - 1] <= typeIds[t];
+                    t++;
+                }
+            }
+            if(!sorted) { //OSM files are normally sorted by id, so this is rarely needed
+                final Integer[] order = new Integer[typeCount];
+                for(int o = 0; o < typeCount; o++) {
+                    order[o] = o;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer o1, Integer o2) {
+                        return Long.compare(typeIds[o1], typeIds[o2]);
+                    }
+                });
+                final long[] unsortedIds = typeIds.clone();
+                final int[] unsortedEntries = typeEntries.clone();
+                for(int o = 0; o < typeCount; o++) {
+                    typeIds[o] = unsortedIds[order[o]];
+                    typeEntries[o] = unsortedEntries[order[o]];
+                }
+            }
+            sortedIds[type.ordinal()] = typeIds;
+            sortedEntries[type.ordinal()] = typeEntries;
+        }
+    }
+
+    /**
+     * Gets the index for the given OSM XML file, loading the saved index if it's current, otherwise building (and saving) it
+     */
+    static OSMXMLIndex forFile(final @NotNull File sourceFile) throws IOException {
+        final File indexFile = new File(sourceFile.getPath() + INDEX_EXTENSION);
+        if(indexFile.isFile()) {
+            try {
+                final OSMXMLIndex index = read(sourceFile, indexFile);
+                if(index != null) {
+                    return index;
+                }
+            } catch (IOException | RuntimeException ignored) { //unreadable: just rebuild it
+            }
+        }
+
+        final OSMXMLIndex index = build(sourceFile);
+        try {
+            index.write(indexFile);
+        } catch (IOException ignored) { //the index is just a cache: carry on if the directory isn't writable etc.
+        }
+        return index;
+    }
+
+    /**
+     * Scans the file for the start of each entity element, without parsing it
+     */
+    private static OSMXMLIndex build(final File sourceFile) throws IOException {
+        byte[] types = new byte[65536];
+        long[] ids = new long[65536], offsets = new long[65536];
+        int entryCount = 0;
+        long dataEnd = -1;
+
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[SCAN_BUFFER_SIZE];
+        long bufferOffset = 0; //the file offset of buffer[0]
+        int position = 0, filled = 0;
+        boolean endOfFile = false;
+        try (final InputStream in = new FileInputStream(sourceFile)) {
+            while (true) {
+                //keep enough data past the scan position to read a whole start tag
+                if(!endOfFile && filled - position <= SCAN_LOOKAHEAD) {
+                    System.arraycopy(buffer, position, buffer, 0, filled - position);
+                    bufferOffset += position;
+                    filled -= position;
+                    position = 0;
+                    while (filled < buffer.length) {
+                        final int bytesRead = in.read(buffer, filled, buffer.length - filled);
+                        if(bytesRead < 0) {
+                            endOfFile = true;
+                            break;
+                        }
+                        crc.update(buffer, filled, bytesRead);
+                        filled += bytesRead;
+                    }
+                }
+                final int scanLimit = endOfFile ? filled : filled - SCAN_LOOKAHEAD;
+                while (position < scanLimit && buffer[position] != '<') {
+                    position++;
+                }
+                if(position >= scanLimit) {
+                    if(endOfFile) {
+                        break;
+                    }
+                    continue;
+                }
+
+                final OSMEntity.OSMType type = OSMParallelXMLLoader.entityTypeAt(buffer, position, filled);
+                if(type != null) {
+                    if(entryCount == ids.length) {
+                        types = Arrays.copyOf(types, entryCount * 2);
+                        ids = Arrays.copyOf(ids, entryCount * 2);
+                        offsets = Arrays.copyOf(offsets, entryCount * 2);
+                    }
+                    types[entryCount] = (byte) type.ordinal();
+                    ids[entryCount] = readId(buffer, position, filled, bufferOffset);
+                    offsets[entryCount++] = bufferOffset + position;
+                } else if(position + DOCUMENT_CLOSE.length <= filled && OSMParallelXMLLoader.regionMatches(buffer, position, DOCUMENT_CLOSE)) {
+                    dataEnd = bufferOffset + position;
+                }
+                position++;
+            }
+        }
+        final long fileSize = bufferOffset + filled;
+        return new OSMXMLIndex(sourceFile, new SourceFileSignature(fileSize, sourceFile.lastModified(), crc.getValue()), entryCount, types, ids, offsets, dataEnd >= 0 ? dataEnd : fileSize);
+    }
+    /**
+     * Reads the id attribute from the entity start tag at the given position
+     */
+    private static long readId(final byte[] buffer, final int elementStart, final int limit, final long bufferOffset) throws IOException {
+        for(int i = elementStart; i + ID_ATTRIBUTE.length < limit && buffer[i] != '>'; i++) {
+            if(OSMParallelXMLLoader.regionMatches(buffer, i, ID_ATTRIBUTE)) {
+                int digit = i + ID_ATTRIBUTE.length;
+                final boolean negative = buffer[digit] == '-';
+                if(negative) {
+                    digit++;
+                }
+                long id = 0;
+                for(; digit < limit && buffer[digit] >= '0' && buffer[digit] <= '9'; digit++) {
+                    id = id * 10 + (buffer[digit] - '0');
+                }
+                return negative ? -id : id;
+            }
+        }
+        throw new IOException(String.format("No id found for the element at offset %d", bufferOffset + elementStart));
+    }
+
+    private static OSMXMLIndex read(final File sourceFile, final File indexFile) throws IOException {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            final SourceFileSignature signature = SourceFileSignature.read(in);
+            if(!signature.matches(sourceFile)) {
+                return null;
+            }
+            final int entryCount = in.readInt();
+            final long dataEnd = in.readLong();
+            final byte[] types = new byte[entryCount];
+            final long[] ids = new long[entryCount], offsets = new long[entryCount];
+            long offset = 0;
+            final long[] previousIds = new long[TYPES.length];
+            for(int e = 0; e < entryCount; e++) {
+                types[e] = in.readByte();
+                ids[e] = previousIds[types[e]] += OSMBinarySnapshot.readVarLong(in);
+                offsets[e] = offset += OSMBinarySnapshot.readVarLong(in);
+            }
+            return new OSMXMLIndex(sourceFile, signature, entryCount, types, ids, offsets, dataEnd);
+        }
+    }
+    private void write(final File indexFile) throws IOException {
+        final File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            signature.write(out);
+            out.writeInt(entryCount);
+            out.writeLong(dataEnd);
+            long previousOffset = 0;
+            final long[] previousIds = new long[TYPES.length];
+            for(int e = 0; e < entryCount; e++) {
+                out.writeByte(types[e]);
+                OSMBinarySnapshot.writeVarLong(out, ids[e] - previousIds[types[e]]);
+                previousIds[types[e]] = ids[e];
+                OSMBinarySnapshot.writeVarLong(out, offsets[e] - previousOffset);
+                previousOffset = offsets[e];
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the entry number for the given entity, or -1 if it's not in the file
+     */
+    private int entryFor(final OSMEntity.OSMType type, final long id) {
+        final int position = Arrays.binarySearch(sortedIds[type.ordinal()], id);
+        return position >= 0 ? sortedEntries[type.ordinal()][position] : -1;
+    }
+    private long entryEnd(final int entry) {
+        return entry + 1 < entryCount ? offsets[entry + 1] : dataEnd;
+    }
+    /**
+     * Reads and parses the elements for the given entries.  Consecutive entries are contiguous in the file,
+     * so runs of them are read together, and all the data is parsed in a single pass.
+     * @param entries the entry numbers to read (in any order)
+     * @return the parsed entities, in file order
+     */
+    private OSMXMLLoader.ParsedEntities readEntries(final int[] entries, final TagDictionary tagDictionary) throws IOException, XMLStreamException {
+        Arrays.sort(entries);
+        long totalSize = 0;
+        for(final int entry : entries) {
+            totalSize += entryEnd(entry) - offsets[entry];
+        }
+        if(totalSize > Integer.MAX_VALUE) {
+            throw new IOException("Too much data selected to load from " + sourceFile);
+        }
+
+        final byte[] data = new byte[(int) totalSize];
+        int dataSize = 0;
+        try (final RandomAccessFile file = new RandomAccessFile(sourceFile, "r")) {
+            for(int e = 0; e < entries.length; ) {
+                int runEnd = e + 1;
+                while (runEnd < entries.length && entries[runEnd] == entries[runEnd - 1] + 1) {
+                    runEnd++;
+                }
+                final long start = offsets[entries[e]], end = entryEnd(entries[runEnd - 1]);
+                file.seek(start);
+                file.readFully(data, dataSize, (int) (end - start));
+                dataSize += end - start;
+                e = runEnd;
+            }
+        }
+        return OSMXMLLoader.parseEntities(data, 0, dataSize, tagDictionary);
+    }
+    private int[] entriesFor(final OSMEntity.OSMType type, final LongEntityMap<Boolean> ids) {
+        final int[] entries = new int[ids.size()];
+        int entryCount = 0;
+        final LongEntityMap.LongIterator idIterator = ids.keyIterator();
+        while (idIterator.hasNext()) {
+            final int entry = entryFor(type, idIterator.next());
+            if(entry >= 0) {
+                entries[entryCount++] = entry;
+            }
+        }
+        return Arrays.copyOf(entries, entryCount);
+    }
+
+    /**
+     * Loads the relations matching the given filter into the space, along with all their members: member relations
+     * (recursively), ways and their nodes, and nodes.  Only the elements for these entities (plus the file's
+     * relations, which are scanned for the filter) are parsed.
+     * @param entitySpace the space to add the entities to
+     * @param relationFilter selects the relations to load: only the relation's id, metadata and tags are available
+     * @return the matching relations, as added to the space
+     */
+    List<OSMRelation> loadRelations(final @NotNull OSMEntitySpace entitySpace, final @NotNull Predicate<OSMRelation> relationFilter) throws IOException, XMLStreamException {
+        //parse all the relations, which are generally a small fraction of the file, to find the matches and their member relations
+        final OSMXMLLoader.ParsedEntities relations = readEntries(sortedEntries[OSMEntity.OSMType.relation.ordinal()].clone(), new TagDictionary(TagDictionary.DEFAULT_CAPACITY)); //most are filtered out, so their tags are kept out of the space's dictionary
+        final int relationCount = relations.entities.size();
+        final LongEntityMap<Integer> relationPositions = new LongEntityMap<>(relationCount);
+        for(int r = 0; r < relationCount; r++) {
+            relationPositions.put(relations.entities.get(r).osm_id, r);
+        }
+
+        //find the transitive closure of the matching relations' members
+        final boolean[] matched = new boolean[relationCount], required = new boolean[relationCount];
+        final Deque<Integer> pendingRelations = new ArrayDeque<>(64);
+        for(int r = 0; r < relationCount; r++) {
+            if(relationFilter.test((OSMRelation) relations.entities.get(r))) {
+                matched[r] = required[r] = true;
+                pendingRelations.add(r);
+            }
+        }
+        final LongEntityMap<Boolean> requiredWays = new LongEntityMap<>(1024), requiredNodes = new LongEntityMap<>(8192);
+        while (!pendingRelations.isEmpty()) {
+            final OSMXMLLoader.MemberReferences members = (OSMXMLLoader.MemberReferences) relations.references.get(pendingRelations.remove());
+            for(int m = 0; m < members.count; m++) {
+                switch (members.types.get(m)) {
+                    case OSMXMLLoader.tagNode:
+                        requiredNodes.put(members.ids[m], Boolean.TRUE);
+                        break;
+                    case OSMXMLLoader.tagWay:
+                        requiredWays.put(members.ids[m], Boolean.TRUE);
+                        break;
+                    case OSMXMLLoader.tagRelation:
+                        final Integer memberPosition = relationPositions.get(members.ids[m]);
+                        if(memberPosition != null && !required[memberPosition]) {
+                            required[memberPosition] = true;
+                            pendingRelations.add(memberPosition);
+                        }
+                        break;
+                }
+            }
+        }
+        final OSMXMLLoader.ParsedEntities ways = readEntries(entriesFor(OSMEntity.OSMType.way, requiredWays), entitySpace.tagDictionary);
+        for(final Object wayNodeIds : ways.references) {
+            for(final long nodeId : (long[]) wayNodeIds) {
+                requiredNodes.put(nodeId, Boolean.TRUE);
+            }
+        }
+        final OSMXMLLoader.ParsedEntities nodes = readEntries(entriesFor(OSMEntity.OSMType.node, requiredNodes), entitySpace.tagDictionary);
+
+        //add everything to the space, with member relations before their parents
+        final OSMXMLLoader loader = new OSMXMLLoader(entitySpace);
+        loader.insertParsedEntities(nodes);
+        loader.insertParsedEntities(ways);
+        final List<OSMRelation> matchedRelations = new ArrayList<>(64);
+        final boolean[] visited = new boolean[relationCount];
+        for(int r = 0; r < relationCount; r++) {
+            if(required[r]) {
+                insertRelation(r, relations, relationPositions, visited, matched, loader, matchedRelations);
+            }
+        }
+        return matchedRelations;
+    }
+    private static void insertRelation(final int position, final OSMXMLLoader.ParsedEntities relations, final LongEntityMap<Integer> relationPositions, final boolean[] visited, final boolean[] matched, final OSMXMLLoader loader, final List<OSMRelation> matchedRelations) {
+        if(visited[position]) { //already added, or a cyclical reference
+            return;
+        }
+        visited[position] = true;
+        final OSMXMLLoader.MemberReferences members = (OSMXMLLoader.MemberReferences) relations.references.get(position);
+        for(int m = 0; m < members.count; m++) {
+            if(OSMXMLLoader.tagRelation.equals(members.types.get(m))) {
+                final Integer memberPosition = relationPositions.get(members.ids[m]);
+                if(memberPosition != null) {
+                    insertRelation(memberPosition, relations, relationPositions, visited, matched, loader, matchedRelations);
+                }
+            }
+        }
+        final OSMRelation relation = (OSMRelation) loader.insertParsedEntity(relations.entities.get(position), members);
+        if(matched[position]) {
+            matchedRelations.add(relation);
+        }
+    }
+}
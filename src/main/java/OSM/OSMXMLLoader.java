@@ -0,0 +1,408 @@
+package OSM;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pull (StAX) parser for OSM XML files, used by OSMEntitySpace.loadFromXML().
+ * When the target space is empty, entities are inserted directly into its indexes, skipping the conflict
+ * handling in OSMEntitySpace.addEntity(); otherwise every entity is merged in through addEntity().
+ * The insert methods are also used by the other loaders (parallel XML, snapshot and PBF), so all formats load identically.
+ */
+class OSMXMLLoader {
+    final static String tagNode = "node", tagWay = "way", tagRelation = "relation", tagTag = "tag", tagWayNode = "nd", tagRelationMember = "member";
+    private final static double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+    private final static int MAX_EXACT_DIGITS = 15;
+
+    private final static byte[] FRAGMENT_OPEN = "<osm>".getBytes(StandardCharsets.US_ASCII), FRAGMENT_CLOSE = "</osm>".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Space-less entities parsed from a fragment of a file (with their tags and metadata), plus their way node/relation
+     * member ids, which can only be resolved once the entities are in a space
+     */
+    static class ParsedEntities {
+        public final List<OSMEntity> entities = new ArrayList<>(8192);
+        public final List<Object> references = new ArrayList<>(8192); //per entity: null for nodes, long[] for ways, MemberReferences for relations
+    }
+    static class MemberReferences {
+        public final List<String> types = new ArrayList<>(16), roles = new ArrayList<>(16);
+        public long[] ids = new long[16];
+        public int count = 0;
+
+        public void add(final String type, final long id, final String role) {
+            if(count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            types.add(type);
+            roles.add(role);
+            ids[count++] = id;
+        }
+    }
+
+    private final OSMEntitySpace entitySpace;
+    private final boolean bulkInsert;
+
+    OSMXMLLoader(final OSMEntitySpace entitySpace) {
+        this.entitySpace = entitySpace;
+        bulkInsert = entitySpace.allEntities.isEmpty();
+    }
+
+    /**
+     * Parses the given stream, adding its entities to the space
+     * @param inputStream the OSM XML data
+     * @throws XMLStreamException if the XML is malformed
+     */
+    void load(final InputStream inputStream) throws XMLStreamException {
+        final XMLStreamReader reader = createReader(inputStream);
+
+        OSMEntity curEntity = null; //OSM entities don't nest, so there's at most one open entity at a time
+        try {
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if(event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case tagNode:
+                            curEntity = insertNode(parseNode(reader));
+                            break;
+                        case tagWay:
+                            curEntity = insertWay(parseWay(reader));
+                            break;
+                        case tagRelation:
+                            curEntity = insertRelation(parseRelation(reader));
+                            break;
+                        case tagTag: //tag for a node/way/relation
+                            if(curEntity != null) {
+                                curEntity.setTag(reader.getAttributeValue(null, "k"), reader.getAttributeValue(null, "v"));
+                            }
+                            break;
+                        case tagWayNode: //node as a member of a way
+                            if(curEntity instanceof OSMWay) {
+                                appendWayNode((OSMWay) curEntity, Long.parseLong(reader.getAttributeValue(null, "ref")));
+                            }
+                            break;
+                        case tagRelationMember:
+                            if(curEntity instanceof OSMRelation) {
+                                addRelationMember((OSMRelation) curEntity, reader.getAttributeValue(null, "type"), Long.parseLong(reader.getAttributeValue(null, "ref")), reader.getAttributeValue(null, "role"));
+                            }
+                            break;
+                    }
+                } else if(event == XMLStreamConstants.END_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case tagNode:
+                        case tagWay:
+                        case tagRelation:
+                            curEntity = null;
+                            break;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    /**
+     * Parses a fragment of an OSM XML file, consisting of complete top-level entity elements, without touching any
+     * space (so is safe to run on any thread)
+     * @param data buffer containing the fragment
+     * @param offset the offset of the fragment in data
+     * @param length the length of the fragment
+     * @param tagDictionary the dictionary to store the entities' tags in (i.e. that of the space they'll be added to)
+     * @return the parsed entities, in file order
+     * @throws XMLStreamException if the XML is malformed
+     */
+    static ParsedEntities parseEntities(final byte[] data, final int offset, final int length, final TagDictionary tagDictionary) throws XMLStreamException {
+        final InputStream fragmentStream = new SequenceInputStream(new ByteArrayInputStream(FRAGMENT_OPEN), new SequenceInputStream(new ByteArrayInputStream(data, offset, length), new ByteArrayInputStream(FRAGMENT_CLOSE)));
+        final XMLStreamReader reader = createReader(fragmentStream);
+        final ParsedEntities parsedEntities = new ParsedEntities();
+
+        OSMEntity curEntity = null;
+        long[] wayNodeIds = new long[64];
+        int wayNodeCount = 0;
+        MemberReferences memberReferences = null;
+        try {
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if(event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case tagNode:
+                            curEntity = parseNode(reader);
+                            break;
+                        case tagWay:
+                            curEntity = parseWay(reader);
+                            wayNodeCount = 0;
+                            break;
+                        case tagRelation:
+                            curEntity = parseRelation(reader);
+                            memberReferences = new MemberReferences();
+                            break;
+                        case tagTag:
+                            if(curEntity != null) {
+                                curEntity.setTag(tagDictionary, reader.getAttributeValue(null, "k"), reader.getAttributeValue(null, "v"));
+                            }
+                            break;
+                        case tagWayNode:
+                            if(curEntity instanceof OSMWay) {
+                                if(wayNodeCount == wayNodeIds.length) {
+                                    wayNodeIds = Arrays.copyOf(wayNodeIds, wayNodeCount * 2);
+                                }
+                                wayNodeIds[wayNodeCount++] = Long.parseLong(reader.getAttributeValue(null, "ref"));
+                            }
+                            break;
+                        case tagRelationMember:
+                            if(memberReferences != null) {
+                                memberReferences.add(reader.getAttributeValue(null, "type"), Long.parseLong(reader.getAttributeValue(null, "ref")), reader.getAttributeValue(null, "role"));
+                            }
+                            break;
+                    }
+                } else if(event == XMLStreamConstants.END_ELEMENT && curEntity != null) {
+                    switch (reader.getLocalName()) {
+                        case tagNode:
+                            parsedEntities.entities.add(curEntity);
+                            parsedEntities.references.add(null);
+                            curEntity = null;
+                            break;
+                        case tagWay:
+                            parsedEntities.entities.add(curEntity);
+                            parsedEntities.references.add(Arrays.copyOf(wayNodeIds, wayNodeCount));
+                            curEntity = null;
+                            break;
+                        case tagRelation:
+                            parsedEntities.entities.add(curEntity);
+                            parsedEntities.references.add(memberReferences);
+                            curEntity = null;
+                            memberReferences = null;
+                            break;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return parsedEntities;
+    }
+    /**
+     * Adds the parsed entities to the space, in order, resolving their way nodes and relation members
+     */
+    void insertParsedEntities(final ParsedEntities parsedEntities) {
+        final int entityCount = parsedEntities.entities.size();
+        for(int e = 0; e < entityCount; e++) {
+            insertParsedEntity(parsedEntities.entities.get(e), parsedEntities.references.get(e));
+        }
+    }
+    /**
+     * Adds a parsed entity to the space, resolving its way nodes/relation members (which must already be in the space)
+     * @param parsedEntity the parsed entity
+     * @param references the entity's entry from ParsedEntities.references
+     * @return the space's copy of the entity
+     */
+    OSMEntity insertParsedEntity(final OSMEntity parsedEntity, final Object references) {
+        switch (parsedEntity.getType()) {
+            case node:
+                return insertNode((OSMNode) parsedEntity);
+            case way:
+                final OSMWay way = insertWay((OSMWay) parsedEntity);
+                for(final long nodeId : (long[]) references) {
+                    appendWayNode(way, nodeId);
+                }
+                return way;
+            case relation:
+                final OSMRelation relation = insertRelation((OSMRelation) parsedEntity);
+                final MemberReferences members = (MemberReferences) references;
+                for(int m = 0; m < members.count; m++) {
+                    addRelationMember(relation, members.types.get(m), members.ids[m], members.roles.get(m));
+                }
+                return relation;
+            default:
+                return null;
+        }
+    }
+    static XMLStreamReader createReader(final InputStream inputStream) throws XMLStreamException {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        return factory.createXMLStreamReader(inputStream, "UTF-8");
+    }
+
+    /**
+     * Creates a (space-less) node from the node element at the reader's current position
+     */
+    static OSMNode parseNode(final XMLStreamReader reader) {
+        final OSMNode curNode = new OSMNode(readId(reader));
+        curNode.setComplete(OSMEntity.CompletionStatus.self);
+        double lat = 0.0, lon = 0.0;
+        final int attributeCount = reader.getAttributeCount();
+        for(int a = 0; a < attributeCount; a++) {
+            final String attributeName = reader.getAttributeLocalName(a);
+            switch (attributeName) {
+                case "lat":
+                    lat = parseDecimal(reader.getAttributeValue(a));
+                    break;
+                case "lon":
+                    lon = parseDecimal(reader.getAttributeValue(a));
+                    break;
+                default:
+                    processBaseValue(curNode, attributeName, reader.getAttributeValue(a));
+                    break;
+            }
+        }
+        curNode.setCoordinate(SphericalMercator.transformLonToX(lon), SphericalMercator.transformLatToY(lat));
+        return curNode;
+    }
+    static OSMWay parseWay(final XMLStreamReader reader) {
+        final OSMWay curWay = new OSMWay(readId(reader));
+        curWay.setComplete(OSMEntity.CompletionStatus.memberList);
+        processBaseValues(curWay, reader);
+        return curWay;
+    }
+    static OSMRelation parseRelation(final XMLStreamReader reader) {
+        final OSMRelation curRelation = new OSMRelation(readId(reader));
+        curRelation.setComplete(OSMEntity.CompletionStatus.memberList);
+        processBaseValues(curRelation, reader);
+        return curRelation;
+    }
+
+    /**
+     * Adds the parsed node to the space, directly if bulk inserting, otherwise via addEntity()
+     * @param parsedNode the parsed node, including any tags already read for it
+     * @return the space's copy of the node
+     */
+    OSMNode insertNode(final OSMNode parsedNode) {
+        if(bulkInsert && !entitySpace.allNodes.containsKey(parsedNode.osm_id)) {
+            entitySpace.addNodeToSpaceList(parsedNode);
+            return parsedNode;
+        }
+        return (OSMNode) copyParsedTags(parsedNode, entitySpace.addEntity(parsedNode, OSMEntity.TagMergeStrategy.keepTags, null, true, 0));
+    }
+    OSMWay insertWay(final OSMWay parsedWay) {
+        if(bulkInsert && !entitySpace.allWays.containsKey(parsedWay.osm_id)) {
+            entitySpace.addWayToSpaceList(parsedWay);
+            return parsedWay;
+        }
+        return (OSMWay) copyParsedTags(parsedWay, entitySpace.addEntity(parsedWay, OSMEntity.TagMergeStrategy.keepTags, null, true, 0));
+    }
+    OSMRelation insertRelation(final OSMRelation parsedRelation) {
+        if(bulkInsert && !entitySpace.allRelations.containsKey(parsedRelation.osm_id)) {
+            entitySpace.addRelationToSpaceList(parsedRelation);
+            return parsedRelation;
+        }
+        return (OSMRelation) copyParsedTags(parsedRelation, entitySpace.addEntity(parsedRelation, OSMEntity.TagMergeStrategy.keepTags, null, true, 0));
+    }
+    /**
+     * Tags in the file replace those of any existing entity (same as setting them after the entity is added)
+     */
+    private static OSMEntity copyParsedTags(final OSMEntity parsedEntity, final OSMEntity localEntity) {
+        if(localEntity != parsedEntity && parsedEntity.getTags() != null) {
+            localEntity.setTags(parsedEntity.getTags());
+        }
+        return localEntity;
+    }
+    void appendWayNode(final OSMWay way, final long nodeId) {
+        way.setComplete(OSMEntity.CompletionStatus.memberList);
+        way.appendNode(entitySpace.allNodes.get(nodeId));
+    }
+    void addRelationMember(final OSMRelation relation, final String memberType, final long memberId, final String role) {
+        relation.setComplete(OSMEntity.CompletionStatus.memberList);
+        final OSMEntity memberEntity;
+        switch (memberType) {
+            case tagNode:
+                memberEntity = entitySpace.allNodes.get(memberId);
+                break;
+            case tagWay:
+                memberEntity = entitySpace.allWays.get(memberId);
+                break;
+            case tagRelation:
+                memberEntity = entitySpace.allRelations.get(memberId);
+                break;
+            default:
+                memberEntity = null;
+                break;
+        }
+        if(memberEntity != null) {
+            relation.addMember(memberEntity, role != null ? role : OSMEntity.MEMBERSHIP_DEFAULT);
+        }
+    }
+
+    private static long readId(final XMLStreamReader reader) {
+        return Long.parseLong(reader.getAttributeValue(null, "id"));
+    }
+    private static void processBaseValues(final OSMEntity entity, final XMLStreamReader reader) {
+        final int attributeCount = reader.getAttributeCount();
+        for(int a = 0; a < attributeCount; a++) {
+            processBaseValue(entity, reader.getAttributeLocalName(a), reader.getAttributeValue(a));
+        }
+    }
+    static void processBaseValue(final OSMEntity entity, final String attributeName, final String value) {
+        switch (attributeName) {
+            case "visible":
+                entity.visible = Boolean.parseBoolean(value);
+                break;
+            case "version":
+                entity.version = Integer.parseInt(value);
+                break;
+            case "uid":
+                entity.uid = Integer.parseInt(value);
+                break;
+            case "user":
+                entity.user = value;
+                break;
+            case "changeset":
+                entity.changeset = Integer.parseInt(value);
+                break;
+            case "timestamp":
+                entity.timestamp = OSMTimestamp.parse(value);
+                break;
+        }
+    }
+
+    /**
+     * Parses a plain decimal string (i.e. "-122.3321004") without going through Double.parseDouble().  Values with
+     * up to 15 significant digits are exact: both the digits and the power of ten are exactly representable,
+     * so the single division is correctly rounded.  Anything else falls back to Double.parseDouble().
+     * @param value the string to parse
+     * @return the parsed value
+     */
+    static double parseDecimal(final String value) {
+        final int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        if(length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int significantDigits = 0, fractionDigits = 0;
+        boolean inFraction = false, hasDigits = false;
+        for(; i < length; i++) {
+            final char c = value.charAt(i);
+            if(c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                hasDigits = true;
+                if(mantissa > 0 && ++significantDigits > MAX_EXACT_DIGITS) {
+                    return Double.parseDouble(value);
+                }
+                if(inFraction) {
+                    fractionDigits++;
+                }
+            } else if(c == '.' && !inFraction) {
+                inFraction = true;
+            } else { //exponents etc
+                return Double.parseDouble(value);
+            }
+        }
+        if(!hasDigits || fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(value);
+        }
+        final double result = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -result : result;
+    }
+}
@@ -0,0 +1,388 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Streaming OSM XML emitter, used by OSMEntitySpace.outputXml()/outputOsmChange() and OSMEntity.toOSMXML().  Elements are written
+ * directly into a byte buffer as UTF-8: numbers and coordinates are formatted without String.format(), and
+ * strings that don't need escaping (the vast majority) are copied through without any intermediate objects.
+ */
+class OSMXMLWriter implements Closeable {
+    private final static int BUFFER_SIZE = 65536, COORDINATE_PRECISION = 7;
+    private final static long COORDINATE_SCALE = 10_000_000L;
+    private final static byte[]
+            XML_DOCUMENT_OPEN = ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\" upload=\""),
+            XML_DOCUMENT_OPEN_END = ascii("\" generator=\"KCMetroImporter\">\n"),
+            XML_DOCUMENT_CLOSE = ascii("</osm>\n"),
+            OSMCHANGE_DOCUMENT_OPEN = ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osmChange version=\"0.6\" generator=\"KCMetroImporter\">\n"),
+            OSMCHANGE_DOCUMENT_CLOSE = ascii("</osmChange>\n"),
+            XML_BOUNDS_OPEN = ascii(" <bounds minlat=\""),
+            NODE_OPEN = ascii(" <node id=\""), NODE_CLOSE = ascii(" </node>\n"),
+            WAY_OPEN = ascii(" <way id=\""), WAY_CLOSE = ascii(" </way>\n"),
+            RELATION_OPEN = ascii(" <relation id=\""), RELATION_CLOSE = ascii(" </relation>\n"),
+            WAY_NODE_OPEN = ascii("  <nd ref=\""),
+            MEMBER_OPEN = ascii("  <member type=\""),
+            TAG_OPEN = ascii("  <tag k=\""),
+            ATTRIBUTE_LAT = ascii("\" lat=\""), ATTRIBUTE_LON = ascii("\" lon=\""), ATTRIBUTE_VISIBLE = ascii("\" visible=\""),
+            ATTRIBUTE_TIMESTAMP = ascii("\" timestamp=\""), ATTRIBUTE_VERSION = ascii("\" version=\""),
+            ATTRIBUTE_CHANGESET = ascii("\" changeset=\""), ATTRIBUTE_UID = ascii("\" uid=\""), ATTRIBUTE_USER = ascii("\" user=\""),
+            ATTRIBUTE_ACTION = ascii("\" action=\""), ATTRIBUTE_REF = ascii("\" ref=\""), ATTRIBUTE_ROLE = ascii("\" role=\""),
+            ATTRIBUTE_V = ascii("\" v=\""), ATTRIBUTE_MINLON = ascii("\" minlon=\""), ATTRIBUTE_MAXLAT = ascii("\" maxlat=\""), ATTRIBUTE_MAXLON = ascii("\" maxlon=\""),
+            ELEMENT_EMPTY_END = ascii("\"/>\n"), ELEMENT_OPEN_END = ascii("\">\n"),
+            ESCAPE_LT = ascii("&lt;"), ESCAPE_GT = ascii("&gt;"), ESCAPE_QUOT = ascii("&quot;"), ESCAPE_APOS = ascii("&#039;"), ESCAPE_AMP = ascii("&amp;"),
+            LONG_MIN_VALUE = ascii(Long.toString(Long.MIN_VALUE));
+
+    private final OutputStream outputStream;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] digits = new byte[20];
+    private String[] sortedKeys = new String[16];
+    private int position = 0;
+    private boolean writeActions = true; //osmChange files convey the action via the enclosing block instead
+
+    private static byte[] ascii(final String str) {
+        return str.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    OSMXMLWriter(final @NotNull String fileName) throws IOException {
+        this(new FileOutputStream(fileName));
+    }
+    OSMXMLWriter(final @NotNull OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Formats the given entity as a standalone XML string
+     */
+    @NotNull
+    static String toXMLString(final @NotNull OSMEntity entity) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
+        final OSMXMLWriter writer = new OSMXMLWriter(outputStream);
+        try {
+            writer.writeEntity(entity);
+            writer.flush();
+        } catch (IOException e) { //can't happen with a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    void writeDocumentOpen(final boolean canUpload) throws IOException {
+        write(XML_DOCUMENT_OPEN);
+        writeAscii(Boolean.toString(canUpload));
+        write(XML_DOCUMENT_OPEN_END);
+    }
+    /**
+     * Opens an osmChange document: the entities must then be written within writeChangeBlockOpen/Close() calls
+     */
+    void writeOsmChangeDocumentOpen() throws IOException {
+        write(OSMCHANGE_DOCUMENT_OPEN);
+        writeActions = false;
+    }
+    void writeOsmChangeDocumentClose() throws IOException {
+        write(OSMCHANGE_DOCUMENT_CLOSE);
+    }
+    /**
+     * @param blockName the change type: "create", "modify" or "delete"
+     */
+    void writeChangeBlockOpen(final @NotNull String blockName) throws IOException {
+        writeAscii("<" + blockName + ">\n");
+    }
+    void writeChangeBlockClose(final @NotNull String blockName) throws IOException {
+        writeAscii("</" + blockName + ">\n");
+    }
+    void writeBounds(final @NotNull Region boundingBox) throws IOException {
+        write(XML_BOUNDS_OPEN);
+        writeCoordinate(SphericalMercator.transformYToLat(boundingBox.originY));
+        write(ATTRIBUTE_MINLON);
+        writeCoordinate(SphericalMercator.transformXToLon(boundingBox.originX));
+        write(ATTRIBUTE_MAXLAT);
+        writeCoordinate(SphericalMercator.transformYToLat(boundingBox.extentY));
+        write(ATTRIBUTE_MAXLON);
+        writeCoordinate(SphericalMercator.transformXToLon(boundingBox.extentX));
+        write(ELEMENT_EMPTY_END);
+    }
+    void writeDocumentClose() throws IOException {
+        write(XML_DOCUMENT_CLOSE);
+    }
+
+    void writeEntity(final @NotNull OSMEntity entity) throws IOException {
+        switch (entity.getType()) {
+            case node:
+                writeNode((OSMNode) entity);
+                break;
+            case way:
+                writeWay((OSMWay) entity);
+                break;
+            case relation:
+                writeRelation((OSMRelation) entity);
+                break;
+        }
+    }
+    void writeNode(final @NotNull OSMNode node) throws IOException {
+        if(OSMEntity.debugEnabled) {
+            node.addDebugTags();
+        }
+        write(NODE_OPEN);
+        writeLong(node.osm_id);
+        write(ATTRIBUTE_LAT);
+        writeCoordinate(SphericalMercator.transformYToLat(node.getY()));
+        write(ATTRIBUTE_LON);
+        writeCoordinate(SphericalMercator.transformXToLon(node.getX()));
+        writeBaseAttributes(node);
+
+        final Map<String, String> tags = node.getTags();
+        if(tags == null) {
+            write(ELEMENT_EMPTY_END);
+            return;
+        }
+        write(ELEMENT_OPEN_END);
+        writeTags(tags);
+        write(NODE_CLOSE);
+    }
+    void writeWay(final @NotNull OSMWay way) throws IOException {
+        if(OSMEntity.debugEnabled) {
+            way.addDebugTags();
+        }
+        write(WAY_OPEN);
+        writeLong(way.osm_id);
+        writeBaseAttributes(way);
+
+        final Map<String, String> tags = way.getTags();
+        if((tags == null || tags.isEmpty()) && way.getNodes().isEmpty()) {
+            write(ELEMENT_EMPTY_END);
+            return;
+        }
+        write(ELEMENT_OPEN_END);
+        for(final OSMNode node : way.getNodes()) {
+            write(WAY_NODE_OPEN);
+            writeLong(node.osm_id);
+            write(ELEMENT_EMPTY_END);
+        }
+        if(tags != null) {
+            writeTags(tags);
+        }
+        write(WAY_CLOSE);
+    }
+    void writeRelation(final @NotNull OSMRelation relation) throws IOException {
+        if(OSMEntity.debugEnabled) {
+            relation.addDebugTags();
+        }
+        write(RELATION_OPEN);
+        writeLong(relation.osm_id);
+        writeBaseAttributes(relation);
+
+        final Map<String, String> tags = relation.getTags();
+        if((tags == null || tags.isEmpty()) && relation.members.isEmpty()) {
+            write(ELEMENT_EMPTY_END);
+            return;
+        }
+        write(ELEMENT_OPEN_END);
+        for(final OSMRelation.OSMRelationMember member : relation.members) {
+            write(MEMBER_OPEN);
+            writeAscii(member.member.getType().name());
+            write(ATTRIBUTE_REF);
+            writeLong(member.member.osm_id);
+            write(ATTRIBUTE_ROLE);
+            writeEscaped(member.role);
+            write(ELEMENT_EMPTY_END);
+        }
+        if(tags != null) {
+            writeTags(tags);
+        }
+        write(RELATION_CLOSE);
+    }
+    /**
+     * Writes the visible attribute, plus the metadata attributes if the entity has them (leaving the last attribute open)
+     */
+    private void writeBaseAttributes(final @NotNull OSMEntity entity) throws IOException {
+        write(ATTRIBUTE_VISIBLE);
+        writeAscii(entity.visible ? "true" : "false");
+        if(entity.version > 0) {
+            write(ATTRIBUTE_TIMESTAMP);
+            writeEscaped(OSMTimestamp.format(entity.timestamp));
+            write(ATTRIBUTE_VERSION);
+            writeLong(entity.version);
+            write(ATTRIBUTE_CHANGESET);
+            writeLong(entity.changeset);
+            write(ATTRIBUTE_UID);
+            writeLong(entity.uid);
+            write(ATTRIBUTE_USER);
+            writeEscaped(entity.user);
+            if(writeActions && entity.getAction() != OSMEntity.ChangeAction.none) {
+                write(ATTRIBUTE_ACTION);
+                writeAscii(entity.getAction().name());
+            }
+        }
+    }
+    /**
+     * Writes the tags in key order, so the output doesn't depend on the tag dictionary's interning order
+     */
+    private void writeTags(final @NotNull Map<String, String> tags) throws IOException {
+        final int tagCount = tags.size();
+        if(sortedKeys.length < tagCount) {
+            sortedKeys = new String[Math.max(tagCount, 2 * sortedKeys.length)];
+        }
+        int k = 0;
+        for(final String key : tags.keySet()) {
+            sortedKeys[k++] = key;
+        }
+        Arrays.sort(sortedKeys, 0, tagCount);
+        for(k = 0; k < tagCount; k++) {
+            write(TAG_OPEN);
+            writeEscaped(sortedKeys[k]);
+            write(ATTRIBUTE_V);
+            writeEscaped(tags.get(sortedKeys[k]));
+            write(ELEMENT_EMPTY_END);
+            sortedKeys[k] = null;
+        }
+    }
+
+    private void ensureCapacity(final int length) throws IOException {
+        if(position + length > buffer.length) {
+            flushBuffer();
+        }
+    }
+    private void write(final byte[] bytes) throws IOException {
+        if(bytes.length > buffer.length) {
+            flushBuffer();
+            outputStream.write(bytes);
+            return;
+        }
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+    /**
+     * Writes a string known to be plain ASCII, without escaping
+     */
+    private void writeAscii(final @NotNull String str) throws IOException {
+        final int length = str.length();
+        for(int i = 0; i < length; i++) {
+            if(position == buffer.length) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) str.charAt(i);
+        }
+    }
+    /**
+     * Writes the given string as UTF-8, escaping any XML special characters.  Null strings are written as empty.
+     */
+    private void writeEscaped(final @Nullable String str) throws IOException {
+        if(str == null) {
+            return;
+        }
+        final int length = str.length();
+        for(int i = 0; i < length; i++) {
+            final char c = str.charAt(i);
+            if(position + 4 > buffer.length) {
+                flushBuffer();
+            }
+            if(c < 0x80) {
+                switch (c) {
+                    case '<':
+                        write(ESCAPE_LT);
+                        break;
+                    case '>':
+                        write(ESCAPE_GT);
+                        break;
+                    case '"':
+                        write(ESCAPE_QUOT);
+                        break;
+                    case '\'':
+                        write(ESCAPE_APOS);
+                        break;
+                    case '&':
+                        write(ESCAPE_AMP);
+                        break;
+                    default:
+                        buffer[position++] = (byte) c;
+                        break;
+                }
+            } else if(c < 0x800) {
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(str.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, str.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if(Character.isSurrogate(c)) { //unpaired surrogate: same replacement as String.getBytes()
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+    private void writeLong(long value) throws IOException {
+        if(value == Long.MIN_VALUE) {
+            write(LONG_MIN_VALUE);
+            return;
+        }
+        ensureCapacity(digits.length + 1);
+        if(value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digitCount = 0;
+        do {
+            digits[digitCount++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (digitCount > 0) {
+            buffer[position++] = digits[--digitCount];
+        }
+    }
+    /**
+     * Writes the given degree value with 7 decimal places (the precision OSM stores), i.e. as "%.07f" would.
+     * The value is rounded half away from zero after scaling, which can differ from String.format() in the last
+     * place only for values within one ulp of a rounding tie.
+     */
+    private void writeCoordinate(final double value) throws IOException {
+        if(Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= Long.MAX_VALUE / COORDINATE_SCALE) {
+            writeAscii(Double.toString(value));
+            return;
+        }
+        final long scaled = Math.round(Math.abs(value) * COORDINATE_SCALE);
+        ensureCapacity(digits.length + 3);
+        if(value < 0.0 && scaled != 0) {
+            buffer[position++] = '-';
+        }
+        writeLong(scaled / COORDINATE_SCALE);
+        buffer[position++] = '.';
+        long fraction = scaled % COORDINATE_SCALE;
+        for(int d = COORDINATE_PRECISION - 1; d >= 0; d--) {
+            digits[d] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        System.arraycopy(digits, 0, buffer, position, COORDINATE_PRECISION);
+        position += COORDINATE_PRECISION;
+    }
+
+    private void flushBuffer() throws IOException {
+        if(position > 0) {
+            outputStream.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+    void flush() throws IOException {
+        flushBuffer();
+        outputStream.flush();
+    }
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package OSM;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal Protocol Buffers wire format encoder/decoder, covering just what the OSM PBF format needs
+ * (varints, zigzag varints, length-delimited fields and packed repeated fields).
+ */
+class Protobuf {
+    final static int WIRE_VARINT = 0, WIRE_FIXED64 = 1, WIRE_LENGTH_DELIMITED = 2, WIRE_FIXED32 = 5;
+
+    /**
+     * Reads fields from a message in a byte array
+     */
+    static class Reader {
+        private final byte[] data;
+        private int position;
+        private final int limit;
+
+        Reader(final byte[] data) {
+            this(data, 0, data.length);
+        }
+        Reader(final byte[] data, final int offset, final int length) {
+            this.data = data;
+            position = offset;
+            limit = offset + length;
+        }
+
+        boolean hasMore() {
+            return position < limit;
+        }
+        /**
+         * @return the next field's tag: the field number is (tag >>> 3), the wire type (tag & 7)
+         */
+        int readTag() throws IOException {
+            return (int) readVarint();
+        }
+        long readVarint() throws IOException {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                if(position >= limit) {
+                    throw new IOException("Truncated protobuf varint");
+                }
+                final byte b = data[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if(b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed protobuf varint");
+        }
+        long readSignedVarint() throws IOException {
+            final long zigzag = readVarint();
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        /**
+         * Reads a length-delimited field as a message
+         */
+        Reader readMessage() throws IOException {
+            final int length = readLength();
+            final Reader message = new Reader(data, position, length);
+            position += length;
+            return message;
+        }
+        byte[] readBytes() throws IOException {
+            final int length = readLength();
+            final byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+            position += length;
+            return bytes;
+        }
+        String readString() throws IOException {
+            final int length = readLength();
+            final String str = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return str;
+        }
+        private int readLength() throws IOException {
+            final long length = readVarint();
+            if(length < 0 || length > limit - position) {
+                throw new IOException("Invalid protobuf field length " + length);
+            }
+            return (int) length;
+        }
+        void skipField(final int tag) throws IOException {
+            switch (tag & 7) {
+                case WIRE_VARINT:
+                    readVarint();
+                    break;
+                case WIRE_FIXED64:
+                    position += 8;
+                    break;
+                case WIRE_LENGTH_DELIMITED:
+                    final int length = readLength();
+                    position += length;
+                    break;
+                case WIRE_FIXED32:
+                    position += 4;
+                    break;
+                default:
+                    throw new IOException("Unsupported protobuf wire type " + (tag & 7));
+            }
+        }
+    }
+
+    /**
+     * Builds a message in a growable byte array
+     */
+    static class Writer {
+        private byte[] data;
+        private int size = 0;
+
+        Writer(final int initialCapacity) {
+            data = new byte[Math.max(initialCapacity, 16)];
+        }
+
+        int size() {
+            return size;
+        }
+        void reset() {
+            size = 0;
+        }
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, size);
+        }
+        void writeTo(final OutputStream outputStream) throws IOException {
+            outputStream.write(data, 0, size);
+        }
+
+        private void ensureCapacity(final int additional) {
+            if(size + additional > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length << 1, size + additional));
+            }
+        }
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                data[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+        void writeSignedVarint(final long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+        private void writeTag(final int field, final int wireType) {
+            writeVarint((field << 3) | wireType);
+        }
+        void writeVarintField(final int field, final long value) {
+            writeTag(field, WIRE_VARINT);
+            writeVarint(value);
+        }
+        void writeSignedVarintField(final int field, final long value) {
+            writeTag(field, WIRE_VARINT);
+            writeSignedVarint(value);
+        }
+        void writeBytesField(final int field, final byte[] bytes, final int length) {
+            writeTag(field, WIRE_LENGTH_DELIMITED);
+            writeVarint(length);
+            ensureCapacity(length);
+            System.arraycopy(bytes, 0, data, size, length);
+            size += length;
+        }
+        void writeStringField(final int field, final String str) {
+            final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            writeBytesField(field, bytes, bytes.length);
+        }
+        /**
+         * Writes the given message (or packed field contents) as a length-delimited field
+         */
+        void writeMessageField(final int field, final Writer message) {
+            writeBytesField(field, message.data, message.size);
+        }
+    }
+}
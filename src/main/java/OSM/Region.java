@@ -7,7 +7,10 @@ import org.jetbrains.annotations.Nullable;
  * Created by nick on 10/29/15.
  */
 public class Region {
-    public @NotNull Point origin, extent;
+    /**
+     * The box's bounds, stored as primitives so boxes can be built and expanded in place without allocating Points
+     */
+    public double originX, originY, extentX, extentY;
 
     /**
      * Determines whether the regions intersect
@@ -19,10 +22,10 @@ public class Region {
         if(region1 == null || region2 == null) {
             return false;
         }
-        return !(region1.extent.x < region2.origin.x ||
-                region1.origin.x > region2.extent.x ||
-                region1.extent.y < region2.origin.y ||
-                region1.origin.y > region2.extent.y);
+        return !(region1.extentX < region2.originX ||
+                region1.originX > region2.extentX ||
+                region1.extentY < region2.originY ||
+                region1.originY > region2.extentY);
     }
 
     /**
@@ -35,10 +38,10 @@ public class Region {
         if(region1 == null || region2 == null) {
             return false;
         }
-        return region1.origin.y <= region2.origin.y &&
-                region1.extent.y >= region2.extent.y &&
-                region1.origin.x <= region2.origin.x &&
-                region1.extent.x >= region2.extent.x;
+        return region1.originY <= region2.originY &&
+                region1.extentY >= region2.extentY &&
+                region1.originX <= region2.originX &&
+                region1.extentX >= region2.extentX;
     }
 
     /**
@@ -49,9 +52,9 @@ public class Region {
      */
     @NotNull
     public static Region union(final @NotNull Region region1, final @NotNull Region region2) {
-        final Point unionOrigin = new Point(Math.min(region1.origin.x, region2.origin.x), Math.min(region1.origin.y, region2.origin.y));
-        final Point unionExtent = new Point(Math.max(region1.extent.x, region2.extent.x), Math.max(region1.extent.y, region2.extent.y));
-        return new Region(unionOrigin, unionExtent);
+        final Region union = new Region(region1);
+        union.combinedBoxWithRegion(region2);
+        return union;
     }
     /**
      * Get the intersection box of the given regions
@@ -61,16 +64,8 @@ public class Region {
      */
     @Nullable
     public static Region intersection(final @NotNull Region region1, final @NotNull Region region2) {
-        final double xmin = Math.max(region1.origin.y, region2.origin.y);
-        final double xmax = Math.min(region1.extent.y, region2.extent.y);
-        if (xmax > xmin) {
-            final double ymin = Math.max(region1.origin.x, region2.origin.x);
-            final double ymax = Math.min(region1.extent.x, region2.extent.x);
-            if (ymax > ymin) {
-                return new Region(ymin, xmin, ymax - ymin, xmax - xmin);
-            }
-        }
-        return null;
+        final Region intersection = new Region(region1);
+        return intersection.intersect(region2) ? intersection : null;
     }
     /*public static Region combinedRegionBox(Region region1, Region region2) {
         if(region1 == null) {
@@ -93,19 +88,22 @@ public class Region {
         return new Region(new Point(minLat, minLon), new Point(maxLat, maxLon));
     }*/
     public Region(final @NotNull Point origin, final @NotNull Point extent) {
-        this.origin = new Point(origin.x, origin.y);
-        this.extent = new Point(extent.x, extent.y);
+        originX = origin.x;
+        originY = origin.y;
+        extentX = extent.x;
+        extentY = extent.y;
     }
     public Region(final double x, final double y, final double deltaX, final double deltaY) {
-        origin = new Point(x, y);
-        extent = new Point(x + deltaX, y + deltaY);
+        set(x, y, deltaX, deltaY);
     }
     public Region(final @NotNull Point[] includedPoints) {
         final Point point1 = includedPoints[0], point2 = includedPoints[1];
-        origin = new Point(Math.min(point1.x, point2.x), Math.min(point1.y, point2.y));
-        extent = new Point(Math.max(point1.x, point2.x), Math.max(point1.y, point2.y));
+        originX = Math.min(point1.x, point2.x);
+        originY = Math.min(point1.y, point2.y);
+        extentX = Math.max(point1.x, point2.x);
+        extentY = Math.max(point1.y, point2.y);
         for(int p=2;p<includedPoints.length;p++) {
-            includePoint(includedPoints[p]);
+            includePoint(includedPoints[p].x, includedPoints[p].y);
         }
     }
     /**
@@ -113,8 +111,44 @@ public class Region {
      * @param regionToCopy the region to copy
      */
     public Region(final @NotNull Region regionToCopy) {
-        origin = new Point(regionToCopy.origin.x, regionToCopy.origin.y);
-        extent = new Point(regionToCopy.extent.x, regionToCopy.extent.y);
+        setRegion(regionToCopy);
+    }
+
+    /**
+     * Sets this region's bounds in place
+     * @param x the origin's x coordinate
+     * @param y the origin's y coordinate
+     * @param deltaX the region's width
+     * @param deltaY the region's height
+     */
+    public void set(final double x, final double y, final double deltaX, final double deltaY) {
+        originX = x;
+        originY = y;
+        extentX = x + deltaX;
+        extentY = y + deltaY;
+    }
+    /**
+     * Sets this region's bounds in place to those of the given region
+     */
+    public void setRegion(final @NotNull Region region) {
+        originX = region.originX;
+        originY = region.originY;
+        extentX = region.extentX;
+        extentY = region.extentY;
+    }
+    /**
+     * @return a new Point at this region's origin
+     */
+    @NotNull
+    public Point getOrigin() {
+        return new Point(originX, originY);
+    }
+    /**
+     * @return a new Point at this region's extent
+     */
+    @NotNull
+    public Point getExtent() {
+        return new Point(extentX, extentY);
     }
 
     /**
@@ -122,29 +156,60 @@ public class Region {
      * @param point
      */
     public void includePoint(final @NotNull Point point) {
-        if(containsPoint(point)) { //bail if the point's already included within the region
-            return;
-        }
-
-        //expand the region to contain the point
-        if(point.x < origin.x) {
-            origin = new Point(point.x, origin.y);
+        includePoint(point.x, point.y);
+    }
+    /**
+     * Expand this region to include the given coordinates
+     */
+    public void includePoint(final double x, final double y) {
+        if(x < originX) {
+            originX = x;
         }
-        if(point.y < origin.y) {
-            origin = new Point(origin.x, point.y);
+        if(y < originY) {
+            originY = y;
         }
-        if(point.x > extent.x) {
-            extent = new Point(point.x, extent.y);
+        if(x > extentX) {
+            extentX = x;
         }
-        if(point.y > extent.y) {
-            extent = new Point(extent.x, point.y);
+        if(y > extentY) {
+            extentY = y;
         }
     }
+    /**
+     * Expand this region in place to include the given region
+     */
     public void combinedBoxWithRegion(final @NotNull Region otherRegion) {
-        double oY = Math.min(origin.y, otherRegion.origin.y), oX = Math.min(origin.x, otherRegion.origin.x);
-        double eY = Math.max(extent.y, otherRegion.extent.y), eX = Math.max(extent.x, otherRegion.extent.x);
-        origin = new Point(oX, oY);
-        extent = new Point(eX, eY);
+        originX = Math.min(originX, otherRegion.originX);
+        originY = Math.min(originY, otherRegion.originY);
+        extentX = Math.max(extentX, otherRegion.extentX);
+        extentY = Math.max(extentY, otherRegion.extentY);
+    }
+    /**
+     * Shrink this region in place to its intersection with the given region
+     * @return true if the regions intersect (with a nonzero area), false if not, in which case this region is left unchanged
+     */
+    public boolean intersect(final @NotNull Region otherRegion) {
+        final double minY = Math.max(originY, otherRegion.originY), maxY = Math.min(extentY, otherRegion.extentY);
+        if(maxY > minY) {
+            final double minX = Math.max(originX, otherRegion.originX), maxX = Math.min(extentX, otherRegion.extentX);
+            if(maxX > minX) {
+                originX = minX;
+                originY = minY;
+                extentX = maxX;
+                extentY = maxY;
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Inset this region in place by the given amounts.  Negative values will expand
+     */
+    public void inset(final double bufferX, final double bufferY) {
+        originX += 0.5 * bufferX;
+        originY += 0.5 * bufferY;
+        extentX -= 0.5 * bufferX;
+        extentY -= 0.5 * bufferY;
     }
 
     /**
@@ -152,7 +217,7 @@ public class Region {
      * @return
      */
     public double area() {
-        return (extent.x - origin.x) * (extent.y - origin.y);
+        return (extentX - originX) * (extentY - originY);
     }
     /**
      * Check whether the given point is inside this region (inclusive)
@@ -160,7 +225,10 @@ public class Region {
      * @return
      */
     public boolean containsPoint(final @NotNull Point point) {
-        return !(point.y < origin.y || point.y > extent.y || point.x < origin.x || point.x > extent.x);
+        return containsPoint(point.x, point.y);
+    }
+    public boolean containsPoint(final double x, final double y) {
+        return !(y < originY || y > extentY || x < originX || x > extentX);
     }
 
     /**
@@ -168,11 +236,19 @@ public class Region {
      * @return
      */
     public Region regionInset(final double bufferX, final double bufferY) {
-        return new Region(origin.x + 0.5 * bufferX, origin.y + 0.5 * bufferY, extent.x - origin.x - bufferX, extent.y - origin.y - bufferY);
+        final Region insetRegion = new Region(this);
+        insetRegion.inset(bufferX, bufferY);
+        return insetRegion;
     }
     @NotNull
     public Point getCentroid() {
-        return new Point(0.5 * (origin.x + extent.x), 0.5 * (origin.y + extent.y));
+        return new Point(getCentroidX(), getCentroidY());
+    }
+    public double getCentroidX() {
+        return 0.5 * (originX + extentX);
+    }
+    public double getCentroidY() {
+        return 0.5 * (originY + extentY);
     }
 
     /*public static Point computeCentroid(final Point[] vertices) {
@@ -237,6 +313,6 @@ public class Region {
     }
     @Override
     public String toString() {
-        return String.format("Region([%.03f,%.03f][%.03f,%.03f])", origin.x, origin.y, extent.x, extent.y);
+        return String.format("Region([%.03f,%.03f][%.03f,%.03f])", originX, originY, extentX, extentY);
     }
 }
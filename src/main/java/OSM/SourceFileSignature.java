@@ -0,0 +1,58 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.zip.CRC32;
+
+/**
+ * Identifies the version of a source file that a derived cache file (snapshot, index etc) was created from.
+ * The cache is considered current if the file's size is unchanged, and either its modification time or its
+ * content checksum is unchanged (so a touched but otherwise identical file doesn't invalidate it).
+ */
+class SourceFileSignature {
+    private final static int BUFFER_SIZE = 65536;
+
+    public final long size, lastModified, checksum;
+
+    SourceFileSignature(final long size, final long lastModified, final long checksum) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.checksum = checksum;
+    }
+    /**
+     * Creates the signature for the given file, reading it to compute the checksum
+     */
+    static SourceFileSignature forFile(final @NotNull File file) throws IOException {
+        return new SourceFileSignature(file.length(), file.lastModified(), checksum(file));
+    }
+    static SourceFileSignature read(final @NotNull DataInput in) throws IOException {
+        return new SourceFileSignature(in.readLong(), in.readLong(), in.readLong());
+    }
+    void write(final @NotNull DataOutput out) throws IOException {
+        out.writeLong(size);
+        out.writeLong(lastModified);
+        out.writeLong(checksum);
+    }
+
+    /**
+     * @return true if the given file still matches this signature
+     */
+    boolean matches(final @NotNull File file) throws IOException {
+        if(file.length() != size) {
+            return false;
+        }
+        return file.lastModified() == lastModified || checksum(file) == checksum;
+    }
+    private static long checksum(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (final InputStream in = new FileInputStream(file)) {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, bytesRead);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -7,6 +7,25 @@ package OSM;
 public class SphericalMercator {
     public final static double r_equator = 6378137.0;
 
+    /**
+     * Latitude scale factor lookup tables, used by metersToCoordDelta() and coordDeltaToMeters() so the conversions are a
+     * table lookup and a multiply, rather than the exp/atan/cos of transformYToLat() on every call.  The scale factor at
+     * Mercator y is cos(lat) = 1 / cosh(y / r_equator), so the tables are sampled in bands of |y| (the factor is
+     * symmetric about the equator) up to the projection's limit of PI * r_equator (~85.05 degrees), and linearly
+     * interpolated between samples.  With 16384 bands (~1.2km of y each), the interpolation's relative error is below
+     * (PI / SCALE_TABLE_BANDS)^2 / 4, i.e. under 1e-8 (a centimeter per 1000km).  Coordinates beyond the projection's
+     * limit fall back to the exact calculation.
+     */
+    private final static int SCALE_TABLE_BANDS = 16384;
+    private final static double MAX_Y = Math.PI * r_equator, BANDS_PER_Y = SCALE_TABLE_BANDS / MAX_Y;
+    private final static double[] cosLatForBand = new double[SCALE_TABLE_BANDS + 2], secLatForBand = new double[SCALE_TABLE_BANDS + 2];
+    static {
+        for(int band = 0; band < cosLatForBand.length; band++) {
+            secLatForBand[band] = Math.cosh(band / BANDS_PER_Y / r_equator);
+            cosLatForBand[band] = 1.0 / secLatForBand[band];
+        }
+    }
+
     public static double deg2rad(final double d) {
         return d * Math.PI / 180.0;
     }
@@ -32,7 +51,12 @@ public class SphericalMercator {
         return new Point(transformLonToX(latLonPoint.x), transformLatToY(latLonPoint.y));
     }
     public static Region latLonToMercator(final Region latLonRegion) {
-        return new Region(latLonToMercator(latLonRegion.origin), latLonToMercator(latLonRegion.extent));
+        final Region mercatorRegion = new Region(latLonRegion);
+        mercatorRegion.originX = transformLonToX(latLonRegion.originX);
+        mercatorRegion.originY = transformLatToY(latLonRegion.originY);
+        mercatorRegion.extentX = transformLonToX(latLonRegion.extentX);
+        mercatorRegion.extentY = transformLatToY(latLonRegion.extentY);
+        return mercatorRegion;
     }
     public static LatLon mercatorToLatLon(final double x, final double y) {
         return new LatLon(transformXToLon(x), transformYToLat(y));
@@ -41,7 +65,7 @@ public class SphericalMercator {
         return new LatLon(transformXToLon(mercatorPoint.x), transformYToLat(mercatorPoint.y));
     }
     public static LatLonRegion mercatorToLatLon(final Region mercatorRegion) {
-        return new LatLonRegion(mercatorToLatLon(mercatorRegion.origin), mercatorToLatLon(mercatorRegion.extent));
+        return new LatLonRegion(mercatorToLatLon(mercatorRegion.getOrigin()), mercatorToLatLon(mercatorRegion.getExtent()));
     }
     /**
      * Finds the distance between two Mercator points
@@ -59,9 +83,21 @@ public class SphericalMercator {
         return coordDeltaToMeters(Math.sqrt(dX * dX + dY * dY), y);
     }
     public static double metersToCoordDelta(final double distanceInMeters, final double y) {
-        return distanceInMeters / Math.cos(deg2rad(transformYToLat(y)));
+        return distanceInMeters * interpolateScale(secLatForBand, y);
     }
     public static double coordDeltaToMeters(final double coordDelta, final double y) {
-        return coordDelta * Math.cos(deg2rad(transformYToLat(y)));
+        return coordDelta * interpolateScale(cosLatForBand, y);
+    }
+    /**
+     * @return cos(lat) (if passed cosLatForBand) or sec(lat) (secLatForBand) at the given Mercator y, interpolated from the table
+     */
+    private static double interpolateScale(final double[] table, final double y) {
+        final double bandPosition = Math.abs(y) * BANDS_PER_Y;
+        if(!(bandPosition <= SCALE_TABLE_BANDS)) { //outside the table (or NaN): use the exact value
+            final double secLat = Math.cosh(y / r_equator);
+            return table == secLatForBand ? secLat : 1.0 / secLat;
+        }
+        final int band = (int) bandPosition;
+        return table[band] + (bandPosition - band) * (table[band + 1] - table[band]);
     }
 }
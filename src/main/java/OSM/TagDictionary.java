@@ -0,0 +1,83 @@
+package OSM;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of the tag keys and values used by a space's entities, so each distinct string is stored once and tags can
+ * be stored as pairs of int ids (see CompactTags).  Each OSMEntitySpace owns its dictionary, so the strings are released
+ * along with the space; tags are translated into the destination space's dictionary when entities are copied between
+ * spaces.  Safe for use by multiple loader threads.
+ */
+final class TagDictionary {
+    final static int DEFAULT_CAPACITY = 1024;
+
+    private final ConcurrentHashMap<String, Integer> ids;
+    private volatile String[] strings;
+    private int count = 0;
+
+    TagDictionary(final int initialCapacity) {
+        ids = new ConcurrentHashMap<>(initialCapacity);
+        strings = new String[Math.max(initialCapacity, 1)];
+    }
+
+    /**
+     * @return the id of the given string, or -1 if it's not in the dictionary (i.e. no entity uses it)
+     */
+    int idOf(final @Nullable String str) {
+        if(str == null) {
+            return -1;
+        }
+        final Integer id = ids.get(str);
+        return id != null ? id : -1;
+    }
+    /**
+     * @return the id of the given string, adding it to the dictionary if needed
+     */
+    int intern(final @NotNull String str) {
+        final Integer id = ids.get(str);
+        if(id != null) {
+            return id;
+        }
+        synchronized (this) {
+            final Integer existingId = ids.get(str);
+            if(existingId != null) {
+                return existingId;
+            }
+            if(count == strings.length) {
+                strings = Arrays.copyOf(strings, count * 2);
+            }
+            strings[count] = str;
+            ids.put(str, count); //publishes the string for lookups by id from other threads
+            return count++;
+        }
+    }
+    @NotNull
+    String get(final int id) {
+        return strings[id];
+    }
+    int size() {
+        return ids.size();
+    }
+    /**
+     * @return the estimated size of the dictionary, including its strings
+     */
+    long estimatedBytes() {
+        final String[] currentStrings = strings;
+        final int stringCount = Math.min(ids.size(), currentStrings.length);
+        long bytes = MemoryFootprint.objectBytes(3, 4) + MemoryFootprint.arrayBytes(currentStrings.length, 4);
+
+        //the hash map: its table, plus a node and boxed id per entry
+        bytes += MemoryFootprint.objectBytes(6, 16) + MemoryFootprint.arrayBytes(Integer.highestOneBit(Math.max(stringCount * 4 / 3, 1)) * 2, 4);
+        bytes += stringCount * (MemoryFootprint.objectBytes(3, 4) + MemoryFootprint.objectBytes(0, 4));
+        for(int s = 0; s < stringCount; s++) {
+            if(currentStrings[s] != null) {
+                bytes += MemoryFootprint.objectBytes(1, 8) + MemoryFootprint.arrayBytes(currentStrings[s].length(), 1);
+            }
+        }
+        return bytes;
+    }
+}
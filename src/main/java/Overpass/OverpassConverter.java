@@ -33,7 +33,7 @@ public class OverpassConverter {
      * @return The formatted overpass query
      */
     public String queryForBoundingBox(final String tagQuery, final Region boundingBox, final double boundingBoxPadding, final OSMEntity.OSMType entityType) {
-        final double paddingInCoords = SphericalMercator.metersToCoordDelta(boundingBoxPadding, boundingBox.getCentroid().y);
+        final double paddingInCoords = SphericalMercator.metersToCoordDelta(boundingBoxPadding, boundingBox.getCentroidY());
         final LatLonRegion expandedBoundingBox = SphericalMercator.mercatorToLatLon(boundingBox.regionInset(-paddingInCoords, -paddingInCoords));
         switch (entityType) {
             case node:
@@ -165,6 +165,6 @@ public class OverpassConverter {
         entity.user = element.getString("user");
         entity.changeset = element.getInt("changeset");
         entity.version = element.getInt("version");
-        entity.timestamp = element.getString("timestamp");
+        entity.timestamp = OSMTimestamp.parse(element.getString("timestamp"));
     }
 }
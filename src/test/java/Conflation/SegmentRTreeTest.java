@@ -0,0 +1,110 @@
+package Conflation;
+
+import OSM.Point;
+import OSM.Region;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks SegmentRTree's window queries against a brute-force scan of random segments, over a range of tree sizes
+ * (including empty, single-node and multi-level trees), before and after removing and inserting segments
+ */
+public class SegmentRTreeTest {
+    private final static int[] TREE_SIZES = {0, 1, 15, 16, 17, 300, 5000, 20000};
+    private final static int QUERIES_PER_SIZE = 500;
+    private final static double AREA_ORIGIN_X = 1.0e6, AREA_ORIGIN_Y = 5.0e6, AREA_SIZE = 50000.0;
+
+    private Random random;
+
+    @Before
+    public void setUp() {
+        random = new Random(16);
+    }
+    private LineSegment randomSegment(final int index) {
+        //mostly short segments, with the occasional long one to produce overlapping nodes
+        final double x = AREA_ORIGIN_X + random.nextDouble() * AREA_SIZE, y = AREA_ORIGIN_Y + random.nextDouble() * AREA_SIZE;
+        final double length = random.nextInt(20) == 0 ? 3000.0 : 30.0;
+        return new OSMLineSegment(null, new Point(x, y), new Point(x + (random.nextDouble() - 0.5) * length, y + (random.nextDouble() - 0.5) * length), null, null, index, index);
+    }
+    private List<LineSegment> randomSegments(final int count) {
+        final List<LineSegment> segments = new ArrayList<>(count);
+        for(int s = 0; s < count; s++) {
+            segments.add(randomSegment(s));
+        }
+        return segments;
+    }
+    /**
+     * Runs random window queries on the tree, checking their results match a scan of the given segments (in order)
+     */
+    private void checkWindowQueries(final SegmentRTree<LineSegment> tree, final List<LineSegment> segments) {
+        final List<LineSegment> foundSegments = new ArrayList<>(64), expectedSegments = new ArrayList<>(64);
+        for(int q = 0; q < QUERIES_PER_SIZE; q++) {
+            final Region window = new Region(AREA_ORIGIN_X + random.nextDouble() * AREA_SIZE, AREA_ORIGIN_Y + random.nextDouble() * AREA_SIZE, random.nextDouble() * 200.0, random.nextDouble() * 200.0);
+            tree.findIntersecting(window, foundSegments);
+            expectedSegments.clear();
+            for(final LineSegment segment : segments) {
+                if(Region.intersects(segment.boundingBox, window)) {
+                    expectedSegments.add(segment);
+                }
+            }
+            assertEquals(segments.size() + " segments, window " + window, expectedSegments, foundSegments);
+        }
+    }
+
+    @Test
+    public void windowQueriesMatchAScan() {
+        for(final int treeSize : TREE_SIZES) {
+            final List<LineSegment> segments = randomSegments(treeSize);
+            final SegmentRTree<LineSegment> tree = new SegmentRTree<>(segments);
+            assertEquals(treeSize, tree.size());
+            checkWindowQueries(tree, segments);
+        }
+    }
+    @Test
+    public void windowQueriesMatchAScanAfterChanges() {
+        for(final int treeSize : TREE_SIZES) {
+            final List<LineSegment> segments = randomSegments(treeSize);
+            final SegmentRTree<LineSegment> tree = new SegmentRTree<>(segments);
+
+            //remove some segments (which may be packed or inserted ones) and insert some new ones
+            for(int c = 0; c < treeSize / 4; c++) {
+                if(random.nextBoolean()) {
+                    assertTrue(tree.remove(segments.remove(random.nextInt(segments.size()))));
+                } else {
+                    final LineSegment segment = randomSegment(treeSize + c);
+                    tree.insert(segment);
+                    segments.add(segment);
+                }
+            }
+            assertEquals(segments.size(), tree.size());
+            checkWindowQueries(tree, segments);
+        }
+    }
+    @Test
+    public void removingAnAbsentSegmentFails() {
+        final List<LineSegment> segments = randomSegments(100);
+        final SegmentRTree<LineSegment> tree = new SegmentRTree<>(segments);
+        assertFalse(tree.remove(randomSegment(100)));
+        assertTrue(tree.remove(segments.get(10)));
+        assertFalse("segments can only be removed once", tree.remove(segments.get(10)));
+        assertFalse(new SegmentRTree<>(Collections.<LineSegment>emptyList()).remove(segments.get(0)));
+        assertEquals(99, tree.size());
+    }
+    @Test
+    public void needsRepackingAfterManyChanges() {
+        final List<LineSegment> segments = randomSegments(1000);
+        final SegmentRTree<LineSegment> tree = new SegmentRTree<>(segments);
+        assertFalse(tree.needsRepacking());
+        for(int s = 0; s < 300; s++) {
+            tree.remove(segments.get(s));
+        }
+        assertTrue(tree.needsRepacking());
+    }
+}
@@ -0,0 +1,82 @@
+package OSM;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that OSMBinarySnapshot reloads a space exactly as it was loaded from the OSM XML
+ */
+public class BinarySnapshotTest {
+    private File sourceFile;
+
+    @Before
+    public void setUp() throws IOException {
+        sourceFile = File.createTempFile("snapshot_test", ".osm");
+    }
+    @After
+    public void tearDown() {
+        OSMBinarySnapshot.snapshotFileFor(sourceFile).delete();
+        sourceFile.delete();
+    }
+    private void writeSource(final String... elements) throws IOException {
+        try (final Writer writer = new OutputStreamWriter(Files.newOutputStream(sourceFile.toPath()), StandardCharsets.UTF_8)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n");
+            for(final String element : elements) {
+                writer.write(element);
+                writer.write('\n');
+            }
+            writer.write("</osm>\n");
+        }
+    }
+    /**
+     * Loads the source file via its snapshot, checking the snapshot was actually used
+     */
+    private OSMEntitySpace loadFromSnapshot() throws Exception {
+        assertTrue("snapshot wasn't written", OSMBinarySnapshot.snapshotFileFor(sourceFile).isFile());
+        final OSMEntitySpace entitySpace = new OSMEntitySpace(16);
+        assertTrue("snapshot wasn't readable", OSMBinarySnapshot.read(entitySpace, sourceFile));
+        return entitySpace;
+    }
+
+    @Test
+    public void stringsLongerThan64KBAreKept() throws Exception {
+        final StringBuilder longValue = new StringBuilder(100000);
+        while (longValue.length() < 90000) {
+            longValue.append("Stra\u00dfe \u2116").append(longValue.length()).append(' ');
+        }
+        longValue.setLength(longValue.length() - 1); //the loader trims tag values
+        writeSource("<node id=\"1\" version=\"1\" lat=\"47.6\" lon=\"-122.3\"><tag k=\"note\" v=\"" + longValue + "\"/></node>");
+
+        new OSMEntitySpace(16).loadFromXMLWithSnapshot(sourceFile.getPath());
+        final OSMNode node = loadFromSnapshot().allNodes.get(1);
+        assertNotNull(node);
+        assertEquals(longValue.toString(), node.getTag("note"));
+    }
+    @Test
+    public void coordinatesRoundTripExactly() throws Exception {
+        writeSource("<node id=\"1\" version=\"1\" lat=\"47.6062095\" lon=\"-122.3320708\"/>",
+                "<node id=\"2\" version=\"1\" lat=\"47.606209512345\" lon=\"-122.332070898765\"/>",
+                "<node id=\"3\" version=\"1\" lat=\"-33.8688\" lon=\"151.2093\"/>");
+
+        final OSMEntitySpace xmlSpace = new OSMEntitySpace(16);
+        xmlSpace.loadFromXMLWithSnapshot(sourceFile.getPath());
+        final OSMEntitySpace snapshotSpace = loadFromSnapshot();
+        assertEquals(xmlSpace.allNodes.size(), snapshotSpace.allNodes.size());
+        for(final OSMNode xmlNode : xmlSpace.allNodes.values()) {
+            final OSMNode snapshotNode = snapshotSpace.allNodes.get(xmlNode.osm_id);
+            assertNotNull(snapshotNode);
+            assertTrue("node " + xmlNode.osm_id + " x differs", xmlNode.getX() == snapshotNode.getX());
+            assertTrue("node " + xmlNode.osm_id + " y differs", xmlNode.getY() == snapshotNode.getY());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package OSM;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that OSMChangeJournal's incrementally-maintained summary matches the space's changes
+ */
+public class ChangeJournalTest {
+    private final static int NODE = OSMEntity.OSMType.node.ordinal(), WAY = OSMEntity.OSMType.way.ordinal();
+
+    private OSMEntitySpace entitySpace;
+    private OSMNode existingNode1, existingNode2;
+    private OSMWay existingWay;
+
+    @Before
+    public void setUp() {
+        entitySpace = new OSMEntitySpace(64);
+
+        //an already-uploaded way and its nodes, with no pending changes
+        existingNode1 = addExistingNode(101, 0.0, 0.0);
+        existingNode2 = addExistingNode(102, 100.0, 0.0);
+        final OSMWay way = new OSMWay(201);
+        way.version = 1;
+        way.complete = OSMEntity.CompletionStatus.membersComplete;
+        way.appendNode(existingNode1);
+        way.appendNode(existingNode2);
+        way.setAction(OSMEntity.ChangeAction.none);
+        existingWay = (OSMWay) entitySpace.addEntity(way, OSMEntity.TagMergeStrategy.keepTags, null, true, 0);
+    }
+    private OSMNode addExistingNode(final long id, final double x, final double y) {
+        final OSMNode node = new OSMNode(id);
+        node.setCoordinate(x, y);
+        node.version = 1;
+        node.complete = OSMEntity.CompletionStatus.self;
+        return (OSMNode) entitySpace.addEntity(node, OSMEntity.TagMergeStrategy.keepTags, null, true, 0);
+    }
+
+    @Test
+    public void unchangedSpaceHasAnEmptySummary() {
+        final OSMChangeJournal.Summary summary = entitySpace.changeJournal.summarize();
+        assertEquals(0, summary.getTotal());
+        assertNull(summary.boundingBox);
+    }
+    @Test
+    public void createdModifiedAndDeletedEntitiesAreCounted() {
+        final OSMNode newNode = entitySpace.createNode(50.0, 50.0, null);
+        entitySpace.createWay(null, Arrays.asList(existingNode2, newNode));
+        existingNode1.setTag(OSMEntity.KEY_NAME, "Main St");
+        existingNode1.setTag(OSMEntity.KEY_REF, "1"); //already modified: mustn't be counted twice
+
+        OSMChangeJournal.Summary summary = entitySpace.changeJournal.summarize();
+        assertEquals(1, summary.created[NODE]);
+        assertEquals(1, summary.modified[NODE]);
+        assertEquals(1, summary.created[WAY]);
+        assertEquals(3, summary.getTotal());
+
+        entitySpace.deleteEntity(existingWay);
+        entitySpace.deleteEntity(newNode); //never uploaded, so it's dropped rather than deleted
+        summary = entitySpace.changeJournal.summarize();
+        assertEquals(0, summary.created[NODE]);
+        assertEquals(1, summary.deleted[WAY]);
+        assertEquals(entitySpace.changeJournal.getChangedEntities().size(), summary.getTotal());
+    }
+    @Test
+    public void resettingActionsEmptiesTheSummary() {
+        existingNode1.setCoordinate(10.0, 10.0);
+        existingWay.setTag(OSMEntity.KEY_NAME, "Main St");
+        assertEquals(2, entitySpace.changeJournal.summarize().getTotal());
+
+        entitySpace.markAllEntitiesWithAction(OSMEntity.ChangeAction.none);
+        assertEquals(0, entitySpace.changeJournal.summarize().getTotal());
+    }
+    @Test
+    public void boundingBoxGrowsWithChangedGeometry() {
+        final OSMWay newWay = entitySpace.createWay(null, Arrays.asList(entitySpace.createNode(0.0, 0.0, null), entitySpace.createNode(10.0, 10.0, null)));
+        newWay.appendNode(existingNode2); //an unchanged node, added to a changed way
+        final Region boundingBox = entitySpace.changeJournal.summarize().boundingBox;
+        assertNotNull(boundingBox);
+        assertTrue(boundingBox.containsPoint(existingNode2.getX(), existingNode2.getY()));
+        assertTrue(boundingBox.containsPoint(10.0, 10.0));
+    }
+    @Test
+    public void boundingBoxCoversAnAllNewSpace() {
+        final OSMEntitySpace newSpace = new OSMEntitySpace(16);
+        final OSMWay newWay = newSpace.createWay(null, Arrays.asList(newSpace.createNode(-5.0, 20.0, null), newSpace.createNode(30.0, -40.0, null)));
+        newWay.appendNode(newSpace.createNode(60.0, 5.0, null));
+        assertTrue(newSpace.changeJournal.coversEntireSpace());
+        assertFalse(entitySpace.changeJournal.coversEntireSpace());
+
+        final Region journalBoundingBox = newSpace.changeJournal.summarize().boundingBox, spaceBoundingBox = newSpace.getBoundingBox();
+        assertNotNull(journalBoundingBox);
+        assertNotNull(spaceBoundingBox);
+        assertEquals(spaceBoundingBox.toString(), journalBoundingBox.toString());
+    }
+    @Test
+    public void summaryIsRolledBackWithAFork() {
+        existingNode1.setTag(OSMEntity.KEY_NAME, "Main St");
+        final String originalSummary = entitySpace.changeJournal.summarize().toString();
+
+        final OSMEntitySpaceFork fork = entitySpace.fork();
+        entitySpace.createNode(50.0, 50.0, null);
+        existingNode2.setTag(OSMEntity.KEY_NAME, "Second St");
+        entitySpace.deleteEntity(existingWay);
+        assertEquals(4, entitySpace.changeJournal.summarize().getTotal());
+        fork.discard();
+
+        assertEquals(originalSummary, entitySpace.changeJournal.summarize().toString());
+        assertEquals(1, entitySpace.changeJournal.getChangedEntities().size());
+    }
+}
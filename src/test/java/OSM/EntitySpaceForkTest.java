@@ -0,0 +1,136 @@
+package OSM;
+
+import Importer.InvalidArgumentException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that discarding an OSMEntitySpaceFork restores the space exactly, and that committing keeps the changes
+ */
+public class EntitySpaceForkTest {
+    private OSMEntitySpace entitySpace;
+    private OSMNode node1, node2, node3;
+    private OSMWay way;
+    private OSMRelation relation;
+
+    @Before
+    public void setUp() {
+        entitySpace = new OSMEntitySpace(64);
+        node1 = entitySpace.createNode(0.0, 0.0, null);
+        node2 = entitySpace.createNode(100.0, 0.0, null);
+        node3 = entitySpace.createNode(200.0, 50.0, null);
+        way = entitySpace.createWay(null, Arrays.asList(node1, node2, node3));
+        way.setTag(OSMEntity.KEY_NAME, "Main St");
+        relation = entitySpace.createRelation(null, null);
+        relation.setTag(OSMEntity.KEY_TYPE, "route");
+        relation.addMember(way, "");
+        relation.addMember(entitySpace.createWay(null, Arrays.asList(node3, entitySpace.createNode(200.0, 150.0, null))), "");
+        relation.addMember(node1, "stop");
+    }
+    /**
+     * Describes the space's entities, their geometry, tags and memberships, and its change journal
+     */
+    private String describeSpace() {
+        final StringBuilder description = new StringBuilder(1024);
+        for(final OSMNode node : sortedById(entitySpace.allNodes.values())) {
+            description.append(String.format("n%d %s %s %s %s ways %d relations %d\n", node.osm_id, node.getX(), node.getY(), node.getAction(), node.getTags(), node.getContainingWayCount(), node.getContainingRelationCount()));
+        }
+        for(final OSMWay way : sortedById(entitySpace.allWays.values())) {
+            description.append(String.format("w%d %s %s relations %d nodes", way.osm_id, way.getAction(), way.getTags(), way.getContainingRelationCount()));
+            for(final OSMNode node : way.getNodes()) {
+                description.append(' ').append(node.osm_id);
+            }
+            description.append('\n');
+        }
+        for(final OSMRelation relation : sortedById(entitySpace.allRelations.values())) {
+            description.append(String.format("r%d %s %s members", relation.osm_id, relation.getAction(), relation.getTags()));
+            for(final OSMRelation.OSMRelationMember member : relation.members) {
+                description.append(' ').append(member.member.getType()).append(member.member.osm_id).append('/').append(member.role);
+            }
+            description.append('\n');
+        }
+        description.append("deleted ").append(entitySpace.deletedEntities.size()).append('\n');
+        for(final OSMEntity entity : entitySpace.changeJournal.getChangedEntities()) {
+            description.append("journal ").append(entity.getType()).append(entity.osm_id).append(' ').append(entity.getAction()).append('\n');
+        }
+        return description.append(entitySpace.changeJournal.summarize()).toString();
+    }
+    private static <T extends OSMEntity> List<T> sortedById(final Iterable<T> entities) {
+        final List<T> sortedEntities = new ArrayList<>();
+        for(final T entity : entities) {
+            sortedEntities.add(entity);
+        }
+        sortedEntities.sort(OSMEntitySpace.entityIdComparator);
+        return sortedEntities;
+    }
+    private void makeChanges() throws InvalidArgumentException {
+        node2.setCoordinate(150.0, 25.0);
+        node3.setTag(OSMEntity.KEY_NAME, "Corner");
+        way.removeTag(OSMEntity.KEY_NAME);
+        final OSMNode newNode = entitySpace.createNode(300.0, 50.0, null);
+        way.appendNode(newNode);
+        relation.addMember(newNode, "stop");
+        relation.removeMember(node1, 1);
+        entitySpace.createWay(null, Arrays.asList(node3, newNode));
+        entitySpace.splitWay(way, new OSMNode[]{node2});
+    }
+
+    @Test
+    public void discardRestoresTheSpace() throws InvalidArgumentException {
+        final String originalSpace = describeSpace();
+        final OSMEntitySpaceFork fork = entitySpace.fork();
+        makeChanges();
+        entitySpace.deleteEntity(node1);
+        assertNotEquals(originalSpace, describeSpace());
+
+        fork.discard();
+        assertEquals(originalSpace, describeSpace());
+        assertNull(entitySpace.getActiveFork());
+    }
+    @Test
+    public void commitKeepsTheChanges() throws InvalidArgumentException {
+        final OSMEntitySpaceFork fork = entitySpace.fork();
+        makeChanges();
+        final String changedSpace = describeSpace();
+        fork.commit();
+        assertEquals(changedSpace, describeSpace());
+        assertFalse(fork.isActive());
+    }
+    @Test
+    public void laterForksSaveStateAgain() {
+        entitySpace.fork().commit();
+        final OSMEntitySpaceFork firstFork = entitySpace.fork();
+        node2.setCoordinate(150.0, 25.0);
+        assertEquals(1, firstFork.getModifiedEntityCount());
+        firstFork.commit();
+
+        //node2 was already saved in the first fork: it must be saved again in the second one
+        final String committedSpace = describeSpace();
+        final OSMEntitySpaceFork secondFork = entitySpace.fork();
+        node2.setCoordinate(175.0, 25.0);
+        assertEquals(1, secondFork.getModifiedEntityCount());
+        secondFork.discard();
+        assertEquals(committedSpace, describeSpace());
+    }
+    @Test
+    public void entitiesCreatedInTheForkAreNotSaved() {
+        final OSMEntitySpaceFork fork = entitySpace.fork();
+        final OSMNode newNode = entitySpace.createNode(10.0, 10.0, null);
+        newNode.setTag(OSMEntity.KEY_NAME, "New");
+        assertEquals(0, fork.getModifiedEntityCount());
+        fork.discard();
+        assertNull(entitySpace.allNodes.get(newNode.osm_id));
+    }
+    @Test(expected = IllegalStateException.class)
+    public void forkCanOnlyEndOnce() {
+        final OSMEntitySpaceFork fork = entitySpace.fork();
+        fork.commit();
+        fork.discard();
+    }
+}
@@ -0,0 +1,95 @@
+package OSM;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that IdHash's ids are deterministic and collision-free, using the LineSegment and SegmentMatch id formulas over
+ * random segments
+ */
+public class IdHashTest {
+    private final static int SEGMENT_COUNT = 200000;
+    private final static long LINE_SEGMENT_SEED = 0x4C53L, SEGMENT_MATCH_SEED = 0x534DL; //as used by LineSegment and SegmentMatch
+    private final static double AREA_SIZE = 50000.0, MAXIMUM_SEGMENT_LENGTH = 50.0; //in meters
+
+    /**
+     * @return the coordinates of random segments of up to 50m, within a 50km square (in mercator meters), as x1, y1, x2, y2
+     */
+    private static double[] randomSegmentCoordinates(final int segmentCount) {
+        final Random random = new Random(segmentCount);
+        final double[] coordinates = new double[4 * segmentCount];
+        for(int s = 0; s < segmentCount; s++) {
+            final double originX = -13618000.0 + random.nextDouble() * AREA_SIZE, originY = 6040000.0 + random.nextDouble() * AREA_SIZE;
+            coordinates[4 * s] = originX;
+            coordinates[4 * s + 1] = originY;
+            coordinates[4 * s + 2] = originX + (random.nextDouble() * 2.0 - 1.0) * MAXIMUM_SEGMENT_LENGTH;
+            coordinates[4 * s + 3] = originY + (random.nextDouble() * 2.0 - 1.0) * MAXIMUM_SEGMENT_LENGTH;
+        }
+        return coordinates;
+    }
+    private static long lineSegmentId(final double[] coordinates, final int s) {
+        return IdHash.hash(LINE_SEGMENT_SEED, IdHash.coordinateBits(coordinates[4 * s + 1]), IdHash.coordinateBits(coordinates[4 * s]), IdHash.coordinateBits(coordinates[4 * s + 3]), IdHash.coordinateBits(coordinates[4 * s + 2]));
+    }
+    private static long[] lineSegmentIds(final double[] coordinates) {
+        final long[] ids = new long[coordinates.length / 4];
+        for(int s = 0; s < ids.length; s++) {
+            ids[s] = lineSegmentId(coordinates, s);
+        }
+        return ids;
+    }
+    /**
+     * @return SegmentMatch ids, pairing each segment with the next one
+     */
+    private static long[] segmentMatchIds(final long[] lineSegmentIds) {
+        final long[] ids = new long[lineSegmentIds.length];
+        for(int s = 0; s < ids.length; s++) {
+            ids[s] = IdHash.hash(SEGMENT_MATCH_SEED, lineSegmentIds[s], lineSegmentIds[(s + 1) % ids.length]);
+        }
+        return ids;
+    }
+    /**
+     * @return the number of ids that duplicate an earlier id
+     */
+    private static int countCollisions(final long[] ids) {
+        final long[] sortedIds = Arrays.copyOf(ids, ids.length);
+        Arrays.sort(sortedIds);
+        int collisions = 0;
+        for(int i = 1; i < sortedIds.length; i++) {
+            if(sortedIds[i] == sortedIds[i - 1]) {
+                collisions++;
+            }
+        }
+        return collisions;
+    }
+
+    @Test
+    public void idsAreDeterministic() {
+        final double[] coordinates = randomSegmentCoordinates(1000);
+        final long[] ids = lineSegmentIds(coordinates);
+        assertArrayEquals(ids, lineSegmentIds(Arrays.copyOf(coordinates, coordinates.length)));
+        assertArrayEquals(segmentMatchIds(ids), segmentMatchIds(Arrays.copyOf(ids, ids.length)));
+    }
+    @Test
+    public void lineSegmentIdsDontCollide() {
+        assertEquals(0, countCollisions(lineSegmentIds(randomSegmentCoordinates(SEGMENT_COUNT))));
+    }
+    @Test
+    public void segmentMatchIdsDontCollide() {
+        assertEquals(0, countCollisions(segmentMatchIds(lineSegmentIds(randomSegmentCoordinates(SEGMENT_COUNT)))));
+    }
+    @Test
+    public void idsDependOnTheOrderAndSeed() {
+        assertNotEquals(IdHash.hash(SEGMENT_MATCH_SEED, 1, 2), IdHash.hash(SEGMENT_MATCH_SEED, 2, 1));
+        assertNotEquals(IdHash.hash(SEGMENT_MATCH_SEED, 1, 2), IdHash.hash(LINE_SEGMENT_SEED, 1, 2));
+        assertNotEquals(IdHash.hash(SEGMENT_MATCH_SEED, 0, 0), IdHash.hash(SEGMENT_MATCH_SEED, 0, 0, 0));
+    }
+    @Test
+    public void negativeZeroHashesLikeZero() {
+        assertEquals(IdHash.coordinateBits(0.0), IdHash.coordinateBits(-0.0));
+        assertEquals(IdHash.hash(LINE_SEGMENT_SEED, IdHash.coordinateBits(-0.0), 1, 2, 3), IdHash.hash(LINE_SEGMENT_SEED, IdHash.coordinateBits(0.0), 1, 2, 3));
+    }
+}
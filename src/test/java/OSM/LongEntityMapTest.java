@@ -0,0 +1,177 @@
+package OSM;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests LongEntityMap against a HashMap<Long, V> reference, using random positive and negative ids
+ */
+public class LongEntityMapTest {
+    private LongEntityMap<String> map;
+    private Map<Long, String> referenceMap;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        map = new LongEntityMap<>(4);
+        referenceMap = new HashMap<>();
+        random = new Random(262144);
+    }
+    /**
+     * @return a random id in [-range, range], so ids are regularly reused
+     */
+    private long randomId(final int range) {
+        return random.nextInt(2 * range + 1) - range;
+    }
+    private static Set<Long> keysOf(final LongEntityMap<?> map) {
+        final Set<Long> keys = new HashSet<>(map.size());
+        final LongEntityMap.LongIterator iterator = map.keyIterator();
+        while (iterator.hasNext()) {
+            assertTrue("duplicate key returned", keys.add(iterator.next()));
+        }
+        return keys;
+    }
+    private void checkMatchesReference() {
+        assertEquals(referenceMap.size(), map.size());
+        assertEquals(referenceMap.isEmpty(), map.isEmpty());
+        assertEquals(referenceMap.keySet(), keysOf(map));
+        for(final Map.Entry<Long, String> entry : referenceMap.entrySet()) {
+            assertTrue(map.containsKey(entry.getKey()));
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        final List<String> values = new ArrayList<>(map.values()), expectedValues = new ArrayList<>(referenceMap.values());
+        Collections.sort(values);
+        Collections.sort(expectedValues);
+        assertEquals(expectedValues, values);
+        assertEquals(referenceMap.size(), map.values().size());
+    }
+
+    @Test
+    public void randomOperationsMatchAHashMap() {
+        //a small id range makes long probe chains and plenty of overwrites and removals within them
+        for(int o = 0; o < 200000; o++) {
+            final long id = randomId(2000);
+            final int operation = random.nextInt(10);
+            if(operation < 6) {
+                final String value = "v" + o;
+                assertEquals(referenceMap.put(id, value), map.put(id, value));
+            } else if(operation < 9) {
+                assertEquals(referenceMap.remove(id), map.remove(id));
+            } else {
+                assertEquals(referenceMap.get(id), map.get(id));
+                assertEquals(referenceMap.containsKey(id), map.containsKey(id));
+            }
+            if(o % 20000 == 0) {
+                checkMatchesReference();
+            }
+        }
+        checkMatchesReference();
+    }
+    @Test
+    public void removingEveryEntryEmptiesTheMap() {
+        for(int i = 0; i < 5000; i++) {
+            final long id = random.nextLong();
+            map.put(id, Long.toString(id));
+            referenceMap.put(id, Long.toString(id));
+        }
+        final List<Long> ids = new ArrayList<>(referenceMap.keySet());
+        Collections.shuffle(ids, random);
+        for(final Long id : ids) {
+            assertEquals(referenceMap.remove(id), map.remove(id));
+            assertNull(map.get(id));
+        }
+        checkMatchesReference();
+        assertFalse(map.keyIterator().hasNext());
+    }
+    @Test
+    public void extremeIdsAreKept() {
+        final long[] ids = {0L, -1L, 1L, Long.MIN_VALUE, Long.MAX_VALUE};
+        for(final long id : ids) {
+            map.put(id, Long.toString(id));
+        }
+        for(final long id : ids) {
+            assertEquals(Long.toString(id), map.get(id));
+        }
+        assertEquals(ids.length, map.size());
+    }
+    @Test
+    public void ensureCapacityKeepsTheEntries() {
+        for(int i = 0; i < 100; i++) {
+            final long id = randomId(1000000);
+            map.put(id, "v" + i);
+            referenceMap.put(id, "v" + i);
+        }
+        map.ensureCapacity(100000);
+        checkMatchesReference();
+        map.ensureCapacity(10); //smaller than the current capacity: no effect
+        checkMatchesReference();
+        for(int i = 0; i < 100000; i++) {
+            final long id = -i;
+            map.put(id, "n" + i);
+            referenceMap.put(id, "n" + i);
+        }
+        checkMatchesReference();
+    }
+    @Test
+    public void clearEmptiesTheMap() {
+        for(long id = -50; id < 50; id++) {
+            map.put(id, "v" + id);
+        }
+        map.clear();
+        checkMatchesReference();
+        assertNull(map.get(10));
+        map.put(10, "again");
+        assertEquals("again", map.get(10));
+        assertEquals(1, map.size());
+    }
+    @Test(expected = NullPointerException.class)
+    public void nullValuesAreRejected() {
+        map.put(1, null);
+    }
+    @Test(expected = ConcurrentModificationException.class)
+    public void modifyingDuringKeyIterationFails() {
+        map.put(1, "a");
+        map.put(2, "b");
+        final LongEntityMap.LongIterator iterator = map.keyIterator();
+        iterator.next();
+        map.put(3, "c");
+        iterator.next();
+    }
+    @Test(expected = ConcurrentModificationException.class)
+    public void modifyingDuringValueIterationFails() {
+        map.put(1, "a");
+        map.put(2, "b");
+        final Iterator<String> iterator = map.values().iterator();
+        iterator.next();
+        map.remove(1);
+        iterator.next();
+    }
+    @Test
+    public void overwritingDuringIterationIsAllowed() {
+        map.put(1, "a");
+        map.put(2, "b");
+        final Iterator<String> iterator = map.values().iterator();
+        iterator.next();
+        map.put(1, "c");
+        iterator.next();
+        assertFalse(iterator.hasNext());
+    }
+    @Test(expected = UnsupportedOperationException.class)
+    public void valuesAreReadOnly() {
+        map.put(1, "a");
+        final Iterator<String> iterator = map.values().iterator();
+        iterator.next();
+        iterator.remove();
+    }
+    @Test(expected = NoSuchElementException.class)
+    public void iteratingPastTheEndFails() {
+        map.put(1, "a");
+        final LongEntityMap.LongIterator iterator = map.keyIterator();
+        iterator.next();
+        iterator.next();
+    }
+}
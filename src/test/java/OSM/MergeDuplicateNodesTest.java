@@ -0,0 +1,91 @@
+package OSM;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests OSMEntitySpace.findDuplicateNodes() and mergeDuplicateNodes()
+ */
+public class MergeDuplicateNodesTest {
+    private final static double TOLERANCE = 2.0, ORIGIN_X = 1.0e6, ORIGIN_Y = 5.0e6;
+
+    private OSMEntitySpace entitySpace;
+
+    @Before
+    public void setUp() {
+        entitySpace = new OSMEntitySpace(64);
+    }
+    /**
+     * Creates a node the given distance east of the origin
+     */
+    private OSMNode createNodeAt(final double metersEast) {
+        return entitySpace.createNode(ORIGIN_X + SphericalMercator.metersToCoordDelta(metersEast, ORIGIN_Y), ORIGIN_Y, null);
+    }
+    private static double distanceBetween(final OSMNode node1, final OSMNode node2) {
+        return Point.distance(node1.getX(), node1.getY(), node2.getX(), node2.getY());
+    }
+
+    @Test
+    public void chainedNodesAreOnlyMergedWithinToleranceOfTheKeptNode() {
+        //each node is within the tolerance of the next, but the ends are 1.6x the tolerance apart
+        final OSMNode node1 = createNodeAt(0.0), node2 = createNodeAt(0.8 * TOLERANCE), node3 = createNodeAt(1.6 * TOLERANCE), farNode = createNodeAt(100.0);
+        final OSMWay way = entitySpace.createWay(null, Arrays.asList(node1, node2, node3, farNode));
+
+        final List<OSMNode[]> groups = entitySpace.findDuplicateNodes(TOLERANCE);
+        assertEquals(1, groups.size());
+        final OSMNode keptNode = groups.get(0)[0];
+        for(final OSMNode node : groups.get(0)) {
+            assertTrue(distanceBetween(keptNode, node) <= TOLERANCE);
+        }
+
+        assertEquals(1, entitySpace.mergeDuplicateNodes(groups));
+        final List<OSMNode> wayNodes = way.getNodes();
+        assertEquals(3, wayNodes.size());
+        assertSame(farNode, wayNodes.get(2));
+        assertTrue("the chain's remaining nodes should be further apart than the tolerance", distanceBetween(wayNodes.get(0), wayNodes.get(1)) > TOLERANCE);
+        assertEquals(3, entitySpace.allNodes.size());
+    }
+    @Test
+    public void keptNodeGetsTheMergedNodesTags() {
+        final OSMNode node1 = createNodeAt(0.0), node2 = createNodeAt(0.5);
+        node2.setTag(OSMEntity.KEY_NAME, "Main St");
+        entitySpace.createWay(null, Arrays.asList(node1, node2, createNodeAt(50.0)));
+
+        assertEquals(1, entitySpace.mergeDuplicateNodes(TOLERANCE));
+        final OSMNode keptNode = entitySpace.allNodes.get(node1.osm_id) != null ? node1 : node2;
+        assertEquals("Main St", keptNode.getTag(OSMEntity.KEY_NAME));
+        assertEquals(1, keptNode.getContainingWayCount());
+    }
+    @Test
+    public void waysLeftWithFewerThanTwoNodesAreDeleted() {
+        //an open way and a closed way whose nodes all merge into one node, and a way that keeps 2 distinct nodes
+        final OSMNode node1 = createNodeAt(0.0), node2 = createNodeAt(0.5), node3 = createNodeAt(1.0), distantNode = createNodeAt(30.0);
+        final OSMWay collapsedWay = entitySpace.createWay(null, Arrays.asList(node1, node2));
+        final OSMWay collapsedLoop = entitySpace.createWay(null, Arrays.asList(node1, node2, node3, node1));
+        final OSMWay survivingWay = entitySpace.createWay(null, Arrays.asList(node3, distantNode));
+        final OSMRelation relation = entitySpace.createRelation(null, null);
+        relation.addMember(collapsedWay, "");
+        relation.addMember(survivingWay, "");
+
+        assertEquals(2, entitySpace.mergeDuplicateNodes(TOLERANCE));
+        assertNull(entitySpace.allWays.get(collapsedWay.osm_id));
+        assertNull(entitySpace.allWays.get(collapsedLoop.osm_id));
+        assertSame(survivingWay, entitySpace.allWays.get(survivingWay.osm_id));
+        assertEquals(2, survivingWay.getNodes().size());
+        assertEquals(1, relation.members.size());
+        assertSame(survivingWay, relation.members.get(0).member);
+    }
+    @Test
+    public void distantNodesAreNotGrouped() {
+        createNodeAt(0.0);
+        createNodeAt(2.5 * TOLERANCE);
+        assertEquals(Collections.emptyList(), entitySpace.findDuplicateNodes(TOLERANCE));
+        assertEquals(0, entitySpace.mergeDuplicateNodes(TOLERANCE));
+    }
+}
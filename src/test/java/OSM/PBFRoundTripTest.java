@@ -0,0 +1,140 @@
+package OSM;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a space written with OSMEntitySpace.outputPBF() is reloaded by loadFromPBF() with the same entities,
+ * tags, metadata and memberships
+ */
+public class PBFRoundTripTest {
+    private final static double COORDINATE_TOLERANCE = 1e-7; //PBF's default granularity of 100 nanodegrees
+
+    private File sourceFile, pbfFile;
+
+    @Before
+    public void setUp() throws IOException {
+        sourceFile = File.createTempFile("pbf_test", ".osm");
+        pbfFile = File.createTempFile("pbf_test", OSMEntitySpace.PBF_FILE_EXTENSION);
+    }
+    @After
+    public void tearDown() {
+        sourceFile.delete();
+        pbfFile.delete();
+    }
+    private OSMEntitySpace loadSource(final String... elements) throws Exception {
+        try (final Writer writer = new OutputStreamWriter(Files.newOutputStream(sourceFile.toPath()), StandardCharsets.UTF_8)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n");
+            for(final String element : elements) {
+                writer.write(element);
+                writer.write('\n');
+            }
+            writer.write("</osm>\n");
+        }
+        final OSMEntitySpace entitySpace = new OSMEntitySpace(16);
+        entitySpace.loadFromXML(sourceFile.getPath());
+        return entitySpace;
+    }
+    private OSMEntitySpace roundTrip(final OSMEntitySpace entitySpace) throws IOException {
+        entitySpace.outputPBF(pbfFile.getPath());
+        final OSMEntitySpace pbfSpace = new OSMEntitySpace(16);
+        pbfSpace.loadFromPBF(pbfFile.getPath());
+        return pbfSpace;
+    }
+    /**
+     * Describes everything about an entity that PBF stores, except node coordinates (which are checked separately)
+     */
+    private static String describeEntity(final OSMEntity entity) {
+        final StringBuilder description = new StringBuilder(256);
+        description.append(entity.getType()).append(entity.osm_id).append(' ').append(entity.getTags());
+        description.append(String.format(" v%d t%d c%d u%d %s visible %s", entity.version, entity.timestamp, entity.changeset, entity.uid, entity.user, entity.visible));
+        if(entity instanceof OSMWay) {
+            description.append(" nodes");
+            for(final OSMNode node : ((OSMWay) entity).getNodes()) {
+                description.append(' ').append(node.osm_id);
+            }
+        } else if(entity instanceof OSMRelation) {
+            description.append(" members");
+            for(final OSMRelation.OSMRelationMember member : ((OSMRelation) entity).members) {
+                description.append(' ').append(member.member.getType()).append(member.member.osm_id).append('/').append(member.role);
+            }
+        }
+        return description.toString();
+    }
+    private static List<String> describeEntities(final Iterable<? extends OSMEntity> entities) {
+        final List<OSMEntity> sortedEntities = new ArrayList<>();
+        for(final OSMEntity entity : entities) {
+            sortedEntities.add(entity);
+        }
+        sortedEntities.sort(OSMEntitySpace.entityIdComparator);
+        final List<String> descriptions = new ArrayList<>(sortedEntities.size());
+        for(final OSMEntity entity : sortedEntities) {
+            descriptions.add(describeEntity(entity));
+        }
+        return descriptions;
+    }
+    private static void checkSameEntities(final OSMEntitySpace expectedSpace, final OSMEntitySpace actualSpace) {
+        assertEquals(describeEntities(expectedSpace.allNodes.values()), describeEntities(actualSpace.allNodes.values()));
+        assertEquals(describeEntities(expectedSpace.allWays.values()), describeEntities(actualSpace.allWays.values()));
+        assertEquals(describeEntities(expectedSpace.allRelations.values()), describeEntities(actualSpace.allRelations.values()));
+        for(final OSMNode expectedNode : expectedSpace.allNodes.values()) {
+            final OSMNode actualNode = actualSpace.allNodes.get(expectedNode.osm_id);
+            assertEquals(SphericalMercator.transformXToLon(expectedNode.getX()), SphericalMercator.transformXToLon(actualNode.getX()), COORDINATE_TOLERANCE);
+            assertEquals(SphericalMercator.transformYToLat(expectedNode.getY()), SphericalMercator.transformYToLat(actualNode.getY()), COORDINATE_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void loadedEntitiesRoundTrip() throws Exception {
+        final OSMEntitySpace xmlSpace = loadSource(
+                "<node id=\"1\" version=\"3\" timestamp=\"2019-05-01T12:30:00Z\" changeset=\"1234\" uid=\"42\" user=\"mapper\" lat=\"47.6062095\" lon=\"-122.3320708\"><tag k=\"highway\" v=\"bus_stop\"/><tag k=\"name\" v=\"3rd Ave &amp; Pike St\"/></node>",
+                "<node id=\"2\" version=\"1\" timestamp=\"2020-01-01T00:00:00Z\" changeset=\"99\" uid=\"7\" user=\"Straße\" lat=\"47.6070000\" lon=\"-122.3330000\"/>",
+                "<node id=\"3\" version=\"2\" lat=\"-33.8688000\" lon=\"151.2093000\"/>",
+                "<way id=\"10\" version=\"5\" timestamp=\"2021-02-03T04:05:06Z\" changeset=\"1235\" uid=\"42\" user=\"mapper\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/><tag k=\"highway\" v=\"primary\"/></way>",
+                "<relation id=\"20\" version=\"1\"><member type=\"way\" ref=\"10\" role=\"\"/><member type=\"node\" ref=\"1\" role=\"stop\"/><tag k=\"type\" v=\"route\"/></relation>",
+                "<relation id=\"21\" version=\"2\"><member type=\"relation\" ref=\"20\" role=\"\"/><tag k=\"type\" v=\"route_master\"/></relation>");
+
+        checkSameEntities(xmlSpace, roundTrip(xmlSpace));
+    }
+    @Test
+    public void createdEntitiesRoundTrip() throws Exception {
+        //new entities have negative ids and no metadata
+        final OSMEntitySpace entitySpace = new OSMEntitySpace(16);
+        final List<OSMNode> nodes = new ArrayList<>();
+        for(int n = 0; n < 20000; n++) { //more than one PBF block's worth
+            nodes.add(entitySpace.createNode(SphericalMercator.transformLonToX(-122.0 - n * 1e-5), SphericalMercator.transformLatToY(47.0 + n * 1e-5), null));
+        }
+        final OSMWay way = entitySpace.createWay(null, nodes.subList(0, 500));
+        way.setTag(OSMEntity.KEY_NAME, "№ 1 – Main St");
+        final OSMRelation relation = entitySpace.createRelation(null, null);
+        relation.setTag(OSMEntity.KEY_TYPE, "route");
+        relation.addMember(way, "");
+        relation.addMember(nodes.get(0), "platform");
+
+        checkSameEntities(entitySpace, roundTrip(entitySpace));
+    }
+    @Test
+    public void deletedEntitiesAreLeftOut() throws Exception {
+        final OSMEntitySpace xmlSpace = loadSource(
+                "<node id=\"1\" version=\"1\" lat=\"47.6\" lon=\"-122.3\"/>",
+                "<node id=\"2\" version=\"1\" lat=\"47.7\" lon=\"-122.4\"/>");
+        xmlSpace.deleteEntity(xmlSpace.allNodes.get(2));
+
+        final OSMEntitySpace pbfSpace = roundTrip(xmlSpace);
+        assertEquals(1, pbfSpace.allNodes.size());
+        assertNotNull(pbfSpace.allNodes.get(1));
+        assertNull(pbfSpace.allNodes.get(2));
+    }
+}
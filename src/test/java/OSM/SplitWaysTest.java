@@ -0,0 +1,160 @@
+package OSM;
+
+import Importer.InvalidArgumentException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests OSMEntitySpace's batch splitWays(), on open and closed ways, against splitting the ways one at a time
+ */
+public class SplitWaysTest {
+    private OSMEntitySpace entitySpace;
+    private OSMNode[] nodes;
+    private OSMWay openWay, closedWay;
+    private OSMRelation relation;
+
+    @Before
+    public void setUp() {
+        entitySpace = new OSMEntitySpace(64);
+        nodes = new OSMNode[10];
+        for(int n = 0; n < nodes.length; n++) {
+            nodes[n] = entitySpace.createNode(100.0 * n, 0.0, null);
+        }
+
+        //an open way through nodes 0-5, and a closed loop through nodes 6-9
+        openWay = entitySpace.createWay(null, Arrays.asList(nodes[0], nodes[1], nodes[2], nodes[3], nodes[4], nodes[5]));
+        openWay.setTag(OSMEntity.KEY_NAME, "Main St");
+        closedWay = entitySpace.createWay(null, Arrays.asList(nodes[6], nodes[7], nodes[8], nodes[9], nodes[6]));
+        closedWay.setTag(OSMEntity.KEY_NAME, "Loop Rd");
+        relation = entitySpace.createRelation(null, null);
+        relation.setTag(OSMEntity.KEY_TYPE, "route");
+        relation.addMember(openWay, "");
+        relation.addMember(entitySpace.createWay(null, Arrays.asList(nodes[5], nodes[6])), "");
+    }
+    private static String nodeIds(final OSMWay way) {
+        final StringBuilder ids = new StringBuilder(64);
+        for(final OSMNode node : way.getNodes()) {
+            ids.append(ids.length() > 0 ? " " : "").append(node.osm_id);
+        }
+        return ids.toString();
+    }
+    private String nodeIds(final int... nodeIndexes) {
+        final StringBuilder ids = new StringBuilder(64);
+        for(final int nodeIndex : nodeIndexes) {
+            ids.append(ids.length() > 0 ? " " : "").append(nodes[nodeIndex].osm_id);
+        }
+        return ids.toString();
+    }
+    private static List<String> nodeIds(final OSMWay[] ways) {
+        final List<String> ids = new ArrayList<>(ways.length);
+        for(final OSMWay way : ways) {
+            ids.add(nodeIds(way));
+        }
+        return ids;
+    }
+
+    @Test
+    public void openWayIsSplitAtEachNode() throws InvalidArgumentException {
+        final Map<OSMWay, List<OSMNode>> splitRequests = new LinkedHashMap<>();
+        splitRequests.put(openWay, Arrays.asList(nodes[4], nodes[2], nodes[2])); //unordered, with a duplicate
+        final OSMWay[] splitWays = entitySpace.splitWays(splitRequests).get(openWay);
+
+        assertEquals(Arrays.asList(nodeIds(0, 1, 2), nodeIds(2, 3, 4), nodeIds(4, 5)), nodeIds(splitWays));
+        assertSame("the largest portion keeps the original way", openWay, splitWays[0]);
+        for(final OSMWay splitWay : splitWays) {
+            assertEquals("Main St", splitWay.getTag(OSMEntity.KEY_NAME));
+        }
+    }
+    @Test
+    public void closedWayIsSplitAroundTheLoop() throws InvalidArgumentException {
+        final Map<OSMWay, List<OSMNode>> splitRequests = new LinkedHashMap<>();
+        splitRequests.put(closedWay, Arrays.asList(nodes[9], nodes[7]));
+        final OSMWay[] splitWays = entitySpace.splitWays(splitRequests).get(closedWay);
+
+        //the second portion wraps around the loop's first/last node
+        assertEquals(Arrays.asList(nodeIds(7, 8, 9), nodeIds(9, 6, 7)), nodeIds(splitWays));
+        for(final OSMWay splitWay : splitWays) {
+            assertFalse(splitWay.isClosed());
+            assertEquals("Loop Rd", splitWay.getTag(OSMEntity.KEY_NAME));
+        }
+    }
+    @Test
+    public void closedWayCanBeSplitAtItsFirstNode() throws InvalidArgumentException {
+        final Map<OSMWay, List<OSMNode>> splitRequests = new LinkedHashMap<>();
+        splitRequests.put(closedWay, Arrays.asList(nodes[6], nodes[8]));
+        assertEquals(Arrays.asList(nodeIds(6, 7, 8), nodeIds(8, 9, 6)), nodeIds(entitySpace.splitWays(splitRequests).get(closedWay)));
+    }
+    @Test(expected = InvalidArgumentException.class)
+    public void closedWayNeedsTwoSplitNodes() throws InvalidArgumentException {
+        final Map<OSMWay, List<OSMNode>> splitRequests = new LinkedHashMap<>();
+        splitRequests.put(closedWay, Collections.singletonList(nodes[8]));
+        entitySpace.splitWays(splitRequests);
+    }
+    @Test
+    public void endpointsOfOpenWaysAreIgnored() throws InvalidArgumentException {
+        final Map<OSMWay, List<OSMNode>> splitRequests = new LinkedHashMap<>();
+        splitRequests.put(openWay, Arrays.asList(nodes[0], nodes[5]));
+        final OSMWay[] splitWays = entitySpace.splitWays(splitRequests).get(openWay);
+        assertEquals(1, splitWays.length);
+        assertSame(openWay, splitWays[0]);
+        assertEquals(nodeIds(0, 1, 2, 3, 4, 5), nodeIds(openWay));
+    }
+    @Test
+    public void invalidRequestsDontSplitAnyWays() {
+        final int wayCount = entitySpace.allWays.size();
+        final Map<OSMWay, List<OSMNode>> splitRequests = new LinkedHashMap<>();
+        splitRequests.put(openWay, Collections.singletonList(nodes[3]));
+        splitRequests.put(closedWay, Arrays.asList(nodes[7], nodes[2])); //nodes[2] isn't on the loop
+        try {
+            entitySpace.splitWays(splitRequests);
+            fail("invalid split node wasn't rejected");
+        } catch (InvalidArgumentException ignored) {}
+
+        assertEquals(wayCount, entitySpace.allWays.size());
+        assertEquals(nodeIds(0, 1, 2, 3, 4, 5), nodeIds(openWay));
+        assertEquals(nodeIds(6, 7, 8, 9, 6), nodeIds(closedWay));
+    }
+    @Test
+    public void batchSplitMatchesSplittingEachWay() throws InvalidArgumentException {
+        final Map<OSMWay, List<OSMNode>> splitRequests = new LinkedHashMap<>();
+        splitRequests.put(closedWay, Arrays.asList(nodes[7], nodes[8], nodes[9]));
+        splitRequests.put(openWay, Arrays.asList(nodes[1], nodes[3]));
+        final Map<OSMWay, OSMWay[]> splitWays = entitySpace.splitWays(splitRequests);
+        assertEquals("results are in request order", new ArrayList<>(splitRequests.keySet()), new ArrayList<>(splitWays.keySet()));
+
+        //split an identical copy of the space one way at a time
+        final Map<OSMWay, List<String>> expectedSplitWays = new HashMap<>();
+        final OSMWay[] originalWays = {openWay, closedWay};
+        setUp();
+        final OSMWay[] copiedWays = {openWay, closedWay};
+        for(int w = 0; w < originalWays.length; w++) {
+            final List<OSMNode> splitNodes = splitRequests.get(originalWays[w]);
+            final OSMNode[] copiedSplitNodes = new OSMNode[splitNodes.size()];
+            for(int n = 0; n < copiedSplitNodes.length; n++) {
+                copiedSplitNodes[n] = entitySpace.allNodes.get(splitNodes.get(n).osm_id);
+            }
+            expectedSplitWays.put(originalWays[w], nodeIds(entitySpace.splitWay(copiedWays[w], copiedSplitNodes)));
+        }
+        for(final Map.Entry<OSMWay, OSMWay[]> splitWay : splitWays.entrySet()) {
+            assertEquals(expectedSplitWays.get(splitWay.getKey()), nodeIds(splitWay.getValue()));
+        }
+    }
+    @Test
+    public void containingRelationsGetTheSplitWays() throws InvalidArgumentException {
+        final Map<OSMWay, List<OSMNode>> splitRequests = new LinkedHashMap<>();
+        splitRequests.put(openWay, Collections.singletonList(nodes[3]));
+        splitRequests.put(closedWay, Arrays.asList(nodes[7], nodes[9])); //not a member: must be left out of the relation
+        final OSMWay[] splitWays = entitySpace.splitWays(splitRequests).get(openWay);
+
+        final List<OSMRelation.OSMRelationMember> members = relation.getMembers();
+        assertEquals(splitWays.length + 1, members.size());
+        for(int w = 0; w < splitWays.length; w++) {
+            assertSame(splitWays[w], members.get(w).member);
+            assertTrue(splitWays[w].getContainingRelations().containsKey(relation.osm_id));
+        }
+    }
+}